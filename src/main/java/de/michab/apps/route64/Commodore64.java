@@ -21,9 +21,14 @@ import javax.swing.JOptionPane;
 import javax.swing.JPopupMenu;
 import javax.swing.JToolBar;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.ToolTipManager;
 
+import de.michab.apps.route64.actions.MemoryDisplay;
+import de.michab.apps.route64.actions.Monitor;
 import de.michab.apps.route64.actions.ResetAction;
+import de.michab.simulator.mos6502.Cpu6510;
+import de.michab.simulator.mos6502.FrameTimer;
 import de.michab.simulator.mos6502.c64.C64Core;
 
 /**
@@ -37,6 +42,18 @@ public final class Commodore64
     private static Logger LOG = Logger.getLogger(
             Commodore64.class.getName() );
 
+    /**
+     * The system property selecting the display, either <code>awt</code>
+     * or <code>fx</code>.  The default is <code>awt</code>.
+     */
+    private static final String DISPLAY_PROPERTY =
+            Commodore64.class.getName() + ".display";
+
+    /**
+     * The interval in milliseconds the frame times are logged in.
+     */
+    private static final int FRAME_TIME_LOG_INTERVAL = 10000;
+
     /**
      * The actual emulator instance tied to this UI.
      */
@@ -84,10 +101,14 @@ public final class Commodore64
     {
         am.add(
                 new ResetAction( _emulator ) );
-//        am.add(
-//                new Monitor(
-//                        (Cpu6510)_emulator.getCpu(),
-//                        this ) );
+        am.add(
+                new Monitor(
+                        (Cpu6510)_emulator.getCpu(),
+                        this ) );
+        am.add(
+                new MemoryDisplay(
+                        _emulator.getMemory(),
+                        this ) );
 
         JComboBox<C64Core.InputDevice> combo =
                 new JComboBox<C64Core.InputDevice>(
@@ -105,6 +126,24 @@ public final class Commodore64
         _emulator.setSoundOn( false );
     }
 
+    /**
+     * Show a secondary window of the application.  A window that is not yet
+     * visible is placed over the main window.
+     *
+     * @param frame The window to show.
+     */
+    public void show( JFrame frame )
+    {
+        if ( ! frame.isVisible() )
+        {
+            frame.pack();
+            frame.setLocationRelativeTo( _mainFrame );
+        }
+
+        frame.setVisible( true );
+        frame.toFront();
+    }
+
     public void imageFileChanged( PropertyChangeEvent evt )
     {
         File imageFile = (File)evt.getNewValue();
@@ -146,9 +185,30 @@ public final class Commodore64
         if ( argv.length > 1 )
             _emulator.load( argv[1].getBytes() );
 
-        _mainFrame.getContentPane().add(
-                _emulator.getDisplay(),
-                BorderLayout.CENTER );
+        FrameTimer presentTimer;
+
+        if ( "fx".equalsIgnoreCase( System.getProperty( DISPLAY_PROPERTY ) ) )
+        {
+            // The JavaFX display opens a window of its own, the main frame
+            // holds the controls.
+            FxDisplay display = new FxDisplay(
+                    _emulator,
+                    () -> System.exit( 0 ) );
+            display.show( getClass().getSimpleName() );
+            presentTimer = display.getPresentTimer();
+        }
+        else
+        {
+            _mainFrame.getContentPane().add(
+                    _emulator.getDisplay(),
+                    BorderLayout.CENTER );
+            presentTimer = _emulator.getPresentTimer();
+        }
+
+        new Timer( FRAME_TIME_LOG_INTERVAL, e -> {
+            if ( LOG.isLoggable( Level.FINE ) )
+                LOG.fine( presentTimer.toString() );
+        }).start();
 
         // Add drag and drop loading.
         new DropHandler(
@@ -0,0 +1,307 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GNU public license (http://www.gnu.org/copyleft/gpl.html)
+ * Copyright © 2000-2020 Michael G. Binz
+ */
+package de.michab.apps.route64;
+
+import java.awt.Component;
+import java.awt.event.InputEvent;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.michab.simulator.mos6502.FrameTimer;
+import de.michab.simulator.mos6502.Vic;
+import de.michab.simulator.mos6502.c64.C64Core;
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+import javafx.scene.input.KeyEvent;
+import javafx.scene.layout.StackPane;
+import javafx.stage.Stage;
+
+/**
+ * A JavaFX display for the emulator.  The frames are written into a
+ * <code>WritableImage</code> in a single bulk operation, scaling is done by
+ * the scene graph.  The raster thread hands over the frames in a triple
+ * buffer, so neither the emulation nor the JavaFX application thread waits
+ * for the other.  Key events are forwarded to the emulation.
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+final class FxDisplay
+{
+    /**
+     * The emulator shown.
+     */
+    private final C64Core _emulator;
+
+    /**
+     * The source of the key events passed to the emulation.
+     */
+    private final Component _keySource;
+
+    /**
+     * Called after the display window was closed.
+     */
+    private final Runnable _onClose;
+
+    /**
+     * The pixel format converting the VIC color indices.
+     */
+    private final PixelFormat<ByteBuffer> _format =
+            PixelFormat.createByteIndexedInstance( argb( Vic.VIC_RGB_COLORS ) );
+
+    /**
+     * The frame buffers.  The raster thread writes the back buffer, the
+     * JavaFX application thread reads the front buffer.  The ready buffer
+     * holds the latest complete frame.
+     */
+    private ByteBuffer _back = allocate();
+    private ByteBuffer _ready = allocate();
+    private ByteBuffer _front = allocate();
+
+    /**
+     * Set if the ready buffer holds a frame not shown yet.  Guarded by this.
+     */
+    private boolean _fresh = false;
+
+    /**
+     * Set while an update of the image is scheduled.
+     */
+    private final AtomicBoolean _scheduled = new AtomicBoolean();
+
+    /**
+     * Measures writing the frames into the image.
+     */
+    private final FrameTimer _presentTimer = new FrameTimer( "JavaFX present" );
+
+    /**
+     * The image the frames are written to.
+     */
+    private WritableImage _image;
+
+    /**
+     * The writer for the image.
+     */
+    private PixelWriter _writer;
+
+    /**
+     * Create an instance.
+     *
+     * @param emulator The emulator to show.
+     * @param onClose Called on the JavaFX application thread after the
+     *        display window was closed.
+     */
+    FxDisplay( C64Core emulator, Runnable onClose )
+    {
+        _emulator = emulator;
+        _keySource = emulator.getDisplay();
+        _onClose = onClose;
+    }
+
+    /**
+     * Start the JavaFX toolkit if needed, open the display window and
+     * connect it to the emulation.
+     *
+     * @param title The window title.
+     */
+    void show( String title )
+    {
+        try
+        {
+            Platform.startup( () -> open( title ) );
+        }
+        catch ( IllegalStateException e )
+        {
+            // The toolkit is already running.
+            Platform.runLater( () -> open( title ) );
+        }
+    }
+
+    /**
+     * Get the timer measuring writing the frames into the image.
+     *
+     * @return The timer.
+     */
+    FrameTimer getPresentTimer()
+    {
+        return _presentTimer;
+    }
+
+    /**
+     * Create the window.  Called on the JavaFX application thread.
+     */
+    private void open( String title )
+    {
+        Platform.setImplicitExit( false );
+
+        _image = new WritableImage( Vic.FRAME_WIDTH, Vic.FRAME_HEIGHT );
+        _writer = _image.getPixelWriter();
+
+        ImageView view = new ImageView( _image );
+        view.setPreserveRatio( true );
+        view.setSmooth( false );
+
+        StackPane root = new StackPane( view );
+        root.setStyle( "-fx-background-color: black;" );
+
+        Scene scene = new Scene(
+                root,
+                2 * Vic.FRAME_WIDTH,
+                2 * Vic.FRAME_HEIGHT );
+        view.fitWidthProperty().bind( scene.widthProperty() );
+        view.fitHeightProperty().bind( scene.heightProperty() );
+
+        scene.setOnKeyPressed( e -> forward(
+                e, java.awt.event.KeyEvent.KEY_PRESSED ) );
+        scene.setOnKeyReleased( e -> forward(
+                e, java.awt.event.KeyEvent.KEY_RELEASED ) );
+        scene.setOnKeyTyped( e -> forward(
+                e, java.awt.event.KeyEvent.KEY_TYPED ) );
+
+        Stage stage = new Stage();
+        stage.setTitle( title );
+        stage.setScene( scene );
+        stage.setOnHidden( e -> {
+            _emulator.setPresenter( null );
+            _onClose.run();
+        });
+        stage.show();
+
+        _emulator.setPresenter( this::present );
+    }
+
+    /**
+     * Receives a frame.  Called on the raster thread.
+     */
+    private void present( byte[] screen )
+    {
+        _back.clear();
+        _back.put( screen );
+
+        synchronized ( this )
+        {
+            ByteBuffer swap = _ready;
+            _ready = _back;
+            _back = swap;
+            _fresh = true;
+        }
+
+        if ( _scheduled.compareAndSet( false, true ) )
+            Platform.runLater( this::update );
+    }
+
+    /**
+     * Write the latest frame into the image.  Called on the JavaFX
+     * application thread.
+     */
+    private void update()
+    {
+        _scheduled.set( false );
+
+        synchronized ( this )
+        {
+            if ( ! _fresh )
+                return;
+
+            ByteBuffer swap = _front;
+            _front = _ready;
+            _ready = swap;
+            _fresh = false;
+        }
+
+        long start = System.nanoTime();
+
+        _front.rewind();
+        _writer.setPixels(
+                0,
+                0,
+                Vic.FRAME_WIDTH,
+                Vic.FRAME_HEIGHT,
+                _format,
+                _front,
+                Vic.FRAME_WIDTH );
+
+        _presentTimer.since( start );
+    }
+
+    /**
+     * Pass a key event to the emulation as the equivalent AWT event.
+     */
+    private void forward( KeyEvent event, int id )
+    {
+        int modifiers = 0;
+        if ( event.isShiftDown() )
+            modifiers |= InputEvent.SHIFT_DOWN_MASK;
+        if ( event.isControlDown() )
+            modifiers |= InputEvent.CTRL_DOWN_MASK;
+        if ( event.isAltDown() )
+            modifiers |= InputEvent.ALT_DOWN_MASK;
+        if ( event.isMetaDown() )
+            modifiers |= InputEvent.META_DOWN_MASK;
+
+        long when = System.currentTimeMillis();
+
+        if ( id == java.awt.event.KeyEvent.KEY_TYPED )
+        {
+            String character = event.getCharacter();
+            if ( character.isEmpty() ||
+                    KeyEvent.CHAR_UNDEFINED.equals( character ) )
+                return;
+
+            _emulator.keyTyped( new java.awt.event.KeyEvent(
+                    _keySource,
+                    id,
+                    when,
+                    modifiers,
+                    java.awt.event.KeyEvent.VK_UNDEFINED,
+                    character.charAt( 0 ) ) );
+        }
+        else
+        {
+            // The JavaFX key codes are the AWT virtual key codes.
+            java.awt.event.KeyEvent awt = new java.awt.event.KeyEvent(
+                    _keySource,
+                    id,
+                    when,
+                    modifiers,
+                    event.getCode().getCode(),
+                    java.awt.event.KeyEvent.CHAR_UNDEFINED );
+
+            if ( id == java.awt.event.KeyEvent.KEY_PRESSED )
+                _emulator.keyPressed( awt );
+            else
+                _emulator.keyReleased( awt );
+        }
+
+        event.consume();
+    }
+
+    /**
+     * Allocate a frame buffer.
+     */
+    private static ByteBuffer allocate()
+    {
+        return ByteBuffer.allocate( Vic.FRAME_WIDTH * Vic.FRAME_HEIGHT );
+    }
+
+    /**
+     * Add an opaque alpha channel to RGB colors.
+     */
+    private static int[] argb( int[] rgb )
+    {
+        int[] result = new int[ rgb.length ];
+
+        for ( int i = 0 ; i < rgb.length ; i++ )
+            result[i] = 0xff000000 | rgb[i];
+
+        return result;
+    }
+}
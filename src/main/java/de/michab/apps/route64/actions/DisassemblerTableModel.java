@@ -17,6 +17,18 @@ import de.michab.simulator.mos6502.Opcodes;
 /**
  * TableModel that disassembles code starting from a given PC.
  *
+ * <p>In the default mode the table holds the addresses that were passed to
+ * <code>setPC()</code>.  In linear mode the table holds the whole 64k address
+ * space disassembled linearly.  In both modes the rows are kept in a sorted
+ * array of addresses, so finding the row for an address is a binary search.
+ * Rows are only disassembled when the table displays them.</p>
+ *
+ * <p>Disassembled instructions are cached per address.  The cache entries
+ * of the pages written since the last <code>refresh()</code> are discarded,
+ * the written pages are collected from the memory.  Memory is read by
+ * <code>peek()</code> so displaying the IO area does not affect the
+ * chips.</p>
+ *
  * @author Stefan K&uuml;hnel
  */
 class DisassemblerTableModel extends AbstractTableModel
@@ -37,10 +49,62 @@ class DisassemblerTableModel extends AbstractTableModel
 
 
   /**
-   *
+   * The sorted addresses of the table rows.  Only the first
+   * <code>_rowCount</code> entries are valid.
+   */
+  private int[] _rows = new int[ 256 ];
+
+
+
+  /**
+   * The number of rows.
+   */
+  private int _rowCount = 0;
+
+
+
+  /**
+   * True if the model displays the whole address space.
+   */
+  private boolean _linear = false;
+
+
+
+  /**
+   * The size of a memory page as used by
+   * <code>Memory.collectDirtyPages()</code>.
+   */
+  private static final int PAGE_SIZE = 0x100;
+
+
+
+  /**
+   * The first page of the banked memory areas.  Writing to the zero page
+   * may switch the banks, so the cache entries of the banked pages are
+   * discarded in this case.
+   */
+  private static final int BANKED_PAGES_START = 0xa0;
+
+
+
+  /**
+   * The last address passed to <code>setPC()</code>.
+   */
+  private int _pc = -1;
+
+
+
+  /**
+   * The cached disassembled instructions per address.
+   */
+  private final String[] _cache = new String[ 0x10000 ];
+
+
+
+  /**
+   * Receives the pages written since the last refresh.
    */
-  private final ArrayList<AssemblerLine> _vect =
-    new ArrayList<AssemblerLine>();
+  private final long[] _dirtyPages = new long[ 0x10000 / PAGE_SIZE / 64 ];
 
 
 
@@ -66,6 +130,64 @@ class DisassemblerTableModel extends AbstractTableModel
   public DisassemblerTableModel( Memory mem )
   {
     _mem = mem;
+
+    // Consume the pages written so far.
+    _mem.collectDirtyPages( _dirtyPages );
+  }
+
+
+
+  /**
+   * Discards the disassembled instructions of the pages written since the
+   * last call.  Has to be called on the event dispatch thread.
+   */
+  public void refresh()
+  {
+    _mem.collectDirtyPages( _dirtyPages );
+
+    boolean changed = false;
+    boolean banked = isDirty( 0 );
+
+    for ( int page = 0 ; page < 0x10000 / PAGE_SIZE ; page++ )
+    {
+      if ( ! isDirty( page ) && ! (banked && page >= BANKED_PAGES_START) )
+        continue;
+
+      // Instructions starting in the two bytes before the page have
+      // operands in the page.
+      int start = page * PAGE_SIZE - 2;
+      int end = (page + 1) * PAGE_SIZE;
+      for ( int i = Math.max( 0, start ) ; i < end ; i++ )
+        _cache[ i ] = null;
+
+      changed = true;
+    }
+
+    if ( ! changed )
+      return;
+
+    if ( _linear )
+      buildLinear( Math.max( 0, _pc ) );
+
+    fireTableDataChanged();
+  }
+
+
+
+  /**
+   * Switch between linear mode and the display of the visited addresses.
+   *
+   * @param linear If <code>true</code> the whole address space is displayed.
+   */
+  public void setLinear( boolean linear )
+  {
+    _linear = linear;
+    _rowCount = 0;
+
+    if ( linear )
+      buildLinear( 0 );
+
+    fireTableDataChanged();
   }
 
 
@@ -79,34 +201,54 @@ class DisassemblerTableModel extends AbstractTableModel
    */
   public int setPC(int pc)
   {
-    AssemblerLine ali = new AssemblerLine( pc, disassemble( pc, _mem ) );
+    pc &= 0xffff;
+    _pc = pc;
+
+    int pos = Arrays.binarySearch( _rows, 0, _rowCount, pc );
 
-    int pos=0;
-    if (_vect.contains(ali))
+    if ( pos >= 0 )
     {
-      pos=_vect.indexOf(ali);
-      _vect.set(pos,ali);
-      fireTableCellUpdated(pos,1);
+      fireTableCellUpdated( pos, 1 );
+      return pos;
     }
-    else
+
+    if ( _linear )
     {
-      _vect.add(ali);
-      java.util.Collections.sort( _vect );
-      pos = _vect.indexOf( ali );
-      fireTableRowsInserted(pos,pos);
+      // The pc is not on an instruction boundary of the linear disassembly,
+      // so redo the disassembly with pc as a boundary.
+      buildLinear( pc );
+      fireTableDataChanged();
+      return Arrays.binarySearch( _rows, 0, _rowCount, pc );
     }
 
+    pos = -(pos + 1);
+    insertRow( pos, pc );
+    fireTableRowsInserted( pos, pos );
+
     return pos;
   }
 
 
 
+  /**
+   * Get the address displayed in the passed row.
+   *
+   * @param row The row.
+   * @return The address of the row.
+   */
+  public int getAddress( int row )
+  {
+    return _rows[ row ];
+  }
+
+
+
   /*
    * Parent javadoc.
    */
   public int getRowCount()
   {
-    return _vect.size();
+    return _rowCount;
   }
 
 
@@ -126,25 +268,17 @@ class DisassemblerTableModel extends AbstractTableModel
    */
   public Object getValueAt( int row, int col )
   {
-    String result = "";
-
-    if ( (_vect.size()>0) && (row<=_vect.size()) )
-    {
-      AssemblerLine ali= _vect.get(row);
+    if ( row < 0 || row >= _rowCount )
+      return "";
 
-      if ( col == 0 )
-      {
-          result = Integer.toString( ali.getAddr(), _radix );
-      }
-      else if ( col == 1 )
-      {
-          result = ali.getLine();
-      }
-      else
-        throw new InternalError();
-    }
+    int address = _rows[ row ];
 
-    return result;
+    if ( col == 0 )
+      return Integer.toString( address, _radix );
+    else if ( col == 1 )
+      return disassemble( address );
+    else
+      throw new InternalError();
   }
 
 
@@ -160,33 +294,96 @@ class DisassemblerTableModel extends AbstractTableModel
 
 
   /**
-   * Disassemble the code at the given address.
+   * Inserts a row.
    *
-   * @param pc The address of the instruction to decode.
-   * @param mem The memory containing the instruction to decode.
+   * @param pos The row position.
+   * @param address The address of the row.
    */
-  private static String disassemble( int pc, Memory mem )
+  private void insertRow( int pos, int address )
   {
-    int opcode = byte2int( mem.read(pc) );
+    if ( _rowCount == _rows.length )
+      _rows = Arrays.copyOf( _rows, _rows.length * 2 );
 
-    int len = Opcodes.getEncodingLength( opcode );
+    System.arraycopy( _rows, pos, _rows, pos + 1, _rowCount - pos );
+    _rows[ pos ] = address;
+    _rowCount++;
+  }
 
-    int value = 0;
-    if ( len == 2 )
-    {
-      value = byte2int( mem.read(pc+1) );
-    }
-    else if ( len == 3 )
+
+
+  /**
+   * Disassembles the whole address space linearly.
+   *
+   * @param anchor An address that has to be an instruction boundary.
+   */
+  private void buildLinear( int anchor )
+  {
+    if ( _rows.length < 0x10000 )
+      _rows = new int[ 0x10000 ];
+
+    _rowCount = 0;
+
+    int address = 0;
+    while ( address < 0x10000 )
     {
-      value = mem.getVectorAt( pc+1 );
+      // Instructions overlapping the anchor are cut.
+      if ( address < anchor && anchor < address + instructionLength( address ) )
+      {
+        _rows[ _rowCount++ ] = address;
+        address = anchor;
+        continue;
+      }
+
+      _rows[ _rowCount++ ] = address;
+      address += instructionLength( address );
     }
+  }
+
+
 
-    // Well, in many cases this is unnecessary since we only have a single
-    // argument opcode, but it doesn't hurt and is simple.
-    String displayValue = "$" + Integer.toHexString( value );
+  /**
+   * Get the length of the instruction at the passed address.
+   */
+  private int instructionLength( int address )
+  {
+    return Math.max( 1, Opcodes.getEncodingLength( _mem.peek( address ) ) );
+  }
 
-    return java.text.MessageFormat.format( Opcodes.getText( opcode ),
-                                           new Object[]{ displayValue } );
+
+
+  /**
+   * Disassemble the code at the given address.  Uses the cache if the
+   * page holding the instruction was not written.
+   *
+   * @param pc The address of the instruction to decode.
+   */
+  private String disassemble( int pc )
+  {
+    if ( _cache[ pc ] != null )
+      return _cache[ pc ];
+
+    int opcode = byte2int( _mem.peek( pc ) );
+    int len = Opcodes.getEncodingLength( opcode );
+
+    int operand = 0;
+    if ( len > 1 )
+      operand |= byte2int( _mem.peek( (pc+1) & 0xffff ) );
+    if ( len > 2 )
+      operand |= byte2int( _mem.peek( (pc+2) & 0xffff ) ) << 8;
+
+    _cache[ pc ] = Opcodes.disassemble( opcode, operand );
+
+    return _cache[ pc ];
+  }
+
+
+
+  /**
+   * Checks whether the passed page was written before the last refresh.
+   */
+  private boolean isDirty( int page )
+  {
+    return 0 != (_dirtyPages[ page >>> 6 ] & (1L << page));
   }
 
 
@@ -12,14 +12,19 @@ import java.awt.Color;
 import java.awt.Component;
 import java.awt.Font;
 import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 
 import javax.swing.AbstractAction;
 import javax.swing.DefaultCellEditor;
+import javax.swing.JCheckBox;
 import javax.swing.JComponent;
 import javax.swing.JFrame;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
 import javax.swing.JTextField;
+import javax.swing.Timer;
 import javax.swing.WindowConstants;
 import javax.swing.border.LineBorder;
 import javax.swing.table.DefaultTableCellRenderer;
@@ -30,7 +35,10 @@ import de.michab.simulator.Memory;
 
 
 /**
- * Displays an editable memory view that can be used for debugging.
+ * Displays an editable memory view that can be used for debugging.  The view
+ * is kept live while the emulation is running.  It is refreshed at a fixed
+ * rate from the pages the emulation wrote since the last refresh, recently
+ * written values can be highlighted.
  *
  * @author Michael G.Binz
  */
@@ -53,6 +61,43 @@ public final class MemoryDisplay
 
 
 
+  /**
+   * The refresh interval in milliseconds.
+   */
+  private static final int REFRESH_MILLIS = 100;
+
+
+
+  /**
+   * The background of highlighted values.
+   */
+  private static final Color HIGHLIGHT_COLOR = new Color( 0xffd0d0 );
+
+
+
+  /**
+   * The hex display texts for all byte values.
+   */
+  private static final String[] HEX = new String[ 256 ];
+
+
+
+  /**
+   * The binary display texts for all byte values.
+   */
+  private static final String[] BINARY = new String[ 256 ];
+
+  static
+  {
+    for ( int i = 0 ; i < 256 ; i++ )
+    {
+      HEX[i] = makeNumberDisplay( i, 8, 16, 2 );
+      BINARY[i] = makeNumberDisplay( i, 8, 2, 8 );
+    }
+  }
+
+
+
   /**
    * A fixed width font.  Used for processor data and the like.  See the static
    * initialiser for more info.
@@ -76,7 +121,8 @@ public final class MemoryDisplay
    */
   public MemoryDisplay( Memory memory, Commodore64 home )
   {
-    super( "ACT_EDIT_MEMORY" );
+    super( "Memory" );
+//    super( "ACT_EDIT_MEMORY" );
 
     _home = home;
     _memoryModel = new MemoryTableModel( memory );
@@ -88,7 +134,7 @@ public final class MemoryDisplay
    * Inherit Javadoc.
    */
   @Override
-public void actionPerformed( ActionEvent e )
+  public void actionPerformed( ActionEvent e )
   {
     JTable view = new JTable(
         _memoryModel );
@@ -98,16 +144,39 @@ public void actionPerformed( ActionEvent e )
 
     view.setFont(
         _fixedWidthFont );
+    final MemoryRenderer renderer = new MemoryRenderer();
     view.setDefaultRenderer(
         Byte.class,
-        new ByteRenderer());
+        renderer);
     view.setDefaultRenderer(
-        Integer.class,
-        new IntegerRenderer());
+        String.class,
+        renderer);
     view.setDefaultEditor(
         Byte.class,
         new ByteEditor());
 
+    final JCheckBox highlight = new JCheckBox( "Highlight writes", true );
+    highlight.addActionListener( new ActionListener()
+    {
+      @Override
+      public void actionPerformed( ActionEvent ae )
+      {
+        renderer.setHighlight( highlight.isSelected() );
+        _memoryModel.fireTableDataChanged();
+      }
+    } );
+
+    // Refresh with a bounded rate.  The timer runs on the event dispatch
+    // thread and only reads memory, the emulation is not blocked.
+    final Timer refresh = new Timer( REFRESH_MILLIS, new ActionListener()
+    {
+      @Override
+      public void actionPerformed( ActionEvent ae )
+      {
+        _memoryModel.refresh();
+      }
+    } );
+
     JFrame f = new JFrame();
 
     f.setName( MemoryDisplay.class.getSimpleName() );
@@ -115,11 +184,29 @@ public void actionPerformed( ActionEvent e )
     f.setDefaultCloseOperation(
         WindowConstants.DISPOSE_ON_CLOSE );
 
+    // Refresh only while the window is open.
+    f.addWindowListener( new WindowAdapter()
+    {
+      @Override
+      public void windowOpened( WindowEvent we )
+      {
+        _memoryModel.refresh();
+        refresh.start();
+      }
+
+      @Override
+      public void windowClosed( WindowEvent we )
+      {
+        refresh.stop();
+      }
+    } );
+
+    f.getContentPane().add(
+        highlight, BorderLayout.NORTH);
     f.getContentPane().add(
         new JScrollPane( view ), BorderLayout.CENTER);
 
-    throw new InternalError( "TODO" );
-    //_home.show( f );
+    _home.show( f );
   }
 
 
@@ -167,58 +254,72 @@ public void actionPerformed( ActionEvent e )
       nullExtend( Integer.toString( ivalue, radix ), len );
   }
 
-  // TODO can be made much cooler.  Let's unify the renderers and
-  // editors.  Later  JDK 1.5.
-  static class ByteRenderer extends DefaultTableCellRenderer
+  /**
+   * Renders the cells of a <code>MemoryTableModel</code>.  The displayed
+   * values are read from the model's primitive data, the passed cell values
+   * are not used.
+   */
+  static class MemoryRenderer extends DefaultTableCellRenderer
   {
+    private static final long serialVersionUID = 6099514187733302367L;
+
+
+
     /**
-	 *
-	 */
-	private static final long serialVersionUID = 1L;
+     * Whether recently written values are highlighted.
+     */
+    private boolean _highlight = true;
+
 
-	public ByteRenderer()
+
+    /**
+     * Switch highlighting of recently written values.
+     *
+     * @param what <code>true</code> to switch highlighting on.
+     */
+    public void setHighlight( boolean what )
     {
+      _highlight = what;
     }
 
+
+
+    /*
+     * Inherit Javadoc.
+     */
     @Override
-    public void setValue(Object value)
+    public Component getTableCellRendererComponent(
+        JTable table,
+        Object value,
+        boolean isSelected,
+        boolean hasFocus,
+        int row,
+        int column )
     {
-      assert( value instanceof Byte );
+      // Reset a highlight background set on the previous cell.
+      setBackground( null );
+      super.getTableCellRendererComponent(
+          table, null, isSelected, hasFocus, row, column );
 
-      setText(
-        makeNumberDisplay( ((Byte)value).intValue(), 8, 16, 2  ) );
-      setToolTipText(
-        makeNumberDisplay( ((Byte)value).intValue(), 8, 2, 8 ) );
-    }
-  }
+      MemoryTableModel model = (MemoryTableModel)table.getModel();
 
+      if ( column == 0 )
+      {
+        setText( model.getAddressText( row ) );
+        setToolTipText( null );
+        return this;
+      }
 
-  // TODO can be made much cooler.  Let's unify the renderers and
-  // editors.  Later JDK 1.5.
-  static class IntegerRenderer extends DefaultTableCellRenderer
-  {
-    /**
-	 *
-	 */
-	private static final long serialVersionUID = 2592058181471782098L;
+      int b = model.getByte( row, column );
+      setText( HEX[ b ] );
+      setToolTipText( BINARY[ b ] );
 
-	public IntegerRenderer()
-    {
-    }
+      if ( ! isSelected &&
+           _highlight &&
+           model.isRecentlyWritten( row, column ) )
+        setBackground( HIGHLIGHT_COLOR );
 
-    @Override
-    public void setValue(Object value)
-    {
-      assert( value instanceof Integer );
-
-      setText(
-        makeNumberDisplay(
-            ((Integer)value).intValue(),
-            16,
-            16,
-            4  ) );
-      setToolTipText(
-          value.toString() );
+      return this;
     }
   }
 
@@ -17,6 +17,14 @@ import de.michab.simulator.Memory;
  * A table model used to edit and display raw memory content.  The first column
  * represents the memory address, the following columns the memory content.
  *
+ * <p>The model displays the RAM contents from the memory's raw array, ROM
+ * and IO registers overlaying the RAM are not displayed.  The displayed
+ * values are held in a copy of the RAM that is updated by
+ * <code>refresh()</code>.  Only the pages reported as written by the memory
+ * are compared and only changed rows are reported to the table.  The
+ * renderer reads the values using <code>getByte()</code> and
+ * <code>isRecentlyWritten()</code>, so no values are boxed on display.</p>
+ *
  * @version $Revision: 400 $
  * @author Michael G. Binz
  */
@@ -36,6 +44,19 @@ class MemoryTableModel
   private static final int NUM_EDIT_COLS = 16;
 
 
+  /**
+   * The size of a memory page as used by
+   * <code>Memory.collectDirtyPages()</code>.
+   */
+  private static final int PAGE_SIZE = 0x100;
+
+
+  /**
+   * The number of refreshes a changed value counts as recently written.
+   */
+  private static final int RECENT_REFRESHES = 10;
+
+
   /**
    * A reference to the memory to be edited.
    */
@@ -43,6 +64,55 @@ class MemoryTableModel
 
 
 
+  /**
+   * The memory's raw array.
+   */
+  private final byte[] _raw;
+
+
+
+  /**
+   * The displayed memory contents.
+   */
+  private final byte[] _shown;
+
+
+
+  /**
+   * The refresh count of the last change per address.
+   */
+  private final int[] _changed;
+
+
+
+  /**
+   * The refresh count of the last change per row.
+   */
+  private final int[] _rowChanged;
+
+
+
+  /**
+   * The number of calls to <code>refresh()</code>.
+   */
+  private int _refreshCount = 0;
+
+
+
+  /**
+   * Receives the dirty pages from the memory.
+   */
+  private final long[] _dirtyPages;
+
+
+
+  /**
+   * The address column texts.  Created on demand.
+   */
+  private final String[] _addressText;
+
+
+
   /**
    * Create an instance.
    *
@@ -55,6 +125,135 @@ class MemoryTableModel
       throw new NullPointerException();
 
     _memory = memory;
+    _raw = memory.getRawMemory();
+    _shown = _raw.clone();
+    _changed = new int[ _raw.length ];
+    _dirtyPages = new long[ (_raw.length / PAGE_SIZE + 63) / 64 ];
+    _addressText = new String[ _raw.length / NUM_EDIT_COLS ];
+    _rowChanged = new int[ _addressText.length ];
+
+    // Consume the pages written so far.
+    memory.collectDirtyPages( _dirtyPages );
+  }
+
+
+
+  /**
+   * Updates the displayed values from the memory.  Has to be called on the
+   * event dispatch thread.
+   */
+  public void refresh()
+  {
+    _refreshCount++;
+
+    _memory.collectDirtyPages( _dirtyPages );
+
+    for ( int page = 0 ; page < _raw.length / PAGE_SIZE ; page++ )
+    {
+      if ( 0 == (_dirtyPages[ page >>> 6 ] & 1L << page) )
+        continue;
+
+      for ( int row = page * PAGE_SIZE / NUM_EDIT_COLS ;
+            row < (page + 1) * PAGE_SIZE / NUM_EDIT_COLS ;
+            row++ )
+        refreshRow( row );
+    }
+
+    // Report the rows that changed and the rows that are no longer
+    // recently written.  Adjacent rows are collected into a single event.
+    int firstRow = -1;
+    int lastRow = -1;
+
+    for ( int row = 0 ; row < _rowChanged.length ; row++ )
+    {
+      int age = _refreshCount - _rowChanged[ row ];
+
+      if ( _rowChanged[ row ] == 0 || (age != 0 && age != RECENT_REFRESHES) )
+        continue;
+
+      if ( row != lastRow + 1 && firstRow >= 0 )
+      {
+        fireTableRowsUpdated( firstRow, lastRow );
+        firstRow = -1;
+      }
+      if ( firstRow < 0 )
+        firstRow = row;
+      lastRow = row;
+    }
+
+    if ( firstRow >= 0 )
+      fireTableRowsUpdated( firstRow, lastRow );
+  }
+
+
+
+  /**
+   * Copies the changed values of a row into the displayed values.
+   */
+  private void refreshRow( int row )
+  {
+    for ( int i = row * NUM_EDIT_COLS ; i < (row + 1) * NUM_EDIT_COLS ; i++ )
+    {
+      byte value = _raw[ i ];
+
+      if ( value != _shown[ i ] )
+      {
+        _shown[ i ] = value;
+        _changed[ i ] = _refreshCount;
+        _rowChanged[ row ] = _refreshCount;
+      }
+    }
+  }
+
+
+
+  /**
+   * Get the displayed value of a cell.
+   *
+   * @param rowIndex The row.
+   * @param columnIndex The column, has to be greater than zero.
+   * @return The value.
+   */
+  public int getByte( int rowIndex, int columnIndex )
+  {
+    return _shown[ address( rowIndex, columnIndex ) ] & 0xff;
+  }
+
+
+
+  /**
+   * Checks whether the value of a cell changed during the last refreshes.
+   *
+   * @param rowIndex The row.
+   * @param columnIndex The column, has to be greater than zero.
+   * @return <code>true</code> if the value was recently written.
+   */
+  public boolean isRecentlyWritten( int rowIndex, int columnIndex )
+  {
+    int changed = _changed[ address( rowIndex, columnIndex ) ];
+
+    return changed != 0 && _refreshCount - changed < RECENT_REFRESHES;
+  }
+
+
+
+  /**
+   * Get the text displayed in the address column.
+   *
+   * @param rowIndex The row.
+   * @return The address as a four digit hex number.
+   */
+  public String getAddressText( int rowIndex )
+  {
+    String result = _addressText[ rowIndex ];
+
+    if ( result == null )
+    {
+      result = String.format( "%04x", rowIndex * NUM_EDIT_COLS );
+      _addressText[ rowIndex ] = result;
+    }
+
+    return result;
   }
 
 
@@ -74,9 +273,9 @@ class MemoryTableModel
    */
   public int getRowCount()
   {
-    assert( 0 == (_memory.getSize() % NUM_EDIT_COLS) );
+    assert( 0 == (_raw.length % NUM_EDIT_COLS) );
 
-    return _memory.getSize() / NUM_EDIT_COLS;
+    return _raw.length / NUM_EDIT_COLS;
   }
 
 
@@ -98,7 +297,7 @@ class MemoryTableModel
   public Class<?> getColumnClass( int columnIndex )
   {
     if ( columnIndex == 0 )
-      return Integer.class;
+      return String.class;
 
     return Byte.class;
   }
@@ -111,15 +310,10 @@ class MemoryTableModel
   public Object getValueAt( int rowIndex, int columnIndex )
   {
     if (columnIndex == 0)
-    {
-      return new Integer( rowIndex * NUM_EDIT_COLS );
-    }
-
-    columnIndex--;
+      return getAddressText( rowIndex );
 
-    return new Byte(
-        _memory.read(
-            columnIndex + (rowIndex * NUM_EDIT_COLS) ) );
+    // Byte.valueOf() returns cached instances.
+    return Byte.valueOf( _shown[ address( rowIndex, columnIndex ) ] );
   }
 
 
@@ -132,7 +326,7 @@ class MemoryTableModel
     assert( aValue instanceof Byte );
 
     _memory.write(
-        (columnIndex-1) + (rowIndex*NUM_EDIT_COLS),
+        address( rowIndex, columnIndex ),
         ((Byte)aValue).byteValue() );
   }
 
@@ -151,4 +345,14 @@ class MemoryTableModel
 
     return Integer.toHexString( column );
   }
+
+
+
+  /**
+   * Computes the address of a cell.
+   */
+  private static int address( int rowIndex, int columnIndex )
+  {
+    return (columnIndex-1) + (rowIndex*NUM_EDIT_COLS);
+  }
 }
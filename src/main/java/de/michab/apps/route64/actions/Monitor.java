@@ -14,6 +14,10 @@ import java.awt.Font;
 import java.awt.Frame;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.util.ResourceBundle;
@@ -35,19 +39,23 @@ import javax.swing.JTextField;
 import javax.swing.JToggleButton;
 import javax.swing.JToolBar;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.border.TitledBorder;
 
 import de.michab.apps.route64.Commodore64;
-import de.michab.simulator.Debugger;
-import de.michab.simulator.Processor;
+import de.michab.simulator.mos6502.BreakpointEngine;
 import de.michab.simulator.mos6502.Cpu6510;
+import de.michab.simulator.mos6502.MonitorController;
 
 
 
 /**
  * <p>An archaic debugger.  Supports a single breakpoint depending on the
- * register contents and single-step control.</p>
+ * register contents or a condition and single-step control.</p>
  * <p>That was what we used in the eighties...</p>
+ * <p>Execution is controlled by a <code>MonitorController</code> on the
+ * processor thread.  The user interface polls the state of the stopped
+ * processor once per display refresh.</p>
  *
  * @version $Revision: 782 $
  * @author Stefan K&uuml;hnel
@@ -56,8 +64,6 @@ import de.michab.simulator.mos6502.Cpu6510;
 public final class Monitor
   extends
     AbstractAction
-  implements
-    Debugger
 {
   private static final long serialVersionUID = 227824685216209211L;
 
@@ -80,25 +86,46 @@ public final class Monitor
 
 
   /**
-   * The table showing the disassembled code.
+   * Controls the processor thread.
    */
-  private DisassemblerTableModel _disassembled = null;
+  private final MonitorController _controller;
 
 
 
   /**
-   * The current program counter value.  This is only valid in case the
-   * debugger controls the cpu thread, i.e. the cpu thread is waiting on the
-   * _lock object.  If not valid this is negative.
+   * Checks the breakpoints and calls the controller only if one is hit.
    */
-  private int _currentPc = -1;
+  private final BreakpointEngine _engine;
+
+
+
+  /**
+   * Polls the controller for the state of the stopped processor.
+   */
+  private final Timer _refreshTimer;
+
+
+
+  /**
+   * The poll interval of the refresh timer in milliseconds.
+   */
+  private final static int REFRESH_MILLIS = 20;
 
 
 
   /**
-   * The lock object used for single stepping.
+   * The table showing the disassembled code.
    */
-  private final Object _lock = new Object();
+  private DisassemblerTableModel _disassembled = null;
+
+
+
+  /**
+   * The current program counter value.  This is only valid in case the
+   * debugger controls the cpu thread, i.e. the cpu thread is stopped.  If not
+   * valid this is negative.
+   */
+  private int _currentPc = -1;
 
 
 
@@ -179,6 +206,16 @@ public final class Monitor
 
 
 
+  /**
+   * Conditional breakpoint.  Break if the expression entered as the
+   * breakpoint value is true.
+   *
+   * @see de.michab.simulator.mos6502.Condition
+   */
+  private final static String BRKTYPE_CONDITION = "Condition";
+
+
+
   /**
    * The type of the currently set breakpoint.
    */
@@ -195,13 +232,6 @@ public final class Monitor
 
 
 
-  /**
-   * True if single stepping.
-   */
-  private boolean _singleStep = false;
-
-
-
   /**
    *
    */
@@ -216,6 +246,7 @@ public final class Monitor
   private final JTextField _accuValue = new JTextField( 3 );
   private final JTextField _xValue = new JTextField( 3 );
   private final JTextField _yValue = new JTextField( 3 );
+  private final JTextField _spValue = new JTextField( 3 );
 
 
 
@@ -243,6 +274,21 @@ public final class Monitor
   private final JButton _breakpointClearButton = new JButton( "Clear" );
 
 
+
+  /**
+   * The number of instructions executed by the step action.
+   */
+  private final JTextField _stepCount = new JTextField( "1", 4 );
+
+
+
+  /**
+   * Switches the disassembly between the visited addresses and the whole
+   * address space.
+   */
+  private final JToggleButton _linear = new JToggleButton( "Linear" );
+
+
   private final Commodore64 _home;
 
   /**
@@ -252,11 +298,24 @@ public final class Monitor
    */
   public Monitor( Cpu6510 cpu, Commodore64 home )
   {
-    super( "ACT_DEBUG" );
+    super( "Monitor" );
+//    super( "ACT_DEBUG" );
 
     _home = home;
 
     _cpu = cpu;
+    _controller = new MonitorController( _cpu );
+    _engine = _controller.getEngine();
+    _refreshTimer = new Timer( REFRESH_MILLIS, new ActionListener()
+    {
+      @Override
+      public void actionPerformed( ActionEvent ae )
+      {
+        MonitorController.State state = _controller.pollState();
+        if ( state != null )
+          stepUi( state );
+      }
+    } );
 
     _frame = new JFrame();
     _frame.setName( "monitorFrame" );
@@ -282,6 +341,19 @@ public final class Monitor
           f.setVisible( false );
           actionClearBreakpointImpl();
           actionContinueImpl();
+          _refreshTimer.stop();
+        }
+      }
+    );
+
+    // Poll only while the window is displayed.
+    _frame.addComponentListener(
+      new ComponentAdapter()
+      {
+        @Override
+        public void componentShown( ComponentEvent ce )
+        {
+          _refreshTimer.start();
         }
       }
     );
@@ -293,10 +365,9 @@ public final class Monitor
    *
    */
   @Override
-public void actionPerformed( ActionEvent ae )
+  public void actionPerformed( ActionEvent ae )
   {
-      throw new InternalError( "TODO" );
-      //_home.show( _frame );
+    _home.show( _frame );
   }
 
 
@@ -318,99 +389,21 @@ public void actionPerformed( ActionEvent ae )
 
 
 
-  /*
-   * Inherit Javadoc.
-   */
-  @Override
-public void setProcessor( Processor processor )
-  {
-  }
-
-
-
-  /**
-   * Check whether the breakpoint is hit.
-   *
-   * @param pc The current program counter.
-   * @return <code>True</code> if the breakpoint is hit.
-   */
-  private boolean isBreakpointHit( int pc )
-  {
-    boolean result=false;
-
-    if ( _breakpointType == BRKTYPE_NONE )
-        result = false;
-    else if ( _breakpointType == BRKTYPE_PC )
-        result = _breakpointValue == pc;
-    else if ( _breakpointType == BRKTYPE_ACCU )
-        result = _cpu.getAccu() == _breakpointValue;
-    else if ( _breakpointType == BRKTYPE_X )
-        result = _cpu.getX() == _breakpointValue;
-    else if ( _breakpointType == BRKTYPE_Y )
-        result = _cpu.getY() == _breakpointValue;
-    else
-        throw new InternalError( "Invalid breakpoint type." );
-
-    return result;
-  }
-
-
-
-  /**
-   * This method is part of the debugger interface.
-   *
-   * @param pc The program counter.
-   */
-  @Override
-public void step( final int pc )
-  {
-    if ( ! _singleStep && ! isBreakpointHit( pc ) )
-      return;
-
-    // Call the user interface relevant parts on the event handler thread.
-    SwingUtilities.invokeLater( new Runnable()
-    {
-      @Override
-    public void run()
-      {
-        stepUi( pc );
-      }
-    } );
-
-    // Lock the processor thread.
-    try
-    {
-      synchronized (_lock)
-      {
-        _lock.wait();
-      }
-
-      // This is later-on the only place from where it is allowed to write new
-      // register values to the cpu.
-    }
-    catch ( InterruptedException iex)
-    {
-      // No action on interruption.
-    }
-  }
-
-
-
   /**
-   * Implements the user interface relevant parts of single stepping.
+   * Implements the user interface relevant parts of single stepping.  Called
+   * by the refresh timer if the processor stopped.
    *
-   * @param pc The current program counter.
+   * @param state The state of the stopped processor.
    * @throws InternalError If not called on event dispatch thread.
-   * @see Monitor#step
    */
-  private void stepUi( int pc )
+  private void stepUi( MonitorController.State state )
   {
     if ( ! SwingUtilities.isEventDispatchThread() )
       throw new InternalError( "Not on EventDispatchThread." );
 
-    _currentPc = pc;
+    _currentPc = state.getPC();
 
-    updateLabels();
+    updateLabels( state );
     setControlButtons( false, true, true );
   }
 
@@ -422,6 +415,8 @@ public void step( final int pc )
   private void setControlButtons( boolean brk, boolean step, boolean cnt )
   {
     _actionStep.setEnabled( step );
+    _actionStepOver.setEnabled( step );
+    _actionRunToReturn.setEnabled( step );
     _actionBreak.setEnabled( brk );
     _actionContinue.setEnabled( cnt );
   }
@@ -433,6 +428,7 @@ public void step( final int pc )
    */
   private void updateTable()
   {
+    _disassembled.refresh();
     int table_current_line = _disassembled.setPC( _currentPc );
     _tbl.changeSelection( table_current_line, 0, false, false );
   }
@@ -442,7 +438,7 @@ public void step( final int pc )
   /**
    *
    */
-  private void updateLabels()
+  private void updateLabels( MonitorController.State state )
   {
     if ( _currentPc < 0 )
       throw new InternalError( "Invalid PC." );
@@ -452,23 +448,24 @@ public void step( final int pc )
 
     // Update the register display.
     setRegisterTextComponent( _pcValue, _currentPc );
-    setRegisterTextComponent( _accuValue, _cpu.getAccu() );
-    setRegisterTextComponent( _xValue, _cpu.getX() );
-    setRegisterTextComponent( _yValue, _cpu.getY() );
+    setRegisterTextComponent( _accuValue, state.getAccu() );
+    setRegisterTextComponent( _xValue, state.getX() );
+    setRegisterTextComponent( _yValue, state.getY() );
+    setRegisterTextComponent( _spValue, state.getSP() );
     _flagN.setSelected(
-      _cpu.isStatusFlagSet( Cpu6510.STATUS_FLAG_NEGATIVE ) );
+      state.isStatusFlagSet( Cpu6510.STATUS_FLAG_NEGATIVE ) );
     _flagV.setSelected(
-      _cpu.isStatusFlagSet( Cpu6510.STATUS_FLAG_OVERFLOW ) );
+      state.isStatusFlagSet( Cpu6510.STATUS_FLAG_OVERFLOW ) );
     _flagC.setSelected(
-      _cpu.isStatusFlagSet( Cpu6510.STATUS_FLAG_CARRY ) );
+      state.isStatusFlagSet( Cpu6510.STATUS_FLAG_CARRY ) );
     _flagZ.setSelected(
-      _cpu.isStatusFlagSet( Cpu6510.STATUS_FLAG_ZERO ) );
+      state.isStatusFlagSet( Cpu6510.STATUS_FLAG_ZERO ) );
     _flagB.setSelected(
-      _cpu.isStatusFlagSet( Cpu6510.STATUS_FLAG_BREAK ) );
+      state.isStatusFlagSet( Cpu6510.STATUS_FLAG_BREAK ) );
     _flagI.setSelected(
-      _cpu.isStatusFlagSet( Cpu6510.STATUS_FLAG_INTERRUPT ) );
+      state.isStatusFlagSet( Cpu6510.STATUS_FLAG_INTERRUPT ) );
     _flagD.setSelected(
-      _cpu.isStatusFlagSet( Cpu6510.STATUS_FLAG_DECIMAL ) );
+      state.isStatusFlagSet( Cpu6510.STATUS_FLAG_DECIMAL ) );
   }
 
 
@@ -478,7 +475,13 @@ public void step( final int pc )
    */
   private static void setRegisterTextComponent( JTextField c, int value )
   {
-    c.setText( Integer.toString( value, _displayRadix ) );
+    String text = Integer.toString( value, _displayRadix );
+
+    // Unchanged registers are not updated.
+    if ( text.equals( c.getText() ) )
+      return;
+
+    c.setText( text );
     c.setToolTipText( Integer.toString( value, _secondaryDisplayRadix ) );
   }
 
@@ -498,6 +501,8 @@ public void step( final int pc )
     _xValue.setToolTipText( "" );
     _yValue.setText( "" );
     _yValue.setToolTipText( "" );
+    _spValue.setText( "" );
+    _spValue.setToolTipText( "" );
 
     _flagN.setSelected( false );
     _flagV.setSelected( false );
@@ -521,21 +526,41 @@ public void step( final int pc )
 
     try
     {
-      // Get the numeric value from the textfield.
-      _breakpointValue =
-        Integer.parseInt( _bpValueTxt.getText(), _displayRadix );
-
-      breakpointMessage += "$";
+      _engine.clear();
 
-      breakpointMessage +=
-        Integer.toString( _breakpointValue, _displayRadix );
+      if ( _breakpointType == BRKTYPE_CONDITION )
+      {
+        _engine.setCondition( _bpValueTxt.getText() );
+        breakpointMessage = _bpValueTxt.getText();
+      }
+      else
+      {
+        // Get the numeric value from the textfield.
+        _breakpointValue =
+          Integer.parseInt( _bpValueTxt.getText(), _displayRadix );
+
+        String value = "$" + Integer.toString( _breakpointValue, _displayRadix );
+
+        if ( _breakpointType == BRKTYPE_PC )
+          _engine.setBreakpoint( _breakpointValue );
+        else if ( _breakpointType == BRKTYPE_ACCU )
+          _engine.setCondition( "A == " + value );
+        else if ( _breakpointType == BRKTYPE_X )
+          _engine.setCondition( "X == " + value );
+        else if ( _breakpointType == BRKTYPE_Y )
+          _engine.setCondition( "Y == " + value );
+        else
+          throw new InternalError( "Invalid breakpoint type." );
+
+        breakpointMessage += value;
+      }
 
       // Display the message...
       _bpStatusLabel.setText( breakpointMessage );
       // ...and activate the debugger.
-      _cpu.setDebugger(this);
+      _controller.attach();
     }
-    catch ( NumberFormatException nfex )
+    catch ( IllegalArgumentException nfex )
     {
       _bpValueTxt.setText( "???" );
       _breakpointType = BRKTYPE_NONE;
@@ -567,9 +592,8 @@ public void step( final int pc )
    */
   private void actionBreakImpl()
   {
-    _singleStep = true;
-    setControlButtons( false, true, true );
-    _cpu.setDebugger( this );
+    setControlButtons( false, false, false );
+    _controller.breakExecution();
   }
 
 
@@ -595,12 +619,22 @@ public void step( final int pc )
    */
   private void actionStepImpl()
   {
-    _singleStep = true;
+    int count;
 
-    synchronized ( _lock )
+    try
     {
-     _lock.notify();
+      count = Integer.parseInt( _stepCount.getText() );
+      _controller.stepInstructions( count );
     }
+    catch ( IllegalArgumentException e )
+    {
+      _stepCount.setText( "1" );
+      return;
+    }
+
+    // Keep break enabled for long running steps.
+    if ( count > 1 )
+      setControlButtons( true, false, false );
   }
 
 
@@ -621,6 +655,40 @@ public void step( final int pc )
 
 
 
+  /**
+   * Step over a subroutine call.
+   */
+  private final Action _actionStepOver = new AbstractAction( "Step Over" )
+  {
+    private static final long serialVersionUID = -3325913624624587129L;
+
+    @Override
+    public void actionPerformed( ActionEvent ae )
+    {
+      setControlButtons( true, false, false );
+      _controller.stepOver();
+    }
+  };
+
+
+
+  /**
+   * Run until the current subroutine returns.
+   */
+  private final Action _actionRunToReturn = new AbstractAction( "Run to RTS" )
+  {
+    private static final long serialVersionUID = 5946224950134283712L;
+
+    @Override
+    public void actionPerformed( ActionEvent ae )
+    {
+      setControlButtons( true, false, false );
+      _controller.runToReturn();
+    }
+  };
+
+
+
   /**
    * Continue until breakpoint, or - if no breakpoint is set - until
    * BREAK is pressed.
@@ -632,20 +700,17 @@ public void step( final int pc )
     // Update user interface.
     deactivateRegisterDisplay();
     setControlButtons( true, false, false );
-    // Leave single step mode.
-    _singleStep = false;
 
     // If no breakpoint is set...
     if ( _breakpointType == BRKTYPE_NONE )
     {
       // ... we unlink ourselfes from the CPU.
-      _cpu.setDebugger( null );
+      _controller.detach();
     }
-
-    // Finally unlock the CPU thread and continue.
-    synchronized ( _lock )
+    else
     {
-      _lock.notify();
+      // ...otherwise run until the next hit.
+      _controller.resume();
     }
   }
 
@@ -673,6 +738,7 @@ public void step( final int pc )
   private void actionClearBreakpointImpl()
   {
     _breakpointType = BRKTYPE_NONE;
+    _engine.clear();
     _bpValueTxt.setText( "" );
     _bpStatusLabel.setText( BREAKPOINT_STATUS_NONE );
   }
@@ -708,11 +774,14 @@ public void step( final int pc )
     xLabel.setLabelFor( _xValue );
     JLabel yLabel = new JLabel( "Y " );
     yLabel.setLabelFor( _yValue );
+    JLabel spLabel = new JLabel( "SP " );
+    spLabel.setLabelFor( _spValue );
 
     _pcValue.setFont( _fixedWidthFont );
     _accuValue.setFont( _fixedWidthFont );
     _xValue.setFont( _fixedWidthFont );
     _yValue.setFont( _fixedWidthFont );
+    _spValue.setFont( _fixedWidthFont );
 
     Box box = Box.createVerticalBox();
     box.add(pcLabel);
@@ -727,6 +796,9 @@ public void step( final int pc )
     box.add(yLabel);
     box.add(_yValue);
     box.add(Box.createHorizontalStrut(5));
+    box.add(spLabel);
+    box.add(_spValue);
+    box.add(Box.createHorizontalStrut(5));
 
     box.add(_flagN);
     box.add(_flagV);
@@ -758,7 +830,23 @@ public void step( final int pc )
     result.setFloatable( false );
     result.add( _actionBreak );
     result.add( _actionStep );
+    result.add( _stepCount );
+    result.add( _actionStepOver );
+    result.add( _actionRunToReturn );
     result.add( _actionContinue );
+    result.addSeparator();
+    result.add( _linear );
+
+    _linear.addActionListener( new ActionListener()
+    {
+      @Override
+      public void actionPerformed( ActionEvent ae )
+      {
+        _disassembled.setLinear( _linear.isSelected() );
+        if ( _currentPc >= 0 )
+          updateTable();
+      }
+    } );
 
     setControlButtons( true, false, false );
 
@@ -784,6 +872,7 @@ public void step( final int pc )
     _breakpointTypeSelector.addItem( BRKTYPE_ACCU );
     _breakpointTypeSelector.addItem( BRKTYPE_X );
     _breakpointTypeSelector.addItem( BRKTYPE_Y );
+    _breakpointTypeSelector.addItem( BRKTYPE_CONDITION );
     box2.add( _breakpointTypeSelector );
     box2.add( new JLabel( " = " ) );
     _bpValueTxt.setColumns( 5 );
@@ -821,6 +910,22 @@ public void step( final int pc )
 
     _tbl.setFont( _fixedWidthFont );
 
+    // A double click on a row prepares a breakpoint on its address.
+    _tbl.addMouseListener( new MouseAdapter()
+    {
+      @Override
+      public void mouseClicked( MouseEvent me )
+      {
+        int row = _tbl.rowAtPoint( me.getPoint() );
+        if ( me.getClickCount() != 2 || row < 0 )
+          return;
+
+        _breakpointTypeSelector.setSelectedItem( BRKTYPE_PC );
+        _bpValueTxt.setText(
+          Integer.toString( _disassembled.getAddress( row ), _displayRadix ) );
+      }
+    } );
+
     JScrollPane result =
       new JScrollPane (
         _tbl,
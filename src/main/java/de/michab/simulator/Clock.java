@@ -70,6 +70,66 @@ public class Clock
 
 
 
+  /**
+   * If <code>false</code> the emulation runs as fast as possible.
+   */
+  private volatile boolean _throttled = true;
+
+
+
+  /**
+   * The first error reported by a clock client.
+   */
+  private volatile Throwable _failure = null;
+
+
+
+  /**
+   * Set while the clock is paused.
+   */
+  private volatile boolean _paused = false;
+
+
+
+  /**
+   * Set when the clock is closed.
+   */
+  private volatile boolean _closed = false;
+
+
+
+  /**
+   * The time in milliseconds the emulation is behind realtime.  Maintained
+   * by the throttle, zero while unthrottled.
+   */
+  private volatile long _lag = 0;
+
+
+
+  /**
+   * Counts the calls to <code>resume()</code>.  Used by the throttle to
+   * restart its time base after a pause.
+   */
+  private volatile int _resumeCount = 0;
+
+
+
+  /**
+   * The lock a paused client waits on.
+   */
+  private final Object _pauseLock = new Object();
+
+
+
+  /**
+   * Set while the local times of a started clock are restored.
+   *
+   * @see #beginRestore()
+   */
+  private boolean _restoring = false;
+
+
+
   /**
    * Creates a clock with the specified frequency.
    *
@@ -102,6 +162,9 @@ public class Clock
    */
   public synchronized void start()
   {
+    if ( _closed )
+      throw new IllegalStateException( "Clock is closed." );
+
     _isStarted = true;
 
     // First ensure that all registered clock clients have successfully
@@ -181,6 +244,11 @@ public class Clock
   private void schedule( ClockHandle cc )
     throws InterruptedException
   {
+    if ( _paused )
+      awaitResume();
+    if ( _closed )
+      throw new InterruptedException( "Clock is closed." );
+
     // Select the next client to run.  This is the client that
     // has the earliest local time.
     ClockHandle minCc = minimumTime();
@@ -203,6 +271,25 @@ public class Clock
       // have caught up.
       cc.wait();
     }
+
+    if ( _closed )
+      throw new InterruptedException( "Clock is closed." );
+  }
+
+
+
+  /**
+   * Blocks the calling client while the clock is paused.  Since only a
+   * single client runs at a time all clients are blocked then.
+   */
+  private void awaitResume()
+    throws InterruptedException
+  {
+    synchronized ( _pauseLock )
+    {
+      while ( _paused && ! _closed )
+        _pauseLock.wait();
+    }
   }
 
 
@@ -232,6 +319,199 @@ public class Clock
 
 
 
+  /**
+   * Switch realtime synchronisation on or off.  An unthrottled clock runs
+   * the emulation as fast as the host allows, this is intended for headless
+   * automation.
+   *
+   * @param throttled <code>false</code> to run as fast as possible.
+   */
+  public void setThrottled( boolean throttled )
+  {
+    _throttled = throttled;
+  }
+
+
+
+  /**
+   * Check whether the clock synchronises with realtime.
+   *
+   * @return <code>true</code> if the clock is throttled.
+   * @see #setThrottled(boolean)
+   */
+  public boolean isThrottled()
+  {
+    return _throttled;
+  }
+
+
+
+  /**
+   * Get the time the emulation is behind realtime.  If the host can't keep
+   * up the throttle lets the emulation catch up as fast as possible, the
+   * lag shrinks while it does so.  Clients can use this to reduce their
+   * load, e.g. by skipping frames.
+   *
+   * @return The lag in milliseconds, zero if the emulation is in time or
+   *         the clock is not throttled.
+   */
+  public long getLag()
+  {
+    return _lag;
+  }
+
+
+
+  /**
+   * Pause the clock.  The client that is currently running blocks on its
+   * next call to the clock, all other clients are blocked already.  So the
+   * emulation stops within an instruction or a raster line and no thread
+   * uses processor time until <code>resume()</code> is called.
+   */
+  public void pause()
+  {
+    _paused = true;
+  }
+
+
+
+  /**
+   * Continue a paused clock.  Realtime synchronisation continues from the
+   * current time, the time spent paused is not caught up.
+   */
+  public void resume()
+  {
+    synchronized ( _pauseLock )
+    {
+      _paused = false;
+      _resumeCount++;
+      _pauseLock.notifyAll();
+    }
+  }
+
+
+
+  /**
+   * Check whether the clock is paused.
+   *
+   * @return <code>true</code> if paused.
+   */
+  public boolean isPaused()
+  {
+    return _paused;
+  }
+
+
+
+  /**
+   * Close the clock.  All client threads are woken up and are expected to
+   * terminate, calls to a closed clock return immediately.  The client
+   * threads are interrupted in addition, to end waits outside of the clock.
+   * A closed clock cannot be started again.
+   */
+  public void close()
+  {
+    _closed = true;
+
+    synchronized ( _pauseLock )
+    {
+      _pauseLock.notifyAll();
+    }
+
+    synchronized ( _clients )
+    {
+      for ( ClockHandle cc : _clients )
+      {
+        synchronized ( cc )
+        {
+          cc.notifyAll();
+        }
+
+        Thread thread = cc._thread;
+        if ( thread != null )
+          thread.interrupt();
+      }
+    }
+  }
+
+
+
+  /**
+   * Check whether the clock is closed.
+   *
+   * @return <code>true</code> if closed.
+   */
+  public boolean isClosed()
+  {
+    return _closed;
+  }
+
+
+
+  /**
+   * Set the time of a clock that is not yet started.  Used to continue an
+   * emulation from a saved state.  Only the clock's own throttling client is
+   * set, the other clients restore their local times using
+   * <code>ClockHandle.restoreLocalTime()</code>.
+   *
+   * @param time The clock time.
+   * @throws IllegalStateException If the clock is started and no restore
+   *         is in progress.
+   * @see #beginRestore()
+   */
+  public void restoreTime( long time )
+  {
+    _throttleHandle.restoreLocalTime( time );
+  }
+
+
+
+  /**
+   * Allow restoring the local times of a started clock until
+   * <code>endRestore()</code> is called.  Used to continue a halted
+   * emulation from a saved state without creating new client threads.  The
+   * caller has to ensure that the emulation is halted, that is all client
+   * threads are blocked.  A client whose local time is restored continues
+   * from the restored time when it is scheduled next, see
+   * <code>ClockHandle.takeRestored()</code>.
+   *
+   * @see #restoreTime(long)
+   * @see ClockHandle#restoreLocalTime(long)
+   */
+  public synchronized void beginRestore()
+  {
+    _restoring = true;
+  }
+
+
+
+  /**
+   * Ends restoring the local times of a started clock.
+   *
+   * @see #beginRestore()
+   */
+  public synchronized void endRestore()
+  {
+    _restoring = false;
+  }
+
+
+
+  /**
+   * Get the error that terminated a client thread.  After a client failed
+   * the emulation is stalled.
+   *
+   * @return The first reported error or <code>null</code> if no client
+   *         failed.
+   * @see ClockHandle#fail(Throwable)
+   */
+  public Throwable getFailure()
+  {
+    return _failure;
+  }
+
+
+
   /**
    * Compute the client index with the earliest local time.
    *
@@ -289,12 +569,24 @@ public class Clock
     // This is our local time on the first call.
     long startCycles = 0;
     long startTime = System.currentTimeMillis();
+    int resumeCount = _resumeCount;
 
-    while ( true )
+    while ( ! _closed )
     {
       long cycleNow = _throttleHandle.advance( throttleWait );
       long now = System.currentTimeMillis();
 
+      // While unthrottled the time base follows the emulation, so switching
+      // back does not have to catch up.  The same holds for a pause.
+      if ( ! _throttled || resumeCount != _resumeCount )
+      {
+        resumeCount = _resumeCount;
+        startCycles = cycleNow;
+        startTime = now;
+        _lag = 0;
+        continue;
+      }
+
       // Compute our age.
       long realtimeAgeMs = now - startTime;
 
@@ -303,6 +595,8 @@ public class Clock
         long cycleAgeMs = (cycleNow - startCycles) / _ticksPerMillisecond;
         long waitTime = cycleAgeMs - realtimeAgeMs;
 
+        _lag = Math.max( 0, -waitTime );
+
         // If the difference accumulated to more than a microsecond.
         if ( waitTime > 0 )
         {
@@ -387,6 +681,8 @@ public class Clock
      */
     public synchronized void prepare()
     {
+      _thread = Thread.currentThread();
+
       // Decrease the counter for outstanding preparations.
       synchronized ( _clients )
       {
@@ -396,7 +692,8 @@ public class Clock
       // Finally block and expect a wakeup when thread scheduling starts.
       try
       {
-        wait();
+        if ( ! _closed )
+          wait();
       }
       catch ( InterruptedException e )
       {
@@ -408,7 +705,8 @@ public class Clock
 
     /**
      * Advances the local time of this client for the given number of ticks.
-     * The calling thread is subject to a thread switch.
+     * The calling thread is subject to a thread switch.  If the clock is
+     * closed the call returns immediately.
      *
      * @param ticks The number of ticks to advance.
      * @return This client's local time.  The value returned here is
@@ -430,8 +728,9 @@ public class Clock
       }
       catch ( InterruptedException e )
       {
-        // TODO check interruption strategy.
-        return currentTime();
+        // The clock is closed or the thread was interrupted, the client
+        // checks isClosed().
+        return _time;
       }
     }
     /**
@@ -483,6 +782,85 @@ public class Clock
 
 
 
+    /**
+     * Sets the client's local time.  Used to continue an emulation from a
+     * saved state.  Only allowed before the clock is started or during a
+     * restore of a halted emulation, the client's thread then continues from
+     * the passed time as soon as it is scheduled.
+     *
+     * @param time The local time.
+     * @throws IllegalStateException If the clock is started and no restore
+     *         is in progress.
+     * @see Clock#beginRestore()
+     */
+    public void restoreLocalTime( long time )
+    {
+      synchronized ( _home )
+      {
+        if ( _home._isStarted && ! _home._restoring )
+          throw new IllegalStateException( "Clock is started." );
+
+        _time = time;
+        _restored = _home._isStarted;
+      }
+    }
+
+
+
+    /**
+     * Check whether the local time was restored while the client's thread
+     * was blocked in the clock.  The call returning from the clock is then
+     * not to be completed, instead the client continues from its restored
+     * state as after <code>prepare()</code>.  The flag is cleared by the
+     * call.
+     *
+     * @return <code>true</code> if the local time was restored.
+     * @see Clock#beginRestore()
+     */
+    public boolean takeRestored()
+    {
+      if ( ! _restored )
+        return false;
+
+      _restored = false;
+      return true;
+    }
+
+
+
+    /**
+     * Reports that the client's thread terminates because of an error.  The
+     * error is kept by the clock instead of ending the whole application, so
+     * a failure is isolated to a single emulation.
+     *
+     * @param failure The error.
+     * @see Clock#getFailure()
+     */
+    public void fail( Throwable failure )
+    {
+      synchronized ( _home )
+      {
+        if ( _home._failure == null )
+          _home._failure = failure;
+      }
+    }
+
+
+
+    /**
+     * Check whether the clock is closed.  The client's thread is expected to
+     * terminate then.
+     *
+     * @return <code>true</code> if the clock is closed.
+     * @see Clock#close()
+     */
+    public boolean isClosed()
+    {
+      return _closed;
+    }
+
+
+
     /**
      * Returns the client's local time.  Note that <code>advance()</code>
      * also returns the local time.
@@ -520,9 +898,25 @@ public class Clock
 
 
 
+    /**
+     * Set if the local time was restored while the clock was started.
+     *
+     * @see #takeRestored()
+     */
+    private volatile boolean _restored = false;
+
+
+
     /**
      * The clock responsible for dispatching this handle.
      */
     private final Clock _home;
+
+
+
+    /**
+     * The client's thread.  Set in <code>prepare()</code>.
+     */
+    private volatile Thread _thread = null;
   }
 }
@@ -7,6 +7,8 @@
  */
 package de.michab.simulator;
 
+import java.util.Arrays;
+
 
 
 /**
@@ -58,4 +60,70 @@ public interface Memory
    * @return The 16 bit address located at the passed memory position.
    */
   int getVectorAt( int adr );
+
+
+
+  /**
+   * Read a memory location without side effects.  In contrast to
+   * <code>read()</code> no chip register is accessed, so reading does not
+   * acknowledge interrupts or clear latched state.  The default
+   * implementation reads the raw memory.
+   *
+   * @param adr The address to read.
+   * @return The byte at the passed address.
+   */
+  default byte peek( int adr )
+  {
+    return getRawMemory()[ adr & 0xffff ];
+  }
+
+
+
+  /**
+   * Get the pages of 256 bytes written since the last call.  Bit
+   * <code>n % 64</code> of <code>pages[n / 64]</code> is set if page
+   * <code>n</code> was written.  A client is identified by the array it
+   * passes, so several clients can collect the pages independently if each
+   * one passes the same array on every call.  The default implementation
+   * reports all pages as written.
+   *
+   * @param pages An array receiving the page bits.  Has to hold at least
+   *        <code>getSize() / 16384</code> entries.
+   */
+  default void collectDirtyPages( long[] pages )
+  {
+    Arrays.fill( pages, -1L );
+  }
+
+
+
+  /**
+   * Set the pages of 256 bytes to watch for writes.  Bit
+   * <code>n % 64</code> of <code>pages[n / 64]</code> selects page
+   * <code>n</code>.  Only a single client can use this.  The default
+   * implementation does not support watching.
+   *
+   * @param pages The pages to watch.  Has to hold at least
+   *        <code>getSize() / 16384</code> entries.
+   * @return <code>true</code> if watching is supported.
+   * @see #getWatchedWrites()
+   */
+  default boolean watchPages( long[] pages )
+  {
+    return false;
+  }
+
+
+
+  /**
+   * Get the number of writes to the watched pages.  A client compares the
+   * value with an earlier one to detect writes.
+   *
+   * @return The number of writes to the watched pages.
+   * @see #watchPages(long[])
+   */
+  default long getWatchedWrites()
+  {
+    return 0;
+  }
 }
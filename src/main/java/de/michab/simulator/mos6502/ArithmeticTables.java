@@ -0,0 +1,274 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2004 Michael G. Binz
+ */
+package de.michab.simulator.mos6502;
+
+
+
+/**
+ * Precomputed results for the ADC and SBC instructions.  Each table holds an
+ * entry for every combination of accumulator, operand and carry, so the
+ * processor only has to perform a single array access per instruction instead
+ * of the branchy computation required especially in decimal mode.
+ *
+ * <p>A table entry holds the new accumulator value in its low byte.  The high
+ * byte holds the negative, overflow, zero and carry flags using the bit
+ * positions of the status register.  Note that in decimal mode the NMOS 6510
+ * computes these flags in an odd way:  For ADC the zero flag is taken from
+ * the binary sum, negative and overflow from the intermediate result after the
+ * low nibble adjustment.  For SBC all flags are taken from the binary
+ * difference.  The tables reproduce exactly this behaviour.  They are
+ * checked by the ADC and SBC tests of the Lorenz suite, which compare every
+ * combination of accumulator, operand and carry in both modes including
+ * invalid BCD operands, see <code>c64.LorenzSuite</code>.</p>
+ *
+ * <p>The tables are shared by all processor instances.  Each pair of tables is
+ * held by a separate holder class so that it is only computed on first
+ * use.</p>
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+final class ArithmeticTables
+{
+  /**
+   * The number of entries in a table.  The carry flag selects the upper half,
+   * the accumulator the upper byte and the operand the lower byte of the
+   * index.
+   */
+  private static final int TABLE_SIZE = 2 * 256 * 256;
+
+
+
+  /**
+   * Index offset selecting the table entries for a set carry flag.
+   */
+  private static final int CARRY_IN = 256 * 256;
+
+
+
+  /**
+   * Holds the binary mode tables.
+   */
+  private static final class Binary
+  {
+    static final char[] ADC = new char[ TABLE_SIZE ];
+    static final char[] SBC = new char[ TABLE_SIZE ];
+
+    static
+    {
+      for ( int i = 0 ; i < TABLE_SIZE ; i++ )
+      {
+        ADC[i] = adcBinary( i >> 8 & 0xff, i & 0xff, i >= CARRY_IN );
+        SBC[i] = sbcBinary( i >> 8 & 0xff, i & 0xff, i >= CARRY_IN );
+      }
+    }
+  }
+
+
+
+  /**
+   * Holds the decimal mode tables.
+   */
+  private static final class Decimal
+  {
+    static final char[] ADC = new char[ TABLE_SIZE ];
+    static final char[] SBC = new char[ TABLE_SIZE ];
+
+    static
+    {
+      for ( int i = 0 ; i < TABLE_SIZE ; i++ )
+      {
+        ADC[i] = adcDecimal( i >> 8 & 0xff, i & 0xff, i >= CARRY_IN );
+        SBC[i] = sbcDecimal( i >> 8 & 0xff, i & 0xff, i >= CARRY_IN );
+      }
+    }
+  }
+
+
+
+  /**
+   * Hidden constructor.  This class only offers static methods.
+   */
+  private ArithmeticTables()
+  {
+  }
+
+
+
+  /**
+   * Computes the table index for the passed arguments.
+   *
+   * @param accu The accumulator contents.
+   * @param operand The operand.
+   * @param carry The carry flag.
+   * @return The table index.
+   */
+  static int index( byte accu, byte operand, boolean carry )
+  {
+    return (carry ? CARRY_IN : 0) | (accu & 0xff) << 8 | (operand & 0xff);
+  }
+
+
+
+  /**
+   * Get the ADC table for the passed mode.
+   *
+   * @param decimal If <code>true</code> the decimal mode table is returned.
+   * @return The requested table.  Do not modify.
+   */
+  static char[] adc( boolean decimal )
+  {
+    return decimal ? Decimal.ADC : Binary.ADC;
+  }
+
+
+
+  /**
+   * Get the SBC table for the passed mode.
+   *
+   * @param decimal If <code>true</code> the decimal mode table is returned.
+   * @return The requested table.  Do not modify.
+   */
+  static char[] sbc( boolean decimal )
+  {
+    return decimal ? Decimal.SBC : Binary.SBC;
+  }
+
+
+
+  /**
+   * Packs a result and its status flags into a table entry.
+   *
+   * @param result The accumulator result.  Only the low byte is used.
+   * @param negative The negative flag.
+   * @param overflow The overflow flag.
+   * @param zero The zero flag.
+   * @param carry The carry flag.
+   * @return The table entry.
+   */
+  private static char entry(
+    int result,
+    boolean negative,
+    boolean overflow,
+    boolean zero,
+    boolean carry )
+  {
+    int flags = 0;
+
+    if ( negative )
+      flags |= Cpu6510.STATUS_FLAG_NEGATIVE;
+    if ( overflow )
+      flags |= Cpu6510.STATUS_FLAG_OVERFLOW;
+    if ( zero )
+      flags |= Cpu6510.STATUS_FLAG_ZERO;
+    if ( carry )
+      flags |= Cpu6510.STATUS_FLAG_CARRY;
+
+    return (char)(flags << 8 | result & 0xff);
+  }
+
+
+
+  /**
+   * Binary add with carry.
+   */
+  private static char adcBinary( int accu, int op, boolean carry )
+  {
+    int result = accu + op + (carry ? 1 : 0);
+
+    return entry(
+      result,
+      0 != (result & 0x80),
+      // Overflow is set if the initial accu and the value to add have the
+      // same sign *and* if the signs of the initial accu and the result
+      // differ.
+      0 == ((accu ^ op) & 0x80) && 0 != ((accu ^ result) & 0x80),
+      0 == (result & 0xff),
+      result > 0xff );
+  }
+
+
+
+  /**
+   * Decimal add with carry.  This code came from VICE.
+   */
+  private static char adcDecimal( int accu, int op, boolean carry )
+  {
+    // Add the lsb digits.
+    int result = (accu & 0xf) + (op & 0xf) + (carry ? 1 : 0);
+    // If we left the bcd range...
+    if ( result > 0x9 )
+      // ...normalise the result.
+      result += 0x6;
+    // If we stayed in the lsb digit...
+    if ( result <= 0x0f )
+      // ...add up the msb digit.
+      result = (result & 0xf) + (accu & 0xf0) + (op & 0xf0);
+    else
+      result = (result & 0xf) + (accu & 0xf0) + (op & 0xf0) + 0x10;
+
+    // Zero is computed from the binary sum, negative and overflow from the
+    // intermediate result.
+    boolean zero = 0 == ((accu + op + (carry ? 1 : 0)) & 0xff);
+    boolean negative = 0 != (result & 0x80);
+    boolean overflow =
+      0 != ((accu ^ result) & 0x80) && 0 == ((accu ^ op) & 0x80);
+
+    if ( (result & 0x1f0) > 0x90 )
+      result += 0x60;
+
+    return entry(
+      result,
+      negative,
+      overflow,
+      zero,
+      (result & 0xff0) > 0xf0 );
+  }
+
+
+
+  /**
+   * Binary subtract with carry.
+   */
+  private static char sbcBinary( int accu, int op, boolean carry )
+  {
+    int result = accu - op - (carry ? 0 : 1);
+
+    return entry(
+      result,
+      0 != (result & 0x80),
+      // Overflow is set if the initial accu and the result have different
+      // signs *and* initial accu and the initial operand have different signs.
+      0 != ((accu ^ result) & 0x80) && 0 != ((accu ^ op) & 0x80),
+      0 == (result & 0xff),
+      // Carry is set if no borrow was needed.
+      0 == (result & 0xffffff00) );
+  }
+
+
+
+  /**
+   * Decimal subtract with carry.  This code came from VICE.  The flags are
+   * identical to binary mode, only the accumulator gets adjusted.
+   */
+  private static char sbcDecimal( int accu, int op, boolean carry )
+  {
+    char binary = sbcBinary( accu, op, carry );
+
+    // Subtract least significant digit.
+    int result = (accu & 0xf) - (op & 0xf) - (carry ? 0 : 1);
+    if ( 0 != (result & 0x10) )
+      result = ((result - 6) & 0xf) | ((accu & 0xf0) - (op & 0xf0) - 0x10);
+    else
+      result = (result & 0xf) | ((accu & 0xf0) - (op & 0xf0));
+    if ( 0 != (result & 0x100) )
+      result -= 0x60;
+
+    return (char)(binary & 0xff00 | result & 0xff);
+  }
+}
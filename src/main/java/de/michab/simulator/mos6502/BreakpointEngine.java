@@ -0,0 +1,583 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2004 Michael G. Binz
+ */
+package de.michab.simulator.mos6502;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import de.michab.simulator.*;
+
+
+
+/**
+ * Breakpoint and watchpoint support for a <code>Cpu6510</code>.  The engine
+ * sits between the processor and a client <code>Debugger</code>.  The client
+ * is only called if a breakpoint or watchpoint is actually hit.
+ *
+ * <p>The processor checks the program counter against a bitmap holding a bit
+ * for each of the 64k addresses and only calls the engine if the bit is set.
+ * Read and write watchpoints are implemented by a view on the system memory
+ * that is only installed while such watchpoints exist.  Conditions are
+ * compiled once into predicates by <code>Condition</code>.</p>
+ *
+ * <p>The client's <code>step()</code> is called on the processor thread.
+ * The client can use <code>getHitType()</code> and
+ * <code>getHitAddress()</code> to find out why it was called.  The methods
+ * that change the set of breakpoints can be called from any thread.</p>
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ * @see Condition
+ */
+public final class BreakpointEngine
+  implements Debugger
+{
+  /**
+   * Watchpoint type and hit type for read accesses.
+   */
+  public static final int READ = 1;
+
+
+
+  /**
+   * Watchpoint type and hit type for write accesses.
+   */
+  public static final int WRITE = 2;
+
+
+
+  /**
+   * Watchpoint type and hit type for instruction execution.
+   */
+  public static final int EXECUTE = 4;
+
+
+
+  /**
+   * Hit type for a breakpoint.
+   */
+  public static final int BREAKPOINT = 8;
+
+
+
+  /**
+   * Hit type for the global condition.
+   *
+   * @see BreakpointEngine#setCondition(String)
+   */
+  public static final int CONDITION = 16;
+
+
+
+  /**
+   * Hit type for single step mode.
+   */
+  public static final int STEP = 32;
+
+
+
+  /**
+   * Hit type for a call requested by <code>requestCall()</code>.
+   */
+  public static final int CALL = 64;
+
+
+
+  /**
+   * A map with all bits set.  Used if the engine has to be called on every
+   * instruction.
+   */
+  private static final long[] ALL_ADDRESSES = new long[ 0x10000 / 64 ];
+
+  static
+  {
+    Arrays.fill( ALL_ADDRESSES, -1L );
+  }
+
+
+
+  /**
+   * The processor we are attached to.
+   */
+  private final Cpu6510 _cpu;
+
+
+
+  /**
+   * The debugger receiving the hits.
+   */
+  private final Debugger _client;
+
+
+
+  /**
+   * The memory view implementing read and write watchpoints.
+   */
+  private final WatchpointMemory _watchMemory;
+
+
+
+  /**
+   * The breakpoint addresses.
+   */
+  private final long[] _breakpoints = new long[ 0x10000 / 64 ];
+
+
+
+  /**
+   * The addresses having an execution watchpoint.
+   */
+  private final long[] _executeWatch = new long[ 0x10000 / 64 ];
+
+
+
+  /**
+   * The conditions of conditional breakpoints.
+   */
+  private final Map<Integer, Predicate<Cpu6510>> _conditions =
+    new ConcurrentHashMap<Integer, Predicate<Cpu6510>>();
+
+
+
+  /**
+   * A condition checked on every instruction.  If this is set the
+   * processor calls the engine on every instruction.
+   */
+  private volatile Predicate<Cpu6510> _condition = null;
+
+
+
+  /**
+   * True if in single step mode.
+   */
+  private volatile boolean _singleStep = false;
+
+
+
+  /**
+   * The type of a watchpoint hit that has still to be reported.  Zero if
+   * there is none.
+   */
+  private int _pendingType = 0;
+
+
+
+  /**
+   * The address of a pending watchpoint hit.
+   */
+  private int _pendingAddress;
+
+
+
+  /**
+   * True if the client has to be called on the next instruction.
+   */
+  private volatile boolean _callRequested = false;
+
+
+
+  /**
+   * The type of the last hit reported to the client.
+   */
+  private int _hitType = 0;
+
+
+
+  /**
+   * The address of the last hit reported to the client.  For breakpoints
+   * this is the program counter, for watchpoints the accessed address.
+   */
+  private int _hitAddress = -1;
+
+
+
+  /**
+   * Create an instance.  Call <code>attach()</code> to activate the engine.
+   *
+   * @param cpu The processor to control.
+   * @param client The debugger receiving the hits.
+   */
+  public BreakpointEngine( Cpu6510 cpu, Debugger client )
+  {
+    _cpu = cpu;
+    _client = client;
+    _watchMemory = new WatchpointMemory( cpu.getMemory(), this );
+  }
+
+
+
+  /**
+   * Activate the engine on the processor.
+   */
+  public synchronized void attach()
+  {
+    _cpu.setDebugger( this );
+    update();
+  }
+
+
+
+  /**
+   * Remove the engine from the processor.  The set breakpoints and
+   * watchpoints are kept.
+   */
+  public synchronized void detach()
+  {
+    _cpu.setMemoryView( null );
+    _cpu.setDebugger( null );
+  }
+
+
+
+  /**
+   * Set a breakpoint.
+   *
+   * @param address The breakpoint address.
+   */
+  public void setBreakpoint( int address )
+  {
+    setBreakpoint( address, null );
+  }
+
+
+
+  /**
+   * Set a conditional breakpoint.
+   *
+   * @param address The breakpoint address.
+   * @param condition The condition.  If <code>null</code> the breakpoint is
+   *        unconditional.
+   * @throws IllegalArgumentException If the condition is not valid.
+   * @see Condition
+   */
+  public synchronized void setBreakpoint( int address, String condition )
+  {
+    address &= 0xffff;
+
+    if ( condition == null )
+      _conditions.remove( address );
+    else
+      _conditions.put( address, Condition.compile( condition ) );
+
+    _breakpoints[ address >>> 6 ] |= 1L << address;
+    update();
+  }
+
+
+
+  /**
+   * Remove a breakpoint.
+   *
+   * @param address The breakpoint address.
+   */
+  public synchronized void removeBreakpoint( int address )
+  {
+    address &= 0xffff;
+
+    _conditions.remove( address );
+    _breakpoints[ address >>> 6 ] &= ~(1L << address);
+    update();
+  }
+
+
+
+  /**
+   * Checks whether a breakpoint is set.
+   *
+   * @param address The address to check.
+   * @return <code>true</code> if a breakpoint is set on the address.
+   */
+  public synchronized boolean isBreakpoint( int address )
+  {
+    address &= 0xffff;
+
+    return 0 != (_breakpoints[ address >>> 6 ] & 1L << address);
+  }
+
+
+
+  /**
+   * Set a condition that is checked independently of the program counter.
+   * Note that this requires the processor to call the engine for each
+   * instruction.
+   *
+   * @param condition The condition or <code>null</code> to remove the
+   *        condition.
+   * @throws IllegalArgumentException If the condition is not valid.
+   * @see Condition
+   */
+  public synchronized void setCondition( String condition )
+  {
+    _condition = condition == null ? null : Condition.compile( condition );
+    update();
+  }
+
+
+
+  /**
+   * Set a watchpoint on an address range.
+   *
+   * @param from The first address of the range.
+   * @param to The last address of the range.
+   * @param types A combination of <code>READ</code>, <code>WRITE</code> and
+   *        <code>EXECUTE</code>.
+   */
+  public synchronized void setWatchpoint( int from, int to, int types )
+  {
+    changeWatchpoint( from, to, types, true );
+  }
+
+
+
+  /**
+   * Remove a watchpoint from an address range.
+   *
+   * @param from The first address of the range.
+   * @param to The last address of the range.
+   * @param types A combination of <code>READ</code>, <code>WRITE</code> and
+   *        <code>EXECUTE</code>.
+   */
+  public synchronized void removeWatchpoint( int from, int to, int types )
+  {
+    changeWatchpoint( from, to, types, false );
+  }
+
+
+
+  /**
+   * Remove all breakpoints, watchpoints and the global condition.
+   */
+  public synchronized void clear()
+  {
+    Arrays.fill( _breakpoints, 0 );
+    Arrays.fill( _executeWatch, 0 );
+    _conditions.clear();
+    _condition = null;
+    _watchMemory.clear();
+    update();
+  }
+
+
+
+  /**
+   * Switch single step mode.  In single step mode the client is called for
+   * each instruction outside of interrupt handlers.
+   *
+   * @param what <code>true</code> to switch single step mode on.
+   */
+  public synchronized void setSingleStep( boolean what )
+  {
+    _singleStep = what;
+    update();
+  }
+
+
+
+  /**
+   * Request a call of the client on the next instruction with the hit type
+   * <code>CALL</code>.  This allows to execute code on the processor thread.
+   * If a hit is reported on that instruction the client is called only once
+   * with the type of the hit, so a client has to handle the request on
+   * every call.
+   */
+  synchronized void requestCall()
+  {
+    _callRequested = true;
+    update();
+  }
+
+
+
+  /**
+   * Get the type of the last hit.  Only valid while the client's
+   * <code>step()</code> is executed.
+   *
+   * @return One of <code>READ</code>, <code>WRITE</code>,
+   *         <code>EXECUTE</code>, <code>BREAKPOINT</code>,
+   *         <code>CONDITION</code>, <code>STEP</code> and
+   *         <code>CALL</code>.
+   */
+  public int getHitType()
+  {
+    return _hitType;
+  }
+
+
+
+  /**
+   * Get the address of the last hit.  For watchpoints this is the accessed
+   * address, otherwise the program counter.  Only valid while the client's
+   * <code>step()</code> is executed.
+   *
+   * @return The address of the last hit.
+   */
+  public int getHitAddress()
+  {
+    return _hitAddress;
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public void setProcessor( Processor processor )
+  {
+    _client.setProcessor( processor );
+  }
+
+
+
+  /**
+   * Called by the processor if the program counter hits a marked address.
+   * Checks which breakpoint was hit and calls the client.
+   *
+   * @param pc The current program counter.
+   */
+  public void step( int pc )
+  {
+    int type;
+    int address = pc;
+
+    synchronized ( this )
+    {
+      boolean call = _callRequested;
+      boolean pending = _pendingType != 0;
+      _callRequested = false;
+
+      if ( pending )
+      {
+        type = _pendingType;
+        address = _pendingAddress;
+        _pendingType = 0;
+      }
+      else if ( 0 != (_executeWatch[ (pc & 0xffff) >>> 6 ] & 1L << pc) )
+        type = EXECUTE;
+      else if ( isBreakpointHit( pc ) )
+        type = BREAKPOINT;
+      else if ( _condition != null && _condition.test( _cpu ) )
+        type = CONDITION;
+      else if ( _singleStep &&
+                ! _cpu.isStatusFlagSet( Cpu6510.STATUS_FLAG_INTERRUPT ) )
+        type = STEP;
+      else if ( call )
+        type = CALL;
+      else
+        return;
+
+      // Both set the processor's map to all addresses.
+      if ( call || pending )
+        update();
+    }
+
+    _hitType = type;
+    _hitAddress = address;
+
+    TraceBuffer trace = _cpu.getTraceBuffer();
+    if ( trace != null && type != STEP && type != CALL )
+      trace.trigger( "Breakpoint" );
+
+    _client.step( pc );
+  }
+
+
+
+  /**
+   * Called by the memory view if a watched address is accessed.  The hit is
+   * reported before the next instruction is executed.
+   *
+   * @param type The access type.
+   * @param address The accessed address.
+   * @param value The value read or written.
+   */
+  synchronized void watchpointHit( int type, int address, byte value )
+  {
+    // Report only the first hit of an instruction.
+    if ( _pendingType != 0 )
+      return;
+
+    _pendingType = type;
+    _pendingAddress = address & 0xffff;
+    _cpu.setBreakpointMap( ALL_ADDRESSES );
+  }
+
+
+
+  /**
+   * Checks whether a breakpoint is set on the passed address and its
+   * condition holds.
+   */
+  private boolean isBreakpointHit( int pc )
+  {
+    if ( 0 == (_breakpoints[ (pc & 0xffff) >>> 6 ] & 1L << pc) )
+      return false;
+
+    Predicate<Cpu6510> condition = _conditions.get( pc & 0xffff );
+
+    return condition == null || condition.test( _cpu );
+  }
+
+
+
+  /**
+   * Implements setting and removing watchpoints.
+   */
+  private void changeWatchpoint( int from, int to, int types, boolean set )
+  {
+    for ( int i = from ; i <= to ; i++ )
+    {
+      int address = i & 0xffff;
+
+      _watchMemory.setWatched(
+        address,
+        0 != (types & READ),
+        0 != (types & WRITE),
+        set );
+
+      if ( 0 == (types & EXECUTE) )
+        continue;
+
+      if ( set )
+        _executeWatch[ address >>> 6 ] |= 1L << address;
+      else
+        _executeWatch[ address >>> 6 ] &= ~(1L << address);
+    }
+
+    update();
+  }
+
+
+
+  /**
+   * Recomputes the processor's breakpoint map and memory view.  Has to be
+   * called after each change.
+   */
+  private synchronized void update()
+  {
+    // The processor reads the map without locking, so a new map is passed
+    // on each change.
+    long[] map = new long[ _breakpoints.length ];
+    for ( int i = 0 ; i < map.length ; i++ )
+      map[i] = _breakpoints[i] | _executeWatch[i];
+
+    if ( _cpu.getDebugger() != this )
+      return;
+
+    _cpu.setMemoryView( _watchMemory.isActive() ? _watchMemory : null );
+
+    if ( _singleStep ||
+         _condition != null ||
+         _pendingType != 0 ||
+         _callRequested )
+      _cpu.setBreakpointMap( ALL_ADDRESSES );
+    else
+      _cpu.setBreakpointMap( map );
+  }
+}
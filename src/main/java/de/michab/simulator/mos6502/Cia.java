@@ -343,8 +343,8 @@ public final class Cia
         break;
 
       default:
-        _log.severe( _name + ": invalid port read: " + portId );
-        System.exit( 1 );
+        throw new IllegalArgumentException(
+          _name + ": invalid port read: " + portId );
     }
 
     if ( _doLogging )
@@ -468,8 +468,8 @@ public final class Cia
         break;
 
       default:
-        _log.severe( _name + ": Invalid Port written: " + portId );
-        System.exit( 1 );
+        throw new IllegalArgumentException(
+          _name + ": Invalid Port written: " + portId );
     }
   }
 
@@ -546,6 +546,42 @@ public final class Cia
   }
 
 
+  /**
+   * Get the chip's state.  Only valid while the emulation is halted.
+   *
+   * @return The state.
+   */
+  public synchronized State getState()
+  {
+    return new State(
+      _registers.clone(),
+      _interruptData,
+      _timerA.getState(),
+      _timerB.getState(),
+      _clock.getState() );
+  }
+
+
+
+  /**
+   * Set the chip's state.  Only allowed before the clock is started or
+   * while the halted emulation is restored.  The connected ports are not
+   * written.
+   *
+   * @param state The state to set.
+   * @throws IllegalStateException If the clock is started.
+   */
+  public synchronized void setState( State state )
+  {
+    System.arraycopy( state._registers, 0, _registers, 0, NUM_OF_REGS );
+    _interruptData = state._interruptData;
+    _timerA.setState( state._timerA );
+    _timerB.setState( state._timerB );
+    _clock.setState( state._clock );
+  }
+
+
+
   /**
    * Returns the CIA's name for debugging purposes.
    */
@@ -705,5 +741,37 @@ public final class Cia
               _registerNames[ register ] + ":write -> $" +
               " $" + Integer.toHexString( value & 0xff ) );
   }
-}
 
+
+
+  /**
+   * An immutable state of a CIA.
+   */
+  public static final class State
+  {
+    private final byte[] _registers;
+    private final byte _interruptData;
+    private final Timer.State _timerA;
+    private final Timer.State _timerB;
+    private final Clock.State _clock;
+
+
+
+    /**
+     * Create an instance.
+     */
+    private State(
+        byte[] registers,
+        byte interruptData,
+        Timer.State timerA,
+        Timer.State timerB,
+        Clock.State clock )
+    {
+      _registers = registers;
+      _interruptData = interruptData;
+      _timerA = timerA;
+      _timerB = timerB;
+      _clock = clock;
+    }
+  }
+}
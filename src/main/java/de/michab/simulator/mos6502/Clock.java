@@ -87,6 +87,14 @@ final class Clock
 
 
 
+  /**
+   * The time of the next tick of a restored clock.  Zero if the clock was not
+   * restored.
+   */
+  private long _restoredTick = 0;
+
+
+
   private final de.michab.simulator.Clock.ClockHandle _clockHandle;
   private final int ticksPerTenthSecond;
 
@@ -118,9 +126,21 @@ final class Clock
   {
     _clockHandle.prepare();
 
-    while ( true )
+    while ( ! _clockHandle.isClosed() )
     {
-      _clockHandle.advance( ticksPerTenthSecond );
+      int wait = ticksPerTenthSecond;
+
+      if ( _restoredTick != 0 )
+      {
+        wait = (int)(_restoredTick - _clockHandle.currentLocalTime());
+        _restoredTick = 0;
+      }
+
+      _clockHandle.advance( wait );
+
+      // A restored clock continues with the restored tick.
+      if ( _clockHandle.takeRestored() )
+        continue;
       
       if ( _currentTime < TENTH_PER_DAY )
         _currentTime++;
@@ -298,6 +318,64 @@ final class Clock
 
 
 
+  /**
+   * Get the clock's state.  Only valid while the emulation is halted.
+   *
+   * @return The state.
+   */
+  synchronized State getState()
+  {
+    return new State(
+      new int[]
+      {
+        _hours,
+        _minutes,
+        _seconds,
+        _tenthSecs,
+        _alarmHours,
+        _alarmMinutes,
+        _alarmSeconds,
+        _alarmTenthSecs,
+        _currentTime,
+        _alarmTime,
+        _readBuffer
+      },
+      _restoredTick != 0 ?
+        _restoredTick :
+        _clockHandle.currentLocalTime(),
+      _clockHandle.currentTime() );
+  }
+
+
+
+  /**
+   * Set the clock's state.  Only allowed before the system clock is
+   * started or while the halted emulation is restored.
+   *
+   * @param state The state to set.
+   */
+  synchronized void setState( State state )
+  {
+    int[] v = state._values;
+    _hours = v[0];
+    _minutes = v[1];
+    _seconds = v[2];
+    _tenthSecs = v[3];
+    _alarmHours = v[4];
+    _alarmMinutes = v[5];
+    _alarmSeconds = v[6];
+    _alarmTenthSecs = v[7];
+    _currentTime = v[8];
+    _alarmTime = v[9];
+    _readBuffer = v[10];
+
+    _restoredTick = state._nextTick;
+    _clockHandle.restoreLocalTime(
+      Math.min( state._time, state._nextTick ) - 1 );
+  }
+
+
+
   /*
    * Inherit Javadoc.
    */
@@ -309,4 +387,31 @@ final class Clock
     _currentTime = 0;
     _alarmTime = -1;
   }
+
+
+
+  /**
+   * An immutable state of a time of day clock.
+   */
+  static final class State
+  {
+    private final int[] _values;
+    private final long _nextTick;
+    private final long _time;
+
+
+
+    /**
+     * Create an instance.
+     *
+     * @param nextTick The time of the next tick.
+     * @param time The system clock time of the state.
+     */
+    private State( int[] values, long nextTick, long time )
+    {
+      _values = values;
+      _nextTick = nextTick;
+      _time = time;
+    }
+  }
 }
@@ -0,0 +1,440 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2004 Michael G. Binz
+ */
+package de.michab.simulator.mos6502;
+
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+
+
+/**
+ * A compiler for breakpoint conditions.  A condition is an expression like
+ * <code>A == $20 &amp;&amp; [$d012] &gt;= 100</code> that is compiled once into
+ * a predicate on the processor.  Evaluating the predicate does not involve
+ * any parsing or allocation.
+ *
+ * <p>The following operands are supported:</p>
+ * <ul>
+ * <li>Numbers in decimal, hexadecimal (<code>$ff</code> or
+ * <code>0xff</code>) or binary (<code>%1010</code>) notation.</li>
+ * <li>The registers <code>A</code>, <code>X</code>, <code>Y</code>,
+ * <code>SP</code> and <code>PC</code>.</li>
+ * <li>The status flags <code>N</code>, <code>V</code>, <code>B</code>,
+ * <code>D</code>, <code>I</code>, <code>Z</code> and <code>C</code>.  These
+ * evaluate to one if set and to zero otherwise.</li>
+ * <li>Memory contents <code>[address]</code> where address is an arbitrary
+ * expression.  Memory is read without side effects, an IO register yields
+ * the value the processor last read from or wrote to it.</li>
+ * </ul>
+ *
+ * <p>Operators are, from highest to lowest precedence: unary
+ * <code>! - ~</code>, binary <code>&amp; | ^ + -</code>, the comparisons
+ * <code>== != &lt; &lt;= &gt; &gt;=</code>, <code>&amp;&amp;</code> and
+ * <code>||</code>.  Parentheses can be used for grouping.  As in C a value
+ * is true if it is not zero.</p>
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+public final class Condition
+{
+  /**
+   * The expression to compile.
+   */
+  private final String _expression;
+
+
+
+  /**
+   * The current parse position in the expression.
+   */
+  private int _position = 0;
+
+
+
+  /**
+   * Create an instance.
+   *
+   * @param expression The expression to compile.
+   */
+  private Condition( String expression )
+  {
+    _expression = expression;
+  }
+
+
+
+  /**
+   * Compiles the passed expression.
+   *
+   * @param expression The expression to compile.
+   * @return A predicate that evaluates the expression for a processor.
+   * @throws IllegalArgumentException If the expression is not valid.
+   */
+  public static Predicate<Cpu6510> compile( String expression )
+  {
+    Condition compiler = new Condition( expression );
+
+    ToIntFunction<Cpu6510> result = compiler.parseOr();
+
+    compiler.skipBlanks();
+    if ( compiler._position != expression.length() )
+      throw compiler.error( "Unexpected input" );
+
+    return cpu -> result.applyAsInt( cpu ) != 0;
+  }
+
+
+
+  /**
+   * Parses a sequence of logical or operations.
+   */
+  private ToIntFunction<Cpu6510> parseOr()
+  {
+    ToIntFunction<Cpu6510> result = parseAnd();
+
+    while ( accept( "||" ) )
+    {
+      ToIntFunction<Cpu6510> left = result;
+      ToIntFunction<Cpu6510> right = parseAnd();
+      result = cpu ->
+        left.applyAsInt( cpu ) != 0 || right.applyAsInt( cpu ) != 0 ? 1 : 0;
+    }
+
+    return result;
+  }
+
+
+
+  /**
+   * Parses a sequence of logical and operations.
+   */
+  private ToIntFunction<Cpu6510> parseAnd()
+  {
+    ToIntFunction<Cpu6510> result = parseComparison();
+
+    while ( accept( "&&" ) )
+    {
+      ToIntFunction<Cpu6510> left = result;
+      ToIntFunction<Cpu6510> right = parseComparison();
+      result = cpu ->
+        left.applyAsInt( cpu ) != 0 && right.applyAsInt( cpu ) != 0 ? 1 : 0;
+    }
+
+    return result;
+  }
+
+
+
+  /**
+   * Parses an optional comparison.
+   */
+  private ToIntFunction<Cpu6510> parseComparison()
+  {
+    ToIntFunction<Cpu6510> left = parseArithmetic();
+
+    if ( accept( "==" ) )
+    {
+      ToIntFunction<Cpu6510> right = parseArithmetic();
+      return cpu -> left.applyAsInt( cpu ) == right.applyAsInt( cpu ) ? 1 : 0;
+    }
+    if ( accept( "!=" ) )
+    {
+      ToIntFunction<Cpu6510> right = parseArithmetic();
+      return cpu -> left.applyAsInt( cpu ) != right.applyAsInt( cpu ) ? 1 : 0;
+    }
+    if ( accept( "<=" ) )
+    {
+      ToIntFunction<Cpu6510> right = parseArithmetic();
+      return cpu -> left.applyAsInt( cpu ) <= right.applyAsInt( cpu ) ? 1 : 0;
+    }
+    if ( accept( ">=" ) )
+    {
+      ToIntFunction<Cpu6510> right = parseArithmetic();
+      return cpu -> left.applyAsInt( cpu ) >= right.applyAsInt( cpu ) ? 1 : 0;
+    }
+    if ( accept( "<" ) )
+    {
+      ToIntFunction<Cpu6510> right = parseArithmetic();
+      return cpu -> left.applyAsInt( cpu ) < right.applyAsInt( cpu ) ? 1 : 0;
+    }
+    if ( accept( ">" ) )
+    {
+      ToIntFunction<Cpu6510> right = parseArithmetic();
+      return cpu -> left.applyAsInt( cpu ) > right.applyAsInt( cpu ) ? 1 : 0;
+    }
+
+    return left;
+  }
+
+
+
+  /**
+   * Parses a sequence of arithmetic and bitwise operations.  These are
+   * evaluated from left to right.
+   */
+  private ToIntFunction<Cpu6510> parseArithmetic()
+  {
+    ToIntFunction<Cpu6510> result = parseUnary();
+
+    while ( true )
+    {
+      ToIntFunction<Cpu6510> left = result;
+
+      if ( peek( "&&" ) || peek( "||" ) )
+        return result;
+      else if ( accept( "&" ) )
+      {
+        ToIntFunction<Cpu6510> right = parseUnary();
+        result = cpu -> left.applyAsInt( cpu ) & right.applyAsInt( cpu );
+      }
+      else if ( accept( "|" ) )
+      {
+        ToIntFunction<Cpu6510> right = parseUnary();
+        result = cpu -> left.applyAsInt( cpu ) | right.applyAsInt( cpu );
+      }
+      else if ( accept( "^" ) )
+      {
+        ToIntFunction<Cpu6510> right = parseUnary();
+        result = cpu -> left.applyAsInt( cpu ) ^ right.applyAsInt( cpu );
+      }
+      else if ( accept( "+" ) )
+      {
+        ToIntFunction<Cpu6510> right = parseUnary();
+        result = cpu -> left.applyAsInt( cpu ) + right.applyAsInt( cpu );
+      }
+      else if ( accept( "-" ) )
+      {
+        ToIntFunction<Cpu6510> right = parseUnary();
+        result = cpu -> left.applyAsInt( cpu ) - right.applyAsInt( cpu );
+      }
+      else
+        return result;
+    }
+  }
+
+
+
+  /**
+   * Parses an operand with optional unary operators.
+   */
+  private ToIntFunction<Cpu6510> parseUnary()
+  {
+    if ( peek( "!=" ) )
+      throw error( "Operand expected" );
+    if ( accept( "!" ) )
+    {
+      ToIntFunction<Cpu6510> operand = parseUnary();
+      return cpu -> operand.applyAsInt( cpu ) == 0 ? 1 : 0;
+    }
+    if ( accept( "-" ) )
+    {
+      ToIntFunction<Cpu6510> operand = parseUnary();
+      return cpu -> - operand.applyAsInt( cpu );
+    }
+    if ( accept( "~" ) )
+    {
+      ToIntFunction<Cpu6510> operand = parseUnary();
+      return cpu -> ~ operand.applyAsInt( cpu );
+    }
+
+    return parseOperand();
+  }
+
+
+
+  /**
+   * Parses a number, register, flag, memory access or a parenthesised
+   * expression.
+   */
+  private ToIntFunction<Cpu6510> parseOperand()
+  {
+    if ( accept( "(" ) )
+    {
+      ToIntFunction<Cpu6510> result = parseOr();
+      expect( ")" );
+      return result;
+    }
+    if ( accept( "[" ) )
+    {
+      ToIntFunction<Cpu6510> address = parseOr();
+      expect( "]" );
+      return cpu ->
+        cpu.getMemory().peek( address.applyAsInt( cpu ) & 0xffff ) & 0xff;
+    }
+
+    skipBlanks();
+    int start = _position;
+
+    if ( accept( "$" ) )
+      return constant( parseDigits( 16 ) );
+    if ( accept( "%" ) )
+      return constant( parseDigits( 2 ) );
+    if ( peek( "0x" ) || peek( "0X" ) )
+    {
+      _position += 2;
+      return constant( parseDigits( 16 ) );
+    }
+
+    while ( _position < _expression.length() &&
+            Character.isLetterOrDigit( _expression.charAt( _position ) ) )
+      _position++;
+
+    String word = _expression.substring( start, _position );
+
+    if ( word.isEmpty() )
+      throw error( "Operand expected" );
+    if ( Character.isDigit( word.charAt( 0 ) ) )
+    {
+      _position = start;
+      return constant( parseDigits( 10 ) );
+    }
+
+    switch ( word.toUpperCase() )
+    {
+      case "A":
+        return Cpu6510::getAccu;
+      case "X":
+        return Cpu6510::getX;
+      case "Y":
+        return Cpu6510::getY;
+      case "SP":
+        return Cpu6510::getSP;
+      case "PC":
+        return Cpu6510::getPC;
+      case "N":
+        return flag( Cpu6510.STATUS_FLAG_NEGATIVE );
+      case "V":
+        return flag( Cpu6510.STATUS_FLAG_OVERFLOW );
+      case "B":
+        return flag( Cpu6510.STATUS_FLAG_BREAK );
+      case "D":
+        return flag( Cpu6510.STATUS_FLAG_DECIMAL );
+      case "I":
+        return flag( Cpu6510.STATUS_FLAG_INTERRUPT );
+      case "Z":
+        return flag( Cpu6510.STATUS_FLAG_ZERO );
+      case "C":
+        return flag( Cpu6510.STATUS_FLAG_CARRY );
+      default:
+        _position = start;
+        throw error( "Unknown operand '" + word + "'" );
+    }
+  }
+
+
+
+  /**
+   * Parses a number in the passed radix at the current position.
+   */
+  private int parseDigits( int radix )
+  {
+    int start = _position;
+
+    while ( _position < _expression.length() &&
+            Character.digit( _expression.charAt( _position ), radix ) >= 0 )
+      _position++;
+
+    if ( start == _position )
+      throw error( "Number expected" );
+
+    try
+    {
+      return Integer.parseInt(
+        _expression.substring( start, _position ), radix );
+    }
+    catch ( NumberFormatException e )
+    {
+      _position = start;
+      throw error( "Number out of range" );
+    }
+  }
+
+
+
+  /**
+   * Creates a function returning a constant value.
+   */
+  private static ToIntFunction<Cpu6510> constant( int value )
+  {
+    return cpu -> value;
+  }
+
+
+
+  /**
+   * Creates a function returning the state of a status flag.
+   */
+  private static ToIntFunction<Cpu6510> flag( int flag )
+  {
+    return cpu -> 0 != (cpu.getStatusRegister() & flag) ? 1 : 0;
+  }
+
+
+
+  /**
+   * Skips white space.
+   */
+  private void skipBlanks()
+  {
+    while ( _position < _expression.length() &&
+            Character.isWhitespace( _expression.charAt( _position ) ) )
+      _position++;
+  }
+
+
+
+  /**
+   * Checks whether the passed token is next in the input.
+   */
+  private boolean peek( String token )
+  {
+    skipBlanks();
+    return _expression.startsWith( token, _position );
+  }
+
+
+
+  /**
+   * Consumes the passed token if it is next in the input.
+   *
+   * @return <code>true</code> if the token was consumed.
+   */
+  private boolean accept( String token )
+  {
+    if ( ! peek( token ) )
+      return false;
+
+    _position += token.length();
+    return true;
+  }
+
+
+
+  /**
+   * Consumes the passed token.
+   *
+   * @throws IllegalArgumentException If the token is not next in the input.
+   */
+  private void expect( String token )
+  {
+    if ( ! accept( token ) )
+      throw error( "'" + token + "' expected" );
+  }
+
+
+
+  /**
+   * Creates an exception describing a syntax error at the current position.
+   */
+  private IllegalArgumentException error( String message )
+  {
+    return new IllegalArgumentException(
+      message + " at position " + _position + " in '" + _expression + "'" );
+  }
+}
@@ -54,6 +54,30 @@ public class Cpu6510
 
 
 
+  /**
+   * Switch on profiling.  This is read once from the system property
+   * <code>de.michab.simulator.mos6502.Cpu6510.profile</code>.  If not set the
+   * profiling code is removed by the runtime compiler.
+   *
+   * @see Cpu6510#getProfiler()
+   */
+  private static final boolean _profile =
+    Boolean.getBoolean( Cpu6510.class.getName() + ".profile" );
+
+
+
+  /**
+   * The number of records in the instruction trace.  This is read once from
+   * the system property <code>de.michab.simulator.mos6502.Cpu6510.trace</code>.
+   * If not set the tracing code is removed by the runtime compiler.
+   *
+   * @see Cpu6510#getTraceBuffer()
+   */
+  private static final int _traceSize =
+    Integer.getInteger( Cpu6510.class.getName() + ".trace", 0 );
+
+
+
   /**
    * The number of cycles executed since the last realtime synchronisation has
    * been executed.
@@ -63,9 +87,41 @@ public class Cpu6510
 
 
   /**
-   * The memory we are working on.
+   * The number of instructions executed since the processor was created.
+   */
+  private long _instructions = 0;
+
+
+
+  /**
+   * The memory we are working on.  This is normally the system memory but
+   * can be replaced by a view on the system memory, e.g. for watchpoints.
+   *
+   * @see Cpu6510#setMemoryView(Memory)
+   * @see Cpu6510#setInstrumentation(Memory)
+   */
+  private Memory _memory;
+
+
+
+  /**
+   * The view set by <code>setMemoryView()</code> or <code>null</code>.
+   */
+  private Memory _memoryView = null;
+
+
+
+  /**
+   * The memory instrumentation or <code>null</code>.
+   */
+  private Memory _instrumentation = null;
+
+
+
+  /**
+   * The memory passed on construction.
    */
-  private final Memory _memory;
+  private final Memory _systemMemory;
 
 
 
@@ -108,6 +164,33 @@ public class Cpu6510
 
 
 
+  /**
+   * A bitmap holding a bit for each of the 64k addresses.  If this is set the
+   * debugger is only called if the bit for the current program counter is
+   * set.  If this is <code>null</code> the debugger is called for every
+   * instruction outside of interrupt handlers.
+   *
+   * @see Cpu6510#setBreakpointMap(long[])
+   */
+  private volatile long[] _breakpointMap = null;
+
+
+
+  /**
+   * The profiler.  Only set if profiling is switched on.
+   */
+  private final Profiler _profiler = _profile ? new Profiler() : null;
+
+
+
+  /**
+   * The instruction trace.  Only set if tracing is switched on.
+   */
+  private final TraceBuffer _trace =
+    _traceSize > 0 ? new TraceBuffer( _traceSize ) : null;
+
+
+
   /**
    * Processor specific constants.
    */
@@ -211,9 +294,15 @@ public class Cpu6510
    * arithmetic operations.  Finally, the negative flag behaves differently in 
    * decimal operations.</p>
    *
+   * <p>The flag is evaluated lazily:  Instead of computing the flag after each
+   * operation the value the flag is derived from is stored and the flag is set
+   * if that value is negative.  This saves the computation on the many
+   * instructions whose result is never tested.</p>
+   *
    * @see Cpu6510#_decimal
+   * @see Cpu6510#isNegative()
    */
-  private boolean _negative = false;
+  private byte _negativeResult = 0;
 
 
 
@@ -234,8 +323,13 @@ public class Cpu6510
    * negative flag.  Generally, it will be set if an arithmetic register is
    * being loaded with the value zero, and cleared otherwise. The flag will
    * behave differently in decimal operations.
+   *
+   * <p>Like the negative flag the zero flag is evaluated lazily.  The flag is
+   * set if the stored value is zero.</p>
+   *
+   * @see Cpu6510#isZero()
    */
-  private boolean _zero = false;
+  private byte _zeroResult = 1;
 
 
 
@@ -317,7 +411,7 @@ public class Cpu6510
     // Create this processor's ports.
     _ports = createPorts( _portMemory.length );
     // Link to the passed memory image...
-    _memory = mem;
+    _memory = _systemMemory = mem;
     // ..and reset our internal state.
     reset();
     
@@ -333,7 +427,108 @@ public class Cpu6510
    */
   public Memory getMemory()
   {
-    return _memory;
+    return _systemMemory;
+  }
+
+
+
+  /**
+   * Get this processor's profiler.
+   *
+   * @return The profiler or <code>null</code> if profiling is not switched
+   *         on.
+   * @see Profiler
+   */
+  public Profiler getProfiler()
+  {
+    return _profiler;
+  }
+
+
+
+  /**
+   * Get this processor's instruction trace.
+   *
+   * @return The trace or <code>null</code> if tracing is not switched on.
+   * @see TraceBuffer
+   */
+  public TraceBuffer getTraceBuffer()
+  {
+    return _trace;
+  }
+
+
+
+  /**
+   * Replace the memory used for instruction execution by a view on the
+   * system memory.  The view has to forward all accesses to the system
+   * memory.
+   *
+   * @param view The memory view to use.  If <code>null</code> is passed the
+   *        system memory is used directly.
+   * @see Cpu6510#getMemory()
+   */
+  void setMemoryView( Memory view )
+  {
+    _memoryView = view;
+    updateMemory();
+  }
+
+
+
+  /**
+   * Get the memory view set by <code>setMemoryView()</code>.
+   *
+   * @return The view or the system memory if no view is set.
+   */
+  Memory getMemoryView()
+  {
+    Memory result = _memoryView;
+
+    return result == null ? _systemMemory : result;
+  }
+
+
+
+  /**
+   * Set an instrumentation layer on the memory.  The instrumentation is used
+   * in front of a view set by <code>setMemoryView()</code> and has to
+   * forward all accesses to the memory returned by
+   * <code>getMemoryView()</code>.
+   *
+   * @param instrumentation The instrumentation, <code>null</code> removes
+   *        the instrumentation.
+   */
+  void setInstrumentation( Memory instrumentation )
+  {
+    _instrumentation = instrumentation;
+    updateMemory();
+  }
+
+
+
+  /**
+   * Selects the memory used for instruction execution.
+   */
+  private void updateMemory()
+  {
+    if ( _instrumentation != null )
+      _memory = _instrumentation;
+    else
+      _memory = getMemoryView();
+  }
+
+
+
+  /**
+   * Get the local time of the processor.  Only valid if called on the
+   * processor thread.
+   *
+   * @return The number of cycles executed.
+   */
+  long getTime()
+  {
+    return _clockId.currentLocalTime();
   }
 
 
@@ -477,6 +672,31 @@ public class Cpu6510
 
 
 
+  /**
+   * Read the stack pointer.  Result is normalised into range [0..255].
+   *
+   * @return The contents of the stack pointer.
+   */
+  public int getSP()
+  {
+    return _stack & 0xff;
+  }
+
+
+
+  /**
+   * Sets the stack pointer.  Note that this must be called from the thread
+   * running the processor.
+   *
+   * @param sp The new content for the stack pointer.
+   */
+  public void setSP( int sp )
+  {
+    _stack = (byte)sp;
+  }
+
+
+
   /**
    * Set the program counter to a new address.
    *
@@ -501,6 +721,43 @@ public class Cpu6510
 
 
 
+  /**
+   * Get the number of instructions executed since the processor was
+   * created.  Only consistent while the processor is halted.
+   *
+   * @return The number of instructions.
+   */
+  public long getInstructionCount()
+  {
+    return _instructions;
+  }
+
+
+
+  /**
+   * Writes the current instruction into the trace.
+   *
+   * @param opcode The current instruction's opcode.
+   */
+  private void trace( int opcode )
+  {
+    int length = Opcodes.getEncodingLength( opcode );
+
+    _trace.record(
+      _clockId.currentLocalTime(),
+      _pc,
+      opcode,
+      length > 1 ? _systemMemory.peek( (_pc + 1) & 0xffff ) : 0,
+      length > 2 ? _systemMemory.peek( (_pc + 2) & 0xffff ) : 0,
+      _accu,
+      _x,
+      _y,
+      _stack,
+      getStatusRegister() );
+  }
+
+
+
   /**
    * Handles the IRQ interrupt.  This method will be the entry point for
    * threads controlling other chips in the simulation, hence needs to be
@@ -553,7 +810,14 @@ public class Cpu6510
         public void run()
         {
           _clockId.prepare();
-          dispatchTicks();
+          try
+          {
+            dispatchTicks();
+          }
+          catch ( RuntimeException | Error e )
+          {
+            _clockId.fail( e );
+          }
         }
       },
       getClass().getName() );
@@ -573,7 +837,7 @@ public class Cpu6510
    */
   private void dispatchTicks()
   {
-    while ( true )
+    while ( ! _clockId.isClosed() )
     {
       tick();
     }
@@ -599,22 +863,40 @@ public class Cpu6510
       _memory.write( decrementStack(), getStatusRegister() );
       // ... and set the new program counter.
       _pc = _interruptPending;
+      if ( _profile )
+        _profiler.call( _pc );
       // At last clear the interrupt pending flag/address...
       _interruptPending = Integer.MIN_VALUE;
       // ...and set the interrupt flag only in case this is not a reset.
       _interrupt = _interruptPendingType != INT_RESET;
     }
 
-    // Single stepping only if not in interrupt mode. TODO this disables
-    // breakpoints in interrupts.  Solution is to rework the interface:
-    // It can be specified whether it should be possible to debug interrupts.
-    if ( _debugger != null && ! _interrupt )
-      _debugger.step( _pc );
+    // The program counter wraps around at the end of the address space.
+    _pc &= 0xffff;
+
+    // Single stepping only if not in interrupt mode.  If a breakpoint map is
+    // set the debugger is only called for the marked addresses, but in
+    // interrupt handlers, too.
+    if ( _debugger != null )
+    {
+      long[] map = _breakpointMap;
+
+      if ( map == null ?
+          ! _interrupt :
+          0 != (map[ (_pc & 0xffff) >>> 6 ] & 1L << _pc) )
+        _debugger.step( _pc );
+    }
 
     int opcode = 0xff & _memory.read( _pc );
 
     _cycles = Opcodes.getTime( opcode );
 
+    // The address of the instruction is needed after execution.
+    int pc = _pc;
+
+    if ( _traceSize > 0 )
+      trace( opcode );
+
     // Switch over the valid instruction bytes.
     switch ( opcode )
     {
@@ -1289,12 +1571,12 @@ public class Cpu6510
 
         // BPL rel ////////////////////////////////////////////////////////////
         case Opcodes.BPL_REL:
-          branchOn( ! _negative );
+          branchOn( _negativeResult >= 0 );
           break;
 
         // BMI rel ////////////////////////////////////////////////////////////
         case Opcodes.BMI_REL:
-          branchOn ( _negative );
+          branchOn ( _negativeResult < 0 );
           break;
 
         // BVC rel ////////////////////////////////////////////////////////////
@@ -1319,22 +1601,26 @@ public class Cpu6510
 
         // BNE rel ////////////////////////////////////////////////////////////
         case Opcodes.BNE_REL:
-          branchOn( ! _zero );
+          branchOn( _zeroResult != 0 );
           break;
 
         // BEQ rel ////////////////////////////////////////////////////////////
         case Opcodes.BEQ_REL:
-          branchOn( _zero );
+          branchOn( _zeroResult == 0 );
           break;
 
         // BRK imp ////////////////////////////////////////////////////////////
         case Opcodes.BRK_IMP:
           BRK();
+          if ( _profile )
+            _profiler.call( _pc );
           break;
 
         // RTI imp ////////////////////////////////////////////////////////////
         case Opcodes.RTI_IMP:
           RTI();
+          if ( _profile )
+            _profiler.ret();
           break;
 
         // JSR abs ////////////////////////////////////////////////////////////
@@ -1350,6 +1636,8 @@ public class Cpu6510
           pushPc();
           // Set the next execution address.
           _pc = targetAdress;
+          if ( _profile )
+            _profiler.call( _pc );
           break;
         }
 
@@ -1360,6 +1648,8 @@ public class Cpu6510
           // Step program counter.  Read the comments for JSR rgd. address
           // decoding.  TODO check RTI and friends.
           _pc += 1;
+          if ( _profile )
+            _profiler.ret();
           break;
 
         // JMP abs ////////////////////////////////////////////////////////////
@@ -1379,21 +1669,11 @@ public class Cpu6510
           _pc += 2;
           break;
 
-        case Opcodes.BIT_ZPX:
-          BIT( zpx() );
-          _pc += 2;
-          break;
-
         case Opcodes.BIT_ABS:
           BIT( abs() );
           _pc += 3;
           break;
 
-        case Opcodes.BIT_ABSX:
-          BIT( abx() );
-          _pc += 3;
-          break;
-
         // CLC imp ////////////////////////////////////////////////////////////
         case Opcodes.CLC_IMP:
           _carry = false;
@@ -1732,6 +2012,7 @@ public class Cpu6510
         case 0x74:
         case 0xd4:
         case 0xf4:
+        case Opcodes.uNOP_ZPX:
           _pc+=2;
           break;
 
@@ -1742,6 +2023,7 @@ public class Cpu6510
         case 0x7c:
         case 0xdc:
         case 0xfc:
+        case Opcodes.uNOP_ABSX:
           _pc += 3;
           break;
 
@@ -1752,9 +2034,16 @@ public class Cpu6510
                               "@" +
                               Integer.toHexString( _pc & 0xffff ) );
           System.err.println( "State: " + toString() );
+          if ( _traceSize > 0 )
+            _trace.trigger( "Unknown opcode" );
           reset();
     }
-    
+
+    if ( _profile )
+      _profiler.instruction( pc, _cycles );
+
+    _instructions++;
+
     _clockId.advance( _cycles );
   }
 
@@ -1771,7 +2060,7 @@ public class Cpu6510
     // Bit 5 is always set.
     int result = STATUS_FLAG_CONST_ONE;
     // Compose a byte containing all status register flags...
-    if ( _negative )
+    if ( isNegative() )
       result |= STATUS_FLAG_NEGATIVE; // Bit 7.
     if ( _overflow )
       result |= STATUS_FLAG_OVERFLOW; // Bit 6.
@@ -1781,7 +2070,7 @@ public class Cpu6510
       result |= STATUS_FLAG_DECIMAL; // Bit 3.
     if ( _interrupt )
       result |= STATUS_FLAG_INTERRUPT; // Bit 2.
-    if ( _zero )
+    if ( isZero() )
       result |= STATUS_FLAG_ZERO;
     if ( _carry )
       result |= STATUS_FLAG_CARRY; // Bit 0.
@@ -1799,12 +2088,12 @@ public class Cpu6510
   public final void setStatusRegister( byte status )
   {
     _carry     = 0 != (status & STATUS_FLAG_CARRY);
-    _zero      = 0 != (status & STATUS_FLAG_ZERO);
+    _zeroResult = (byte)(0 != (status & STATUS_FLAG_ZERO) ? 0 : 1);
     _interrupt = 0 != (status & STATUS_FLAG_INTERRUPT);
     _decimal   = 0 != (status & STATUS_FLAG_DECIMAL);
     _break     = 0 != (status & STATUS_FLAG_BREAK);
     _overflow  = 0 != (status & STATUS_FLAG_OVERFLOW);
-    _negative  = 0 != (status & STATUS_FLAG_NEGATIVE);
+    _negativeResult = (byte)(status & STATUS_FLAG_NEGATIVE);
   }
 
 
@@ -1834,7 +2123,7 @@ public class Cpu6510
         break;
 
       case STATUS_FLAG_ZERO:
-        result = _zero;
+        result = isZero();
         break;
 
       case STATUS_FLAG_INTERRUPT:
@@ -1854,13 +2143,12 @@ public class Cpu6510
         break;
 
       case STATUS_FLAG_NEGATIVE:
-        result = _negative;
+        result = isNegative();
         break;
 
       default:
-        System.err.println( "Invalid enumeration element: " + statusEnum );
-        new Throwable().printStackTrace();
-        System.exit( 1 );
+        throw new IllegalArgumentException(
+          "Invalid enumeration element: " + statusEnum );
     }
 
     return result;
@@ -1868,6 +2156,49 @@ public class Cpu6510
 
 
 
+  /**
+   * Get the processor's state.  Only valid while the processor thread is
+   * halted between two instructions.
+   *
+   * @return The state.
+   */
+  public synchronized State getState()
+  {
+    return new State( this );
+  }
+
+
+
+  /**
+   * Set the processor's state.  Only allowed before the clock is started or
+   * while the halted emulation is restored, the processor thread starts
+   * executing at the restored program counter.
+   * The ports are written, so connected port listeners receive the restored
+   * values.
+   *
+   * @param state The state to set.
+   * @throws IllegalStateException If the clock is started.
+   * @see de.michab.simulator.Clock#beginRestore()
+   */
+  public synchronized void setState( State state )
+  {
+    _clockId.restoreLocalTime( state._time );
+
+    _accu = (byte)state._accu;
+    _x = (byte)state._x;
+    _y = (byte)state._y;
+    _stack = (byte)state._sp;
+    _pc = state._pc;
+    setStatusRegister( (byte)state._status );
+    _interruptPending = state._interruptPending;
+    _interruptPendingType = state._interruptPendingType;
+
+    for ( int i = 0 ; i < NUM_OF_PORTS ; i++ )
+      write( i, state._ports[i] );
+  }
+
+
+
   /**
    * Initialises the program counter from the reset vector.
    */
@@ -1908,67 +2239,17 @@ public class Cpu6510
 
 
   /**
-   * Add with carry.  Status register setting is checked against VICE.
+   * Add with carry.  Status register setting is checked against VICE.  The
+   * result is looked up in a precomputed table.
    *
    * @param operandAdr The address of the operand.
    * @see de.michab.simulator.mos6502.Cpu6510#SBC
+   * @see de.michab.simulator.mos6502.ArithmeticTables
    */
   private void ADC( int operandAdr )
   {
-    // Note:  Just for clarification, we have two accu variables in this
-    // method.  'accu' w/o underscore means the local copy of the value from
-    // the '_accu' register.
-    int accu =_accu;
-    accu &= 0xff;
-    int op = _memory.read( operandAdr );
-    op &= 0xff;
-
-    if ( _decimal )
-    {
-      // This code came from vice, simple transformation.
-
-      // Add the lsb digits.
-      int result = (accu & 0xf) + (op & 0xf) + (_carry ? 1 : 0);
-      // If we left the bcd range...
-      if ( result > 0x9 )
-        // ...normalise the result.
-        result += 0x6;
-      // If we stayed in the lsb digit...
-      if ( result <= 0x0f )
-        // ...add up the msb digit.
-        result = (result & 0xf) + (accu & 0xf0) + (op & 0xf0);
-      else
-        result = (result & 0xf) + (accu & 0xf0) + (op & 0xf0) + 0x10;
-
-      // Compute the status register flags.
-      _zero = 0 == ((accu + op + (_carry ? 1 : 0)) & 0xff);
-      _negative = 0 != (result & 0x80);
-      _overflow = (0 != (((accu ^ result) & 0x80)) &&
-                  (0 == ((accu ^ op) & 0x80)));
-      if ((result & 0x1f0) > 0x90)
-        result += 0x60;
-      _carry = ((result & 0xff0) > 0xf0);
-      _accu = (byte)result;
-    }
-    else
-    {
-      int result = accu + op + (_carry ? 1 : 0);
-
-      _accu = (byte)result;
-
-      // Set registers.
-      setRegsNZ( _accu );
-      // Overflow is set if the initial accu and the value to add have the same
-      // sign *and* if the signs of the initial accu and the result differ.
-      _overflow = (((accu ^ op) & BIT_7) == 0)
-                  && (((accu ^ result) & BIT_7) != 0);
-      // Carry flag is true when the result doesn't fit into an unsigned byte.  This is
-      // tested in VICE with the following code: _carry = result >
-      // 0xff; where result is unsigned.  Since java knows nothing
-      // about unsigned integers this has to be translated into the following
-      // code:
-      _carry = (result & 0xffffff00) != 0;
-    }
+    setArithmeticResult( ArithmeticTables.adc( _decimal )[
+      ArithmeticTables.index( _accu, _memory.read( operandAdr ), _carry ) ] );
   }
 
 
@@ -2046,9 +2327,9 @@ public class Cpu6510
   private void BIT( int operandAdr )
   {
     byte operand = _memory.read( operandAdr );
-    _negative = operand < 0;
+    _negativeResult = operand;
     _overflow = (operand & BIT_6) != 0;
-    _zero = (_accu & operand) == 0;
+    _zeroResult = (byte)(_accu & operand);
   }
 
 
@@ -2075,8 +2356,8 @@ public class Cpu6510
    */
   private void BRK()
   {
-    // Push  program counter for the next opcode.
-    _pc += 1;
+    // Push the program counter.  BRK skips the byte following the opcode.
+    _pc += 2;
     pushPc();
     // Set break flag.
     _break = true;
@@ -2096,9 +2377,9 @@ public class Cpu6510
    *
    * @param operandAdr The operand address.
    * @param register The referred register's contents.
-   * @see de.michab.simulator.mos6502.Cpu6510#_negative
+   * @see de.michab.simulator.mos6502.Cpu6510#_negativeResult
    * @see de.michab.simulator.mos6502.Cpu6510#_carry
-   * @see de.michab.simulator.mos6502.Cpu6510#_zero
+   * @see de.michab.simulator.mos6502.Cpu6510#_zeroResult
    */
   private void cmpImpl( int operandAdr, byte register )
   {
@@ -2296,10 +2577,11 @@ public class Cpu6510
    */
   private void ISC( int operandAddr )
   {
-    int tempAddress = _memory.read( operandAddr ) +1;
-    tempAddress &= 0xff;
-    SBC( tempAddress );
-    _memory.write( operandAddr, (byte)tempAddress );
+    // Increment the memory, then subtract the incremented value.
+    byte value = (byte)(_memory.read( operandAddr ) + 1);
+    _memory.write( operandAddr, value );
+    setArithmeticResult( ArithmeticTables.sbc( _decimal )[
+      ArithmeticTables.index( _accu, value, _carry ) ] );
   }
 
 
@@ -2457,8 +2739,11 @@ public class Cpu6510
    */
   private void PHP()
   {
-    // Perform the operation.
-    _memory.write( decrementStack(), getStatusRegister() );
+    // Perform the operation.  The break flag is always pushed set, it only
+    // reads clear on the stack if pushed by a hardware interrupt.
+    _memory.write(
+      decrementStack(),
+      (byte)(getStatusRegister() | STATUS_FLAG_BREAK) );
   }
 
 
@@ -2649,51 +2934,37 @@ public class Cpu6510
 
 
   /**
-   * Subtract with carry.  Checked against VICE status register setting.
+   * Subtract with carry.  Checked against VICE status register setting.  The
+   * result is looked up in a precomputed table.
    *
    * @param operandAdr The operand's address.
    * @see de.michab.simulator.mos6502.Cpu6510#ADC
+   * @see de.michab.simulator.mos6502.ArithmeticTables
    */
   private void SBC( int operandAdr )
   {
-    // Perform the operation.
-    int accu = _accu;
-    accu &= 0xff;
-    int op = _memory.read( operandAdr );
-    op &= 0xff;
-    int result = accu - op;
-    if ( ! _carry )
-      result--;
-
-    // Set registers.  This is common code for decimal and non-decimal mode.
-    setRegsNZ( (byte)result );
-    // Overflow is set if the initial accu and the result have different signs
-    // *and* initial accu and the initial operand have different signs.
-    _overflow = (((accu ^ result) & 0x80) != 0)
-                && (((accu ^ op) & 0x80) != 0);
-    // Carry flag is true when the result fits into an unsigned byte.  This is
-    // tested in VICE with the following code: _carry = result <
-    // 0x100; where result is unsigned.  Since java knows nothing
-    // about unsigned integers this has to be translated into the following
-    // code:
-    _carry = (result & 0xffffff00) == 0;
+    setArithmeticResult( ArithmeticTables.sbc( _decimal )[
+      ArithmeticTables.index( _accu, _memory.read( operandAdr ), _carry ) ] );
+  }
 
-    // Check if we are in decimal mode.
-    if ( _decimal )
-    {
-      // Subtract least significant digit.
-      int deca = (accu & 0xf) - (op & 0xf) - (_carry ? 0 : 1);
-      if ( 0 != (deca & 0x10) )
-        deca = ((deca - 6) & 0xf) | ((deca & 0xf0) - (op & 0xf0) - 0x10);
-      else
-        deca = (deca & 0xf) | ((accu & 0xf0) - (op & 0xf0));
-      if ( 0 != (deca & 0x100) )
-        deca -= 0x60;
-
-      _accu = (byte)deca;
-    }
-    else
-      _accu = (byte)result;
+
+
+  /**
+   * Sets the accumulator and the status flags from an entry of the
+   * arithmetic tables.
+   *
+   * @param entry The table entry.  The low byte holds the new accumulator
+   *        value, the high byte the flags in status register layout.
+   */
+  private void setArithmeticResult( char entry )
+  {
+    int flags = entry >> 8;
+
+    _accu = (byte)entry;
+    _negativeResult = (byte)flags;
+    _zeroResult = (byte)(~flags & STATUS_FLAG_ZERO);
+    _overflow = 0 != (flags & STATUS_FLAG_OVERFLOW);
+    _carry = 0 != (flags & STATUS_FLAG_CARRY);
   }
 
 
@@ -2834,14 +3105,38 @@ public class Cpu6510
   /**
    * Set negative and zero register based on passed value.  The passed value
    * represents a register's contents that is the base for the computation of
-   * the new zero and negative status flags.
+   * the new zero and negative status flags.  The flags themselves are computed
+   * only if they are actually queried.
    *
    * @param onWhat The respective register's contents.
    */
   private void setRegsNZ( byte onWhat )
   {
-    _negative = onWhat < 0;
-    _zero = onWhat == 0;
+    _negativeResult = _zeroResult = onWhat;
+  }
+
+
+
+  /**
+   * Evaluates the lazily computed negative flag.
+   *
+   * @return The value of the negative flag.
+   */
+  private boolean isNegative()
+  {
+    return _negativeResult < 0;
+  }
+
+
+
+  /**
+   * Evaluates the lazily computed zero flag.
+   *
+   * @return The value of the zero flag.
+   */
+  private boolean isZero()
+  {
+    return _zeroResult == 0;
   }
 
 
@@ -2870,7 +3165,7 @@ public class Cpu6510
    */
   private int zp()
   {
-    int effectiveAddress = _memory.read( _pc+1 );
+    int effectiveAddress = _memory.read( (_pc + 1) & 0xffff );
     // Masking out the sign extension.
     effectiveAddress &= 0xff;
 
@@ -2946,7 +3241,7 @@ public class Cpu6510
   private int izy()
   {
     // Perform indirect addressing.
-    int base = _memory.read( _pc+1 );
+    int base = _memory.read( (_pc + 1) & 0xffff );
     base &= 0xff;
     base = ind( base );
 
@@ -2970,7 +3265,7 @@ public class Cpu6510
    */
   private int abs()
   {
-    return _memory.getVectorAt( _pc+1 );
+    return _memory.getVectorAt( (_pc + 1) & 0xffff );
   }
 
 
@@ -3074,7 +3369,7 @@ public class Cpu6510
     // Adress of the next instruction.
     int next = _pc + 2;
     // Add the signed offset.
-    int target = next + _memory.read( _pc +1 );
+    int target = next + _memory.read( (_pc + 1) & 0xffff );
 
     // Update cycle count.  We are only called in case the branch is taken.
     // Takes one cycle on same page, two if page is crossed.
@@ -3147,8 +3442,8 @@ public class Cpu6510
 
     return "Cpu(" + 
       " pc = " + Integer.toHexString(_pc) +
-      "; zero = " + _zero +
-      "; negative = " + _negative +
+      "; zero = " + isZero() +
+      "; negative = " + isNegative() +
       "; break = " + _break +
       "; carry = " + _carry +
       "; interrupt = " + _interrupt +
@@ -3182,6 +3477,9 @@ public class Cpu6510
       // ...reset its processor back ref.
       _debugger.setProcessor( null );
 
+    // Per default the debugger is called on every instruction.
+    _breakpointMap = null;
+
     // If a new debugger is set...
     if ( d != null )
       // ...set its processor back ref.
@@ -3193,6 +3491,37 @@ public class Cpu6510
 
 
 
+  /**
+   * Get the debugger currently set.
+   *
+   * @return The debugger or <code>null</code> if none is set.
+   */
+  Debugger getDebugger()
+  {
+    return _debugger;
+  }
+
+
+
+  /**
+   * Restricts the debugger calls to the addresses marked in the passed map.
+   * The map is not copied and must not be changed after the call, pass a
+   * new map instead.  The new map becomes active on the next instruction.
+   * Note that setting a new debugger resets the map.
+   *
+   * @param map A map holding a bit for each of the 64k addresses.  The bit
+   *        for address <code>a</code> is bit <code>a % 64</code> of the entry
+   *        <code>a / 64</code>.  If <code>null</code> is passed the
+   *        debugger is called for each instruction outside of interrupts.
+   * @see Cpu6510#setDebugger(Debugger)
+   */
+  void setBreakpointMap( long[] map )
+  {
+    _breakpointMap = map;
+  }
+
+
+
   /**
    * Checks whether the passed 16 bit addresses are located on the same 256
    * byte memory page.  This is the case if the upper 8 bit are equal.
@@ -3206,4 +3535,63 @@ public class Cpu6510
   {
     return (a & 0xff00) == (b & 0xff00);
   }
+
+
+
+  /**
+   * An immutable state of the processor.
+   */
+  public static final class State
+  {
+    private final int _accu;
+    private final int _x;
+    private final int _y;
+    private final int _sp;
+    private final int _pc;
+    private final int _status;
+    private final int _interruptPending;
+    private final int _interruptPendingType;
+    private final byte[] _ports = new byte[ NUM_OF_PORTS ];
+    private final long _time;
+
+
+
+    /**
+     * Create an instance.  Called while the processor is halted.
+     */
+    private State( Cpu6510 cpu )
+    {
+      _accu = cpu._accu;
+      _x = cpu._x;
+      _y = cpu._y;
+      _sp = cpu._stack;
+      _pc = cpu._pc;
+      _status = cpu.getStatusRegister();
+      _interruptPending = cpu._interruptPending;
+      _interruptPendingType = cpu._interruptPendingType;
+      for ( int i = 0 ; i < NUM_OF_PORTS ; i++ )
+        _ports[i] = cpu.read( i );
+      _time = cpu._clockId.currentLocalTime();
+    }
+
+
+
+    /**
+     * @return The program counter.
+     */
+    public int getPC()
+    {
+      return _pc & 0xffff;
+    }
+
+
+
+    /**
+     * @return The processor time of the state in cycles.
+     */
+    public long getTime()
+    {
+      return _time;
+    }
+  }
 }
@@ -0,0 +1,346 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2004 Michael G. Binz
+ */
+package de.michab.simulator.mos6502;
+
+import java.util.Arrays;
+
+import de.michab.simulator.Memory;
+
+
+
+/**
+ * The commands for rendering the visible raster lines of a frame.  The
+ * raster thread records the register latch, the video mode and the memory
+ * addresses of each line.  Worker threads render bands of the recorded
+ * lines later.
+ *
+ * <p>The memory the VIC can see is captured in snapshots.  Only the pages
+ * that are read for rendering are copied:  Video RAM, the character set or
+ * bitmap, the sprite data blocks and color RAM.  These pages are watched
+ * for writes and a line recorded after a write or after an address or mode
+ * change receives a new snapshot.  If raster effects need more than
+ * <code>MAX_SNAPSHOTS</code> snapshots the remaining lines of the frame
+ * have to be rendered synchronously.</p>
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ * @see RasterDisplay
+ */
+final class FrameCommands
+{
+  /**
+   * The maximum number of snapshots per frame.
+   */
+  static final int MAX_SNAPSHOTS = 8;
+
+
+
+  /**
+   * The system memory.
+   */
+  private final Memory _memory;
+
+
+
+  /**
+   * The color RAM.
+   */
+  private final byte[] _colorRam;
+
+
+
+  /**
+   * The address color RAM is mapped to.
+   */
+  private final int _colorRamAddress;
+
+
+
+  /**
+   * The snapshots, created on demand.
+   */
+  private final MemorySnapshot[] _snapshots =
+    new MemorySnapshot[ MAX_SNAPSHOTS ];
+
+
+
+  /**
+   * The number of snapshots taken for the current frame.
+   */
+  private int _snapshotCount = 0;
+
+
+
+  /**
+   * The watched write count when the last snapshot was taken.
+   */
+  private long _watchedWrites = 0;
+
+
+
+  /**
+   * The video mode and addresses the last snapshot was taken for.
+   */
+  private int _snapshotMode;
+  private int _snapshotCharacterAdr;
+  private int _snapshotVideoRamAdr;
+  private int _snapshotBitmapAdr;
+
+
+
+  /**
+   * The pages copied into the last snapshot.
+   */
+  private final long[] _pages = new long[ 4 ];
+
+
+
+  /**
+   * The number of recorded lines.
+   */
+  private int _recordedCount = 0;
+
+
+
+  /**
+   * Per visible line:  The register latch.
+   */
+  private final VicRegisters[] _registers =
+    new VicRegisters[ RasterDisplay.OVERALL_H ];
+
+
+
+  /**
+   * Per visible line:  The snapshot index, negative if not recorded.
+   */
+  private final int[] _snapshotIdx = new int[ RasterDisplay.OVERALL_H ];
+
+
+
+  /**
+   * Per visible line:  True if the line is a bad line.
+   */
+  private final boolean[] _badLines = new boolean[ RasterDisplay.OVERALL_H ];
+
+
+
+  /**
+   * Per visible line:  The video mode and the addresses.
+   */
+  private final int[] _modes = new int[ RasterDisplay.OVERALL_H ];
+  private final int[] _characterAdr = new int[ RasterDisplay.OVERALL_H ];
+  private final int[] _videoRamAdr = new int[ RasterDisplay.OVERALL_H ];
+  private final int[] _bitmapAdr = new int[ RasterDisplay.OVERALL_H ];
+
+
+
+  /**
+   * Create an instance.
+   *
+   * @param memory The system memory.
+   * @param colorRam The color RAM.
+   * @param colorRamAddress The address color RAM is mapped to.
+   */
+  FrameCommands( Memory memory, byte[] colorRam, int colorRamAddress )
+  {
+    _memory = memory;
+    _colorRam = colorRam;
+    _colorRamAddress = colorRamAddress;
+    clear();
+  }
+
+
+
+  /**
+   * Remove all recorded lines.  Called when recording a new frame starts.
+   */
+  void clear()
+  {
+    Arrays.fill( _snapshotIdx, -1 );
+    Arrays.fill( _registers, null );
+    _snapshotCount = 0;
+    _recordedCount = 0;
+  }
+
+
+
+  /**
+   * Check whether lines were recorded.
+   *
+   * @return <code>true</code> if no line was recorded.
+   */
+  boolean isEmpty()
+  {
+    return _recordedCount == 0;
+  }
+
+
+
+  /**
+   * Record a visible raster line.  Takes a new snapshot if the memory the
+   * VIC can see changed since the last snapshot.
+   *
+   * @param rasterLine The raster line.
+   * @param registers The VIC registers for the raster line.
+   * @param badLine True if the raster line is a bad line.
+   * @param mode The video mode.
+   * @param characterAdr The character set address.
+   * @param videoRamAdr The video RAM address.
+   * @param bitmapAdr The bitmap address.
+   * @return <code>false</code> if the snapshot limit is reached.  The line
+   *         is not recorded in that case.
+   */
+  boolean record(
+      int rasterLine,
+      VicRegisters registers,
+      boolean badLine,
+      int mode,
+      int characterAdr,
+      int videoRamAdr,
+      int bitmapAdr )
+  {
+    if ( _snapshotCount == 0 ||
+        _watchedWrites != _memory.getWatchedWrites() ||
+        _snapshotMode != mode ||
+        _snapshotCharacterAdr != characterAdr ||
+        _snapshotVideoRamAdr != videoRamAdr ||
+        _snapshotBitmapAdr != bitmapAdr )
+    {
+      if ( _snapshotCount == MAX_SNAPSHOTS )
+        return false;
+
+      takeSnapshot( mode, characterAdr, videoRamAdr, bitmapAdr );
+    }
+
+    int line = rasterLine - RasterDisplay.VERTICAL_INVISIBLE;
+
+    _registers[ line ] = registers;
+    _snapshotIdx[ line ] = _snapshotCount - 1;
+    _badLines[ line ] = badLine;
+    _modes[ line ] = mode;
+    _characterAdr[ line ] = characterAdr;
+    _videoRamAdr[ line ] = videoRamAdr;
+    _bitmapAdr[ line ] = bitmapAdr;
+    _recordedCount++;
+
+    return true;
+  }
+
+
+
+  /**
+   * Renders the recorded lines of a band.  Lines that were not recorded
+   * are not touched.  Called on a worker thread.
+   *
+   * @param renderer The renderer to use.  Has to be bound to a snapshot.
+   * @param first The first line of the band in screen coordinates.
+   * @param end The line following the band in screen coordinates.
+   */
+  void render( ScanlineRenderer renderer, int first, int end )
+  {
+    int loaded = -1;
+    int mode = -1;
+    int characterAdr = -1;
+    int videoRamAdr = -1;
+    int bitmapAdr = -1;
+
+    for ( int line = first ; line < end ; line++ )
+    {
+      int snapshot = _snapshotIdx[ line ];
+
+      if ( snapshot < 0 )
+        continue;
+
+      boolean reload = _badLines[ line ];
+
+      if ( snapshot != loaded )
+      {
+        renderer.load( _snapshots[ snapshot ] );
+        loaded = snapshot;
+        reload = true;
+      }
+
+      if ( mode != _modes[ line ] ||
+          characterAdr != _characterAdr[ line ] ||
+          videoRamAdr != _videoRamAdr[ line ] ||
+          bitmapAdr != _bitmapAdr[ line ] )
+      {
+        mode = _modes[ line ];
+        characterAdr = _characterAdr[ line ];
+        videoRamAdr = _videoRamAdr[ line ];
+        bitmapAdr = _bitmapAdr[ line ];
+        renderer.setMode( mode, characterAdr, videoRamAdr, bitmapAdr );
+        reload = true;
+      }
+
+      int rasterLine = line + RasterDisplay.VERTICAL_INVISIBLE;
+
+      // A band does not see the bad lines preceding it, so the data is read
+      // whenever the content may have changed.
+      if ( reload )
+        renderer.badLine( rasterLine );
+
+      renderer.renderLine( rasterLine, _registers[ line ], false );
+    }
+  }
+
+
+
+  /**
+   * Watch the pages read for rendering and copy them into a new snapshot.
+   */
+  private void takeSnapshot(
+      int mode,
+      int characterAdr,
+      int videoRamAdr,
+      int bitmapAdr )
+  {
+    Arrays.fill( _pages, 0 );
+
+    setPages( videoRamAdr, 0x400 );
+    setPages( _colorRamAddress, _colorRam.length );
+
+    if ( ScanlineRenderer.isBitmap( mode ) )
+      setPages( bitmapAdr, 0x2000 );
+    else
+      // The text rasterers read a full character ROM.
+      setPages( characterAdr, 0x1000 );
+
+    // The block numbers of the sprites are located at the end of the video
+    // ram.  Changing them is a write to a watched page.
+    byte[] raw = _memory.getRawMemory();
+    for ( int i = 0 ; i < Vic.NUM_OF_SPRITES ; i++ )
+    {
+      int block = 0xff & raw[ videoRamAdr + (0x400 - Vic.NUM_OF_SPRITES) + i ];
+      setPages( (videoRamAdr & 0xc000) | (block * 0x40), 0x40 );
+    }
+
+    _memory.watchPages( _pages );
+    _watchedWrites = _memory.getWatchedWrites();
+
+    if ( _snapshots[ _snapshotCount ] == null )
+      _snapshots[ _snapshotCount ] = new MemorySnapshot( _colorRam.length );
+    _snapshots[ _snapshotCount++ ].capture( _memory, _colorRam, _pages );
+
+    _snapshotMode = mode;
+    _snapshotCharacterAdr = characterAdr;
+    _snapshotVideoRamAdr = videoRamAdr;
+    _snapshotBitmapAdr = bitmapAdr;
+  }
+
+
+
+  /**
+   * Set the bits of the pages covering the passed memory area.
+   */
+  private void setPages( int address, int length )
+  {
+    for ( int page = address >> 8 ; page <= (address + length - 1) >> 8 ; page++ )
+      _pages[ (page & 0xff) >> 6 ] |= 1L << page;
+  }
+}
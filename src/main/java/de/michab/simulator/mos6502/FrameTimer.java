@@ -0,0 +1,167 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2004 Michael G. Binz
+ */
+package de.michab.simulator.mos6502;
+
+
+
+/**
+ * Measures the time spent per frame in a part of the frame pipeline, for
+ * example presenting the frames on screen.  Thread safe, the measuring
+ * thread and the reading thread may differ.
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+public final class FrameTimer
+{
+  /**
+   * The name of the measured part.
+   */
+  private final String _name;
+
+
+
+  /**
+   * The number of measured frames.
+   */
+  private long _count = 0;
+
+
+
+  /**
+   * The sum of the measured times in nanoseconds.
+   */
+  private long _total = 0;
+
+
+
+  /**
+   * The longest and the last measured time in nanoseconds.
+   */
+  private long _max = 0;
+  private long _last = 0;
+
+
+
+  /**
+   * Create an instance.
+   *
+   * @param name The name of the measured part.
+   */
+  public FrameTimer( String name )
+  {
+    _name = name;
+  }
+
+
+
+  /**
+   * Add the time measured for a frame.
+   *
+   * @param nanos The time in nanoseconds.
+   */
+  public synchronized void add( long nanos )
+  {
+    _count++;
+    _total += nanos;
+    _last = nanos;
+    if ( nanos > _max )
+      _max = nanos;
+  }
+
+
+
+  /**
+   * Add the time passed since the passed start time.
+   *
+   * @param start The start time as returned by
+   *        <code>System.nanoTime()</code>.
+   */
+  public void since( long start )
+  {
+    add( System.nanoTime() - start );
+  }
+
+
+
+  /**
+   * Get the number of measured frames.
+   *
+   * @return The number of frames.
+   */
+  public synchronized long getCount()
+  {
+    return _count;
+  }
+
+
+
+  /**
+   * Get the average time per frame.
+   *
+   * @return The average time in milliseconds, zero if no frame was
+   *         measured.
+   */
+  public synchronized double getAverageMillis()
+  {
+    return _count == 0 ? 0 : _total / 1e6 / _count;
+  }
+
+
+
+  /**
+   * Get the longest time measured for a frame.
+   *
+   * @return The time in milliseconds.
+   */
+  public synchronized double getMaxMillis()
+  {
+    return _max / 1e6;
+  }
+
+
+
+  /**
+   * Get the time measured for the last frame.
+   *
+   * @return The time in milliseconds.
+   */
+  public synchronized double getLastMillis()
+  {
+    return _last / 1e6;
+  }
+
+
+
+  /**
+   * Discard the measurements.
+   */
+  public synchronized void reset()
+  {
+    _count = 0;
+    _total = 0;
+    _max = 0;
+    _last = 0;
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  @Override
+  public synchronized String toString()
+  {
+    return String.format(
+      "%s: %d frames, average %.3f ms, max %.3f ms",
+      _name,
+      _count,
+      getAverageMillis(),
+      getMaxMillis() );
+  }
+}
@@ -0,0 +1,446 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2004 Michael G. Binz
+ */
+package de.michab.simulator.mos6502;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import de.michab.simulator.*;
+
+
+
+/**
+ * Counts the memory accesses of a <code>Cpu6510</code> per address.  Reads,
+ * writes and instruction executions are counted separately.  The counts
+ * decay per frame, so they show where a program currently spends its memory
+ * traffic.  Accesses to IO registers are included, this shows programs that
+ * poll the VIC, SID or CIAs in hot loops.
+ *
+ * <p>While running the heatmap is installed as an instrumentation layer
+ * between the processor and its memory.  While stopped the processor
+ * accesses its memory directly, so a stopped heatmap costs nothing.  Note
+ * that only processor accesses are counted, video memory reads of the VIC
+ * are not visible.</p>
+ *
+ * <p>The counters are written by the processor thread without
+ * synchronisation.  Reports created while the emulation is running are a
+ * close approximation.</p>
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+public final class MemoryHeatmap
+{
+  /**
+   * The value added to a counter per access.  Counters are scaled to allow
+   * a smooth decay of small counts.
+   */
+  private static final int ONE = 16;
+
+
+
+  /**
+   * The counters decay by a 2^DECAY_SHIFT'th per frame.
+   */
+  private static final int DECAY_SHIFT = 4;
+
+
+
+  /**
+   * The IO areas reported in the CSV output.
+   */
+  private static final int[] AREA_START =
+  {
+    0xd000,
+    0xd400,
+    0xd800,
+    0xdc00,
+    0xdd00,
+    0xde00
+  };
+
+
+
+  /**
+   * The names of the IO areas.
+   */
+  private static final String[] AREA_NAME =
+  {
+    "VIC",
+    "SID",
+    "COLOR",
+    "CIA1",
+    "CIA2",
+    "IO"
+  };
+
+
+
+  /**
+   * The processor we instrument.
+   */
+  private final Cpu6510 _cpu;
+
+
+
+  /**
+   * The number of processor cycles per frame.
+   */
+  private final int _cyclesPerFrame;
+
+
+
+  /**
+   * Read counts per address.
+   */
+  private final int[] _reads = new int[ 0x10000 ];
+
+
+
+  /**
+   * Write counts per address.
+   */
+  private final int[] _writes = new int[ 0x10000 ];
+
+
+
+  /**
+   * Execution counts per address.
+   */
+  private final int[] _executes = new int[ 0x10000 ];
+
+
+
+  /**
+   * The processor time of the next decay.
+   */
+  private long _nextDecay = 0;
+
+
+
+  /**
+   * The end of the instruction that was fetched last.  Reads of the operand
+   * bytes are not counted as reads.
+   */
+  private int _instructionEnd = 0;
+
+
+
+  /**
+   * The instrumentation layer installed on the processor.
+   */
+  private final Memory _counter = new Memory()
+  {
+    public byte read( int address )
+    {
+      byte result = _cpu.getMemoryView().read( address );
+      int pc = _cpu.getPC() & 0xffff;
+
+      if ( address == pc )
+        fetch( pc, result );
+      else if ( address < pc || address >= _instructionEnd )
+        _reads[ address & 0xffff ] += ONE;
+
+      return result;
+    }
+
+    public void write( int address, byte value )
+    {
+      _writes[ address & 0xffff ] += ONE;
+
+      _cpu.getMemoryView().write( address, value );
+    }
+
+    public void set( Forwarder f, int where )
+    {
+      _cpu.getMemoryView().set( f, where );
+    }
+
+    public int getSize()
+    {
+      return _cpu.getMemoryView().getSize();
+    }
+
+    public byte[] getRawMemory()
+    {
+      return _cpu.getMemoryView().getRawMemory();
+    }
+
+    public int getVectorAt( int address )
+    {
+      int hi = read( (address + 1) & 0xffff );
+      hi &= 0xff;
+      int lo = read( address );
+      lo &= 0xff;
+
+      return (hi << 8) | lo;
+    }
+
+    public byte peek( int address )
+    {
+      return _cpu.getMemoryView().peek( address );
+    }
+
+    public void collectDirtyPages( long[] pages )
+    {
+      _cpu.getMemoryView().collectDirtyPages( pages );
+    }
+  };
+
+
+
+  /**
+   * Create an instance.  Call <code>start()</code> to start counting.
+   *
+   * @param cpu The processor to instrument.
+   * @param cyclesPerFrame The number of cycles between two decays.
+   */
+  public MemoryHeatmap( Cpu6510 cpu, int cyclesPerFrame )
+  {
+    if ( cyclesPerFrame <= 0 )
+      throw new IllegalArgumentException( "cyclesPerFrame" );
+
+    _cpu = cpu;
+    _cyclesPerFrame = cyclesPerFrame;
+  }
+
+
+
+  /**
+   * Start counting.
+   */
+  public synchronized void start()
+  {
+    _cpu.setInstrumentation( _counter );
+  }
+
+
+
+  /**
+   * Stop counting.  The counters are kept.
+   */
+  public synchronized void stop()
+  {
+    _cpu.setInstrumentation( null );
+  }
+
+
+
+  /**
+   * Reset all counters.
+   */
+  public synchronized void reset()
+  {
+    Arrays.fill( _reads, 0 );
+    Arrays.fill( _writes, 0 );
+    Arrays.fill( _executes, 0 );
+  }
+
+
+
+  /**
+   * Get the decayed number of reads of an address.
+   *
+   * @param address The address.
+   * @return The number of reads.
+   */
+  public int getReads( int address )
+  {
+    return _reads[ address & 0xffff ] / ONE;
+  }
+
+
+
+  /**
+   * Get the decayed number of writes of an address.
+   *
+   * @param address The address.
+   * @return The number of writes.
+   */
+  public int getWrites( int address )
+  {
+    return _writes[ address & 0xffff ] / ONE;
+  }
+
+
+
+  /**
+   * Get the decayed number of executed instructions at an address.
+   *
+   * @param address The address.
+   * @return The number of executions.
+   */
+  public int getExecutes( int address )
+  {
+    return _executes[ address & 0xffff ] / ONE;
+  }
+
+
+
+  /**
+   * Creates a heatmap image of 256x256 pixels.  Each row holds a page of
+   * memory, so address <code>$xxyy</code> is at x=yy, y=xx.  Writes are
+   * shown in red, reads in green and executions in blue.  The brightness
+   * scales logarithmically with the counts.
+   *
+   * @return The image.
+   */
+  public synchronized BufferedImage createImage()
+  {
+    BufferedImage result =
+      new BufferedImage( 256, 256, BufferedImage.TYPE_INT_RGB );
+
+    double scale = 255.0 / Math.log1p(
+      Math.max( max( _writes ), Math.max( max( _reads ), max( _executes ) ) ) );
+
+    for ( int address = 0 ; address < 0x10000 ; address++ )
+    {
+      int r = intensity( _writes[ address ], scale );
+      int g = intensity( _reads[ address ], scale );
+      int b = intensity( _executes[ address ], scale );
+
+      result.setRGB( address & 0xff, address >>> 8, r << 16 | g << 8 | b );
+    }
+
+    return result;
+  }
+
+
+
+  /**
+   * Writes the heatmap image as a PNG file.
+   *
+   * @param file The file to write.
+   * @throws IOException In case of an error.
+   * @see #createImage()
+   */
+  public void writeImage( File file )
+    throws IOException
+  {
+    ImageIO.write( createImage(), "png", file );
+  }
+
+
+
+  /**
+   * Writes the counts as CSV.  Each line holds an address that was accessed,
+   * the area the address belongs to, the reads, writes and executions.  The
+   * area names the IO chip if the address is in the IO page.  Note that the
+   * heatmap cannot tell whether IO was banked in during the accesses.
+   *
+   * @param out The writer to write to.
+   */
+  public synchronized void writeCsv( PrintWriter out )
+  {
+    out.println( "address,area,reads,writes,executes" );
+
+    for ( int address = 0 ; address < 0x10000 ; address++ )
+    {
+      int reads = getReads( address );
+      int writes = getWrites( address );
+      int executes = getExecutes( address );
+
+      if ( reads == 0 && writes == 0 && executes == 0 )
+        continue;
+
+      out.printf(
+        "%04x,%s,%d,%d,%d%n",
+        address,
+        area( address ),
+        reads,
+        writes,
+        executes );
+    }
+
+    out.flush();
+  }
+
+
+
+  /**
+   * Called on an instruction fetch.  Decays the counters once per frame.
+   */
+  private void fetch( int pc, byte opcode )
+  {
+    _executes[ pc ] += ONE;
+    _instructionEnd =
+      pc + Math.max( 1, Opcodes.getEncodingLength( opcode ) );
+
+    long now = _cpu.getTime();
+    if ( now >= _nextDecay )
+    {
+      _nextDecay = now + _cyclesPerFrame;
+      decay( _reads );
+      decay( _writes );
+      decay( _executes );
+    }
+  }
+
+
+
+  /**
+   * Decays the passed counters.
+   */
+  private static void decay( int[] counters )
+  {
+    for ( int i = 0 ; i < counters.length ; i++ )
+    {
+      int c = counters[i];
+      if ( c != 0 )
+        counters[i] = c - ((c + (1 << DECAY_SHIFT) - 1) >>> DECAY_SHIFT);
+    }
+  }
+
+
+
+  /**
+   * Get the name of the area an address belongs to.
+   */
+  private static String area( int address )
+  {
+    if ( address < AREA_START[0] || address >= 0xe000 )
+      return "MEM";
+
+    int result = 0;
+    while ( result + 1 < AREA_START.length &&
+            address >= AREA_START[ result + 1 ] )
+      result++;
+
+    return AREA_NAME[ result ];
+  }
+
+
+
+  /**
+   * Computes the color intensity for a counter.
+   */
+  private static int intensity( int count, double scale )
+  {
+    return (int)Math.min( 255, Math.log1p( count ) * scale );
+  }
+
+
+
+  /**
+   * Get the maximum of the passed array.
+   */
+  private static int max( int[] values )
+  {
+    int result = 1;
+
+    for ( int v : values )
+      result = Math.max( result, v );
+
+    return result;
+  }
+}
@@ -0,0 +1,161 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2004 Michael G. Binz
+ */
+package de.michab.simulator.mos6502;
+
+import de.michab.simulator.Forwarder;
+import de.michab.simulator.Memory;
+
+
+
+/**
+ * A read only copy of the memory the VIC can see, including color RAM.
+ * Used to render scanlines on worker threads while the emulation continues
+ * to change the system memory.  Only the pages that are captured are
+ * valid, the content of the other pages is undefined.
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ * @see FrameCommands
+ */
+final class MemorySnapshot
+  implements Memory
+{
+  /**
+   * The memory content.
+   */
+  private final byte[] _memory = new byte[ 0x10000 ];
+
+
+
+  /**
+   * The color RAM content.
+   */
+  private final byte[] _colorRam;
+
+
+
+  /**
+   * Create an instance.
+   *
+   * @param colorRamSize The size of the color RAM.
+   */
+  MemorySnapshot( int colorRamSize )
+  {
+    _colorRam = new byte[ colorRamSize ];
+  }
+
+
+
+  /**
+   * Copy the passed pages and the color RAM into this snapshot.
+   *
+   * @param source The memory to copy from.
+   * @param colorRam The color RAM to copy from.
+   * @param pages The pages of 256 bytes to copy.  Bit <code>n % 64</code>
+   *        of <code>pages[n / 64]</code> selects page <code>n</code>.
+   */
+  void capture( Memory source, byte[] colorRam, long[] pages )
+  {
+    byte[] raw = source.getRawMemory();
+
+    for ( int page = 0 ; page < _memory.length >> 8 ; page++ )
+    {
+      if ( 0 != (pages[ page >> 6 ] & (1L << page)) )
+        System.arraycopy( raw, page << 8, _memory, page << 8, 256 );
+    }
+
+    System.arraycopy( colorRam, 0, _colorRam, 0, _colorRam.length );
+  }
+
+
+
+  /**
+   * Copy the content of another snapshot into this snapshot.
+   *
+   * @param source The snapshot to copy from.
+   */
+  void load( MemorySnapshot source )
+  {
+    System.arraycopy( source._memory, 0, _memory, 0, _memory.length );
+    System.arraycopy( source._colorRam, 0, _colorRam, 0, _colorRam.length );
+  }
+
+
+
+  /**
+   * Get the color RAM of this snapshot.
+   *
+   * @return The color RAM.
+   */
+  byte[] getColorRam()
+  {
+    return _colorRam;
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public byte read( int address )
+  {
+    return _memory[ address & 0xffff ];
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public void write( int address, byte value )
+  {
+    throw new UnsupportedOperationException( "Snapshot is read only." );
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public void set( Forwarder forwarder, int address )
+  {
+    throw new UnsupportedOperationException( "Snapshot is read only." );
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public int getSize()
+  {
+    return _memory.length;
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public byte[] getRawMemory()
+  {
+    return _memory;
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public int getVectorAt( int address )
+  {
+    return
+      ((read( (address + 1) & 0xffff ) & 0xff) << 8) |
+      (read( address ) & 0xff);
+  }
+}
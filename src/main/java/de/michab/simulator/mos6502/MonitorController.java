@@ -0,0 +1,645 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2004 Michael G. Binz
+ */
+package de.michab.simulator.mos6502;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import de.michab.simulator.*;
+
+
+
+/**
+ * Execution control for a monitor user interface.  The controller decides on
+ * the processor thread whether execution has to stop, the user interface is
+ * not involved until the processor actually stopped.  Commands like
+ * stepping a number of instructions, stepping over a subroutine call or
+ * running until the current subroutine returns are executed completely by
+ * the processor thread.
+ *
+ * <p>If execution stops the processor thread publishes a <code>State</code>
+ * snapshot and parks until a command is issued.  Snapshots are handed over
+ * without locking.  The user interface is expected to poll them using
+ * <code>pollState()</code> at its refresh rate, snapshots published in
+ * between are coalesced.</p>
+ *
+ * <p>Breakpoints and watchpoints are set on the engine returned by
+ * <code>getEngine()</code>.  The commands can be called from any thread.
+ * Code that has to access the processor state can be passed to
+ * <code>execute()</code>, it is run on the processor thread between two
+ * instructions without stopping the processor.</p>
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+public final class MonitorController
+  implements Debugger
+{
+  /**
+   * Run until a breakpoint is hit.
+   */
+  private static final int RUN = 0;
+
+
+
+  /**
+   * Stop on the next instruction.
+   */
+  private static final int BREAK = 1;
+
+
+
+  /**
+   * Execute <code>_remaining</code> instructions.
+   */
+  private static final int STEP = 2;
+
+
+
+  /**
+   * Run until the program counter reaches <code>_targetPc</code> with a
+   * stack pointer not below <code>_targetSp</code>.
+   */
+  private static final int STEP_OVER = 3;
+
+
+
+  /**
+   * Run until an RTS is executed with a stack pointer not below
+   * <code>_targetSp</code>.
+   */
+  private static final int RUN_TO_RETURN = 4;
+
+
+
+  /**
+   * The opcode of the JSR instruction.
+   */
+  private static final int OPCODE_JSR = 0x20;
+
+
+
+  /**
+   * The opcode of the RTS instruction.
+   */
+  private static final int OPCODE_RTS = 0x60;
+
+
+
+  /**
+   * The processor we control.
+   */
+  private final Cpu6510 _cpu;
+
+
+
+  /**
+   * The engine calling us.
+   */
+  private final BreakpointEngine _engine;
+
+
+
+  /**
+   * The last state published by the processor thread and not yet polled.
+   */
+  private final AtomicReference<State> _state =
+    new AtomicReference<State>();
+
+
+
+  /**
+   * The current command.  Only changed by the processor thread or while the
+   * processor is stopped.
+   */
+  private volatile int _mode = RUN;
+
+
+
+  /**
+   * The number of instructions left to execute in <code>STEP</code> mode.
+   */
+  private int _remaining;
+
+
+
+  /**
+   * The target program counter in <code>STEP_OVER</code> mode.
+   */
+  private int _targetPc;
+
+
+
+  /**
+   * The stack pointer limit in <code>STEP_OVER</code> and
+   * <code>RUN_TO_RETURN</code> mode.
+   */
+  private int _targetSp;
+
+
+
+  /**
+   * The tasks to execute on the processor thread.
+   */
+  private final Queue<Runnable> _tasks =
+    new ConcurrentLinkedQueue<Runnable>();
+
+
+
+  /**
+   * True while the processor thread is parked.
+   */
+  private volatile boolean _stopped = false;
+
+
+
+  /**
+   * The parked processor thread.
+   */
+  private volatile Thread _cpuThread = null;
+
+
+
+  /**
+   * Called on the processor thread after it stopped, <code>null</code> if
+   * not set.
+   */
+  private volatile Runnable _stopListener = null;
+
+
+
+  /**
+   * Create an instance.
+   *
+   * @param cpu The processor to control.
+   */
+  public MonitorController( Cpu6510 cpu )
+  {
+    _cpu = cpu;
+    _engine = new BreakpointEngine( cpu, this );
+  }
+
+
+
+  /**
+   * Get the engine holding the breakpoints and watchpoints.
+   *
+   * @return The breakpoint engine.
+   */
+  public BreakpointEngine getEngine()
+  {
+    return _engine;
+  }
+
+
+
+  /**
+   * Set a listener notified when the processor stopped.  The listener is
+   * called on the processor thread after <code>isStopped()</code> turned
+   * <code>true</code>, so a thread waiting for the stop can be woken up
+   * instead of polling.  The listener must not block.
+   *
+   * @param listener The listener, <code>null</code> to remove it.
+   */
+  public void setStopListener( Runnable listener )
+  {
+    _stopListener = listener;
+  }
+
+
+
+  /**
+   * Activate the controller on the processor.
+   */
+  public void attach()
+  {
+    _engine.attach();
+  }
+
+
+
+  /**
+   * Remove the controller from the processor.  If the processor is stopped
+   * it continues.
+   */
+  public void detach()
+  {
+    _engine.setSingleStep( false );
+    _engine.detach();
+    _mode = RUN;
+    release();
+  }
+
+
+
+  /**
+   * Checks whether the processor is stopped.
+   *
+   * @return <code>true</code> if the processor is stopped.
+   */
+  public boolean isStopped()
+  {
+    return _stopped;
+  }
+
+
+
+  /**
+   * Get the state published since the last call.  Intended to be polled by
+   * the user interface.
+   *
+   * @return The state or <code>null</code> if the processor did not stop
+   *         since the last call.
+   */
+  public State pollState()
+  {
+    return _state.getAndSet( null );
+  }
+
+
+
+  /**
+   * Run a task on the processor thread.  If the processor is running the
+   * task is executed before the next instruction, if the processor is
+   * stopped the task is executed by the stopped thread.  The processor
+   * state can be safely accessed and modified by the task.
+   *
+   * @param task The task to run.
+   */
+  public void execute( Runnable task )
+  {
+    _tasks.add( task );
+
+    // The call is also requested if the processor is stopped, since it
+    // may have left the stopped state concurrently.
+    if ( _cpu.getDebugger() != _engine )
+      _engine.attach();
+    _engine.requestCall();
+
+    if ( _stopped )
+    {
+      Thread cpuThread = _cpuThread;
+      if ( cpuThread != null )
+        LockSupport.unpark( cpuThread );
+    }
+  }
+
+
+
+  /**
+   * Stop the processor on the next instruction.
+   */
+  public void breakExecution()
+  {
+    command( BREAK );
+  }
+
+
+
+  /**
+   * Execute a number of instructions and stop.
+   *
+   * @param count The number of instructions to execute.
+   * @throws IllegalArgumentException If count is not positive.
+   */
+  public void stepInstructions( int count )
+  {
+    if ( count <= 0 )
+      throw new IllegalArgumentException( "count: " + count );
+
+    _remaining = count;
+    command( STEP );
+  }
+
+
+
+  /**
+   * Execute the next instruction and stop.  If the instruction is a
+   * subroutine call the processor stops after the subroutine returned.  Only
+   * valid while the processor is stopped, otherwise the processor is
+   * stopped on the next instruction.
+   */
+  public void stepOver()
+  {
+    if ( ! _stopped )
+    {
+      breakExecution();
+      return;
+    }
+
+    int pc = _cpu.getPC();
+
+    if ( OPCODE_JSR != (_cpu.getMemory().peek( pc ) & 0xff) )
+    {
+      stepInstructions( 1 );
+      return;
+    }
+
+    _targetPc = (pc + 3) & 0xffff;
+    _targetSp = _cpu.getSP();
+    command( STEP_OVER );
+  }
+
+
+
+  /**
+   * Run until the current subroutine returns and stop on the instruction
+   * following the call.  Only valid while the processor is stopped.
+   */
+  public void runToReturn()
+  {
+    // The stop already happened before the current instruction executed.
+    if ( _stopped &&
+         OPCODE_RTS == (_cpu.getMemory().peek( _cpu.getPC() ) & 0xff) )
+    {
+      stepInstructions( 1 );
+      return;
+    }
+
+    _targetSp = _cpu.getSP();
+    command( RUN_TO_RETURN );
+  }
+
+
+
+  /**
+   * Continue execution until a breakpoint is hit.
+   */
+  public void resume()
+  {
+    command( RUN );
+  }
+
+
+
+  /**
+   * Called by the engine on the processor thread.  Decides whether to stop.
+   *
+   * @param pc The current program counter.
+   */
+  public void step( int pc )
+  {
+    int type = _engine.getHitType();
+
+    // A requested call may be reported as any hit type.
+    runTasks();
+
+    if ( type == BreakpointEngine.CALL )
+      return;
+
+    if ( type == BreakpointEngine.STEP && ! isTargetReached( pc ) )
+      return;
+
+    stop( pc, type );
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public void setProcessor( Processor processor )
+  {
+  }
+
+
+
+  /**
+   * Checks whether the current command is completed.  Called on the
+   * processor thread before the instruction at pc is executed.
+   */
+  private boolean isTargetReached( int pc )
+  {
+    switch ( _mode )
+    {
+      case BREAK:
+        return true;
+
+      case STEP:
+        return --_remaining <= 0;
+
+      case STEP_OVER:
+        return pc == _targetPc && _cpu.getSP() >= _targetSp;
+
+      case RUN_TO_RETURN:
+        // Stop on the instruction following the return.
+        if ( OPCODE_RTS == (_cpu.getMemory().peek( pc ) & 0xff) &&
+             _cpu.getSP() >= _targetSp )
+        {
+          _remaining = 1;
+          _mode = STEP;
+        }
+        return false;
+
+      default:
+        return false;
+    }
+  }
+
+
+
+  /**
+   * Publishes the processor state and parks the processor thread until a
+   * command is issued.
+   */
+  private void stop( int pc, int type )
+  {
+    _state.set( new State( _cpu, pc, type, _engine.getHitAddress() ) );
+
+    _cpuThread = Thread.currentThread();
+    _stopped = true;
+
+    Runnable listener = _stopListener;
+    if ( listener != null )
+      listener.run();
+
+    while ( _stopped )
+    {
+      runTasks();
+      LockSupport.park( this );
+
+      // No action on interruption but continue.
+      if ( Thread.interrupted() )
+        _stopped = false;
+    }
+
+    runTasks();
+  }
+
+
+
+  /**
+   * Runs the queued tasks.  Called on the processor thread.
+   */
+  private void runTasks()
+  {
+    Runnable task;
+
+    while ( null != (task = _tasks.poll()) )
+      task.run();
+  }
+
+
+
+  /**
+   * Issues a command and continues the processor if it is stopped.
+   */
+  private synchronized void command( int mode )
+  {
+    _mode = mode;
+    _engine.setSingleStep( mode != RUN );
+    _engine.attach();
+    release();
+  }
+
+
+
+  /**
+   * Continues a stopped processor.
+   */
+  private void release()
+  {
+    _stopped = false;
+
+    Thread cpuThread = _cpuThread;
+    if ( cpuThread != null )
+      LockSupport.unpark( cpuThread );
+  }
+
+
+
+  /**
+   * An immutable snapshot of the processor state at the time execution
+   * stopped.
+   */
+  public static final class State
+  {
+    private final int _pc;
+    private final int _accu;
+    private final int _x;
+    private final int _y;
+    private final int _sp;
+    private final int _status;
+    private final int _hitType;
+    private final int _hitAddress;
+
+
+
+    /**
+     * Create an instance.  Called on the processor thread.
+     */
+    private State( Cpu6510 cpu, int pc, int hitType, int hitAddress )
+    {
+      _pc = pc & 0xffff;
+      _accu = cpu.getAccu();
+      _x = cpu.getX();
+      _y = cpu.getY();
+      _sp = cpu.getSP();
+      _status = cpu.getStatusRegister() & 0xff;
+      _hitType = hitType;
+      _hitAddress = hitAddress;
+    }
+
+
+
+    /**
+     * @return The program counter.
+     */
+    public int getPC()
+    {
+      return _pc;
+    }
+
+
+
+    /**
+     * @return The accumulator.
+     */
+    public int getAccu()
+    {
+      return _accu;
+    }
+
+
+
+    /**
+     * @return The X register.
+     */
+    public int getX()
+    {
+      return _x;
+    }
+
+
+
+    /**
+     * @return The Y register.
+     */
+    public int getY()
+    {
+      return _y;
+    }
+
+
+
+    /**
+     * @return The stack pointer.
+     */
+    public int getSP()
+    {
+      return _sp;
+    }
+
+
+
+    /**
+     * @return The status register.
+     */
+    public int getStatusRegister()
+    {
+      return _status;
+    }
+
+
+
+    /**
+     * Test a single status register flag.
+     *
+     * @param flag One of the <code>Cpu6510.STATUS_FLAG_*</code> constants.
+     * @return The value of the flag.
+     */
+    public boolean isStatusFlagSet( int flag )
+    {
+      return 0 != (_status & flag);
+    }
+
+
+
+    /**
+     * @return The reason for the stop, one of the hit types defined in
+     *         <code>BreakpointEngine</code>.
+     */
+    public int getHitType()
+    {
+      return _hitType;
+    }
+
+
+
+    /**
+     * @return The address of the hit, see
+     *         <code>BreakpointEngine.getHitAddress()</code>.
+     */
+    public int getHitAddress()
+    {
+      return _hitAddress;
+    }
+  }
+}
@@ -7,6 +7,7 @@
  */
 package de.michab.simulator.mos6502;
 
+import java.text.MessageFormat;
 import java.util.Arrays;
 
 
@@ -141,6 +142,34 @@ final public class Opcodes
 
 
 
+  /**
+   * Creates a human readable representation of an instruction.
+   *
+   * @param opcode The instruction's opcode.
+   * @param operand The instruction's operand.  For instructions with a one
+   *        byte operand only the lower eight bits are used, the operand is
+   *        ignored for implicit instructions.
+   * @return The textual representation of the instruction, e.g.
+   *         <code>LDA $d020</code>.
+   */
+  public static String disassemble( int opcode, int operand )
+  {
+    int length = getEncodingLength( opcode );
+
+    if ( length == 1 )
+      return getText( opcode ).trim();
+    if ( length == 2 )
+      operand &= 0xff;
+    else
+      operand &= 0xffff;
+
+    return MessageFormat.format(
+      getText( opcode ),
+      new Object[]{ "$" + Integer.toHexString( operand ) } );
+  }
+
+
+
   /*
    * This list has to be kept alphabetically sorted!  Since the mnemonics for
    * UNDOCUMENTED opcodes are not really well defined, put these *not* in this
@@ -172,11 +201,7 @@ final public class Opcodes
   public static final int BCS_REL  = 0xb0;
   public static final int BEQ_REL  = 0xf0;
   public static final int BIT_ZP   = 0x24;
-  // Added for 65C02
-  public static final int BIT_ZPX  = 0x34;
   public static final int BIT_ABS  = 0x2c;
-  // Added for 65C02
-  public static final int BIT_ABSX = 0x3c;
   public static final int BMI_REL  = 0x30;
   public static final int BNE_REL  = 0xD0;
   public static final int BPL_REL  = 0x10;
@@ -316,6 +341,8 @@ final public class Opcodes
   public static final int uSAX_ZPY  = 0x97;
   public static final int uSAX_IZX  = 0x83;
   public static final int uSAX_ABS  = 0x8f;
+  public static final int uNOP_ZPX  = 0x34;
+  public static final int uNOP_ABSX = 0x3c;
 
 
 
@@ -470,12 +497,8 @@ final public class Opcodes
       new Opcode( "BEQ", 2, REL );
     OPCODES[ BIT_ZP ] =
       new Opcode( "BIT", 3, ZP );
-    OPCODES[ BIT_ZPX ]  =
-      new Opcode( "BIT", 4, ZPX );
     OPCODES[ BIT_ABS  ] =
       new Opcode( "BIT", 4, ABS );
-    OPCODES[ BIT_ABSX] =
-      new Opcode( "BIT", +4, ABSX );    
     OPCODES[ BMI_REL] =
       new Opcode( "BMI", 2, REL );
     OPCODES[ BNE_REL ] =
@@ -736,5 +759,9 @@ final public class Opcodes
       new Opcode( "SAX", 6, IZX );
     OPCODES[ uSAX_ABS ] =
       new Opcode( "SAX", 4, ABS );
+    OPCODES[ uNOP_ZPX ] =
+      new Opcode( "NOP", 4, ZPX );
+    OPCODES[ uNOP_ABSX ] =
+      new Opcode( "NOP", 4, ABSX );
   }
 }
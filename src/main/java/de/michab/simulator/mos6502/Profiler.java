@@ -0,0 +1,574 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2004 Michael G. Binz
+ */
+package de.michab.simulator.mos6502;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import de.michab.simulator.*;
+
+
+
+/**
+ * An execution profiler for the <code>Cpu6510</code>.  Counts executions and
+ * cycles per program counter and tracks subroutine calls and interrupts to
+ * build a call graph.
+ *
+ * <p>The profiler is only created if the system property
+ * <code>de.michab.simulator.mos6502.Cpu6510.profile</code> is set to
+ * <code>true</code> on startup.  Otherwise the processor does not contain
+ * any profiling code at all, see <code>Cpu6510.getProfiler()</code>.</p>
+ *
+ * <p>The counters are written by the processor thread without
+ * synchronisation.  Reports created from other threads while the emulation
+ * is running are a close approximation.  A report is created from copies
+ * of the counters taken at its start.  The call graph edges are kept in
+ * an open addressing table of primitive arrays that is only modified by the
+ * processor thread.  A grown table is filled completely before it is
+ * published, so a report always iterates a table that is not resized
+ * concurrently.</p>
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+public final class Profiler
+{
+  /**
+   * The maximum call depth tracked.  Deeper calls are counted but not
+   * included in the call graph.
+   */
+  private static final int MAX_DEPTH = 256;
+
+
+
+  /**
+   * The routine address used for code not called by a tracked call.
+   */
+  public static final int ROOT = -1;
+
+
+
+  /**
+   * Executions per address.
+   */
+  private final int[] _executions = new int[ 0x10000 ];
+
+
+
+  /**
+   * Cycles spent per address.
+   */
+  private final int[] _cycles = new int[ 0x10000 ];
+
+
+
+  /**
+   * Calls per routine entry address.
+   */
+  private final int[] _calls = new int[ 0x10000 ];
+
+
+
+  /**
+   * Cycles spent per routine including the called routines.
+   */
+  private final long[] _inclusiveCycles = new long[ 0x10000 ];
+
+
+
+  /**
+   * Calls per call graph edge.  Replaced by the processor thread when
+   * growing.
+   */
+  private volatile EdgeTable _edges = new EdgeTable( 256 );
+
+
+
+  /**
+   * Set by <code>reset()</code>, the processor thread clears the call graph
+   * on the next call.
+   */
+  private volatile boolean _clearEdges = false;
+
+
+
+  /**
+   * The routines on the shadow call stack.
+   */
+  private final int[] _stackRoutine = new int[ MAX_DEPTH ];
+
+
+
+  /**
+   * The cycle counter at the time the routines on the shadow stack were
+   * called.
+   */
+  private final long[] _stackStart = new long[ MAX_DEPTH ];
+
+
+
+  /**
+   * The depth of the shadow call stack.
+   */
+  private int _depth = 0;
+
+
+
+  /**
+   * The total number of cycles executed.
+   */
+  private long _totalCycles = 0;
+
+
+
+  /**
+   * Create an instance.  Created by the processor only.
+   */
+  Profiler()
+  {
+  }
+
+
+
+  /**
+   * Called by the processor after each instruction.
+   *
+   * @param pc The instruction's address.
+   * @param cycles The cycles the instruction needed.
+   */
+  void instruction( int pc, int cycles )
+  {
+    pc &= 0xffff;
+
+    _executions[ pc ]++;
+    _cycles[ pc ] += cycles;
+    _totalCycles += cycles;
+  }
+
+
+
+  /**
+   * Called by the processor on a subroutine call or interrupt.
+   *
+   * @param target The address of the called routine.
+   */
+  void call( int target )
+  {
+    target &= 0xffff;
+
+    _calls[ target ]++;
+
+    if ( _clearEdges )
+    {
+      _edges = new EdgeTable( 256 );
+      _clearEdges = false;
+    }
+
+    EdgeTable edges = _edges;
+    if ( ! edges.increment( edge( currentRoutine(), target ) ) )
+    {
+      // Full, publish a larger table holding all edges.
+      edges = edges.grow();
+      edges.increment( edge( currentRoutine(), target ) );
+      _edges = edges;
+    }
+
+    if ( _depth < MAX_DEPTH )
+    {
+      _stackRoutine[ _depth ] = target;
+      _stackStart[ _depth ] = _totalCycles;
+    }
+    _depth++;
+  }
+
+
+
+  /**
+   * Called by the processor on a return from subroutine or interrupt.
+   * Returns that do not match a tracked call are ignored.
+   */
+  void ret()
+  {
+    if ( _depth == 0 )
+      return;
+
+    _depth--;
+
+    if ( _depth < MAX_DEPTH )
+      _inclusiveCycles[ _stackRoutine[ _depth ] ] +=
+        _totalCycles - _stackStart[ _depth ];
+  }
+
+
+
+  /**
+   * Get the routine that is currently executed.
+   *
+   * @return The entry address of the current routine or <code>ROOT</code>.
+   */
+  private int currentRoutine()
+  {
+    if ( _depth == 0 )
+      return ROOT;
+
+    return _stackRoutine[ Math.min( _depth, MAX_DEPTH ) - 1 ];
+  }
+
+
+
+  /**
+   * Compute the key of a call graph edge.  The caller is offset by one to
+   * map <code>ROOT</code> to zero.
+   */
+  private static long edge( int caller, int target )
+  {
+    return (long)(caller + 1) << 16 | target;
+  }
+
+
+
+  /**
+   * Reset all counters.
+   */
+  public void reset()
+  {
+    Arrays.fill( _executions, 0 );
+    Arrays.fill( _cycles, 0 );
+    Arrays.fill( _calls, 0 );
+    Arrays.fill( _inclusiveCycles, 0 );
+    _clearEdges = true;
+    _depth = 0;
+    _totalCycles = 0;
+  }
+
+
+
+  /**
+   * Get the number of executions of the instruction at the passed address.
+   *
+   * @param address The address.
+   * @return The number of executions.
+   */
+  public int getExecutions( int address )
+  {
+    return _executions[ address & 0xffff ];
+  }
+
+
+
+  /**
+   * Get the number of cycles spent in the instruction at the passed address.
+   *
+   * @param address The address.
+   * @return The number of cycles.
+   */
+  public int getCycles( int address )
+  {
+    return _cycles[ address & 0xffff ];
+  }
+
+
+
+  /**
+   * Get the total number of cycles executed since the last reset.
+   *
+   * @return The total number of cycles.
+   */
+  public long getTotalCycles()
+  {
+    return _totalCycles;
+  }
+
+
+
+  /**
+   * Writes a report of the routines and instructions that used the most
+   * cycles.
+   *
+   * @param out The writer to write to.
+   * @param memory The memory used to disassemble the instructions.
+   * @param count The maximum number of entries per section.
+   */
+  public void writeReport(
+    PrintWriter out,
+    Memory memory,
+    int count )
+  {
+    // Work on copies, the processor thread keeps counting.
+    long totalCycles = _totalCycles;
+    long total = Math.max( 1, totalCycles );
+    long[] inclusiveCycles = _inclusiveCycles.clone();
+    int[] calls = _calls.clone();
+    int[] executions = _executions.clone();
+    EdgeTable edges = _clearEdges ? new EdgeTable( 1 ) : _edges;
+    long[] keys = edges._keys.clone();
+    int[] counts = edges._counts.clone();
+
+    long[] cycles = new long[ _cycles.length ];
+    for ( int i = 0 ; i < cycles.length ; i++ )
+      cycles[i] = _cycles[i];
+
+    out.println( "Total cycles: " + totalCycles );
+    out.println();
+    out.println( "Hot routines (inclusive cycles):" );
+    for ( int address : top( inclusiveCycles, count ) )
+    {
+      out.printf(
+        "  $%04x %12d %5.1f%% %8d calls%n",
+        address,
+        inclusiveCycles[ address ],
+        100.0 * inclusiveCycles[ address ] / total,
+        calls[ address ] );
+
+      for ( int i = 0 ; i < keys.length ; i++ )
+      {
+        if ( keys[i] != EdgeTable.EMPTY &&
+             counts[i] != 0 &&
+             (int)(keys[i] & 0xffff) == address )
+        {
+          int caller = (int)(keys[i] >>> 16) - 1;
+          out.printf( "      called from %s %d times%n",
+            caller == ROOT ? "<root>" : String.format( "$%04x", caller ),
+            counts[i] );
+        }
+      }
+    }
+
+    out.println();
+    out.println( "Hot instructions (cycles):" );
+    for ( int address : top( cycles, count ) )
+    {
+      out.printf(
+        "  $%04x %-16s %12d %5.1f%% %10d executions%n",
+        address,
+        disassemble( memory, address ),
+        cycles[ address ],
+        100.0 * cycles[ address ] / total,
+        executions[ address ] );
+    }
+
+    out.flush();
+  }
+
+
+
+  /**
+   * Writes the executed addresses as text.  Each line holds a range of
+   * executed instructions like <code>c000-c012</code>.  Single instructions
+   * are written as a single address.
+   *
+   * @param out The writer to write to.
+   */
+  public void writeCoverage( PrintWriter out )
+  {
+    int start = -1;
+
+    for ( int i = 0 ; i <= _executions.length ; i++ )
+    {
+      boolean executed = i < _executions.length && _executions[i] != 0;
+
+      if ( executed && start < 0 )
+        start = i;
+      else if ( ! executed && start >= 0 )
+      {
+        if ( start == i - 1 )
+          out.printf( "%04x%n", start );
+        else
+          out.printf( "%04x-%04x%n", start, i - 1 );
+        start = -1;
+      }
+    }
+
+    out.flush();
+  }
+
+
+
+  /**
+   * Writes the executed addresses as a bitmap of 8192 bytes.  Bit
+   * <code>n % 8</code> of byte <code>n / 8</code> is set if the instruction
+   * at address <code>n</code> was executed.
+   *
+   * @param out The stream to write to.
+   * @throws IOException In case of an error.
+   */
+  public void writeCoverage( OutputStream out )
+    throws IOException
+  {
+    byte[] bitmap = new byte[ _executions.length / 8 ];
+
+    for ( int i = 0 ; i < _executions.length ; i++ )
+    {
+      if ( _executions[i] != 0 )
+        bitmap[ i >>> 3 ] |= 1 << (i & 7);
+    }
+
+    out.write( bitmap );
+    out.flush();
+  }
+
+
+
+  /**
+   * Get the addresses with the highest values in the passed array.
+   */
+  private static List<Integer> top( long[] values, int count )
+  {
+    List<Integer> result = new ArrayList<Integer>();
+
+    for ( int i = 0 ; i < values.length ; i++ )
+    {
+      if ( values[i] != 0 )
+        result.add( i );
+    }
+
+    result.sort( ( a, b ) -> Long.compare( values[b], values[a] ) );
+
+    return result.subList( 0, Math.min( count, result.size() ) );
+  }
+
+
+
+  /**
+   * Disassembles the instruction at the passed address.
+   */
+  private static String disassemble( Memory memory, int address )
+  {
+    int opcode = memory.peek( address ) & 0xff;
+    int operand =
+      (memory.peek( (address + 1) & 0xffff ) & 0xff) |
+      (memory.peek( (address + 2) & 0xffff ) & 0xff) << 8;
+
+    return Opcodes.disassemble( opcode, operand );
+  }
+
+
+
+  /**
+   * An open addressing hash table counting calls per call graph edge.  Only
+   * modified by the processor thread.
+   */
+  private static final class EdgeTable
+  {
+    /**
+     * Marks an empty slot.
+     */
+    static final long EMPTY = -1;
+
+
+
+    /**
+     * The edge keys.
+     */
+    final long[] _keys;
+
+
+
+    /**
+     * The calls per edge.
+     */
+    final int[] _counts;
+
+
+
+    /**
+     * The number of used slots.
+     */
+    private int _size = 0;
+
+
+
+    /**
+     * Create an instance.
+     *
+     * @param capacity The number of slots, a power of two.
+     */
+    EdgeTable( int capacity )
+    {
+      _keys = new long[ capacity ];
+      _counts = new int[ capacity ];
+      Arrays.fill( _keys, EMPTY );
+    }
+
+
+
+    /**
+     * Count a call of an edge.
+     *
+     * @param key The edge.
+     * @return <code>false</code> if the edge is new and the table is too
+     *         full to add it.
+     */
+    boolean increment( long key )
+    {
+      int mask = _keys.length - 1;
+      int slot = (int)(key * 0x9e3779b97f4a7c15L >>> 40) & mask;
+
+      while ( _keys[ slot ] != EMPTY )
+      {
+        if ( _keys[ slot ] == key )
+        {
+          _counts[ slot ]++;
+          return true;
+        }
+        slot = (slot + 1) & mask;
+      }
+
+      // Keep the load factor below three quarters.
+      if ( 4 * (_size + 1) > 3 * _keys.length )
+        return false;
+
+      _counts[ slot ] = 1;
+      _keys[ slot ] = key;
+      _size++;
+      return true;
+    }
+
+
+
+    /**
+     * Create a table of twice the capacity holding the edges of this table.
+     *
+     * @return The new table.
+     */
+    EdgeTable grow()
+    {
+      EdgeTable result = new EdgeTable( 2 * _keys.length );
+
+      for ( int i = 0 ; i < _keys.length ; i++ )
+      {
+        if ( _keys[i] != EMPTY )
+          result.put( _keys[i], _counts[i] );
+      }
+
+      return result;
+    }
+
+
+
+    /**
+     * Add an edge known not to be in the table.
+     */
+    private void put( long key, int count )
+    {
+      int mask = _keys.length - 1;
+      int slot = (int)(key * 0x9e3779b97f4a7c15L >>> 40) & mask;
+
+      while ( _keys[ slot ] != EMPTY )
+        slot = (slot + 1) & mask;
+
+      _counts[ slot ] = count;
+      _keys[ slot ] = key;
+      _size++;
+    }
+  }
+}
@@ -27,7 +27,7 @@ final class RasterBitmap
   /**
    *
    */
-  private final int[] _screen;
+  private final byte[] _screen;
 
 
 
@@ -74,7 +74,7 @@ final class RasterBitmap
    * @param screen The screen that receives the raster data.
    * @param memory The emulation's memory.
    */
-  RasterBitmap( int[] screen, Memory memory )
+  RasterBitmap( byte[] screen, Memory memory )
   {
     _screen = screen;
     _memory = memory;
@@ -123,32 +123,28 @@ final class RasterBitmap
   /*
    * Inherit javadoc.
    */
-  public synchronized void rasterInto( int offset, int currentScanline )
+  public synchronized void rasterInto(
+      int offset, int currentScanline, VicRegisters registers )
   {
     // Check which scanline of a character stripe we are drawing.  A
     // character stripe has 8 lines, so we get values [0..7].
     int characterScanline = currentScanline % 8;
 
-    // The following computations are only needed if a new character stripe
-    // starts.
-    if ( characterScanline == 0 )
-    {
-      // Compute the line idx in C64 character coordinates.  C64 has 25
-      // lines, so here we get a range of [0..24].
-      _characterLine = currentScanline / 8;
-      // Preinit color and char adresses into byte oriented display memory.
-      _colorAddress = (_characterLine * 40) + _videoRamAddress;
-    }
+    // The stripe is computed for each scanline, so scanlines can be
+    // rastered in any order.
+    // Compute the line idx in C64 character coordinates.  C64 has 25
+    // lines, so here we get a range of [0..24].
+    _characterLine = currentScanline / 8;
+    // Preinit color and char adresses into byte oriented display memory.
+    _colorAddress = (_characterLine * 40) + _videoRamAddress;
 
     for ( int charColumn = 0 ; charColumn < 40 ; charColumn++ )
     {
       // Read the character idx to draw from the 64s main memory...
       int colorIdx = 
         _memory.read( _colorAddress + charColumn );
-      int color0 =
-        Vic.VIC_RGB_COLORS[ colorIdx & 0xf ];
-      int color1 =
-        Vic.VIC_RGB_COLORS[ (colorIdx >> 4) & 0xf ];
+      byte color0 = (byte)(colorIdx & 0xf);
+      byte color1 = (byte)((colorIdx >> 4) & 0xf);
 
       // Compute the target character index in the display raster.
       int tmpTargetIdx = 
@@ -172,10 +168,28 @@ final class RasterBitmap
 
 
 
+  /*
+   * Inherit Javadoc.
+   */
+  public synchronized void foregroundInto( long[] mask, int currentScanline )
+  {
+    int y = ((currentScanline / 8) * 40 * 8) + (currentScanline % 8);
+
+    byte[] bitmap = charModelBufferByte.getData();
+    for ( int charColumn = 0 ; charColumn < 40 ; charColumn++ )
+    {
+      int pattern = 0xff & bitmap[ y + (charColumn * 8) ];
+
+      mask[ charColumn >> 3 ] |= (long)pattern << (56 - 8 * (charColumn & 7));
+    }
+  }
+
+
+
   /*
    * Inherit javadoc.
    */
-  public synchronized void backfill( int offset )
+  public synchronized void backfill( int offset, VicRegisters registers )
   {
     // Note: Color is computed for each 8 pixel cell from color
     // memory in this graphics mode.  As a concequence we cannot
@@ -35,7 +35,7 @@ final class RasterBitmapMulti
   /**
    *
    */
-  private final int[] _screen;
+  private final byte[] _screen;
 
 
 
@@ -93,7 +93,7 @@ final class RasterBitmapMulti
    */
   RasterBitmapMulti( 
       Vic vic, 
-      int[] screen, 
+      byte[] screen, 
       Memory memory, 
       byte[] colorRam )
   {
@@ -134,24 +134,22 @@ final class RasterBitmapMulti
   /*
    * Inherit javadoc.
    */
-  public void rasterInto( int offset, int currentScanline )
+  public void rasterInto(
+      int offset, int currentScanline, VicRegisters registers )
   {
     // Check which scanline of a character stripe we are drawing.  A
     // character stripe has 8 lines, so we get values [0..7].
     int characterScanline = currentScanline % 8;
 
-    // The following computations are only needed if a new character stripe
-    // starts.
-    if ( characterScanline == 0 )
-    {
-      // Compute the line idx in C64 character coordinates.  C64 has 25
-      // lines, so here we get a range of [0..24].
-      _characterLine = currentScanline / 8;
-      // Preinit color adress into byte oriented display memory.  This one is
-      // an offset into the video ram, used for color 1 and 2.
-      _colorAddress1 = (_characterLine * 40) + _videoRamAddress;
-      _colorAddress2 = (_characterLine * 40);
-    }
+    // The stripe is computed for each scanline, so scanlines can be
+    // rastered in any order.
+    // Compute the line idx in C64 character coordinates.  C64 has 25
+    // lines, so here we get a range of [0..24].
+    _characterLine = currentScanline / 8;
+    // Preinit color adress into byte oriented display memory.  This one is
+    // an offset into the video ram, used for color 1 and 2.
+    _colorAddress1 = (_characterLine * 40) + _videoRamAddress;
+    _colorAddress2 = (_characterLine * 40);
 
     for ( int charColumn = 0 ; charColumn < 40 ; charColumn++ )
     {
@@ -176,17 +174,17 @@ final class RasterBitmapMulti
         {
           case 1:
             _screen[ targetPixelIdx ] = _screen[ targetPixelIdx+1 ] =
-              Vic.VIC_RGB_COLORS[ (colorIdx1 >> 4) & 0xf ];
+              (byte)((colorIdx1 >> 4) & 0xf);
             break;
 
           case 2:
             _screen[ targetPixelIdx ] = _screen[ targetPixelIdx+1 ] =
-              Vic.VIC_RGB_COLORS[ colorIdx1 & 0xf ];
+              (byte)(colorIdx1 & 0xf);
             break;
 
           case 3:
             _screen[ targetPixelIdx ] = _screen[ targetPixelIdx+1 ] =
-              Vic.VIC_RGB_COLORS[ colorIdx2 & 0xf ];
+              (byte)(colorIdx2 & 0xf);
             break;
         }
       }
@@ -195,16 +193,36 @@ final class RasterBitmapMulti
 
 
 
+  /*
+   * Inherit Javadoc.
+   */
+  public void foregroundInto( long[] mask, int currentScanline )
+  {
+    int y = ((currentScanline / 8) * 40 * 8) + (currentScanline % 8);
+
+    byte[] bitmap = charModelBufferByte.getData();
+    for ( int charColumn = 0 ; charColumn < 40 ; charColumn++ )
+    {
+      // The bit pairs 01 are background.
+      int pattern = 0xaa & bitmap[ y + (charColumn * 8) ];
+      pattern |= pattern >> 1;
+
+      mask[ charColumn >> 3 ] |= (long)pattern << (56 - 8 * (charColumn & 7));
+    }
+  }
+
+
+
   /*
    * Inherit javadoc.
    */
-  public void backfill( int offset )
+  public void backfill( int offset, VicRegisters registers )
   {
     java.util.Arrays.fill(
       _screen,
       offset,
       offset + RasterDisplay.INNER_HORIZ,
-      Vic.VIC_RGB_COLORS[ _vic.read( Vic.BACKGRDCOL0 ) ] );
+      registers.getColor( Vic.BACKGRDCOL0 ) );
   }
 
 
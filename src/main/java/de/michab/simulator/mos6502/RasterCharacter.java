@@ -37,7 +37,7 @@ final class RasterCharacter
   /**
    * A reference to the display data buffer.
    */
-  private final int[] _screen;
+  private final byte[] _screen;
 
 
 
@@ -135,7 +135,7 @@ final class RasterCharacter
    * @param colorMemory The color memory to use.
    */
   RasterCharacter( Vic vic,
-                   int[] screen,
+                   byte[] screen,
                    Memory memory,
                    byte[] colorMemory )
   {
@@ -164,24 +164,22 @@ final class RasterCharacter
   /*
    * Inherit Javadoc.
    */
-  public synchronized void rasterInto( int offset, int currentScanline )
+  public synchronized void rasterInto(
+      int offset, int currentScanline, VicRegisters registers )
   {
     // Check which scanline of a character stripe we are drawing.  A
     // character stripe has 8 lines, so we get values [0..7].
     int characterScanline = currentScanline % 8;
 
-    // The following computations are only needed if a new character stripe
-    // starts.
-    if ( characterScanline == 0 )
-    {
-      // Compute the line idx in C64 character coordinates.  C64 has 25
-      // lines, so here we get a range of [0..24].
-      _characterLine = currentScanline / 8;
-      // Preinit color and char adresses into byte oriented display memory.
-      _characterLineAdr = _colorLineAdr = _characterLine * 40;
-      // Compute the pointer into the character memory.
-      _characterLineAdr += _videoRamAddress;
-    }
+    // The stripe is computed for each scanline, so scanlines can be
+    // rastered in any order.
+    // Compute the line idx in C64 character coordinates.  C64 has 25
+    // lines, so here we get a range of [0..24].
+    _characterLine = currentScanline / 8;
+    // Preinit color and char adresses into byte oriented display memory.
+    _characterLineAdr = _colorLineAdr = _characterLine * 40;
+    // Compute the pointer into the character memory.
+    _characterLineAdr += _videoRamAddress;
 
     for ( int charColumn = 0 ; charColumn < 40 ; charColumn++ )
     {
@@ -196,14 +194,16 @@ final class RasterCharacter
       // Compute the target character index in the display raster.
       int tmpTargetIdx = offset + (charColumn * 8);
       // Get the front color for the next character.  This is 4 bits wide.
-      int frontColorRgb =
-        Vic.VIC_RGB_COLORS[ 0xf & _colorMemory[ _colorLineAdr + charColumn ] ];
+      byte frontColor =
+        (byte)(0xf & _colorMemory[ _colorLineAdr + charColumn ]);
 
-      // Loop over the eight bits of a single character's scan line.
-      for ( int x = 0 ; x < 8 ; x++ )
+      // Loop over the eight bits of a single character's scan line.  The
+      // leftmost pixel is in the most significant bit.
+      int pattern = 0xff & _hotModelBuffer[ y ];
+      for ( int x = 0 ; pattern != 0 ; x++, pattern = (pattern << 1) & 0xff )
       {
-        if ( 0 != _charModel.getSample( x, y, 0, _charModelBufferByte ) )
-          _screen[ tmpTargetIdx+x ] = frontColorRgb;
+        if ( 0 != (pattern & 0x80) )
+          _screen[ tmpTargetIdx+x ] = frontColor;
       }
     }
   }
@@ -213,13 +213,33 @@ final class RasterCharacter
   /*
    * Inherit Javadoc.
    */
-  public synchronized void backfill( int offset )
+  public synchronized void foregroundInto( long[] mask, int currentScanline )
+  {
+    int characterScanline = currentScanline % 8;
+    int characterLineAdr = _videoRamAddress + ((currentScanline / 8) * 40);
+
+    for ( int charColumn = 0 ; charColumn < 40 ; charColumn++ )
+    {
+      int characterIdx = 0xff & _memory.read( characterLineAdr + charColumn );
+      int pattern =
+        0xff & _hotModelBuffer[ (characterIdx * 8) + characterScanline ];
+
+      mask[ charColumn >> 3 ] |= (long)pattern << (56 - 8 * (charColumn & 7));
+    }
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public synchronized void backfill( int offset, VicRegisters registers )
   {
     java.util.Arrays.fill(
       _screen,
       offset,
       offset + RasterDisplay.INNER_HORIZ,
-      Vic.VIC_RGB_COLORS[ _vic.read( Vic.BACKGRDCOL0 ) ] );
+      registers.getColor( Vic.BACKGRDCOL0 ) );
   }
 
 
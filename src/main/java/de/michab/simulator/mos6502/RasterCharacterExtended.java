@@ -42,7 +42,7 @@ final class RasterCharacterExtended
   /**
    *
    */
-  private final int[] _screen;
+  private final byte[] _screen;
 
 
 
@@ -105,9 +105,9 @@ final class RasterCharacterExtended
 
 
   /**
-   *
+   * The background colors of the current scanline.
    */
-  private final int[] _backgroundRgb = new int[ 4 ];
+  private final byte[] _background = new byte[ 4 ];
 
 
 
@@ -116,7 +116,7 @@ final class RasterCharacterExtended
    */
   RasterCharacterExtended(
     Vic vic,
-    int[] screen,
+    byte[] screen,
     Memory memory,
     byte[] colorRam )
   {
@@ -145,24 +145,27 @@ final class RasterCharacterExtended
   /*
    * Inherit Javadoc.
    */
-  public synchronized void rasterInto( int offset, int currentScanline )
+  public synchronized void rasterInto(
+      int offset, int currentScanline, VicRegisters registers )
   {
+    _background[0] = registers.getColor( Vic.BACKGRDCOL0 );
+    _background[1] = registers.getColor( Vic.BACKGRDCOL1 );
+    _background[2] = registers.getColor( Vic.BACKGRDCOL2 );
+    _background[3] = registers.getColor( Vic.BACKGRDCOL3 );
+
     // Check which scanline of a character stripe we are drawing.  A
     // character stripe has 8 lines, so we get values [0..7].
     int characterScanline = currentScanline % 8;
 
-    // The following computations are only needed if a new character stripe
-    // starts.
-    if ( characterScanline == 0 )
-    {
-      // Compute the line idx in C64 character coordinates.  C64 has 25
-      // lines, so here we get a range of [0..24].
-      int characterLine = currentScanline / 8;
-      // Preinit color and char adresses into byte oriented display memory.
-      _characterLineAdr = _colorLineAdr = characterLine * Vic.TXT_COLUMNS;
-      // Compute the pointer into the character memory.
-      _characterLineAdr += _videoRamAddress;
-    }
+    // The stripe is computed for each scanline, so scanlines can be
+    // rastered in any order.
+    // Compute the line idx in C64 character coordinates.  C64 has 25
+    // lines, so here we get a range of [0..24].
+    int characterLine = currentScanline / 8;
+    // Preinit color and char adresses into byte oriented display memory.
+    _characterLineAdr = _colorLineAdr = characterLine * Vic.TXT_COLUMNS;
+    // Compute the pointer into the character memory.
+    _characterLineAdr += _videoRamAddress;
 
     byte[] rawMemory = _memory.getRawMemory();
     for ( int charColumn = 0 ; charColumn < Vic.TXT_COLUMNS ; charColumn++ )
@@ -180,8 +183,8 @@ final class RasterCharacterExtended
       // Compute the target character index in the display raster.
       int tmpTargetIdx = offset + (charColumn * 8);
       // Get the front color for the next character.  This is 4 bits wide.
-      int frontColorRgb = 
-        Vic.VIC_RGB_COLORS[ 0xf & _colorRam[ _colorLineAdr + charColumn ] ];
+      byte frontColor =
+        (byte)(0xf & _colorRam[ _colorLineAdr + charColumn ]);
 
       // Loop over the eight bits of a single character's scan line.
       for ( int i = 0 ; i < 8 ; i++ )
@@ -195,8 +198,8 @@ final class RasterCharacterExtended
           _screen[ tmpTargetIdx+i ] =
             _characterSet[ tmpSourceIdx+i ] == 0 ?
               // The two topmost bits select background color.
-              _backgroundRgb[ colorIdx ] :
-              frontColorRgb;
+              _background[ colorIdx ] :
+              frontColor;
         }
       }
     }
@@ -240,13 +243,36 @@ final class RasterCharacterExtended
   /*
    * Inherit Javadoc.
    */
-  public synchronized void backfill( int offset )
+  public synchronized void foregroundInto( long[] mask, int currentScanline )
+  {
+    int characterScanline = currentScanline % 8;
+    int characterLineAdr =
+      _videoRamAddress + ((currentScanline / 8) * Vic.TXT_COLUMNS);
+
+    byte[] rawMemory = _memory.getRawMemory();
+    byte[] characterSet = charModelBufferByte.getData();
+    for ( int charColumn = 0 ; charColumn < Vic.TXT_COLUMNS ; charColumn++ )
+    {
+      int characterIdx = 0x3f & rawMemory[ characterLineAdr + charColumn ];
+      int pattern =
+        0xff & characterSet[ (characterIdx * 8) + characterScanline ];
+
+      mask[ charColumn >> 3 ] |= (long)pattern << (56 - 8 * (charColumn & 7));
+    }
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public synchronized void backfill( int offset, VicRegisters registers )
   {
     java.util.Arrays.fill(
       _screen,
       offset,
       offset + RasterDisplay.INNER_HORIZ,
-      _backgroundRgb[0] );
+      registers.getColor( Vic.BACKGRDCOL0 ) );
   }
 
 
@@ -267,14 +293,5 @@ final class RasterCharacterExtended
   public void badLine( int currentScanline )
   {
     unpack( _characterAddress );
-
-    _backgroundRgb[0] =
-      Vic.VIC_RGB_COLORS[ _vic.read( Vic.BACKGRDCOL0 ) ];
-    _backgroundRgb[1] =
-      Vic.VIC_RGB_COLORS[ _vic.read( Vic.BACKGRDCOL1 ) ];
-    _backgroundRgb[2] =
-      Vic.VIC_RGB_COLORS[ _vic.read( Vic.BACKGRDCOL2 ) ];
-    _backgroundRgb[3] =
-      Vic.VIC_RGB_COLORS[ _vic.read( Vic.BACKGRDCOL3 ) ];
   }
 }
@@ -34,7 +34,7 @@ final class RasterCharacterMulti
   /**
    * The screen array in RGB pixels.
    */
-  private final int[] _screen;
+  private final byte[] _screen;
 
 
 
@@ -112,7 +112,7 @@ final class RasterCharacterMulti
    */
   RasterCharacterMulti( 
     Vic vic, 
-    int[] screen, 
+    byte[] screen, 
     Memory rawMemory, 
     byte[] colorMemory )
   {
@@ -145,22 +145,20 @@ final class RasterCharacterMulti
   /*
    * Inherit Javadoc.
    */
-  public synchronized void rasterInto( int offset, int currentScanline )
+  public synchronized void rasterInto(
+      int offset, int currentScanline, VicRegisters registers )
   {
     // Check which scanline of a character stripe we are drawing.  A
     // character stripe has 8 lines, so we get values [0..7].
     int characterScanline = currentScanline % 8;
 
-    // The following computations are only needed if a new character stripe
-    // starts.
-    if ( characterScanline == 0 )
-    {
-      // Preinit color and char adresses into byte oriented display memory.
-      _characterLineAdr = _colorLineAdr = 
-        (currentScanline / 8) * Vic.TXT_COLUMNS;
-      // Compute the pointer into the character memory.
-      _characterLineAdr += _videoRamAddress;
-    }
+    // The stripe is computed for each scanline, so scanlines can be
+    // rastered in any order.
+    // Preinit color and char adresses into byte oriented display memory.
+    _characterLineAdr = _colorLineAdr = 
+      (currentScanline / 8) * Vic.TXT_COLUMNS;
+    // Compute the pointer into the character memory.
+    _characterLineAdr += _videoRamAddress;
 
     for ( int charColumn = 0 ; charColumn < Vic.TXT_COLUMNS ; charColumn++ )
     {
@@ -175,8 +173,7 @@ final class RasterCharacterMulti
       int tmpTargetIdx = offset + (charColumn * 8);
       // Get the front color for the next character.  This is 4 bits wide.
       int frontColor = 0xf & _colorMemory[ _colorLineAdr + charColumn ];
-      // Transform that into an rgb value.
-      int frontColorRgb = Vic.VIC_RGB_COLORS[ frontColor ];
+      byte frontColorIdx = (byte)frontColor;
 
       // If the third bit of the color value is not set...
       if ( 0 == (frontColor & Processor.BIT_3) )
@@ -188,27 +185,27 @@ final class RasterCharacterMulti
           switch ( _charModel.getSample( i/2, y, 0, charModelBufferByte ) )
           {
             case 1:
-              _screen[ tmpTargetIdx+i+1 ] = frontColorRgb;
+              _screen[ tmpTargetIdx+i+1 ] = frontColorIdx;
               break;
 
             case 2:
-              _screen[ tmpTargetIdx+i ] = frontColorRgb;
+              _screen[ tmpTargetIdx+i ] = frontColorIdx;
               break;
 
             case 3:
               _screen[ tmpTargetIdx+i ] =
                 _screen[ tmpTargetIdx+i+1 ] =
-                  frontColorRgb;
+                  frontColorIdx;
               break;
           }
         }
       }
       else
       {
-        int background1Rgb =
-          Vic.VIC_RGB_COLORS[ _vic.read( Vic.BACKGRDCOL1 ) ];
-        int background2Rgb =
-          Vic.VIC_RGB_COLORS[ _vic.read( Vic.BACKGRDCOL2 ) ];
+        byte background1 =
+          registers.getColor( Vic.BACKGRDCOL1 );
+        byte background2 =
+          registers.getColor( Vic.BACKGRDCOL2 );
         // Do a multicolor draw.
         // Loop over the eight bits of a single character's scan line.
         for ( int i = 0 ; i < 8 ; i+=2 )
@@ -218,19 +215,19 @@ final class RasterCharacterMulti
             case 1:
               _screen[ tmpTargetIdx+i ] =
                 _screen[ tmpTargetIdx+i+1 ] =
-                  background1Rgb;
+                  background1;
               break;
 
             case 2:
               _screen[ tmpTargetIdx+i ] =
                 _screen[ tmpTargetIdx+i+1 ] =
-                  background2Rgb;
+                  background2;
               break;
 
             case 3:
               _screen[ tmpTargetIdx+i ] =
                 _screen[ tmpTargetIdx+i+1 ] =
-                  Vic.VIC_RGB_COLORS[ 0x7 & frontColor ];
+                  (byte)(0x7 & frontColor);
               break;
           }
         }
@@ -240,16 +237,44 @@ final class RasterCharacterMulti
 
 
 
+  /*
+   * Inherit Javadoc.
+   */
+  public synchronized void foregroundInto( long[] mask, int currentScanline )
+  {
+    int characterScanline = currentScanline % 8;
+    int colorLineAdr = (currentScanline / 8) * Vic.TXT_COLUMNS;
+    int characterLineAdr = colorLineAdr + _videoRamAddress;
+
+    for ( int charColumn = 0 ; charColumn < Vic.TXT_COLUMNS ; charColumn++ )
+    {
+      int characterIdx = 0xff & _memory.read( characterLineAdr + charColumn );
+      int pattern =
+        0xff & _charModelBuffer[ (characterIdx * 8) + characterScanline ];
+
+      // In multicolor characters the bit pairs 01 are background.
+      if ( 0 != (_colorMemory[ colorLineAdr + charColumn ] & Processor.BIT_3) )
+      {
+        pattern &= 0xaa;
+        pattern |= pattern >> 1;
+      }
+
+      mask[ charColumn >> 3 ] |= (long)pattern << (56 - 8 * (charColumn & 7));
+    }
+  }
+
+
+
   /*
    * Inherit javadoc.
    */
-  public synchronized void backfill( int offset )
+  public synchronized void backfill( int offset, VicRegisters registers )
   {
     java.util.Arrays.fill(
       _screen,
       offset,
       offset + RasterDisplay.INNER_HORIZ,
-      Vic.VIC_RGB_COLORS[ _vic.read( Vic.BACKGRDCOL0 ) ] );
+      registers.getColor( Vic.BACKGRDCOL0 ) );
   }
 
 
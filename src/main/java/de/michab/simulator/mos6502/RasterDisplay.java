@@ -9,12 +9,23 @@ package de.michab.simulator.mos6502;
 
 import de.michab.simulator.Clock;
 import de.michab.simulator.Memory;
-import de.michab.simulator.Processor;
+import java.awt.Color;
 import java.awt.Component;
 import java.awt.Dimension;
+import java.awt.Frame;
 import java.awt.Graphics;
+import java.awt.Window;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 
 /**
@@ -29,6 +40,13 @@ import java.util.Arrays;
  * What is the impact if the video screen is switched off (Like when doing a
  * datasette load) Is that then for all raster lines the same as with the
  * frame lines?
+ * <p>
+ * The raster thread emulates the raster timing: bad lines, raster
+ * interrupts and sprite collisions.  If render threads are configured the
+ * raster thread records the visible lines of a frame into a command list
+ * and the pixel work is done by the render threads in bands of lines while
+ * the raster thread continues with the next frame.  See
+ * {@link FrameCommands} for the handling of the memory contents.
  *
  * @author Michael G. Binz
  * @version $Revision: 11 $
@@ -65,7 +83,7 @@ public class RasterDisplay
      * The height of the vertical frame.  Note that this also is the scanline
      * number of the first line of the display window.
      */
-    private static final int FRAME_VERT = 51;
+    static final int FRAME_VERT = 51;
     /**
      * Visible frame height in pixels.  Used for the upper and lower frame.  Note
      * that this value can be adjusted freely without impacting the emulation.
@@ -74,64 +92,54 @@ public class RasterDisplay
     /**
      * The number of invisible scan lines.
      */
-    static private final int VERTICAL_INVISIBLE =
+    static final int VERTICAL_INVISIBLE =
             FRAME_VERT - VISIBLE_FRAME_VERT;
     /**
      * Overall height of the screen, includes the frame.
      */
-    private static final int OVERALL_H =
+    static final int OVERALL_H =
             VISIBLE_FRAME_VERT + INNER_VERT + VISIBLE_FRAME_VERT;
-
-
     /**
-     * Sprite coordinate system offset in y direction.
+     * The number of clock cycles per frame, 64 per raster line.
      */
-    private static final int SPRITE_Y_OFFSET = 30;
+    static final int CYCLES_PER_FRAME =
+            (FRAME_VERT + INNER_VERT + FRAME_VERT) * 64;
+
     /**
      * Used for layout management.
      */
     private static final Dimension _componentsSize
             = new Dimension(OVERALL_W, OVERALL_H);
     /**
-     * The monochrome text rasterer.
-     */
-    private final ScanlineRasterer _txtNormal;
-    /**
-     * The multi colour text mode rasterer.
-     */
-    private final ScanlineRasterer _txtMulti;
-    /**
-     * The extended color text mode rasterer.
+     * The renderer on the system memory.  Renders lines synchronously and
+     * checks the sprite collisions.
      */
-    private final ScanlineRasterer _txtExt;
+    private final ScanlineRenderer _renderer;
     /**
-     * The monochrome bitmap rasterer.
-     */
-    private final ScanlineRasterer _gfxNormal;
-    /**
-     * The multi color bitmap rasterer.
+     * Our handle to the system clock.
      */
-    private final ScanlineRasterer _gfxMulti;
+    private final Clock.ClockHandle _clockId;
     /**
-     * The raster engine responsible for sprite rastering.
+     * The display raster.  Each byte in this array represents one pixel
+     * on the 64s screen as VIC color index.
      */
-    private final RasterSprites _spriteRasterer;
+    private final byte[] _screen = new byte[OVERALL_W * OVERALL_H];
     /**
-     * Our handle to the system clock.
+     * Scales the screen by an integer factor into the image that is
+     * ultimately drawn onto the component.
      */
-    private final Clock.ClockHandle _clockId;
+    private final ScreenScaler _scaler =
+            new ScreenScaler(OVERALL_W, OVERALL_H);
     /**
-     * The display raster.  Each integer in this array represents one pixel
-     * on the 64s screen in rgb color.
+     * True if the scaled screen shows dimmed scanlines.
      */
-    private final int[] _screen = new int[OVERALL_W * OVERALL_H];
+    private volatile boolean _scanlines =
+            Boolean.getBoolean(RasterDisplay.class.getName() + ".scanlines");
     /**
-     * The image that is ultimately drawn onto the component.
+     * True if the scaled screen corrects the pixel aspect ratio.
      */
-    private final BufferedImage _bufferedImage =
-            new BufferedImage(OVERALL_W,
-                    OVERALL_H,
-                    BufferedImage.TYPE_INT_RGB);
+    private volatile boolean _aspectCorrection =
+            Boolean.getBoolean(RasterDisplay.class.getName() + ".aspect");
     /**
      * A reference to our home VIC.
      */
@@ -149,10 +157,10 @@ public class RasterDisplay
      */
     private final Thread _repaintThread;
     /**
-     * A reference to the current video mode raster engine.
+     * The video mode that is activated on the next bad line, negative if
+     * none.
      */
-    private ScanlineRasterer _currentVideoMode;
-    private ScanlineRasterer _scheduledVideoMode;
+    private int _scheduledMode = -1;
     /**
      * The raster line that is currently drawn.
      */
@@ -186,63 +194,233 @@ public class RasterDisplay
     private Graphics _graphics = null;
 
 
+    /**
+     * A pending request for a copy of the next complete frame.
+     */
+    private volatile CompletableFuture<byte[]> _frameRequest = null;
+
+
+    /**
+     * Receives the presented frames, {@code null} if not recording.
+     */
+    private volatile Recorder _recorder = null;
+
+
+    /**
+     * Receives the presented frames for an alternative display,
+     * {@code null} if none.
+     */
+    private volatile Consumer<byte[]> _presenter = null;
+
+
+    /**
+     * Measures drawing the frames onto the component.
+     */
+    private final FrameTimer _presentTimer = new FrameTimer("AWT present");
+
+
+    /**
+     * Guards the frame counters.
+     */
+    private final Object _frameLock = new Object();
+
+
+    /**
+     * The number of frames drawn.
+     */
+    private long _frameCount = 0;
+
+
+    /**
+     * The raster thread halts before drawing a frame if the frame count
+     * reached this limit.  Only used in headless mode.
+     */
+    private long _frameLimit = Long.MAX_VALUE;
+
+
+    /**
+     * True if frames are drawn without a display.
+     */
+    private volatile boolean _headless = false;
+
+
+    /**
+     * True while the display is showing and its window is not iconified.
+     * While not visible the raster thread skips the pixel work but keeps the
+     * raster line timing.
+     */
+    private volatile boolean _visible = false;
+
+
+    /**
+     * The window holding the display, tracked for iconification.
+     */
+    private Window _window = null;
+
+
+    /**
+     * Updates the visibility if the window holding the display is iconified
+     * or deiconified.
+     */
+    private final WindowAdapter _windowTracker = new WindowAdapter() {
+        @Override
+        public void windowStateChanged(final WindowEvent e) {
+            RasterDisplay.this.updateVisibility();
+        }
+    };
+
+
+    /**
+     * The number of frames drawn without pixel work.
+     */
+    private volatile long _skippedFrameCount = 0;
+
+
+    /**
+     * The system clock.  Provides the lag of the emulation.
+     */
+    private final Clock _clock;
+
+
+    /**
+     * The realtime duration of a frame in milliseconds.
+     */
+    private final long _frameBudget;
+
+
+    /**
+     * The maximum number of consecutive frames skipped while the emulation
+     * is behind realtime.
+     */
+    private volatile int _maxFrameSkip;
+
+
+    /**
+     * The number of frames skipped after each rendered frame regardless of
+     * the load.  Zero if frames are skipped adaptively.
+     */
+    private volatile int _frameSkip = 0;
+
+
+    /**
+     * The number of frames skipped in a row.
+     */
+    private int _consecutiveSkips = 0;
+
+
+    /**
+     * The number of frames skipped because the emulation was behind
+     * realtime or because of the fixed frame skip.
+     */
+    private volatile long _droppedFrameCount = 0;
+
+
+    /**
+     * True if the memory supports watching pages.  Required for render
+     * threads.
+     */
+    private final boolean _watching;
+
+
+    /**
+     * The requested number of render threads.
+     */
+    private volatile int _renderThreads;
+
+
+    /**
+     * The render threads, {@code null} if lines are rendered synchronously.
+     */
+    private ExecutorService _workers = null;
+
+
+    /**
+     * A renderer per band of lines, used by the render threads.
+     */
+    private ScanlineRenderer[] _bandRenderers = new ScanlineRenderer[0];
+
+
+    /**
+     * The command list the raster thread records into.
+     */
+    private FrameCommands _recording;
+
+
+    /**
+     * The command list the render threads render.
+     */
+    private FrameCommands _rendering;
+
+
+    /**
+     * Completes when the render threads rendered the submitted frame,
+     * {@code null} if no frame is pending.
+     */
+    private CompletableFuture<Void> _pending = null;
+
+
+    /**
+     * The number of the frame the render threads render.
+     */
+    private long _pendingFrame = 0;
+
+
     /**
      * Creates a raster display instance.
      *
-     * @param vic      The home VIC.
-     * @param mem      A reference to the main memory.
-     * @param colorRam The color RAM.
+     * @param vic             The home VIC.
+     * @param mem             A reference to the main memory.
+     * @param colorRam        The color RAM.
+     * @param colorRamAddress The address color RAM is mapped to.
      */
     protected RasterDisplay(
             final Vic vic,
             final Memory mem,
             final byte[] colorRam,
+            final int colorRamAddress,
             final Clock clock) {
         this.setSize(_componentsSize);
 
         this._vic = vic;
+        this._clock = clock;
+        this._frameBudget =
+                CYCLES_PER_FRAME * 1000L / clock.getResolution();
+        this._maxFrameSkip = Math.max(0, Integer.getInteger(
+                RasterDisplay.class.getName() + ".maxFrameSkip", 4));
         this._colorRam = colorRam;
 
         // Get a reference to the system's memory.
         this._memory = mem;
 
-        // Init the sprite rasterer.
-        this._spriteRasterer = new RasterSprites(
-                this._screen,
-                this._memory,
-                vic);
-
-        // Init the default video mode raster engine.
-        this._txtNormal = new RasterCharacter(
+        // Init the video mode and sprite raster engines.
+        this._renderer = new ScanlineRenderer(
                 vic,
                 this._screen,
                 this._memory,
                 this._colorRam);
 
-        this._txtMulti = new RasterCharacterMulti(
-                vic,
-                this._screen,
+        // Init the command lists for the render threads.
+        this._recording = new FrameCommands(
                 this._memory,
-                this._colorRam);
-
-        this._txtExt = new RasterCharacterExtended(
-                vic,
-                this._screen,
-                this._memory,
-                this._colorRam);
-
-        this._gfxNormal = new RasterBitmap(
-                this._screen,
-                this._memory);
-
-        this._gfxMulti = new RasterBitmapMulti(
-                vic,
-                this._screen,
+                this._colorRam,
+                colorRamAddress);
+        this._rendering = new FrameCommands(
                 this._memory,
-                this._colorRam);
-
-        // Set the default rasterer.
-        this._currentVideoMode = this._txtNormal;
+                this._colorRam,
+                colorRamAddress);
+        this._watching = this._memory.watchPages(new long[4]);
+        this._renderThreads = Math.max(0, Integer.getInteger(
+                RasterDisplay.class.getName() + ".renderThreads",
+                Math.min(4, Runtime.getRuntime().availableProcessors() - 1)));
+
+        // Track whether the display can be seen.
+        this.addHierarchyListener(e -> {
+            if ((e.getChangeFlags() &
+                    (HierarchyEvent.SHOWING_CHANGED |
+                            HierarchyEvent.PARENT_CHANGED)) != 0) {
+                this.updateVisibility();
+            }
+        });
 
         // Register with the clock.
         this._clockId = clock.register();
@@ -261,6 +439,230 @@ public class RasterDisplay
     }
 
 
+    /**
+     * Computes the visibility of the display.  Called on the event thread.
+     */
+    private void updateVisibility() {
+        Component c = this;
+        while (c != null && !(c instanceof Window)) {
+            c = c.getParent();
+        }
+        final Window window = (Window) c;
+
+        if (window != this._window) {
+            if (this._window != null) {
+                this._window.removeWindowStateListener(this._windowTracker);
+            }
+            if (window != null) {
+                window.addWindowStateListener(this._windowTracker);
+            }
+            this._window = window;
+        }
+
+        final boolean iconified = window instanceof Frame &&
+                (((Frame) window).getExtendedState() & Frame.ICONIFIED) != 0;
+
+        this._visible = this.isShowing() && !iconified;
+    }
+
+
+    /**
+     * Checks whether the pixel work for frames is done.  This is the case in
+     * headless mode, while the display or an alternative display is
+     * visible and while recording.
+     *
+     * @return {@code true} if frames are rendered.
+     */
+    boolean isRendering() {
+        return this._headless ||
+                this._visible ||
+                this._recorder != null ||
+                this._presenter != null;
+    }
+
+
+    /**
+     * Set the recorder receiving the presented frames.  Frames are rendered
+     * while recording, even if the display is not visible.
+     *
+     * @param recorder The recorder, {@code null} to stop recording.
+     */
+    void setRecorder(final Recorder recorder) {
+        this._recorder = recorder;
+    }
+
+
+    /**
+     * Set an alternative display receiving the presented frames.  The
+     * presenter is called on the raster thread with the screen as VIC color
+     * indices and has to copy it.  Frames are rendered while a presenter is
+     * set, even if the component is not visible.
+     *
+     * @param presenter The presenter, {@code null} to remove it.
+     */
+    void setPresenter(final Consumer<byte[]> presenter) {
+        this._presenter = presenter;
+    }
+
+
+    /**
+     * Switch the dimmed scanlines of the scaled screen on or off.
+     *
+     * @param scanlines {@code true} to show scanlines.
+     */
+    void setScanlines(final boolean scanlines) {
+        this._scanlines = scanlines;
+    }
+
+
+    /**
+     * Check whether the scaled screen shows dimmed scanlines.
+     *
+     * @return {@code true} if scanlines are shown.
+     */
+    boolean isScanlines() {
+        return this._scanlines;
+    }
+
+
+    /**
+     * Switch the pixel aspect ratio correction on or off.
+     *
+     * @param aspect {@code true} to correct the aspect ratio.
+     */
+    void setAspectCorrection(final boolean aspect) {
+        this._aspectCorrection = aspect;
+    }
+
+
+    /**
+     * Check whether the pixel aspect ratio is corrected.
+     *
+     * @return {@code true} if the aspect ratio is corrected.
+     */
+    boolean isAspectCorrection() {
+        return this._aspectCorrection;
+    }
+
+
+    /**
+     * Get the timer measuring drawing the frames onto the component.
+     *
+     * @return The timer.
+     */
+    FrameTimer getPresentTimer() {
+        return this._presentTimer;
+    }
+
+
+    /**
+     * Get the number of frames that were drawn without pixel work.  This
+     * includes the frames skipped since the display was not visible and the
+     * dropped frames.
+     *
+     * @return The number of skipped frames.
+     * @see #getDroppedFrameCount()
+     */
+    long getSkippedFrameCount() {
+        return this._skippedFrameCount;
+    }
+
+
+    /**
+     * Get the number of frames that were skipped since the emulation was
+     * behind realtime or because of the fixed frame skip.
+     *
+     * @return The number of dropped frames.
+     */
+    long getDroppedFrameCount() {
+        return this._droppedFrameCount;
+    }
+
+
+    /**
+     * Set the maximum number of consecutive frames skipped while the
+     * emulation is behind realtime.
+     *
+     * @param frames The number of frames, zero switches adaptive skipping
+     *               off.
+     * @throws IllegalArgumentException If frames is negative.
+     */
+    void setMaxFrameSkip(final int frames) {
+        if (frames < 0) {
+            throw new IllegalArgumentException("frames: " + frames);
+        }
+        this._maxFrameSkip = frames;
+    }
+
+
+    /**
+     * Get the maximum number of consecutive frames skipped while the
+     * emulation is behind realtime.
+     *
+     * @return The number of frames.
+     */
+    int getMaxFrameSkip() {
+        return this._maxFrameSkip;
+    }
+
+
+    /**
+     * Set a fixed number of frames skipped after each rendered frame.  Used
+     * when running unthrottled, where the frames are not needed at full
+     * rate.  A fixed frame skip replaces the adaptive skipping.
+     *
+     * @param frames The number of frames, zero for adaptive skipping.
+     * @throws IllegalArgumentException If frames is negative.
+     */
+    void setFrameSkip(final int frames) {
+        if (frames < 0) {
+            throw new IllegalArgumentException("frames: " + frames);
+        }
+        this._frameSkip = frames;
+    }
+
+
+    /**
+     * Get the fixed number of frames skipped after each rendered frame.
+     *
+     * @return The number of frames, zero for adaptive skipping.
+     */
+    int getFrameSkip() {
+        return this._frameSkip;
+    }
+
+
+    /**
+     * Decides whether the pixel work of the next frame is skipped.  Frames
+     * are skipped while the emulation is more than a frame behind realtime,
+     * at most the maximum frame skip in a row.  Skipping lets the emulation
+     * catch up since the raster timing continues.  In headless mode the
+     * frame the emulation halts after is always rendered.
+     *
+     * @return {@code true} if the frame is skipped.
+     */
+    private boolean isFrameDropped() {
+        final boolean halts;
+        synchronized (this._frameLock) {
+            halts = this._headless && this._frameCount + 1 >= this._frameLimit;
+        }
+
+        final int fixed = this._frameSkip;
+        final boolean result;
+        if (halts) {
+            result = false;
+        } else if (fixed > 0) {
+            result = this._consecutiveSkips < fixed;
+        } else {
+            result = this._consecutiveSkips < this._maxFrameSkip &&
+                    this._clock.getLag() > this._frameBudget;
+        }
+
+        this._consecutiveSkips = result ? this._consecutiveSkips + 1 : 0;
+        return result;
+    }
+
+
     /**
      * Set the addresses of the different memory regions in a single step.
      *
@@ -272,13 +674,263 @@ public class RasterDisplay
         this._characterSetAdr = charAdr;
         this._videoRamAddress = videoram;
         this._bitmapAddress = bitmap & 0xe000;
-        this._currentVideoMode.startFrame(
+        this._renderer.setMode(
+                this._renderer.getMode(),
                 this._characterSetAdr,
                 this._videoRamAddress,
                 this._bitmapAddress);
     }
 
 
+    /**
+     * Set the number of render threads.  Takes effect with the next frame.
+     *
+     * @param threads The number of render threads.  Zero renders the lines
+     *                synchronously on the raster thread.
+     * @throws IllegalArgumentException If threads is negative.
+     */
+    void setRenderThreads(final int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("threads: " + threads);
+        }
+        this._renderThreads = threads;
+    }
+
+
+    /**
+     * Get the number of render threads.
+     *
+     * @return The number of render threads.
+     */
+    int getRenderThreads() {
+        return this._renderThreads;
+    }
+
+
+    /**
+     * Request a copy of the next complete frame.  The frame holds a pixel
+     * per byte as VIC color index, line by line.  Note that frames are only
+     * drawn while the display is active or in headless mode.
+     *
+     * @return A future receiving the frame.
+     */
+    synchronized CompletableFuture<byte[]> requestFrame() {
+        if (this._frameRequest == null) {
+            this._frameRequest = new CompletableFuture<byte[]>();
+        }
+        return this._frameRequest;
+    }
+
+
+    /**
+     * Passes a copy of the current frame to a pending frame request.
+     */
+    private synchronized void completeFrameRequest() {
+        final CompletableFuture<byte[]> request = this._frameRequest;
+        this._frameRequest = null;
+        request.complete(this._screen.clone());
+    }
+
+
+    /**
+     * Switch to headless mode.  Frames are drawn without a display and the
+     * raster thread halts at frame boundaries until frames are released.
+     * Since only a single emulation thread runs at a time this halts the
+     * whole emulation.  Has to be called before the clock is started.
+     */
+    void setHeadless() {
+        synchronized (this._frameLock) {
+            this._frameLimit = 0;
+        }
+        this._headless = true;
+    }
+
+
+    /**
+     * Release frames in headless mode.  Passing zero halts the emulation at
+     * the end of the current frame.
+     *
+     * @param count The number of frames to release.
+     * @return The frame count at which the emulation halts.
+     * @throws IllegalStateException If not in headless mode.
+     */
+    long releaseFrames(final int count) {
+        if (!this._headless) {
+            throw new IllegalStateException("Not headless.");
+        }
+        synchronized (this._frameLock) {
+            this._frameLimit = this._frameCount + count;
+            this._frameLock.notifyAll();
+            return this._frameLimit;
+        }
+    }
+
+
+    /**
+     * Wait until the frame count reached the passed value.
+     *
+     * @param frame   The frame count to wait for.
+     * @param timeout The maximum time to wait in milliseconds, zero waits
+     *                forever.
+     * @return <code>true</code> if the frame count was reached.
+     * @throws InterruptedException If the calling thread was interrupted.
+     */
+    boolean awaitFrame(final long frame, final long timeout)
+            throws InterruptedException {
+        return this.awaitFrame(frame, timeout, () -> false);
+    }
+
+
+    /**
+     * Wait until the frame count reached the passed value or the passed
+     * condition is met.  The condition is tested holding the frame lock,
+     * a thread making it true has to call <code>wakeWaiters()</code>
+     * afterwards.
+     *
+     * @param frame   The frame count to wait for.
+     * @param timeout The maximum time to wait in milliseconds, zero waits
+     *                forever.
+     * @param abort   Ends the wait if met.
+     * @return <code>true</code> if the frame count was reached or the
+     *         condition was met.
+     * @throws InterruptedException If the calling thread was interrupted.
+     */
+    boolean awaitFrame(
+            final long frame,
+            final long timeout,
+            final BooleanSupplier abort)
+            throws InterruptedException {
+        final long end = System.currentTimeMillis() + timeout;
+
+        synchronized (this._frameLock) {
+            while (this._frameCount < frame) {
+                if (abort.getAsBoolean()) {
+                    return true;
+                }
+                if (timeout == 0) {
+                    this._frameLock.wait();
+                    continue;
+                }
+                final long remaining = end - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                this._frameLock.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Wake up the threads waiting in <code>awaitFrame()</code> to test
+     * their conditions.
+     */
+    void wakeWaiters() {
+        synchronized (this._frameLock) {
+            this._frameLock.notifyAll();
+        }
+    }
+
+
+    /**
+     * Get the number of frames drawn so far.
+     *
+     * @return The number of frames.
+     */
+    long getFrameCount() {
+        synchronized (this._frameLock) {
+            return this._frameCount;
+        }
+    }
+
+
+    /**
+     * Get a copy of the current frame.  The frame holds a pixel per byte as
+     * VIC color index, line by line.  The frame is only complete while the
+     * emulation is halted in headless mode.
+     *
+     * @return The frame.
+     */
+    byte[] getIndexedFrame() {
+        return this._screen.clone();
+    }
+
+
+    /**
+     * Check whether the raster thread is halted at a frame boundary in
+     * headless mode.
+     *
+     * @return <code>true</code> if halted.
+     */
+    boolean isHalted() {
+        synchronized (this._frameLock) {
+            return this._headless && this._frameCount >= this._frameLimit;
+        }
+    }
+
+
+    /**
+     * Get the local time of the raster thread.  While halted this is the
+     * time of the frame start.
+     *
+     * @return The local time.
+     */
+    long getTime() {
+        return this._clockId.currentLocalTime();
+    }
+
+
+    /**
+     * Set the local time of the raster thread.  Only allowed before the
+     * clock is started or while the halted emulation is restored.
+     *
+     * @param time The time of the first frame start.
+     */
+    void restoreTime(final long time) {
+        this._clockId.restoreLocalTime(time);
+    }
+
+
+    /**
+     * Halts the raster thread until the next frame is released.
+     *
+     * @return <code>false</code> if the thread was interrupted.
+     */
+    private boolean awaitFrameRelease() {
+        synchronized (this._frameLock) {
+            while (this._frameCount >= this._frameLimit) {
+                try {
+                    this._frameLock.wait();
+                } catch (final InterruptedException e) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Counts a completed frame.
+     */
+    private void frameCompleted() {
+        final Recorder recorder = this._recorder;
+        if (recorder != null) {
+            recorder.frameCompleted();
+        }
+
+        synchronized (this._frameLock) {
+            // A halted emulation offers the complete frame.
+            if (this._headless && this._frameCount + 1 >= this._frameLimit) {
+                this.awaitRendered();
+            }
+            this._frameCount++;
+            this._frameLock.notifyAll();
+        }
+    }
+
+
     /**
      * Shuts down the raster thread.
      */
@@ -296,30 +948,152 @@ public class RasterDisplay
         try {
             // We unschedule the repaint thread until we are actually receiving
             // the first paint notification.  For the reschedule() operation
-            // see the paint() implementation.
-            this._clockId.unschedule();
+            // see the paint() implementation.  Without a display we start
+            // right away.
+            if (!this._headless) {
+                this._clockId.unschedule();
+            }
 
-            while (!this._repaintThread.isInterrupted()) {
-                this._currentVideoMode.startFrame(
+            while (!this._clockId.isClosed() &&
+                    !this._repaintThread.isInterrupted() &&
+                    this.awaitFrameRelease()) {
+                this.updateWorkers();
+                this._renderer.setMode(
+                        this._renderer.getMode(),
                         this._characterSetAdr,
                         this._videoRamAddress,
                         this._bitmapAddress);
                 // Draw a single frame.
                 this.drawFrame();
+                this.frameCompleted();
             }
+        } catch (final InterruptedException e) {
+            // Terminated.
         }
         // Catch all remaining untagged exceptions.  ArrayIndexOutOfBounds is quite
         // common here.
         catch (final Exception e) {
             e.printStackTrace();
-            System.exit(1);
+            this._clockId.fail(e);
+        } finally {
+            this.shutdownWorkers();
         }
     }
 
 
+    /**
+     * Adapts the render threads to the requested number.  Called on the
+     * raster thread between frames.
+     */
+    private void updateWorkers() {
+        final int threads = this._watching ? this._renderThreads : 0;
+
+        if (threads == this._bandRenderers.length) {
+            return;
+        }
+
+        this.awaitRendered();
+        this.shutdownWorkers();
+
+        if (threads == 0) {
+            return;
+        }
+
+        final AtomicInteger count = new AtomicInteger();
+        this._workers = Executors.newFixedThreadPool(threads, r -> {
+            final Thread result = new Thread(
+                    r,
+                    RasterDisplay.class.getSimpleName() +
+                            "-render-" + count.incrementAndGet());
+            result.setDaemon(true);
+            return result;
+        });
+
+        this._bandRenderers = new ScanlineRenderer[threads];
+        for (int i = 0; i < threads; i++) {
+            this._bandRenderers[i] = new ScanlineRenderer(
+                    this._vic,
+                    this._screen,
+                    new MemorySnapshot(this._colorRam.length));
+        }
+    }
+
+
+    /**
+     * Shuts down the render threads.
+     */
+    private void shutdownWorkers() {
+        if (this._workers != null) {
+            this._workers.shutdown();
+        }
+        this._workers = null;
+        this._bandRenderers = new ScanlineRenderer[0];
+        this._pending = null;
+    }
+
+
+    /**
+     * Passes the recorded frame to the render threads, a band of lines per
+     * thread.  The raster thread records the next frame into the other
+     * command list.
+     *
+     * @param commands The recorded frame.
+     * @param frame    The frame number.
+     */
+    private void submit(final FrameCommands commands, final long frame) {
+        final ScanlineRenderer[] renderers = this._bandRenderers;
+        final CompletableFuture<?>[] bands =
+                new CompletableFuture<?>[renderers.length];
+
+        for (int i = 0; i < renderers.length; i++) {
+            final ScanlineRenderer renderer = renderers[i];
+            final int first = OVERALL_H * i / renderers.length;
+            final int end = OVERALL_H * (i + 1) / renderers.length;
+            bands[i] = CompletableFuture.runAsync(
+                    () -> commands.render(renderer, first, end),
+                    this._workers);
+        }
+
+        this._pending = CompletableFuture.allOf(bands);
+        this._pendingFrame = frame;
+        this._recording = this._rendering;
+        this._rendering = commands;
+    }
+
+
+    /**
+     * Waits until the render threads completed the submitted frame and
+     * presents it.
+     */
+    private void awaitRendered() {
+        final CompletableFuture<Void> pending = this._pending;
+
+        if (pending == null) {
+            return;
+        }
+
+        this._pending = null;
+        pending.join();
+        this.present(this._pendingFrame);
+    }
+
+
     /**
      * Draws a single frame.  The all-time goal for this method is: DRAW THE
      * RASTER FASTER.  This is an example for really *hot* code performance-wise.
+     * <p>
+     * If the display is not visible only the raster timing is emulated: bad
+     * line cycle stealing, video mode switches, raster interrupts and sprite
+     * collisions.  The
+     * pixel work is skipped and resumes with the next frame after the display
+     * became visible again.  The same holds for frames dropped since the
+     * emulation is behind realtime.  A pending frame request forces the
+     * rendering.
+     * <p>
+     * With render threads the visible lines are recorded and the frame is
+     * presented after the render threads completed it, while the next frame
+     * is drawn.  If the raster effects of a frame exceed the snapshot limit
+     * the remaining lines are rendered synchronously.
      */
     private void drawFrame() {
         final int rasterMax =
@@ -327,160 +1101,198 @@ public class RasterDisplay
                         INNER_VERT +
                         FRAME_VERT;
 
+        final boolean dropped =
+                this.isRendering() && this.isFrameDropped();
+        final boolean render = this._frameRequest != null ||
+                (this.isRendering() && !dropped);
+        final long frame = this.getFrameCount();
+
+        final FrameCommands commands =
+                render && this._workers != null ? this._recording : null;
+
+        if (commands == null) {
+            // Lines are drawn synchronously into the screen.
+            this.awaitRendered();
+        } else {
+            commands.clear();
+        }
+
+        boolean inline = commands == null;
+
         // Iterate over one scanline after the other.
         for (
                 this._currentRasterLine = 0;
                 this._currentRasterLine < rasterMax;
                 this._currentRasterLine++) {
-            if (this.isBadLine(this._currentRasterLine)) {
+            final int rasterLine = this._currentRasterLine;
+
+            // The registers are read once per raster line.
+            final VicRegisters registers = this._vic.getRegisters();
+            final boolean isBadLine = this.isBadLine(rasterLine, registers);
+
+            if (isBadLine) {
                 this._vic.stealCycles(40);
 
-                if (this._scheduledVideoMode != null) {
-                    this._scheduledVideoMode.startFrame(
+                if (this._scheduledMode >= 0) {
+                    this._renderer.setMode(
+                            this._scheduledMode,
                             this._characterSetAdr,
                             this._videoRamAddress,
                             this._bitmapAddress);
-                    this._currentVideoMode = this._scheduledVideoMode;
-                    this._scheduledVideoMode = null;
+                    this._scheduledMode = -1;
                 }
 
-                this._currentVideoMode.badLine(this._currentRasterLine);
+                this._renderer.badLine(rasterLine);
+            }
+
+            // Check for raster irqs and their relatives.
+            final boolean isRasterInterruptLine =
+                    rasterLine == registers.getInterruptRasterLine();
+            if (isRasterInterruptLine) {
+                this._vic.rasterInterrupt();
+            }
+
+            // Only the visible area is drawn.
+            if (rasterLine >= VERTICAL_INVISIBLE &&
+                    rasterLine < FRAME_VERT + INNER_VERT + VISIBLE_FRAME_VERT) {
+                if (!render) {
+                    this._renderer.checkCollisions(rasterLine, registers);
+                } else if (inline) {
+                    this.drawRasterLine(
+                            rasterLine,
+                            registers,
+                            isRasterInterruptLine);
+                } else if (commands.record(
+                        rasterLine,
+                        registers,
+                        isBadLine,
+                        this._renderer.getMode(),
+                        this._characterSetAdr,
+                        this._videoRamAddress,
+                        this._bitmapAddress)) {
+                    this._renderer.checkCollisions(rasterLine, registers);
+                } else {
+                    // The previous frame has to be complete before the
+                    // remaining lines are drawn synchronously.
+                    this.awaitRendered();
+                    inline = true;
+                    this.drawRasterLine(
+                            rasterLine,
+                            registers,
+                            isRasterInterruptLine);
+                }
             }
 
-            this.drawRasterLine(this._currentRasterLine);
             this._clockId.advance(64);
         }
 
-        // Raster screen is complete and up to date, now beam the whole thing into
-        // the image...
-        this._bufferedImage.getRaster().setDataElements(
-                0,
-                0,
-                OVERALL_W,
-                OVERALL_H,
-                this._screen);
+        if (!render) {
+            this._skippedFrameCount++;
+            if (dropped) {
+                this._droppedFrameCount++;
+            }
+            return;
+        }
 
-        // ...and bang out the data to where the sun always shines.
-        this._graphics.drawImage(
-                this._bufferedImage,
-                0,
-                0,
-                this.getWidth(),
-                this.getHeight(),
-                0,
-                0,
-                this._bufferedImage.getWidth(),
-                this._bufferedImage.getHeight(),
-                null);
+        if (commands != null && !commands.isEmpty()) {
+            this.awaitRendered();
+            this.submit(commands, frame);
+        } else {
+            this.present(frame);
+        }
     }
 
 
     /**
-     * Draws a particular raster line.
+     * Presents the complete frame.  Passes it to a pending frame request and
+     * the recorder and draws it onto the component.
      *
-     * @param rasterLine The raster line to draw.
+     * @param frame The frame number.
      */
-    private void drawRasterLine(final int rasterLine) {
-//    int offset = screenOffsetY();
-        final int frameColor = Vic.VIC_RGB_COLORS[this._vic.read(Vic.EXTERIORCOL)];
+    private void present(final long frame) {
+        if (this._frameRequest != null) {
+            this.completeFrameRequest();
+        }
 
-        // Check for raster irqs and their relatives.
-        final boolean isRasterInterruptLine =
-                rasterLine == this.getInterruptRasterLine();
-        if (isRasterInterruptLine) {
-            this._vic.rasterInterrupt();
+        final Recorder recorder = this._recorder;
+        if (recorder != null) {
+            recorder.frame(frame, this._screen);
         }
 
-        // Leave if not in the visible area.
-        if (rasterLine < VERTICAL_INVISIBLE ||
-                rasterLine >= FRAME_VERT + INNER_VERT + VISIBLE_FRAME_VERT) {
+        final Consumer<byte[]> presenter = this._presenter;
+        if (presenter != null) {
+            presenter.accept(this._screen);
+        }
+
+        if (this._graphics == null) {
             return;
         }
 
-        // The index of the current raster line in the screen array.
-        final int rasterlineIdx =
-                (rasterLine - VERTICAL_INVISIBLE) * OVERALL_W;
-
-        /////////////////////////////////
-        // Draw the inner character area.
-        /////////////////////////////////
-        final int framePlusTopBottom = this.isWideBorderY() ? 7 : 0;
-        if (rasterLine >= (FRAME_VERT + framePlusTopBottom) &&
-                rasterLine < (FRAME_VERT + INNER_VERT - framePlusTopBottom) &&
-                this.isScreenOn()) {
-            // Fill the current scanline with background pixels.
-            this._currentVideoMode.backfill(rasterlineIdx + FRAME_HORIZ);
-
-            // Raster the background sprites.
-            this._spriteRasterer.rasterBackInto(
-                    this._videoRamAddress,
-                    rasterlineIdx,
-                    rasterLine - FRAME_VERT + SPRITE_Y_OFFSET);
-
-            // The current raster mode is responsible for drawing the screen's
-            // content.
-            this._currentVideoMode.rasterInto(
-                    rasterlineIdx + FRAME_HORIZ,
-                    rasterLine - FRAME_VERT);
-
-            // Raster the foreground sprites.
-            this._spriteRasterer.rasterFrontInto(
-                    rasterlineIdx,
-                    rasterLine - FRAME_VERT + SPRITE_Y_OFFSET);
-
-            // Draw the right and left frame.
-            final int framePlusLeft;
-            final int framePlusRight;
-            if (this.isWideBorderX()) {
-                framePlusLeft = 7;
-                framePlusRight = 9;
-            } else {
-                framePlusLeft = 0;
-                framePlusRight = 0;
-            }
-            Arrays.fill(
-                    this._screen,
-                    rasterlineIdx,
-                    rasterlineIdx + FRAME_HORIZ + framePlusLeft,
-                    frameColor);
-            Arrays.fill(
-                    this._screen,
-                    rasterlineIdx + FRAME_HORIZ + INNER_HORIZ - framePlusRight,
-                    rasterlineIdx + FRAME_HORIZ + INNER_HORIZ + FRAME_HORIZ,
-                    frameColor);
-        }
-        ///////////////////////
-        // Draw the frame part.
-        ///////////////////////
-        else {
-            // Draw the top and bottom frame scanlines.
-            Arrays.fill(
-                    this._screen,
-                    rasterlineIdx,
-                    rasterlineIdx + OVERALL_W,
-                    frameColor);
+        final long start = System.nanoTime();
+
+        if (this._scaler.configure(
+                this.getWidth(),
+                this.getHeight(),
+                this._scanlines,
+                this._aspectCorrection)) {
+            // The image does not cover the whole component.
+            this._graphics.setColor(Color.BLACK);
+            this._graphics.fillRect(0, 0, this.getWidth(), this.getHeight());
         }
 
+        // Raster screen is complete and up to date, now beam the whole thing into
+        // the scaled image...
+        final BufferedImage image = this._scaler.scale(this._screen);
+
+        // ...and bang out the data to where the sun always shines.
+        this._graphics.drawImage(
+                image,
+                this._scaler.getX(),
+                this._scaler.getY(),
+                null);
+
+        this._presentTimer.since(start);
+    }
+
+
+    /**
+     * Draws a particular visible raster line synchronously.
+     *
+     * @param rasterLine            The raster line to draw.
+     * @param registers             The VIC registers for the raster line.
+     * @param isRasterInterruptLine True if the line triggered a raster
+     *                              interrupt.  Used for debugging.
+     */
+    private void drawRasterLine(
+            final int rasterLine,
+            final VicRegisters registers,
+            final boolean isRasterInterruptLine) {
+        this._renderer.renderLine(rasterLine, registers, true);
+
         if (_debug) {
+            // The index of the current raster line in the screen array.
+            final int rasterlineIdx =
+                    (rasterLine - VERTICAL_INVISIBLE) * OVERALL_W;
+
             this._screen[rasterlineIdx] =
-                    Vic.VIC_RGB_COLORS[this._currentVideoMode.getDebugColor()];
+                    (byte) this._renderer.getDebugColor();
             this._screen[rasterlineIdx + 1] =
-                    Vic.VIC_RGB_COLORS[Vic.BLACK_IDX];
+                    (byte) Vic.BLACK_IDX;
             this._screen[rasterlineIdx + 2] =
-                    Vic.VIC_RGB_COLORS[
-                            isRasterInterruptLine ? Vic.WHITE_IDX : Vic.BLACK_IDX];
+                    (byte) (isRasterInterruptLine ? Vic.WHITE_IDX : Vic.BLACK_IDX);
             this._screen[rasterlineIdx + 3] =
-                    Vic.VIC_RGB_COLORS[Vic.BLACK_IDX];
-            this._screen[rasterlineIdx + 4] = Vic.VIC_RGB_COLORS[
-                    this.isBadLine(rasterLine) ? Vic.WHITE_IDX : Vic.BLACK_IDX];
+                    (byte) Vic.BLACK_IDX;
+            this._screen[rasterlineIdx + 4] = (byte)
+                    (this.isBadLine(rasterLine, registers) ? Vic.WHITE_IDX : Vic.BLACK_IDX);
             this._screen[rasterlineIdx + 5] =
-                    Vic.VIC_RGB_COLORS[Vic.BLACK_IDX];
+                    (byte) Vic.BLACK_IDX;
         }
     }
 
 
     /**
-     * Set the video mode according to the passed flags.
+     * Set the video mode according to the passed flags.  The mode is
+     * activated on the next bad line.
      *
      * @param bitmap   <code>True</code> if graphics mode is selected.
      * @param extended <code>True</code> if extended color mode is selected.
@@ -490,28 +1302,7 @@ public class RasterDisplay
             final boolean bitmap,
             final boolean extended,
             final boolean multi) {
-        final ScanlineRasterer newVideoMode;
-
-        if (bitmap) {
-            // Extended isn't supported for bitmap modes.
-            if (multi) {
-                newVideoMode = this._gfxMulti;
-            } else {
-                newVideoMode = this._gfxNormal;
-            }
-        } else {
-            // Not clear what to do if multi and extended are set.  Currently multi-
-            // color just overrides extended.
-            if (multi) {
-                newVideoMode = this._txtMulti;
-            } else if (extended) {
-                newVideoMode = this._txtExt;
-            } else {
-                newVideoMode = this._txtNormal;
-            }
-        }
-
-        this._scheduledVideoMode = newVideoMode;
+        this._scheduledMode = ScanlineRenderer.getMode(bitmap, extended, multi);
     }
 
 
@@ -525,102 +1316,17 @@ public class RasterDisplay
     }
 
 
-    /**
-     * Get the raster line that will trigger an interrupt on drawing.
-     *
-     * @return The interrupt raster line that is currently set.
-     */
-    private int getInterruptRasterLine() {
-        // Note that we cannot read() the vic here since the RASTERIRQ register has
-        // different behaviour on read and write:  Write sets the raster line on
-        // which an interrupt is triggered, read reads the current raster line.
-        int rasterLine = this._vic.getRawRegisters()[Vic.RASTERIRQ];
-        rasterLine &= 0xff;
-        if ((this._vic.read(Vic.CTRL1) & Processor.BIT_7) != 0) {
-            rasterLine |= 0x100;
-        }
-        return rasterLine;
-    }
-
-
-    /**
-     * Is the display switched on?
-     *
-     * @return True if display is on, else false.
-     */
-    private boolean isScreenOn() {
-        final byte ctrl1 = this._vic.read(Vic.CTRL1);
-        return 0 != (ctrl1 & Processor.BIT_4);
-    }
-
-
-    /**
-     * Get the offset of the visible display window.  This is a three bit value
-     * that can be accessed in VIC register CTRL1 bits 2-0.
-     *
-     * @return The y offset of the visible display window.
-     */
-    private int screenOffsetY() {
-        return this.screenOffset(Vic.CTRL1);
-    }
-
-
-    /**
-     * The common implementation for screen offset in x and y direction.
-     *
-     * @param register The register to read.  One of CTRL1 or CTRL2.
-     *
-     * @return The offset of the visible display window.
-     */
-    private int screenOffset(final int register) {
-        final byte ctrl = this._vic.read(register);
-        return ctrl & (Processor.BIT_2 | Processor.BIT_1 | Processor.BIT_0);
-    }
-
-
-    /**
-     * Checks whether the right and left borders have to be drawn in wide mode.
-     * This check is based on VIC register 0x16, bit 3.
-     *
-     * @return If the border is to be drawn extended, <code>true</code> is
-     * returned.
-     */
-    private boolean isWideBorderX() {
-        return this.isWideBorder(Vic.CTRL2);
-    }
-
-
-    /**
-     * Checks whether the top and bottom borders have to be drawn in wide mode.
-     * This check is based on VIC register 0x16, bit 3.
-     *
-     * @return If the border is to be drawn extended, <code>true</code> is
-     * returned.
-     */
-    private boolean isWideBorderY() {
-        return this.isWideBorder(Vic.CTRL1);
-    }
-
-
-    /**
-     * The common implementation for the wide border tests.
-     *
-     * @param register Allowed are either Vic.CTRL1 or Vic.CTRL2.
-     *
-     * @return True if bit 3 of the respective register is not set.
-     */
-    private boolean isWideBorder(final int register) {
-        return 0 == (this._vic.read(register) & Processor.BIT_3);
-    }
-
-
     /**
      * Check whether this is a bad line.
      *
+     * @param scanline  The raster line.
+     * @param registers The VIC registers for the raster line.
      * @return true if this is a bad line.
      */
-    private boolean isBadLine(final int scanline) {
-        return (scanline & 7) == this.screenOffsetY();
+    private boolean isBadLine(
+            final int scanline,
+            final VicRegisters registers) {
+        return (scanline & 7) == registers.getScrollY();
     }
 
 
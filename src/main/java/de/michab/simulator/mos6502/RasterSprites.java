@@ -7,6 +7,8 @@
  */
 package de.michab.simulator.mos6502;
 
+import java.util.Arrays;
+
 import de.michab.simulator.Memory;
 
 
@@ -15,6 +17,17 @@ import de.michab.simulator.Memory;
  * Responsible for everything related to sprite rastering.  This includes
  * collision checking as well as foreground and background priority.
  *
+ * <p>Sprites are rastered after the video mode rasterer completed the
+ * scanline.  Layering and collisions are computed on bit masks holding a bit
+ * per pixel:  The occupancy of each sprite, the pixels already covered by
+ * sprites of higher priority and the foreground pixels of the video mode.
+ * Sprite 0 has the highest priority.  A sprite with background priority
+ * still hides the sprites of lower priority where it is behind the
+ * foreground.</p>
+ *
+ * <p>All state is held per instance, so independent VICs can raster
+ * concurrently.</p>
+ *
  * @version $Revision: 11 $
  * @author Michael G. Binz
  */
@@ -42,33 +55,41 @@ final class RasterSprites
 
 
   /**
-   * The current video RAM address.
+   * Reference to all sprites.
    */
-  private int _videoRamAddress;
+  private final Sprite[] _sprites = new Sprite[ Vic.NUM_OF_SPRITES ];
 
 
 
   /**
-   * Reference to all sprites.
+   * A reference to system memory.
    */
-  private final Sprite[] _sprites = new Sprite[ Vic.NUM_OF_SPRITES ];
+  private final Memory _memory;
 
 
 
   /**
-   * A reference to system memory.
+   * A reference to the screen that is drawn.
    */
-  private final Memory _memory;
+  private final byte[] _screen;
+
+
+
+  /**
+   * The pixels of the current scanline covered by sprites.  Used for the
+   * sprite priorities.
+   */
+  private final long[] _covered =
+    new long[ (RasterDisplay.OVERALL_W + 63) / 64 ];
 
 
 
   /**
-   * A single raster line used for sprite sprite collision checking.  A
-   * negative value means that the pixel isn't set.  Zero and positive values
-   * describe the number of the sprite at that place.
+   * The foreground pixels of the inner area in the current scanline.  Used
+   * for the background priority and sprite background collisions.
    */
-  private final int[] _collisionSpriteSprite =
-    new int[ RasterDisplay.OVERALL_W ];
+  private final long[] _foreground =
+    new long[ RasterDisplay.INNER_HORIZ / 64 ];
 
 
 
@@ -79,115 +100,213 @@ final class RasterSprites
    * @param memory A reference to the system memory.
    * @param vic A reference to our home VIC.
    */
-  RasterSprites( int[] screen, Memory memory, Vic vic )
+  RasterSprites( byte[] screen, Memory memory, Vic vic )
   {
     _vic = vic;
     _memory = memory;
+    _screen = screen;
 
     // Create the Sprites.
     for ( int i = _sprites.length -1 ; i >= 0 ; i-- )
-      _sprites[ i ] = new Sprite( 
-        i,
-        _collisionSpriteSprite,
-        vic,
-        _memory,
-        screen );
+      _sprites[ i ] = new Sprite( i, vic );
   }
 
 
 
   /**
-   * Raster all active front sprites into the current scanline.
-   * 
+   * Raster all active sprites into the current scanline and check for
+   * collisions.  Has to be called after the video mode rastered the
+   * scanline.  Rendering on worker threads only draws, the raster thread
+   * only checks the collisions in that case.
+   *
+   * @param registers The VIC registers for the scanline.
+   * @param videoMode The video mode that rastered the scanline.
+   * @param videoRamAddress The current video RAM address.
    * @param scanlineOffset The offset of the current scanline in
    *        the screen array.
-   * @param scanline The number of the current scanline.
+   * @param spriteScanline The number of the current scanline in sprite
+   *        coordinates.
+   * @param scanline The number of the current scanline in the coordinates
+   *        of the video mode.
+   * @param draw If <code>false</code> nothing is drawn.
+   * @param collide If <code>false</code> collisions are not checked.
    */
-  public synchronized void rasterFrontInto( 
+  public synchronized void rasterInto(
+      VicRegisters registers,
+      ScanlineRasterer videoMode,
+      int videoRamAddress,
       int scanlineOffset,
-      int scanline )
+      int spriteScanline,
+      int scanline,
+      boolean draw,
+      boolean collide )
+  {
+    int spriteEnabled = registers.get( Vic.SPRITEENABLE );
+    if ( spriteEnabled == 0 )
+      return;
+
+    int vicSegment = videoRamAddress & 0xc000;
+    byte[] rawMemory = _memory.getRawMemory();
+
+    int active = 0;
+
+    for ( int i = 0 ; i < _sprites.length ; i++ )
+    {
+      if ( 0 == (spriteEnabled & (1 << i)) )
+        continue;
+
+      // The block number for the 8 sprites are located in the 8 bytes at the
+      // end of the video ram.
+      int spriteBlockNumber = 0xff &
+        rawMemory[ videoRamAddress + (1024 - Vic.NUM_OF_SPRITES) + i ];
+      // Each sprite definition block is 64 byte in size.  Map that into the
+      // current vic page.
+      int spriteAddress = vicSegment | (spriteBlockNumber * 0x40);
+
+      if ( _sprites[i].prepare(
+          registers, rawMemory, spriteAddress, spriteScanline ) )
+        active |= 1 << i;
+    }
+
+    if ( active == 0 )
+      return;
+
+    Arrays.fill( _foreground, 0 );
+    videoMode.foregroundInto( _foreground, scanline );
+    Arrays.fill( _covered, 0 );
+
+    int spriteCollisions = 0;
+    int backgroundCollisions = 0;
+
+    for ( int i = 0 ; i < _sprites.length ; i++ )
+    {
+      if ( 0 == (active & (1 << i)) )
+        continue;
+
+      Sprite current = _sprites[i];
+      long occupancy = current.getOccupancy();
+      int x = current.getLinePosition();
+
+      long foreground =
+        window( _foreground, x - RasterDisplay.FRAME_HORIZ );
+
+      if ( collide )
+      {
+        // Check against the sprites of higher priority.
+        for ( int j = 0 ; j < i ; j++ )
+        {
+          if ( 0 != (active & (1 << j)) && overlap( _sprites[j], current ) )
+            spriteCollisions |= (1 << i) | (1 << j);
+        }
+
+        if ( 0 != (occupancy & foreground) )
+          backgroundCollisions |= 1 << i;
+      }
+
+      if ( draw )
+      {
+        long pixels = occupancy & ~window( _covered, x );
+        if ( current.isBehind() )
+          pixels &= ~foreground;
+        pixels &= clip( x );
+
+        current.rasterInto( _screen, scanlineOffset, pixels );
+        orInto( _covered, x, occupancy );
+      }
+    }
+
+    if ( spriteCollisions != 0 )
+      _vic.collisionSpriteSprite( spriteCollisions );
+    if ( backgroundCollisions != 0 )
+      _vic.collisionSpriteBackground( backgroundCollisions );
+  }
+
+
+
+  /**
+   * Check whether two prepared sprites overlap in the current scanline.
+   */
+  private static boolean overlap( Sprite a, Sprite b )
   {
-    rasterInto( true, scanlineOffset, scanline );
+    int distance = b.getLinePosition() - a.getLinePosition();
+
+    if ( distance < 0 )
+    {
+      Sprite swap = a;
+      a = b;
+      b = swap;
+      distance = -distance;
+    }
+
+    if ( distance >= 64 )
+      return false;
+
+    return 0 != ((a.getOccupancy() << distance) & b.getOccupancy());
   }
 
 
 
   /**
-   * Raster all active background sprites into the current scanline.
-   * 
-   * @param videoRamAddress The current video RAM address.
-   * @param scanlineOffset The offset of the current scanline in
-   *        the screen array.
-   * @param scanline The number of the current scanline.
+   * Get a mask for the pixels starting at the passed position that are
+   * inside the scanline.
    */
-  public synchronized void rasterBackInto( int videoRamAddress,
-                              int scanlineOffset,
-                              int scanline )
+  private static long clip( int start )
   {
-    // Clear the collision buffer.
-    java.util.Arrays.fill( _collisionSpriteSprite, Integer.MIN_VALUE );
+    int inside = RasterDisplay.OVERALL_W - start;
 
-    _videoRamAddress = videoRamAddress;
-    rasterInto( false, scanlineOffset, scanline );
+    if ( inside <= 0 )
+      return 0;
+    if ( inside >= 64 )
+      return -1L;
+
+    return -1L << (64 - inside);
   }
 
 
 
   /**
-   * Raster all active sprites into the current scanline.
+   * Get the 64 bits of a bit mask starting at the passed bit position.  The
+   * first bit is the most significant bit.  Bits outside the mask are zero.
    */
-  private void rasterInto( 
-    boolean rasterFront, 
-    int offset, 
-    int scanline )
+  private static long window( long[] mask, int start )
   {
-    int vicSegment = _videoRamAddress & 0xc000;
+    int word = start >> 6;
+    int shift = start & 63;
 
-    byte[] rawMemory = _memory.getRawMemory();
-    
-    // Spriteenabled holds a bit for each displayed sprite.  In case this is 
-    // zero, no sprites are displayed.  We shift the bits one position to
-    // the right on each loops cycle.
-    for ( int i = 0, 
-          spriteEnabled = 0xff & _vic.read( Vic.SPRITEENABLE ) 
-          ; 
-          spriteEnabled != 0 
-          ; 
-          i++, 
-          spriteEnabled >>= 1 )
-    {
-      if ( 0 == (spriteEnabled & 1) )
-        continue;
+    long high = word( mask, word );
+    if ( shift == 0 )
+      return high;
 
-      Sprite current = _sprites[i];
+    return (high << shift) | (word( mask, word + 1 ) >>> (64 - shift));
+  }
 
-      // Is it on the layer we are currently drawing?
-      if ( rasterFront != current.isForeground() )
-        continue;
 
-      // Get the minimum and maximum scanline from the sprite.  This has to be
-      // cached and forwarded to the raster method, since that could change
-      // asynchronously under processor control.
-      int miny = current.getMinimumY();
-      if ( scanline < miny )
-        continue;
 
-      int maxy = current.getMaximumY();
-      if ( scanline > maxy )
-        continue;
+  /**
+   * Set the passed 64 bits in a bit mask starting at the passed position.
+   * Bits outside the mask are ignored.
+   */
+  private static void orInto( long[] mask, int start, long bits )
+  {
+    int word = start >> 6;
+    int shift = start & 63;
 
-      // The block number for the 8 sprites are located in the 8 bytes at the
-      // end of the video ram.
-      int spriteBlockNumber = 0xff &
-        rawMemory[ _videoRamAddress + (1024 - Vic.NUM_OF_SPRITES) + i ];
-      // Each sprite definition block is 64 byte in size.
-      int spriteAddress = spriteBlockNumber * 0x40;
-      // Map that into the current vic page and pass that final address to the
-      // sprite.
-      current.rasterInto( 
-          vicSegment | spriteAddress, 
-          offset, 
-          scanline - miny );
-    }
+    if ( word >= 0 && word < mask.length )
+      mask[ word ] |= bits >>> shift;
+    if ( shift != 0 && word + 1 >= 0 && word + 1 < mask.length )
+      mask[ word + 1 ] |= bits << (64 - shift);
+  }
+
+
+
+  /**
+   * Get a word of a bit mask, zero if outside the mask.
+   */
+  private static long word( long[] mask, int index )
+  {
+    if ( index < 0 || index >= mask.length )
+      return 0;
+
+    return mask[ index ];
   }
 }
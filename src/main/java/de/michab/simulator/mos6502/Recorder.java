@@ -0,0 +1,776 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2004 Michael G. Binz
+ */
+package de.michab.simulator.mos6502;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+
+
+/**
+ * Records the emulator output into files.  The raster display hands over
+ * each completed frame, the SID voices hand over the generated samples.
+ * Both are queued in bounded single producer single consumer queues and
+ * written by a background thread, so the emulation never waits for the
+ * disk.  If the frame queue is full the frame is dropped and counted.
+ *
+ * <p>The video is written either as an uncompressed YUV4MPEG2 stream that
+ * common video tools read, or as raw frames of VIC color indices, a byte
+ * per pixel and <code>Vic.FRAME_WIDTH</code> times
+ * <code>Vic.FRAME_HEIGHT</code> bytes per frame.  The frame rate follows
+ * emulated time, so recording an unthrottled emulation results in a
+ * realtime video.  Frames the display did not render or that were dropped
+ * repeat the previous frame to keep the timeline.</p>
+ *
+ * <p>The audio is written as a 16 bit mono WAV file holding exactly the
+ * samples for the duration of the recorded frames.  The SID generates the
+ * samples in emulated time, for each frame the raster display completes,
+ * so headless and unthrottled emulations are recorded with sound.  The
+ * sample queues hold the samples of the queued frames, samples only get
+ * lost if frames are dropped as well.</p>
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ * @see Vic#setRecorder(Recorder)
+ * @see Sid#setRecorder(Recorder)
+ */
+public final class Recorder
+  implements Closeable
+{
+  /**
+   * The video file formats.
+   */
+  public enum Format
+  {
+    /**
+     * YUV4MPEG2 with full resolution color planes.
+     */
+    Y4M,
+    /**
+     * Raw frames of VIC color indices.
+     */
+    RAW
+  }
+
+
+
+  /**
+   * The factor from the sum of the 8 bit voice samples to 16 bit samples.
+   */
+  private static final int AUDIO_GAIN = 100;
+
+
+
+  /**
+   * The YUV values of the VIC colors.
+   */
+  private static final byte[][] YUV = new byte[ 3 ][ 16 ];
+
+
+
+  static
+  {
+    for ( int i = 0 ; i < YUV[0].length ; i++ )
+    {
+      int rgb = Vic.VIC_RGB_COLORS[ i ];
+      int r = (rgb >> 16) & 0xff;
+      int g = (rgb >> 8) & 0xff;
+      int b = rgb & 0xff;
+
+      // ITU-R BT.601 studio range.
+      YUV[0][i] = (byte)(16 + ((66 * r + 129 * g + 25 * b + 128) >> 8));
+      YUV[1][i] = (byte)(128 + ((-38 * r - 74 * g + 112 * b + 128) >> 8));
+      YUV[2][i] = (byte)(128 + ((112 * r - 94 * g - 18 * b + 128) >> 8));
+    }
+  }
+
+
+
+  /**
+   * The video file format.
+   */
+  private final Format _format;
+
+
+
+  /**
+   * The video stream.
+   */
+  private final OutputStream _video;
+
+
+
+  /**
+   * The audio file, <code>null</code> if audio is not recorded.
+   */
+  private final File _audioFile;
+
+
+
+  /**
+   * The audio stream, <code>null</code> if audio is not recorded.
+   */
+  private final OutputStream _audio;
+
+
+
+  /**
+   * The emulated clock ticks per second and per frame.
+   */
+  private final long _ticksPerSecond;
+  private final int _ticksPerFrame;
+
+
+
+  /**
+   * The frames queued for writing.
+   */
+  private final Ring<Frame> _queued;
+
+
+
+  /**
+   * The frames available to the producer.  Written frames return here.
+   */
+  private final Ring<Frame> _free;
+
+
+
+  /**
+   * The sample queues of the SID voices.
+   */
+  private final SampleRing[] _voices = new SampleRing[ 3 ];
+
+
+
+  /**
+   * Generates the samples in emulated time, <code>null</code> if there is
+   * no SID.
+   */
+  private volatile Sid _sid = null;
+
+
+
+  /**
+   * The number of emulated frames completed and the number of samples
+   * requested from the SID for them.  Used by the raster thread only.
+   */
+  private long _emulatedFrames = 0;
+  private long _emulatedSamples = 0;
+
+
+
+  /**
+   * The background writer.
+   */
+  private final Thread _writer;
+
+
+
+  /**
+   * Set when no more frames are accepted.
+   */
+  private volatile boolean _closed = false;
+
+
+
+  /**
+   * The first error of the writer, <code>null</code> if none.
+   */
+  private volatile IOException _failure = null;
+
+
+
+  /**
+   * The number of frames dropped since the queue was full.
+   */
+  private volatile long _droppedFrames = 0;
+
+
+
+  /**
+   * The number of frames written including repeated frames.
+   */
+  private volatile long _writtenFrames = 0;
+
+
+
+  /**
+   * The number of samples written.
+   */
+  private long _writtenSamples = 0;
+
+
+
+  /**
+   * The writer's copy of the last written frame and its number, negative
+   * if no frame was written.
+   */
+  private final byte[] _last = new byte[ Vic.FRAME_WIDTH * Vic.FRAME_HEIGHT ];
+  private long _lastNumber = -1;
+
+
+
+  /**
+   * The writer's buffers for a converted frame and for the samples of a
+   * frame.
+   */
+  private final byte[] _converted;
+  private int[] _mix = new int[ 0 ];
+  private byte[] _pcm = new byte[ 0 ];
+
+
+
+  /**
+   * Create a recorder and start its writer thread.
+   *
+   * @param video The video file.
+   * @param format The video file format.
+   * @param audio The audio file, <code>null</code> if audio is not
+   *        recorded.
+   * @param ticksPerSecond The emulated clock ticks per second.
+   * @param ticksPerFrame The emulated clock ticks per frame.
+   * @param queueSize The number of frames that can be queued.
+   * @throws IOException If a file cannot be created.
+   * @throws IllegalArgumentException If the queue size is not positive.
+   */
+  public Recorder(
+      File video,
+      Format format,
+      File audio,
+      long ticksPerSecond,
+      int ticksPerFrame,
+      int queueSize )
+    throws IOException
+  {
+    if ( queueSize <= 0 )
+      throw new IllegalArgumentException( "queueSize <= 0" );
+
+    _format = format;
+    _ticksPerSecond = ticksPerSecond;
+    _ticksPerFrame = ticksPerFrame;
+
+    _queued = new Ring<Frame>( queueSize );
+    _free = new Ring<Frame>( queueSize );
+    for ( int i = 0 ; i < queueSize ; i++ )
+      _free.offer( new Frame( _last.length ) );
+
+    // The samples of the queued frames and of the frames in progress.
+    int samples = (int)
+      ((queueSize + 2) * ticksPerFrame * Voice.SAMPLE_RATE / ticksPerSecond);
+    for ( int i = 0 ; i < _voices.length ; i++ )
+      _voices[i] = new SampleRing( samples );
+
+    _converted = format == Format.Y4M ?
+      new byte[ 3 * _last.length ] :
+      null;
+
+    _video = new BufferedOutputStream( new FileOutputStream( video ), 1 << 20 );
+
+    try
+    {
+      if ( format == Format.Y4M )
+      {
+        _video.write( String.format(
+          "YUV4MPEG2 W%d H%d F%d:%d Ip A1:1 C444\n",
+          Vic.FRAME_WIDTH,
+          Vic.FRAME_HEIGHT,
+          ticksPerSecond,
+          ticksPerFrame ).getBytes( StandardCharsets.US_ASCII ) );
+      }
+
+      _audioFile = audio;
+      if ( audio != null )
+      {
+        _audio = new BufferedOutputStream( new FileOutputStream( audio ) );
+        writeWavHeader( _audio, 0 );
+      }
+      else
+        _audio = null;
+    }
+    catch ( IOException e )
+    {
+      _video.close();
+      throw e;
+    }
+
+    _writer = new Thread( this::write, "Recorder" );
+    _writer.setDaemon( true );
+    _writer.start();
+  }
+
+
+
+  /**
+   * Get the video file format.
+   *
+   * @return The video file format.
+   */
+  public Format getFormat()
+  {
+    return _format;
+  }
+
+
+
+  /**
+   * Get the number of frames written so far, including the frames repeated
+   * for frames that were not rendered or dropped.
+   *
+   * @return The number of written frames.
+   */
+  public long getWrittenFrameCount()
+  {
+    return _writtenFrames;
+  }
+
+
+
+  /**
+   * Get the number of frames dropped since the writer could not keep up.
+   *
+   * @return The number of dropped frames.
+   */
+  public long getDroppedFrameCount()
+  {
+    return _droppedFrames;
+  }
+
+
+
+  /**
+   * Stop recording.  Waits until the queued frames are written and closes
+   * the files.  Calling this on a closed recorder has no effect.
+   *
+   * @throws IOException If writing failed.
+   */
+  public void close()
+    throws IOException
+  {
+    if ( _closed )
+      return;
+
+    _closed = true;
+    LockSupport.unpark( _writer );
+
+    boolean interrupted = false;
+    while ( _writer.isAlive() )
+    {
+      try
+      {
+        _writer.join();
+      }
+      catch ( InterruptedException e )
+      {
+        interrupted = true;
+      }
+    }
+    if ( interrupted )
+      Thread.currentThread().interrupt();
+
+    IOException failure = _failure;
+
+    try
+    {
+      _video.close();
+    }
+    catch ( IOException e )
+    {
+      if ( failure == null )
+        failure = e;
+    }
+
+    if ( _audio != null )
+    {
+      try
+      {
+        _audio.close();
+
+        // Enter the sizes into the header.
+        try ( RandomAccessFile file = new RandomAccessFile( _audioFile, "rw" ) )
+        {
+          ByteArrayOutputStream header = new ByteArrayOutputStream();
+          writeWavHeader( header, _writtenSamples );
+          file.write( header.toByteArray() );
+        }
+      }
+      catch ( IOException e )
+      {
+        if ( failure == null )
+          failure = e;
+      }
+    }
+
+    if ( failure != null )
+      throw failure;
+  }
+
+
+
+  /**
+   * Queue a completed frame.  Called on the raster thread, never blocks.
+   *
+   * @param number The frame number.
+   * @param screen The frame as VIC color indices.
+   */
+  void frame( long number, byte[] screen )
+  {
+    if ( _closed )
+      return;
+
+    Frame frame = _free.poll();
+
+    if ( frame == null )
+    {
+      _droppedFrames++;
+      return;
+    }
+
+    System.arraycopy( screen, 0, frame._pixels, 0, frame._pixels.length );
+    frame._number = number;
+    _queued.offer( frame );
+
+    LockSupport.unpark( _writer );
+  }
+
+
+
+  /**
+   * Set the SID generating the samples.  Called by the SID.
+   *
+   * @param sid The SID, <code>null</code> to remove it.
+   */
+  void setSid( Sid sid )
+  {
+    _sid = sid;
+  }
+
+
+
+  /**
+   * Called on the raster thread for each completed emulated frame, whether
+   * it was rendered or not.  Lets the SID generate the samples for the
+   * frame's duration.
+   */
+  void frameCompleted()
+  {
+    Sid sid = _sid;
+
+    if ( _audio == null || _closed || sid == null )
+      return;
+
+    long end = ++_emulatedFrames * _ticksPerFrame * Voice.SAMPLE_RATE /
+      _ticksPerSecond;
+    sid.recordSamples( (int)(end - _emulatedSamples) );
+    _emulatedSamples = end;
+  }
+
+
+
+  /**
+   * Queue the samples generated by a voice.  Called on the emulation
+   * thread, never blocks.  Samples that do not fit into the queue are
+   * dropped.
+   *
+   * @param voice The voice index.
+   * @param samples The signed 8 bit samples.
+   * @param length The number of samples.
+   */
+  void audio( int voice, byte[] samples, int length )
+  {
+    if ( _audio != null && ! _closed )
+      _voices[ voice ].offer( samples, length );
+  }
+
+
+
+  /**
+   * The writer thread's loop.
+   */
+  private void write()
+  {
+    try
+    {
+      while ( true )
+      {
+        Frame frame = _queued.poll();
+
+        if ( frame == null )
+        {
+          if ( _closed )
+            break;
+          LockSupport.parkNanos( 10_000_000L );
+          continue;
+        }
+
+        // Repeat the last frame for the missing frames.
+        if ( _lastNumber >= 0 )
+        {
+          for ( long i = _lastNumber + 1 ; i < frame._number ; i++ )
+            writeFrame( _last );
+        }
+
+        writeFrame( frame._pixels );
+        System.arraycopy( frame._pixels, 0, _last, 0, _last.length );
+        _lastNumber = frame._number;
+
+        _free.offer( frame );
+      }
+    }
+    catch ( IOException e )
+    {
+      _failure = e;
+      _closed = true;
+    }
+  }
+
+
+
+  /**
+   * Write a frame and the samples for its duration.
+   */
+  private void writeFrame( byte[] pixels )
+    throws IOException
+  {
+    if ( _format == Format.Y4M )
+    {
+      int size = pixels.length;
+      for ( int i = 0 ; i < size ; i++ )
+      {
+        int color = pixels[i] & 0xf;
+        _converted[ i ] = YUV[0][ color ];
+        _converted[ size + i ] = YUV[1][ color ];
+        _converted[ 2 * size + i ] = YUV[2][ color ];
+      }
+      _video.write( "FRAME\n".getBytes( StandardCharsets.US_ASCII ) );
+      _video.write( _converted );
+    }
+    else
+      _video.write( pixels );
+
+    long frames = ++_writtenFrames;
+
+    if ( _audio != null )
+    {
+      long end = frames * _ticksPerFrame * Voice.SAMPLE_RATE / _ticksPerSecond;
+      writeSamples( (int)(end - _writtenSamples) );
+    }
+  }
+
+
+
+  /**
+   * Mix and write the passed number of samples.
+   */
+  private void writeSamples( int count )
+    throws IOException
+  {
+    if ( _mix.length < count )
+    {
+      _mix = new int[ count ];
+      _pcm = new byte[ 2 * count ];
+    }
+
+    Arrays.fill( _mix, 0, count, 0 );
+    for ( SampleRing voice : _voices )
+      voice.addInto( _mix, count );
+
+    for ( int i = 0 ; i < count ; i++ )
+    {
+      int sample = _mix[i] * AUDIO_GAIN;
+      if ( sample > Short.MAX_VALUE )
+        sample = Short.MAX_VALUE;
+      else if ( sample < Short.MIN_VALUE )
+        sample = Short.MIN_VALUE;
+      _pcm[ 2 * i ] = (byte)sample;
+      _pcm[ 2 * i + 1 ] = (byte)(sample >> 8);
+    }
+
+    _audio.write( _pcm, 0, 2 * count );
+    _writtenSamples += count;
+  }
+
+
+
+  /**
+   * Write the header of a 16 bit mono WAV file.
+   */
+  private static void writeWavHeader( OutputStream out, long samples )
+    throws IOException
+  {
+    int dataSize = (int)Math.min( 2 * samples, Integer.MAX_VALUE - 36 );
+
+    out.write( "RIFF".getBytes( StandardCharsets.US_ASCII ) );
+    writeInt( out, 36 + dataSize );
+    out.write( "WAVEfmt ".getBytes( StandardCharsets.US_ASCII ) );
+    writeInt( out, 16 );
+    // PCM, one channel.
+    writeShort( out, 1 );
+    writeShort( out, 1 );
+    writeInt( out, Voice.SAMPLE_RATE );
+    writeInt( out, 2 * Voice.SAMPLE_RATE );
+    writeShort( out, 2 );
+    writeShort( out, 16 );
+    out.write( "data".getBytes( StandardCharsets.US_ASCII ) );
+    writeInt( out, dataSize );
+  }
+
+
+
+  /**
+   * Write a little endian int.
+   */
+  private static void writeInt( OutputStream out, int value )
+    throws IOException
+  {
+    writeShort( out, value );
+    writeShort( out, value >> 16 );
+  }
+
+
+
+  /**
+   * Write a little endian short.
+   */
+  private static void writeShort( OutputStream out, int value )
+    throws IOException
+  {
+    out.write( value );
+    out.write( value >> 8 );
+  }
+
+
+
+  /**
+   * A frame buffer travelling between the producer and the writer.
+   */
+  private static final class Frame
+  {
+    private final byte[] _pixels;
+    private long _number;
+
+    Frame( int size )
+    {
+      _pixels = new byte[ size ];
+    }
+  }
+
+
+
+  /**
+   * A bounded queue for a single producer and a single consumer thread.
+   * Neither side blocks or locks.
+   */
+  private static final class Ring<T>
+  {
+    private final Object[] _items;
+
+    /**
+     * The count of taken items, written by the consumer only.
+     */
+    private volatile long _head = 0;
+
+    /**
+     * The count of added items, written by the producer only.
+     */
+    private volatile long _tail = 0;
+
+    Ring( int capacity )
+    {
+      _items = new Object[ capacity ];
+    }
+
+    /**
+     * Add an item.  Returns <code>false</code> if the queue is full.
+     */
+    boolean offer( T item )
+    {
+      long tail = _tail;
+      if ( tail - _head == _items.length )
+        return false;
+
+      _items[ (int)(tail % _items.length) ] = item;
+      _tail = tail + 1;
+      return true;
+    }
+
+    /**
+     * Take an item.  Returns <code>null</code> if the queue is empty.
+     */
+    @SuppressWarnings( "unchecked" )
+    T poll()
+    {
+      long head = _head;
+      if ( head == _tail )
+        return null;
+
+      int index = (int)(head % _items.length);
+      T result = (T)_items[ index ];
+      _items[ index ] = null;
+      _head = head + 1;
+      return result;
+    }
+  }
+
+
+
+  /**
+   * A bounded sample queue for a single producer and a single consumer
+   * thread.
+   */
+  private static final class SampleRing
+  {
+    private final byte[] _samples;
+
+    private volatile long _head = 0;
+
+    private volatile long _tail = 0;
+
+    SampleRing( int capacity )
+    {
+      _samples = new byte[ capacity ];
+    }
+
+    /**
+     * Add samples, the samples that do not fit are dropped.
+     */
+    void offer( byte[] samples, int length )
+    {
+      long tail = _tail;
+      int count = (int)Math.min( length, _samples.length - (tail - _head) );
+
+      for ( int i = 0 ; i < count ; i++ )
+        _samples[ (int)((tail + i) % _samples.length) ] = samples[i];
+
+      _tail = tail + count;
+    }
+
+    /**
+     * Take up to the passed number of samples and add them to the mix.
+     */
+    void addInto( int[] mix, int length )
+    {
+      long head = _head;
+      int count = (int)Math.min( length, _tail - head );
+
+      for ( int i = 0 ; i < count ; i++ )
+        mix[i] += _samples[ (int)((head + i) % _samples.length) ];
+
+      _head = head + count;
+    }
+  }
+}
@@ -42,15 +42,31 @@ interface ScanlineRasterer
   /**
    * Gets called for a single raster line.  Has to raster its information into
    * the array window that is defined by the passed parameters.  The values
-   * that are written into this array are actual RGB values.
+   * that are written into this array are VIC color indices.
    * Bits that are to be rastered with background color must not be touched
    * in the implementation.  This is needed to allow layered sprite rastering.
    *
    * @param scanlineOffset The start offset for this operation.
    * @param scanline The actual scanline that has to be rastered.  Should be
    *                 used for optimisation purposes.
+   * @param registers The VIC registers for the scanline.
    */
-  public void rasterInto( int scanlineOffset, int scanline );
+  public void rasterInto(
+      int scanlineOffset, int scanline, VicRegisters registers );
+
+
+
+  /**
+   * Computes the foreground pixels of a scanline.  These are the pixels that
+   * collide with sprites and hide sprites with background priority:  Set
+   * bits in single color modes, the bit pairs 10 and 11 in multicolor modes.
+   * Pixel x of the scanline is held in bit 63-(x%64) of word x/64.
+   *
+   * @param mask The cleared mask receiving the foreground pixels.  Holds
+   *             320 bits.
+   * @param scanline The scanline, see <code>rasterInto()</code>.
+   */
+  public void foregroundInto( long[] mask, int scanline );
 
 
 
@@ -59,8 +75,9 @@ interface ScanlineRasterer
    * anything else is done.
    *
    * @param scanlineOffset The start offset for this operation.
+   * @param registers The VIC registers for the scanline.
    */
-  public void backfill( int scanlineOffset );
+  public void backfill( int scanlineOffset, VicRegisters registers );
   
   
   
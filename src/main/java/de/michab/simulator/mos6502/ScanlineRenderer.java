@@ -0,0 +1,394 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2004 Michael G. Binz
+ */
+package de.michab.simulator.mos6502;
+
+import java.util.Arrays;
+
+import de.michab.simulator.Memory;
+
+
+
+/**
+ * Does the pixel work for single raster lines.  Holds a rasterer per video
+ * mode and the sprite rasterer, all bound to a memory and a screen.  The
+ * raster display owns a renderer on the system memory that renders lines
+ * synchronously and checks sprite collisions.  Worker threads own renderers
+ * on memory snapshots and render bands of recorded lines.
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ * @see RasterDisplay
+ * @see FrameCommands
+ */
+final class ScanlineRenderer
+{
+  /**
+   * The monochrome text mode.
+   */
+  static final int MODE_TEXT = 0;
+
+
+
+  /**
+   * The multi color text mode.
+   */
+  static final int MODE_TEXT_MULTI = 1;
+
+
+
+  /**
+   * The extended color text mode.
+   */
+  static final int MODE_TEXT_EXTENDED = 2;
+
+
+
+  /**
+   * The monochrome bitmap mode.
+   */
+  static final int MODE_BITMAP = 3;
+
+
+
+  /**
+   * The multi color bitmap mode.
+   */
+  static final int MODE_BITMAP_MULTI = 4;
+
+
+
+  /**
+   * Sprite coordinate system offset in y direction.
+   */
+  private static final int SPRITE_Y_OFFSET = 30;
+
+
+
+  /**
+   * The screen that is drawn.
+   */
+  private final byte[] _screen;
+
+
+
+  /**
+   * The rasterers indexed by video mode.
+   */
+  private final ScanlineRasterer[] _modes;
+
+
+
+  /**
+   * The raster engine responsible for sprite rastering.
+   */
+  private final RasterSprites _spriteRasterer;
+
+
+
+  /**
+   * The snapshot this renderer reads, <code>null</code> if bound to the
+   * system memory.
+   */
+  private final MemorySnapshot _snapshot;
+
+
+
+  /**
+   * The current video mode.
+   */
+  private int _mode = MODE_TEXT;
+
+
+
+  /**
+   * The current video RAM address.
+   */
+  private int _videoRamAddress = 0;
+
+
+
+  /**
+   * Create a renderer on the system memory.
+   *
+   * @param vic The home VIC.
+   * @param screen The screen that is drawn.
+   * @param memory The system memory.
+   * @param colorRam The color RAM.
+   */
+  ScanlineRenderer( Vic vic, byte[] screen, Memory memory, byte[] colorRam )
+  {
+    this( vic, screen, memory, colorRam, null );
+  }
+
+
+
+  /**
+   * Create a renderer on a snapshot.
+   *
+   * @param vic The home VIC.
+   * @param screen The screen that is drawn.
+   * @param snapshot The snapshot to read.  Receives the content to render
+   *        by <code>load()</code>.
+   */
+  ScanlineRenderer( Vic vic, byte[] screen, MemorySnapshot snapshot )
+  {
+    this( vic, screen, snapshot, snapshot.getColorRam(), snapshot );
+  }
+
+
+
+  /**
+   * Create an instance.
+   */
+  private ScanlineRenderer(
+      Vic vic,
+      byte[] screen,
+      Memory memory,
+      byte[] colorRam,
+      MemorySnapshot snapshot )
+  {
+    _screen = screen;
+    _snapshot = snapshot;
+
+    _modes = new ScanlineRasterer[]
+    {
+      new RasterCharacter( vic, screen, memory, colorRam ),
+      new RasterCharacterMulti( vic, screen, memory, colorRam ),
+      new RasterCharacterExtended( vic, screen, memory, colorRam ),
+      new RasterBitmap( screen, memory ),
+      new RasterBitmapMulti( vic, screen, memory, colorRam )
+    };
+
+    _spriteRasterer = new RasterSprites( screen, memory, vic );
+  }
+
+
+
+  /**
+   * Get the video mode for the passed flags.
+   *
+   * @param bitmap <code>True</code> if graphics mode is selected.
+   * @param extended <code>True</code> if extended color mode is selected.
+   * @param multi <code>True</code> if multi color mode is selected.
+   * @return The video mode.
+   */
+  static int getMode( boolean bitmap, boolean extended, boolean multi )
+  {
+    // Extended isn't supported for bitmap modes.
+    if ( bitmap )
+      return multi ? MODE_BITMAP_MULTI : MODE_BITMAP;
+
+    // Not clear what to do if multi and extended are set.  Currently multi-
+    // color just overrides extended.
+    if ( multi )
+      return MODE_TEXT_MULTI;
+    if ( extended )
+      return MODE_TEXT_EXTENDED;
+
+    return MODE_TEXT;
+  }
+
+
+
+  /**
+   * Check whether the passed video mode is a bitmap mode.
+   *
+   * @param mode The video mode.
+   * @return <code>true</code> for bitmap modes.
+   */
+  static boolean isBitmap( int mode )
+  {
+    return mode == MODE_BITMAP || mode == MODE_BITMAP_MULTI;
+  }
+
+
+
+  /**
+   * Set the video mode and the addresses of the memory regions.  Starts a
+   * new frame in the mode's rasterer.
+   *
+   * @param mode The video mode.
+   * @param characterAdr The character set address.
+   * @param videoRamAdr The video RAM address.
+   * @param bitmapAdr The bitmap address.
+   */
+  void setMode( int mode, int characterAdr, int videoRamAdr, int bitmapAdr )
+  {
+    _mode = mode;
+    _videoRamAddress = videoRamAdr;
+    _modes[ mode ].startFrame( characterAdr, videoRamAdr, bitmapAdr );
+  }
+
+
+
+  /**
+   * Get the current video mode.
+   *
+   * @return The video mode.
+   */
+  int getMode()
+  {
+    return _mode;
+  }
+
+
+
+  /**
+   * Copy the content of a snapshot into the snapshot this renderer reads.
+   * Only allowed for renderers on a snapshot.
+   *
+   * @param source The snapshot to copy.
+   */
+  void load( MemorySnapshot source )
+  {
+    _snapshot.load( source );
+  }
+
+
+
+  /**
+   * Called for a bad line.  The current video mode re-reads its data.
+   *
+   * @param rasterLine The raster line.
+   */
+  void badLine( int rasterLine )
+  {
+    _modes[ _mode ].badLine( rasterLine );
+  }
+
+
+
+  /**
+   * Renders a visible raster line into the screen.
+   *
+   * @param rasterLine The raster line to draw.
+   * @param registers The VIC registers for the raster line.
+   * @param collide If <code>true</code> sprite collisions are checked.
+   */
+  void renderLine( int rasterLine, VicRegisters registers, boolean collide )
+  {
+    // The index of the current raster line in the screen array.
+    int rasterlineIdx =
+      (rasterLine - RasterDisplay.VERTICAL_INVISIBLE) * RasterDisplay.OVERALL_W;
+
+    byte frameColor = registers.getColor( Vic.EXTERIORCOL );
+
+    if ( ! isInnerLine( rasterLine, registers ) )
+    {
+      // Draw the top and bottom frame scanlines.
+      Arrays.fill(
+        _screen,
+        rasterlineIdx,
+        rasterlineIdx + RasterDisplay.OVERALL_W,
+        frameColor );
+      return;
+    }
+
+    ScanlineRasterer videoMode = _modes[ _mode ];
+
+    // Fill the current scanline with background pixels.
+    videoMode.backfill( rasterlineIdx + RasterDisplay.FRAME_HORIZ, registers );
+
+    // The current raster mode is responsible for drawing the screen's
+    // content.
+    videoMode.rasterInto(
+      rasterlineIdx + RasterDisplay.FRAME_HORIZ,
+      rasterLine - RasterDisplay.FRAME_VERT,
+      registers );
+
+    // Raster the sprites on top, they know about the foreground and
+    // background priorities.
+    _spriteRasterer.rasterInto(
+      registers,
+      videoMode,
+      _videoRamAddress,
+      rasterlineIdx,
+      rasterLine - RasterDisplay.FRAME_VERT + SPRITE_Y_OFFSET,
+      rasterLine - RasterDisplay.FRAME_VERT,
+      true,
+      collide );
+
+    // Draw the right and left frame.
+    int framePlusLeft = 0;
+    int framePlusRight = 0;
+    if ( registers.isWideBorderX() )
+    {
+      framePlusLeft = 7;
+      framePlusRight = 9;
+    }
+    int innerEnd = rasterlineIdx +
+      RasterDisplay.FRAME_HORIZ + RasterDisplay.INNER_HORIZ;
+    Arrays.fill(
+      _screen,
+      rasterlineIdx,
+      rasterlineIdx + RasterDisplay.FRAME_HORIZ + framePlusLeft,
+      frameColor );
+    Arrays.fill(
+      _screen,
+      innerEnd - framePlusRight,
+      innerEnd + RasterDisplay.FRAME_HORIZ,
+      frameColor );
+  }
+
+
+
+  /**
+   * Checks the sprite collisions of a visible raster line without drawing.
+   * Sprite collisions are part of the program logic and are checked even if
+   * the line is not rendered.
+   *
+   * @param rasterLine The raster line to check.
+   * @param registers The VIC registers for the raster line.
+   */
+  void checkCollisions( int rasterLine, VicRegisters registers )
+  {
+    if ( ! isInnerLine( rasterLine, registers ) )
+      return;
+
+    int rasterlineIdx =
+      (rasterLine - RasterDisplay.VERTICAL_INVISIBLE) * RasterDisplay.OVERALL_W;
+
+    _spriteRasterer.rasterInto(
+      registers,
+      _modes[ _mode ],
+      _videoRamAddress,
+      rasterlineIdx,
+      rasterLine - RasterDisplay.FRAME_VERT + SPRITE_Y_OFFSET,
+      rasterLine - RasterDisplay.FRAME_VERT,
+      false,
+      true );
+  }
+
+
+
+  /**
+   * Returns a VIC color code encoding the current video mode.
+   *
+   * @return A VIC color code.
+   */
+  int getDebugColor()
+  {
+    return _modes[ _mode ].getDebugColor();
+  }
+
+
+
+  /**
+   * Check whether the raster line shows the display window.
+   */
+  private static boolean isInnerLine( int rasterLine, VicRegisters registers )
+  {
+    int framePlusTopBottom = registers.isWideBorderY() ? 7 : 0;
+
+    return
+      rasterLine >= (RasterDisplay.FRAME_VERT + framePlusTopBottom) &&
+      rasterLine < (RasterDisplay.FRAME_VERT +
+        RasterDisplay.INNER_VERT - framePlusTopBottom) &&
+      registers.isScreenOn();
+  }
+}
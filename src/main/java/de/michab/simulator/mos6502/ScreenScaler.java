@@ -0,0 +1,328 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2004 Michael G. Binz
+ */
+package de.michab.simulator.mos6502;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+
+
+
+/**
+ * Scales frames of VIC color indices for presentation.  The frame is
+ * enlarged by the largest integer factor fitting into the target area and
+ * written into a cached image that is drawn without further scaling, so the
+ * graphics pipeline does not resample.
+ *
+ * <p>Rows are built once through a column lookup table and replicated by
+ * copying.  The aspect ratio correction narrows the columns to the pixel
+ * aspect ratio of a PAL C64 through the column table.  The scanline effect
+ * draws the last row of each replicated group through a color lookup
+ * table mapping to the dimmed half of the image's palette.</p>
+ *
+ * <p>If the target area is smaller than the frame the frame is reduced by a
+ * fractional factor instead.  Then a row lookup table selects the source row
+ * of each image row, the scanline effect is not applied.</p>
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ * @see RasterDisplay
+ */
+final class ScreenScaler
+{
+  /**
+   * The width to height ratio of a PAL C64 pixel.
+   */
+  private static final double PAL_PIXEL_ASPECT = 0.9365;
+
+
+
+  /**
+   * The brightness of the dimmed scanlines in percent.
+   */
+  private static final int SCANLINE_BRIGHTNESS = 60;
+
+
+
+  /**
+   * The VIC colors followed by their dimmed variants.
+   */
+  private static final IndexColorModel COLOR_MODEL;
+
+
+
+  /**
+   * Maps a VIC color index to the index of the dimmed color.
+   */
+  private static final byte[] DIM = new byte[ 256 ];
+
+
+
+  static
+  {
+    int count = Vic.VIC_RGB_COLORS.length;
+    byte[] r = new byte[ 2 * count ];
+    byte[] g = new byte[ 2 * count ];
+    byte[] b = new byte[ 2 * count ];
+
+    for ( int i = 0 ; i < count ; i++ )
+    {
+      int rgb = Vic.VIC_RGB_COLORS[i];
+      r[i] = (byte)(rgb >> 16);
+      g[i] = (byte)(rgb >> 8);
+      b[i] = (byte)rgb;
+      r[count + i] = (byte)(((rgb >> 16) & 0xff) * SCANLINE_BRIGHTNESS / 100);
+      g[count + i] = (byte)(((rgb >> 8) & 0xff) * SCANLINE_BRIGHTNESS / 100);
+      b[count + i] = (byte)((rgb & 0xff) * SCANLINE_BRIGHTNESS / 100);
+    }
+
+    COLOR_MODEL = new IndexColorModel( 8, 2 * count, r, g, b );
+
+    for ( int i = 0 ; i < DIM.length ; i++ )
+      DIM[i] = (byte)(count + (i % count));
+  }
+
+
+
+  /**
+   * The size of the source frames.
+   */
+  private final int _width;
+  private final int _height;
+
+
+
+  /**
+   * The target area and the options the cached image was created for.
+   */
+  private int _targetWidth = -1;
+  private int _targetHeight = -1;
+  private boolean _scanlines = false;
+  private boolean _aspect = false;
+
+
+
+  /**
+   * The integer scale factor.  Zero if the frame is reduced.
+   */
+  private int _scale = 1;
+
+
+
+  /**
+   * The cached image and its pixels.
+   */
+  private BufferedImage _image = null;
+  private byte[] _pixels = null;
+
+
+
+  /**
+   * Maps a column of the image to the column of the source frame.
+   */
+  private int[] _columns = null;
+
+
+
+  /**
+   * Maps a row of the image to the row of the source frame.  Only used if
+   * the frame is reduced.
+   */
+  private int[] _rows = null;
+
+
+
+  /**
+   * The position of the image centered in the target area.
+   */
+  private int _x = 0;
+  private int _y = 0;
+
+
+
+  /**
+   * Create an instance.
+   *
+   * @param width The width of the source frames.
+   * @param height The height of the source frames.
+   */
+  ScreenScaler( int width, int height )
+  {
+    _width = width;
+    _height = height;
+  }
+
+
+
+  /**
+   * Prepare for a target area and options.  The image and the lookup
+   * tables are only recomputed if anything changed.
+   *
+   * @param targetWidth The width of the target area.
+   * @param targetHeight The height of the target area.
+   * @param scanlines If <code>true</code> the last row of each scaled row
+   *        is dimmed.  Has no effect for a scale factor of one or less.
+   * @param aspect If <code>true</code> the pixel aspect ratio is corrected.
+   * @return <code>true</code> if the layout changed.  The area not covered
+   *         by the image has to be cleared in that case.
+   */
+  boolean configure(
+      int targetWidth,
+      int targetHeight,
+      boolean scanlines,
+      boolean aspect )
+  {
+    if ( _image != null &&
+        targetWidth == _targetWidth &&
+        targetHeight == _targetHeight &&
+        scanlines == _scanlines &&
+        aspect == _aspect )
+      return false;
+
+    _targetWidth = targetWidth;
+    _targetHeight = targetHeight;
+    _scanlines = scanlines;
+    _aspect = aspect;
+
+    double pixelWidth = aspect ? PAL_PIXEL_ASPECT : 1.0;
+
+    double factor = Math.min(
+      targetWidth / (_width * pixelWidth),
+      targetHeight / (double)_height );
+    _scale = (int)factor;
+
+    int width;
+    int height;
+
+    if ( _scale > 0 )
+    {
+      width = (int)Math.round( _width * _scale * pixelWidth );
+      height = _height * _scale;
+      _rows = null;
+    }
+    else
+    {
+      width = Math.max( 1, (int)(_width * factor * pixelWidth) );
+      height = Math.max( 1, (int)(_height * factor) );
+      _rows = new int[ height ];
+      for ( int i = 0 ; i < height ; i++ )
+        _rows[i] = (int)(((long)i * _height) / height);
+    }
+
+    _columns = new int[ width ];
+    for ( int i = 0 ; i < width ; i++ )
+      _columns[i] = (int)(((long)i * _width) / width);
+
+    _image = new BufferedImage(
+      width,
+      height,
+      BufferedImage.TYPE_BYTE_INDEXED,
+      COLOR_MODEL );
+    _pixels = ((DataBufferByte)_image.getRaster().getDataBuffer()).getData();
+
+    _x = (targetWidth - width) / 2;
+    _y = (targetHeight - height) / 2;
+
+    return true;
+  }
+
+
+
+  /**
+   * Scale a frame into the cached image.
+   *
+   * @param screen The frame as VIC color indices.
+   * @return The image, to be drawn unscaled at <code>getX()</code>,
+   *         <code>getY()</code>.
+   */
+  BufferedImage scale( byte[] screen )
+  {
+    int width = _columns.length;
+    int scale = _scale;
+    boolean scanlines = _scanlines && scale > 1;
+    byte[] pixels = _pixels;
+    int[] columns = _columns;
+
+    if ( scale == 0 )
+    {
+      int[] rows = _rows;
+
+      for ( int y = 0 ; y < rows.length ; y++ )
+      {
+        int source = rows[y] * _width;
+        int row = y * width;
+
+        for ( int x = 0 ; x < width ; x++ )
+          pixels[row + x] = screen[source + columns[x]];
+      }
+
+      return _image;
+    }
+
+    int row = 0;
+
+    for ( int y = 0 ; y < _height ; y++ )
+    {
+      int source = y * _width;
+
+      for ( int x = 0 ; x < width ; x++ )
+        pixels[row + x] = screen[source + columns[x]];
+
+      int replicas = scanlines ? scale - 1 : scale;
+      for ( int i = 1 ; i < replicas ; i++ )
+        System.arraycopy( pixels, row, pixels, row + i * width, width );
+
+      if ( scanlines )
+      {
+        int dimmed = row + (scale - 1) * width;
+        for ( int x = 0 ; x < width ; x++ )
+          pixels[dimmed + x] = DIM[ pixels[row + x] & 0xff ];
+      }
+
+      row += scale * width;
+    }
+
+    return _image;
+  }
+
+
+
+  /**
+   * Get the horizontal position of the image in the target area.
+   *
+   * @return The position.
+   */
+  int getX()
+  {
+    return _x;
+  }
+
+
+
+  /**
+   * Get the vertical position of the image in the target area.
+   *
+   * @return The position.
+   */
+  int getY()
+  {
+    return _y;
+  }
+
+
+
+  /**
+   * Get the current scale factor.
+   *
+   * @return The scale factor, zero if the frame is reduced.
+   */
+  int getScale()
+  {
+    return _scale;
+  }
+}
@@ -71,25 +71,74 @@ public final class Sid
 
 
   /**
-   * Create an instance.
+   * Set when the chip is closed.
+   */
+  private boolean _closed = false;
+
+
+
+  /**
+   * Receives the generated samples, <code>null</code> if not recording.
+   */
+  private Recorder _recorder = null;
+
+
+
+  /**
+   * The samples of the emulated time passed to <code>recordSamples()</code>
+   * that are not yet generated.
+   */
+  private int _pendingSamples = 0;
+
+
+
+  /**
+   * Create an instance.  The voices are created on the first write while
+   * sound is switched on or a recorder is set.  The audio lines are only
+   * opened while sound is switched on, so an emulation running without
+   * sound does not allocate audio resources.
    */
   public Sid()
   {
     _ports = createPorts( _registers.length );
+  }
+
+
+
+  /**
+   * Creates the voices.
+   */
+  private void createVoices()
+  {
+    _voices[0] = new Voice( _registers, 0 );
+    _voices[1] = new Voice( _registers, 7 );
+    _voices[2] = new Voice( _registers, 14 );
+    _voices[0].setNext( _voices[2] );
+    _voices[1].setNext( _voices[0] );
+    _voices[2].setNext( _voices[1] );
+    for ( Voice v : _voices )
+      v.setRecorder( _recorder );
+  }
+
 
+
+  /**
+   * Opens the audio lines of the voices.
+   */
+  private void openLines()
+  {
     try
     {
-      _voices[0] = new Voice( _registers, 0 );
-      _voices[1] = new Voice( _registers, 7 );
-      _voices[2] = new Voice( _registers, 14 );
-      _voices[0].setNext( _voices[2] );
-      _voices[1].setNext( _voices[0] );
-      _voices[2].setNext( _voices[1] );
+      for ( Voice v : _voices )
+        v.openLine();
     }
     catch ( Exception e )
     {
       log.log( Level.SEVERE, "Error while initializing SID chip.", e );
       _error = true;
+
+      for ( Voice v : _voices )
+        v.close();
     }
   }
 
@@ -149,9 +198,16 @@ public final class Sid
     if ( log.isLoggable( Level.FINE ) )
       log.fine( "Sid: write: " + portId + " = " + data );
 
-    if ( ! isSoundOn() )
+    // While recording the voices are updated even if no sound is played.
+    if ( _closed || (! isSoundOn() && _recorder == null) )
       return;
 
+    if ( _voices[0] == null )
+      createVoices();
+
+    if ( isSoundOn() && ! _voices[0].hasLine() )
+      openLines();
+
     switch ( portId )
     {
       case 0x4:
@@ -208,6 +264,76 @@ public final class Sid
 
 
 
+  /**
+   * Get the chip's state.
+   *
+   * @return The state.
+   */
+  public synchronized State getState()
+  {
+    return new State( _registers.clone() );
+  }
+
+
+
+  /**
+   * Set the chip's state.  Sounding voices are not changed.
+   *
+   * @param state The state to set.
+   */
+  public synchronized void setState( State state )
+  {
+    System.arraycopy( state._registers, 0, _registers, 0, NUM_OF_REGS );
+  }
+
+
+
+  /**
+   * Releases the audio lines of the voices.  Sound cannot be switched on
+   * after this call.
+   */
+  public synchronized void close()
+  {
+    _closed = true;
+
+    for ( int i = 0 ; i < _voices.length ; i++ )
+    {
+      if ( _voices[i] != null )
+        _voices[i].close();
+      _voices[i] = null;
+    }
+  }
+
+
+
+  /**
+   * Set the recorder receiving the samples generated by the voices.  While
+   * recording the samples are generated in emulated time, whether sound is
+   * switched on or not.
+   *
+   * @param recorder The recorder, <code>null</code> to stop recording.
+   * @see #recordSamples(int)
+   */
+  public synchronized void setRecorder( Recorder recorder )
+  {
+    if ( _recorder != null )
+      _recorder.setSid( null );
+
+    _recorder = recorder;
+    _pendingSamples = 0;
+
+    if ( recorder != null )
+      recorder.setSid( this );
+
+    for ( Voice v : _voices )
+    {
+      if ( v != null )
+        v.setRecorder( recorder );
+    }
+  }
+
+
+
   /**
    * Check whether sound is active.
    *
@@ -216,7 +342,7 @@ public final class Sid
    */
   public synchronized boolean isSoundOn()
   {
-    return (! _error) && _soundOn;
+    return (! _error) && (! _closed) && _soundOn;
   }
 
 
@@ -234,6 +360,33 @@ public final class Sid
 
 
 
+  /**
+   * Generate the samples for a duration of emulated time and pass them to
+   * the recorder.  Called by the recorder for each emulated frame.
+   *
+   * @param count The number of samples the duration takes.
+   */
+  synchronized void recordSamples( int count )
+  {
+    if ( _closed || _recorder == null )
+      return;
+
+    if ( _voices[0] == null )
+      createVoices();
+
+    _pendingSamples += count;
+
+    while ( _pendingSamples >= Voice.GENLEN )
+    {
+      _voices[0].record();
+      _voices[1].record();
+      _voices[2].record();
+      _pendingSamples -= Voice.GENLEN;
+    }
+  }
+
+
+
   /**
    * Simply propagate the sound update to the three voices.
    */
@@ -243,4 +396,24 @@ public final class Sid
       _voices[1].updateSound();
       _voices[2].updateSound();
   }
+
+
+
+  /**
+   * An immutable state of the SID.
+   */
+  public static final class State
+  {
+    private final int[] _registers;
+
+
+
+    /**
+     * Create an instance.
+     */
+    private State( int[] registers )
+    {
+      _registers = registers;
+    }
+  }
 }
@@ -7,10 +7,6 @@
  */
 package de.michab.simulator.mos6502;
 
-import java.awt.image.*;
-
-import de.michab.simulator.Memory;
-
 
 
 /**
@@ -18,7 +14,16 @@ import de.michab.simulator.Memory;
  * used primarily in games to represent game characters.  A sprite can either
  * have a single colour or multi colours with reduced size.
  *
+ * <p>For each raster line the sprite expands its current data row into two
+ * words:  An occupancy mask holding a bit per screen pixel, the leftmost
+ * pixel in the most significant bit, and a color word holding a two bit
+ * color index per data bit.  The expansion is done by table lookups and is
+ * reused for consecutive lines showing the same row.  The occupancy masks
+ * are used for collision checking and layering by
+ * <code>RasterSprites</code>.</p>
+ *
  * @see de.michab.simulator.mos6502.Vic
+ * @see de.michab.simulator.mos6502.RasterSprites
  * @version $Revision: 410 $
  * @author Michael G. Binz
  */
@@ -32,46 +37,96 @@ final class Sprite
 
 
   /**
-   * Sample model for single color sprites.  Note that the size of the sample
-   * holds exactly a single sprite raster line and that the single instance is
-   * used to draw all sprites.
+   * Color index of a multicolor sprite's 01 bit pair.
+   */
+  private static final int COLOR_MULTI0 = 1;
+
+
+
+  /**
+   * Color index of the sprite color.  Used for set bits of single color
+   * sprites and the 10 bit pair of multicolor sprites.
+   */
+  private static final int COLOR_SPRITE = 2;
+
+
+
+  /**
+   * Color index of a multicolor sprite's 11 bit pair.
    */
-  private static final MultiPixelPackedSampleModel _spriteModel =
-    new MultiPixelPackedSampleModel(
-      DataBuffer.TYPE_BYTE,
-      RasterSprites.SPRITE_WIDTH,
-      1,
-      1 );
+  private static final int COLOR_MULTI1 = 3;
 
 
 
   /**
-   * Sample model for multi color sprites.  Note that the size of the sample
-   * holds exactly a single sprite raster line and that the single instance is
-   * used to draw all sprites.
+   * Maps a single color data byte to its color indices, two bits per data
+   * bit.
    */
-  private static final MultiPixelPackedSampleModel _spriteModelMulti =
-    new MultiPixelPackedSampleModel(
-      DataBuffer.TYPE_BYTE,
-      RasterSprites.SPRITE_WIDTH/2,
-      1,
-      2 );
+  private static final int[] HIRES_COLORS = new int[ 256 ];
 
 
 
   /**
-   * A data buffer for the single color model.
+   * Maps a multicolor data byte to its color indices, two bits per data bit.
+   * Both bits of a pair receive the color index of the pair.
    */
-  private static final DataBufferByte _spriteModelBuffer =
-    (DataBufferByte)_spriteModel.createDataBuffer();
+  private static final int[] MULTI_COLORS = new int[ 256 ];
 
 
 
   /**
-   * A data buffer for the multi color model.
+   * Maps a multicolor data byte to its occupancy, both bits of a non zero
+   * bit pair are set.
    */
-  private static final DataBufferByte _spriteModelMultiBuffer =
-    (DataBufferByte)_spriteModelMulti.createDataBuffer();
+  private static final int[] MULTI_OCCUPANCY = new int[ 256 ];
+
+
+
+  /**
+   * Maps an occupancy byte to the occupancy in double width, each bit is
+   * doubled.
+   */
+  private static final int[] DOUBLE_WIDTH = new int[ 256 ];
+
+
+
+  static
+  {
+    for ( int b = 0 ; b < 256 ; b++ )
+    {
+      for ( int bit = 7 ; bit >= 0 ; bit-- )
+      {
+        if ( 0 != (b & (1 << bit)) )
+        {
+          HIRES_COLORS[b] |= COLOR_SPRITE << (2 * bit);
+          DOUBLE_WIDTH[b] |= 3 << (2 * bit);
+        }
+      }
+
+      for ( int pair = 3 ; pair >= 0 ; pair-- )
+      {
+        int index = (b >> (2 * pair)) & 3;
+
+        switch ( index )
+        {
+          case 1:
+            index = COLOR_MULTI0;
+            break;
+          case 2:
+            index = COLOR_SPRITE;
+            break;
+          case 3:
+            index = COLOR_MULTI1;
+            break;
+        }
+
+        MULTI_COLORS[b] |= ((index << 2) | index) << (4 * pair);
+
+        if ( index != 0 )
+          MULTI_OCCUPANCY[b] |= 3 << (2 * pair);
+      }
+    }
+  }
 
 
 
@@ -90,48 +145,74 @@ final class Sprite
 
 
   /**
-   * A reference to the computer's system memory.
+   * The VIC, only used for the string representation.
    */
-  private final Memory _memory;
+  private final Vic _vic;
 
 
 
   /**
-   * A reference to the whole screen.  These are RGB pixels.
+   * The VIC colors of the color indices, index zero is unused.
    */
-  private final int[] _screen;
+  private final byte[] _vicColors = new byte[ 4 ];
 
 
 
   /**
-   *
+   * The position of the leftmost pixel in the current raster line.
    */
-// TODO Activate collision checking.
-  // private int[] _collisionSpriteSprite;
+  private int _x;
 
 
 
   /**
-   *
+   * True if the sprite is drawn behind the foreground graphics.
    */
-  private final Vic _vic;
+  private boolean _behind;
+
+
+
+  /**
+   * True if the sprite is double width.
+   */
+  private boolean _doubleWidth;
+
+
+
+  /**
+   * The occupancy of the current row, the leftmost pixel in the most
+   * significant bit.
+   */
+  private long _occupancy;
+
+
+
+  /**
+   * The color indices of the current row, two bits per data bit.  The
+   * leftmost data bit is in bits 47 and 46.
+   */
+  private long _colors;
+
+
+
+  /**
+   * The row data and mode the occupancy and colors were expanded from.  A
+   * negative value if nothing was expanded yet.
+   */
+  private int _expandedKey = -1;
 
 
 
   /**
    * Constructor.
+   *
+   * @param spriteIdx The sprite's index number.
+   * @param home The home VIC.
    */
-  Sprite( int spriteIdx,
-          int[] spriteSpriteCollision,
-          Vic home,
-          Memory memory,
-          int[] screen )
+  Sprite( int spriteIdx, Vic home )
   {
     _spriteIdx = spriteIdx;
     _idxBit = 1 << spriteIdx;
-// TODO    _collisionSpriteSprite = spriteSpriteCollision;
-    _memory = memory;
-    _screen = screen;
     _vic = home;
   }
 
@@ -140,19 +221,20 @@ final class Sprite
   /*
    * Inherit Javadoc.
    */
-  public synchronized String toString()
+  public String toString()
   {
     StringBuffer result = new StringBuffer( "Sp#" );
     result.append( _spriteIdx );
     result.append( '(' );
 
-    if ( isOn() )
+    if ( isIndexBitSet( _vic.read( Vic.SPRITEENABLE ) ) )
     {
       result.append( " x/y=" );
-      result.append( getX() );
+      result.append( getX( _vic.read( Vic.S0X + (2*_spriteIdx) ),
+                           _vic.read( Vic.MSBX ) ) );
       result.append( '/' );
-      result.append( getY() );
-      if ( isMulticolor() )
+      result.append( _vic.read( Vic.S0Y + (2*_spriteIdx) ) & 0xff );
+      if ( isIndexBitSet( _vic.read( Vic.SPRITEMULTICOL ) ) )
       {
         result.append( ", Multicolor=" );
         result.append( _vic.read( Vic.SPRITEMULTIC0 ) );
@@ -167,8 +249,8 @@ final class Sprite
         result.append( _vic.read( Vic.SPRITECOL0 + _spriteIdx ) );
       }
       result.append( ", DBLW/H=" );
-      result.append( isDoubleWidth() );
-      result.append( isDoubleHeight() );
+      result.append( isIndexBitSet( _vic.read( Vic.SPRITEEXPANDX ) ) );
+      result.append( isIndexBitSet( _vic.read( Vic.SPRITEEXPANDY ) ) );
     }
     else
       result.append( " off" );
@@ -181,196 +263,169 @@ final class Sprite
 
 
   /**
-   * Raster this sprite into the current scanline.
+   * Prepares the sprite for a raster line.  Checks whether the sprite is
+   * visible on the line and expands the data row shown on the line.
    *
-   * @param spriteLine The sprite's scanline.
+   * @param registers The VIC registers.
+   * @param memory The system memory.
+   * @param adr The address of the sprite's data block.
+   * @param scanline The number of the current scanline in sprite
+   *        coordinates.
+   * @return <code>true</code> if the sprite is visible on the line.
    */
-  final synchronized void rasterInto(
+  boolean prepare(
+      VicRegisters registers,
+      byte[] memory,
       int adr,
-      int scanlineOffset,
-      int spriteLine )
+      int scanline )
   {
-    int colorRgb = Vic.VIC_RGB_COLORS[
-      _vic.read( Vic.SPRITECOL0 + _spriteIdx ) ];
+    // The sprite covers the lines [y-20..y], or [y-20..y+21] in double
+    // height.
+    int row = scanline -
+      (registers.get( Vic.S0Y + (2*_spriteIdx) ) -
+        (RasterSprites.SPRITE_HEIGHT - 1));
 
-    DataBufferByte currentModelBuffer;
-    MultiPixelPackedSampleModel currentModel;
+    if ( row < 0 )
+      return false;
 
-    // Read this sprite's colors.
-    boolean isMulticolor = isMulticolor();
-    int multiColor0Rgb = 0;
-    int multiColor1Rgb = 0;
-    if ( isMulticolor )
-    {
-      multiColor0Rgb =
-        Vic.VIC_RGB_COLORS[ _vic.read( Vic.SPRITEMULTIC0 ) ];
-      multiColor1Rgb =
-        Vic.VIC_RGB_COLORS[ _vic.read( Vic.SPRITEMULTIC1 ) ];
-      currentModelBuffer = _spriteModelMultiBuffer;
-      currentModel = _spriteModelMulti;
-    }
-    else
-    {
-      currentModelBuffer = _spriteModelBuffer;
-      currentModel = _spriteModel;
-    }
+    if ( registers.isSet( Vic.SPRITEEXPANDY, _idxBit ) )
+      row /= 2;
+
+    if ( row >= RasterSprites.SPRITE_HEIGHT )
+      return false;
 
-    // Adjust the current sprite scanline if we are in double height mode.
-    if ( isDoubleHeight() )
-      spriteLine /= 2;
+    _x = getX( registers.get( Vic.S0X + (2*_spriteIdx) ),
+               registers.get( Vic.MSBX ) ) +
+      SPRITE_X_OFFSET;
+    _behind = registers.isSet( Vic.SPRITEBACKGRD, _idxBit );
+
+    boolean isMulticolor = registers.isSet( Vic.SPRITEMULTICOL, _idxBit );
+    _doubleWidth = registers.isSet( Vic.SPRITEEXPANDX, _idxBit );
 
-    // Blit the data into our buffer.
+    _vicColors[ COLOR_SPRITE ] =
+      registers.getColor( Vic.SPRITECOL0 + _spriteIdx );
+    if ( isMulticolor )
     {
-      byte[] hotBuffer = currentModelBuffer.getData();
-      System.arraycopy(
-          _memory.getRawMemory(),
-          adr + (spriteLine*hotBuffer.length),
-          hotBuffer,
-          0,
-          hotBuffer.length );
+      _vicColors[ COLOR_MULTI0 ] = registers.getColor( Vic.SPRITEMULTIC0 );
+      _vicColors[ COLOR_MULTI1 ] = registers.getColor( Vic.SPRITEMULTIC1 );
     }
 
-    int targetBaseIdx =
-      scanlineOffset +
-      getX() +
-      SPRITE_X_OFFSET;
-
-    // This code draws multicolor as well as single color sprites.
-    for ( int srcx = currentModel.getWidth()-1,
-          // Width of a single color area on the target screen.
-          step = ( isDoubleWidth() ? 2 : 1  ) * currentModel.getSampleSize(0),
-          tgtx = targetBaseIdx + (srcx*step);
+    int rowAdr = adr + (3 * row);
+    int data =
+      ((memory[ rowAdr ] & 0xff) << 16) |
+      ((memory[ rowAdr + 1 ] & 0xff) << 8) |
+      (memory[ rowAdr + 2 ] & 0xff);
 
-          srcx >= 0 ;
+    int key = data |
+      (isMulticolor ? 1 << 24 : 0) |
+      (_doubleWidth ? 1 << 25 : 0);
 
-          srcx--,
-          tgtx-=step )
+    if ( key != _expandedKey )
     {
-      switch ( currentModel.getSample( srcx, 0, 0, currentModelBuffer ) )
-      {
-        // This case switch is used for multi and single color sprites.  So it
-        // is the only place where we have to differenciate the handling.
-        // Maybe not the fastest...
-        case 1:
-          for ( int i = tgtx + step -1 ; i >= tgtx ; i-- )
-          {
-            _screen[ i ] = isMulticolor ? multiColor0Rgb : colorRgb;
-            //if ( _collisionSpriteSprite[i] >= 0 )
-            //  _vic.collisionSpriteSprite( _spriteIdx, _collisionSpriteSprite[i] );
-            //else
-            //  _collisionSpriteSprite[i] = _spriteIdx;
-          }
-          break;
-
-        case 2:
-          for ( int i = tgtx + step -1 ; i >= tgtx ; i-- )
-          {
-            _screen[ i ] = multiColor1Rgb;
-            //if ( _collisionSpriteSprite[i] >= 0 )
-            //  _vic.collisionSpriteSprite( _spriteIdx, _collisionSpriteSprite[i] );
-            //else
-            //  _collisionSpriteSprite[i] = _spriteIdx;
-          }
-          break;
-
-        case 3:
-          for ( int i = tgtx + step -1 ; i >= tgtx ; i-- )
-          {
-            _screen[ i ] = colorRgb;
-            //if ( _collisionSpriteSprite[i] >= 0 )
-            //  _vic.collisionSpriteSprite( _spriteIdx, _collisionSpriteSprite[i] );
-            //else
-            //  _collisionSpriteSprite[i] = _spriteIdx;
-          }
-          break;
-      }
+      expand( data, isMulticolor );
+      _expandedKey = key;
     }
+
+    return true;
   }
 
 
 
   /**
-   * Set sprite double width mode.
+   * Expands a data row into the occupancy and color words.
    */
-  private boolean isDoubleWidth()
+  private void expand( int data, boolean isMulticolor )
   {
-    return isIndexBitSet( Vic.SPRITEEXPANDX );
-  }
+    int b0 = (data >> 16) & 0xff;
+    int b1 = (data >> 8) & 0xff;
+    int b2 = data & 0xff;
 
+    int[] colors = isMulticolor ? MULTI_COLORS : HIRES_COLORS;
+    _colors =
+      ((long)colors[ b0 ] << 32) |
+      ((long)colors[ b1 ] << 16) |
+      colors[ b2 ];
 
+    if ( isMulticolor )
+    {
+      b0 = MULTI_OCCUPANCY[ b0 ];
+      b1 = MULTI_OCCUPANCY[ b1 ];
+      b2 = MULTI_OCCUPANCY[ b2 ];
+    }
 
-  /**
-   * Get sprite double height mode.
-   */
-  private boolean isDoubleHeight()
-  {
-    return isIndexBitSet( Vic.SPRITEEXPANDY );
+    if ( _doubleWidth )
+      _occupancy =
+        (((long)DOUBLE_WIDTH[ b0 ] << 32) |
+         ((long)DOUBLE_WIDTH[ b1 ] << 16) |
+         DOUBLE_WIDTH[ b2 ]) << 16;
+    else
+      _occupancy = ((long)((b0 << 16) | (b1 << 8) | b2)) << 40;
   }
 
 
 
   /**
+   * Raster the passed pixels of this sprite into the current scanline.
    *
+   * @param screen The screen array.
+   * @param scanlineOffset The offset of the current scanline in the screen
+   *        array.
+   * @param pixels The pixels to draw, a subset of the occupancy mask.
    */
-  synchronized boolean isForeground()
+  void rasterInto( byte[] screen, int scanlineOffset, long pixels )
   {
-    return ! isIndexBitSet( Vic.SPRITEBACKGRD );
-  }
-
+    int targetIdx = scanlineOffset + _x;
+    int shift = _doubleWidth ? 1 : 0;
 
+    while ( pixels != 0 )
+    {
+      int i = Long.numberOfLeadingZeros( pixels );
+      pixels &= ~(Long.MIN_VALUE >>> i);
 
-  /**
-   * Returns whether this sprite is displayed.
-   *
-   * @return A <code>true</code> if the sprite is displayed.
-   */
-  synchronized boolean isOn()
-  {
-    return isIndexBitSet( Vic.SPRITEENABLE );
+      int colorShift = 46 - (2 * (i >> shift));
+      screen[ targetIdx + i ] =
+        _vicColors[ (int)(_colors >>> colorShift) & 3 ];
+    }
   }
 
 
 
   /**
-   * Returns the minimum scanline the sprite uses.  This value depends on the
-   * VIC's scanline system.
+   * Get the occupancy of the current row.  Valid after a successful
+   * <code>prepare()</code>.
+   *
+   * @return The occupancy mask, the leftmost pixel in the most significant
+   *         bit.
    */
-  synchronized int getMinimumY()
+  long getOccupancy()
   {
-    int result =
-      getY() -
-      (RasterSprites.SPRITE_HEIGHT - 1);
-
-    if ( result < 0 )
-      result = 0;
-
-    return result;
+    return _occupancy;
   }
 
 
 
   /**
-   * Returns the maximum scanline that is used by this sprite.  The value
-   * depends on the VIC's scanline system.
+   * Get the position of the leftmost pixel in the current raster line.
+   * Valid after a successful <code>prepare()</code>.
+   *
+   * @return The position in pixels.
    */
-  synchronized int getMaximumY()
+  int getLinePosition()
   {
-    int result = getY();
-
-    if ( isDoubleHeight() )
-      result += RasterSprites.SPRITE_HEIGHT;
-
-    return result;
+    return _x;
   }
 
 
 
   /**
-   * Get this sprite's y coordinate.
+   * Check whether the sprite is drawn behind the foreground graphics.
+   * Valid after a successful <code>prepare()</code>.
+   *
+   * @return <code>true</code> if the sprite is drawn behind the foreground.
    */
-  private int getY()
+  boolean isBehind()
   {
-    return _vic.read( Vic.S0Y + (2*_spriteIdx) ) & 0xff;
+    return _behind;
   }
 
 
@@ -378,13 +433,10 @@ final class Sprite
   /**
    * Get this sprite's x coordinate.
    */
-  private int getX()
+  private int getX( int x, int msbx )
   {
-    int result =
-      0xff & _vic.read( Vic.S0X + (2*_spriteIdx) );
-    boolean bitEight =
-      isIndexBitSet( Vic.MSBX );
-    if ( bitEight )
+    int result = 0xff & x;
+    if ( isIndexBitSet( msbx ) )
       result |= (1<<8);
     return result;
   }
@@ -392,26 +444,13 @@ final class Sprite
 
 
   /**
-   * Check if this sprite is in multicolor mode.
-   *
-   * @return True f this sprite is in multicolor mode.
-   */
-  private boolean isMulticolor()
-  {
-    return isIndexBitSet( Vic.SPRITEMULTICOL );
-  }
-
-
-
-  /**
-   * Check whether this Sprite's bit is set in the passed register.
+   * Check whether this Sprite's bit is set in the passed register value.
    *
-   * @param vicRegister The VIC register to read.
+   * @param value The register value.
    * @return True if this Sprite's bit was set.
    */
-  private boolean isIndexBitSet( int vicRegister )
+  private boolean isIndexBitSet( int value )
   {
-    int value = _vic.read( vicRegister );
     return 0 != (value & _idxBit);
   }
 }
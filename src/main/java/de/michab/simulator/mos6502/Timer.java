@@ -53,6 +53,14 @@ final class Timer
 
 
 
+  /**
+   * The time a restored running timer expires.  Zero if the timer was not
+   * restored.
+   */
+  private long _restoredExpiry = 0;
+
+
+
   /**
    * Sleep time.
    */
@@ -251,6 +259,54 @@ final class Timer
 
 
 
+  /**
+   * Get the timer's state.  Only valid while the emulation is halted.
+   *
+   * @return The state.
+   */
+  synchronized State getState()
+  {
+    long expiry = 0;
+
+    if ( _running )
+      expiry = _restoredExpiry != 0 ?
+        _restoredExpiry :
+        _clock.currentLocalTime();
+
+    return new State(
+      _countdownValue,
+      _cyclicTimer,
+      _startWait,
+      expiry,
+      _clock.currentTime() );
+  }
+
+
+
+  /**
+   * Set the timer's state.  Only allowed before the clock is started or
+   * while the halted emulation is restored.  The timer's thread is scheduled before all other clients at the time of the
+   * state, so a stopped timer is waiting for its start before another chip
+   * can start it.
+   *
+   * @param state The state to set.
+   */
+  synchronized void setState( State state )
+  {
+    _countdownValue = state._countdownValue;
+    _cyclicTimer = state._cyclic;
+    _startWait = state._startWait;
+    _running = state._expiry != 0;
+    _restoredExpiry = state._expiry;
+
+    long start = state._time;
+    if ( _running )
+      start = Math.min( start, state._expiry );
+    _clock.restoreLocalTime( start - 1 );
+  }
+
+
+
   /*
    * Parent javadoc.
    */
@@ -258,30 +314,100 @@ final class Timer
   {
     _clock.prepare();
 
-    while ( true )
+    try
     {
-      _running = false;
-      try
+      while ( ! _clock.isClosed() )
       {
-        if ( _log.isLoggable( Level.FINE ) )
-          _log.fine( _worker.getName() + ":unschedule" );
-
-        _clock.unschedule();
-
-        _running = true;
-
-        do
+        try
+        {
+          // A restored running timer continues without waiting for a start.
+          if ( _restoredExpiry == 0 )
+          {
+            _running = false;
+
+            if ( _log.isLoggable( Level.FINE ) )
+              _log.fine( _worker.getName() + ":unschedule" );
+
+            _clock.unschedule();
+
+            // A timer restored while waiting for its start continues from
+            // the restored state.
+            if ( _clock.takeRestored() )
+              continue;
+
+            _running = true;
+          }
+
+          do
+          {
+            int wait = _countdownValue;
+
+            if ( _restoredExpiry != 0 )
+            {
+              wait = (int)(_restoredExpiry - _clock.currentLocalTime());
+              _restoredExpiry = 0;
+            }
+            else
+              _startWait = _clock.currentLocalTime();
+
+            // A timer with a latch of zero expires on each cycle.
+            if ( wait < 1 )
+              wait = 1;
+
+            _clock.advance( wait );
+            // A timer restored while running did not expire.
+            if ( _clock.takeRestored() )
+              break;
+            // Notify our home CIA of the timer finish.
+            _cia.timerFinished( this );
+          }
+          while ( _cyclicTimer && ! _clock.isClosed() );
+        }
+        catch ( InterruptedException e )
         {
-          _startWait = _clock.currentLocalTime();
-          _clock.advance( _countdownValue );
-          // Notify our home CIA of the timer finish.
-          _cia.timerFinished( this );
         }
-        while ( _cyclicTimer );
-      }
-      catch ( InterruptedException e )
-      {
       }
     }
+    catch ( RuntimeException | Error e )
+    {
+      _clock.fail( e );
+    }
+  }
+
+
+
+  /**
+   * An immutable state of a timer.
+   */
+  static final class State
+  {
+    private final int _countdownValue;
+    private final boolean _cyclic;
+    private final long _startWait;
+    private final long _expiry;
+    private final long _time;
+
+
+
+    /**
+     * Create an instance.
+     *
+     * @param expiry The time the running timer expires, zero if the timer
+     *        is stopped.
+     * @param time The clock time of the state.
+     */
+    private State(
+        int countdownValue,
+        boolean cyclic,
+        long startWait,
+        long expiry,
+        long time )
+    {
+      _countdownValue = countdownValue;
+      _cyclic = cyclic;
+      _startWait = startWait;
+      _expiry = expiry;
+      _time = time;
+    }
   }
 }
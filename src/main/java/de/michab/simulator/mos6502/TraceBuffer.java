@@ -0,0 +1,359 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2004 Michael G. Binz
+ */
+package de.michab.simulator.mos6502;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+
+/**
+ * An instruction trace recorder for the <code>Cpu6510</code>.  Each executed
+ * instruction is written into a fixed size ring of records held in an
+ * off-heap buffer that is allocated once.  No objects are allocated per
+ * instruction.
+ *
+ * <p>The trace buffer is only created if the system property
+ * <code>de.michab.simulator.mos6502.Cpu6510.trace</code> is set to the
+ * number of records the ring should hold.  Otherwise the processor does not
+ * contain any tracing code, see <code>Cpu6510.getTraceBuffer()</code>.</p>
+ *
+ * <p>The ring is dumped to a file if the processor hits an unknown opcode,
+ * if a breakpoint is hit or if <code>dump()</code> is called.  In streaming
+ * mode every record is written to a file, the ring is then only used as a
+ * write buffer.  Files are decoded by
+ * <code>de.michab.utils.tools.TraceDecoder</code>.</p>
+ *
+ * <p>A file starts with a header of {@value #HEADER_SIZE} bytes: The magic
+ * number {@value #MAGIC}, the format version and the record size as shorts
+ * and the number of records as a long, -1 for streamed files.  The records
+ * follow in execution order.  A record holds the cycle counter as a long,
+ * the program counter as a short, followed by the opcode, two operand bytes
+ * and the registers A, X, Y, SP and P, all before the instruction was
+ * executed.  Unused operand bytes are zero.  All values are big endian.</p>
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+public final class TraceBuffer
+{
+  private static final Logger _log =
+    Logger.getLogger( TraceBuffer.class.getName() );
+
+
+
+  /**
+   * The file magic number.
+   */
+  public static final int MAGIC = 0x52363454;
+
+
+
+  /**
+   * The file format version.
+   */
+  public static final int VERSION = 1;
+
+
+
+  /**
+   * The size of the file header.
+   */
+  public static final int HEADER_SIZE = 16;
+
+
+
+  /**
+   * The size of a single record.
+   */
+  public static final int RECORD_SIZE = 18;
+
+
+
+  /**
+   * The ring.
+   */
+  private final ByteBuffer _ring;
+
+
+
+  /**
+   * The write position in the ring.
+   */
+  private int _position = 0;
+
+
+
+  /**
+   * The total number of records written.
+   */
+  private long _count = 0;
+
+
+
+  /**
+   * The file the ring is dumped to on a trigger.
+   */
+  private File _dumpFile =
+    new File( System.getProperty( "java.io.tmpdir" ), "route64.trace" );
+
+
+
+  /**
+   * The file records are streamed to.  Null if not in streaming mode.
+   */
+  private FileChannel _stream = null;
+
+
+
+  /**
+   * Create an instance.  Created by the processor only.
+   *
+   * @param records The number of records the ring holds.
+   */
+  TraceBuffer( int records )
+  {
+    _ring = ByteBuffer.allocateDirect( records * RECORD_SIZE );
+  }
+
+
+
+  /**
+   * Called by the processor before each instruction is executed.
+   */
+  void record(
+    long cycle,
+    int pc,
+    int opcode,
+    int operand1,
+    int operand2,
+    int a,
+    int x,
+    int y,
+    int sp,
+    int p )
+  {
+    int position = _position;
+
+    _ring.putLong( position, cycle );
+    _ring.putShort( position + 8, (short)pc );
+    _ring.put( position + 10, (byte)opcode );
+    _ring.put( position + 11, (byte)operand1 );
+    _ring.put( position + 12, (byte)operand2 );
+    _ring.put( position + 13, (byte)a );
+    _ring.put( position + 14, (byte)x );
+    _ring.put( position + 15, (byte)y );
+    _ring.put( position + 16, (byte)sp );
+    _ring.put( position + 17, (byte)p );
+
+    position += RECORD_SIZE;
+
+    if ( position == _ring.capacity() )
+    {
+      position = 0;
+      if ( _stream != null )
+        flushStream();
+    }
+
+    _position = position;
+    _count++;
+  }
+
+
+
+  /**
+   * Set the file the ring is dumped to if the processor hits an unknown
+   * opcode or a breakpoint.  Default is <code>route64.trace</code> in the
+   * temporary directory.
+   *
+   * @param file The file, <code>null</code> switches dumping off.
+   */
+  public synchronized void setDumpFile( File file )
+  {
+    _dumpFile = file;
+  }
+
+
+
+  /**
+   * Write the records currently held in the ring to a file.  If this is
+   * called while the processor is running the newest records may be
+   * incomplete.
+   *
+   * @param file The file to write.
+   * @throws IOException In case of an error.
+   */
+  public synchronized void dump( File file )
+    throws IOException
+  {
+    long count = Math.min( _count, _ring.capacity() / RECORD_SIZE );
+    int end = _position;
+
+    try ( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) )
+    {
+      raf.setLength( 0 );
+      FileChannel channel = raf.getChannel();
+      channel.write( header( count ) );
+
+      ByteBuffer ring = _ring.duplicate();
+      // If the ring has wrapped write the older part first.
+      if ( _count > count )
+      {
+        ring.limit( ring.capacity() ).position( end );
+        channel.write( ring );
+      }
+      ring.limit( end ).position( 0 );
+      channel.write( ring );
+    }
+  }
+
+
+
+  /**
+   * Called by the processor on trace events.  Dumps the ring to the dump
+   * file.
+   *
+   * @param reason The reason for the dump.  Used for logging.
+   */
+  synchronized void trigger( String reason )
+  {
+    if ( _dumpFile == null || _stream != null )
+      return;
+
+    try
+    {
+      dump( _dumpFile );
+      _log.info( reason + ": trace written to " + _dumpFile );
+    }
+    catch ( IOException e )
+    {
+      _log.log( Level.WARNING, "Writing trace failed.", e );
+    }
+  }
+
+
+
+  /**
+   * Switch to streaming mode.  All following records are written to the
+   * passed file.  Note that this slows down emulation considerably.  Call
+   * this while the processor is halted, e.g. from a debugger callback,
+   * otherwise records written concurrently may be lost.
+   *
+   * @param file The file to write.
+   * @throws IOException In case of an error.
+   */
+  public synchronized void startStreaming( File file )
+    throws IOException
+  {
+    stopStreaming();
+
+    @SuppressWarnings( "resource" )
+    FileChannel channel = new RandomAccessFile( file, "rw" ).getChannel();
+    try
+    {
+      channel.truncate( 0 );
+      channel.write( header( -1 ) );
+    }
+    catch ( IOException e )
+    {
+      channel.close();
+      throw e;
+    }
+
+    // Streaming starts with an empty ring.
+    _position = 0;
+    _count = 0;
+    _stream = channel;
+  }
+
+
+
+  /**
+   * Ends streaming mode and closes the stream file.  The same restrictions
+   * as for <code>startStreaming()</code> apply.
+   *
+   * @throws IOException In case of an error.
+   */
+  public synchronized void stopStreaming()
+    throws IOException
+  {
+    if ( _stream == null )
+      return;
+
+    FileChannel channel = _stream;
+    _stream = null;
+
+    try
+    {
+      ByteBuffer rest = _ring.duplicate();
+      rest.limit( _position ).position( 0 );
+      channel.write( rest );
+    }
+    finally
+    {
+      channel.close();
+
+      _position = 0;
+      _count = 0;
+    }
+  }
+
+
+
+  /**
+   * Writes the full ring to the stream file.  Ends streaming on an error.
+   */
+  private void flushStream()
+  {
+    try
+    {
+      ByteBuffer all = _ring.duplicate();
+      all.clear();
+      while ( all.hasRemaining() )
+        _stream.write( all );
+    }
+    catch ( IOException e )
+    {
+      _log.log( Level.WARNING, "Streaming trace failed.", e );
+
+      FileChannel channel = _stream;
+      _stream = null;
+      try
+      {
+        channel.close();
+      }
+      catch ( IOException ee )
+      {
+        _log.log( Level.FINE, "Closing trace stream failed.", ee );
+      }
+    }
+  }
+
+
+
+  /**
+   * Creates a file header.
+   */
+  private static ByteBuffer header( long count )
+  {
+    ByteBuffer result = ByteBuffer.allocate( HEADER_SIZE );
+
+    result.putInt( MAGIC );
+    result.putShort( (short)VERSION );
+    result.putShort( (short)RECORD_SIZE );
+    result.putLong( count );
+    result.flip();
+
+    return result;
+  }
+}
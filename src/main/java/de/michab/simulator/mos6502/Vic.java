@@ -9,8 +9,12 @@ package de.michab.simulator.mos6502;
 
 import de.michab.simulator.Clock;
 import java.awt.*;
+import java.awt.image.IndexColorModel;
 import de.michab.simulator.*;
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 
 
@@ -77,6 +81,30 @@ public class Vic
 
 
 
+  /**
+   * A color model mapping the VIC color indices to the colors of
+   * <code>VIC_RGB_COLORS</code>.  Used to present frames of color indices.
+   */
+  public static final IndexColorModel VIC_COLOR_MODEL;
+
+  static
+  {
+    byte[] r = new byte[ VIC_RGB_COLORS.length ];
+    byte[] g = new byte[ VIC_RGB_COLORS.length ];
+    byte[] b = new byte[ VIC_RGB_COLORS.length ];
+
+    for ( int i = 0 ; i < VIC_RGB_COLORS.length ; i++ )
+    {
+      r[i] = (byte)(VIC_RGB_COLORS[i] >> 16);
+      g[i] = (byte)(VIC_RGB_COLORS[i] >> 8);
+      b[i] = (byte)VIC_RGB_COLORS[i];
+    }
+
+    VIC_COLOR_MODEL = new IndexColorModel( 8, VIC_RGB_COLORS.length, r, g, b );
+  }
+
+
+
   final static int BLACK_IDX = 0;
   final static int WHITE_IDX = 1;
   final static int RED_IDX = 2;
@@ -109,25 +137,37 @@ public class Vic
 
 
   /**
-   * The associated RasterDisplay.
+   * The width of the frames delivered by <code>requestFrame()</code>.
    */
-  private final RasterDisplay _raster;
+  public static final int FRAME_WIDTH = RasterDisplay.OVERALL_W;
 
 
 
   /**
-   * A reference to the system's processor.
+   * The height of the frames delivered by <code>requestFrame()</code>.
    */
-  private final Cpu6510 _cpu;
+  public static final int FRAME_HEIGHT = RasterDisplay.OVERALL_H;
 
 
 
-  /* TODO collision checking
-   * A single raster line used for sprite backgound collision checking.  A true
-   * value means that this pixel is set.
-  private boolean[] _collisionSpriteBack =
-    new boolean[ RasterDisplay.OVERALL_W ];
+  /**
+   * The number of clock cycles per frame.
    */
+  public static final int CYCLES_PER_FRAME = RasterDisplay.CYCLES_PER_FRAME;
+
+
+
+  /**
+   * The associated RasterDisplay.
+   */
+  private final RasterDisplay _raster;
+
+
+
+  /**
+   * A reference to the system's processor.
+   */
+  private final Cpu6510 _cpu;
 
 
 
@@ -255,7 +295,7 @@ public class Vic
   /**
    * This chip's number of registers.
    */
-  static final private int NUM_OF_REGS = UNUSED17+1;
+  static final int NUM_OF_REGS = UNUSED17+1;
 
 
 
@@ -266,6 +306,13 @@ public class Vic
 
 
 
+  /**
+   * The registers as last written, published for the rendering code.
+   */
+  private volatile VicRegisters _latch = new VicRegisters( _registers );
+
+
+
   /**
    * The color ram
    */
@@ -327,7 +374,8 @@ public class Vic
       memory.set( colorForwarders[i], i + colorRamAddress );
 
     // Create a display component on this memory.
-    _raster = new RasterDisplay( this, memory, _colorRam, clock );
+    _raster = new RasterDisplay(
+        this, memory, _colorRam, colorRamAddress, clock );
 
     // Reset the chip.
     reset();
@@ -404,6 +452,13 @@ public class Vic
         result = 0xff;
         break;
 
+      // The collision registers are cleared when read.
+      case SPRITESPRITECOLL:
+      case SPRITEBACKCOLL:
+        result = _registers[ portId ];
+        _registers[ portId ] = 0;
+        break;
+
       case S0X:
       case S0Y:
       case S1X:
@@ -445,8 +500,13 @@ public class Vic
     // it allows a very simple implementation of the read switch.  As long as
     // the last value written into a register is returned on the next read no
     // special implementation is needed.
+    int previous = _registers[ portId ];
     _registers[ portId ] = value;
 
+    // Publish the changed registers.
+    if ( previous != value )
+      _latch = new VicRegisters( _registers );
+
     switch ( portId )
     {
       case CTRL1:
@@ -542,9 +602,8 @@ public class Vic
         break;
 
       default:
-        System.err.println( "Vic: Invalid port offset: " + portId );
-        System.exit( 1 );
-        break;
+        throw new IllegalArgumentException(
+          "Vic: Invalid port offset: " + portId );
     }
   }
 
@@ -561,28 +620,57 @@ public class Vic
 
 
   /**
-   * Handles sprite/sprite collision interrupt.
+   * Handles sprite/sprite collisions.  The colliding sprites are added to
+   * the collision register.  The interrupt is only triggered by the first
+   * collision after the register was read.
+   *
+   * @param sprites A bit mask holding the colliding sprites.
+   */
+  synchronized void collisionSpriteSprite( int sprites )
+  {
+    collision( SPRITESPRITECOLL, sprites, Processor.BIT_2 );
+  }
+
+
+
+  /**
+   * Called if sprites collided with the background.  The interrupt is only
+   * triggered by the first collision after the register was read.
    *
-   * @param a The first colliding sprite.
-   * @param b The second colliding sprite.
+   * @param sprites A bit mask holding the colliding sprites.
    */
-  void collisionSpriteSprite( int a, int b )
+  synchronized void collisionSpriteBackground( int sprites )
+  {
+    collision( SPRITEBACKCOLL, sprites, Processor.BIT_1 );
+  }
+
+
+
+  /**
+   * Adds sprites to a collision register and handles the interrupt logic.
+   */
+  private void collision( int register, int sprites, int theBit )
   {
     // Compute the value of the collision register...
-    _registers[ SPRITESPRITECOLL ] =
-      (1 << a) | (1 << b);
+    boolean first = 0 == (_registers[ register ] & 0xff);
+    _registers[ register ] |= sprites;
     // ...and handle the interrupt logic.
-    handleInterrupt( Processor.BIT_2 );
+    if ( first )
+      handleInterrupt( theBit );
   }
 
 
 
   /**
-   * Called if a sprite collided with the background.
+   * Get the registers as last written by the processor.  Used by the
+   * rendering code, the result is immutable and can be read without
+   * locking.
+   *
+   * @return The registers.
    */
-  void collisionSpriteBackground()
+  VicRegisters getRegisters()
   {
-    handleInterrupt( Processor.BIT_1 );
+    return _latch;
   }
 
 
@@ -631,19 +719,6 @@ public class Vic
 
 
 
-  /**
-   * Returns the raw register array.  Access is only allowed for the aggregated
-   * elements of the VIC.
-   *
-   * @return The raw register array.
-   */
-  int[] getRawRegisters()
-  {
-    return _registers;
-  }
-
-
-
   /*
    * Use parent class javadoc.
    */
@@ -712,12 +787,481 @@ public class Vic
 
 
 
+  /**
+   * Set an alternative display for the VIC output, for example a display
+   * built on a different UI toolkit.  The presenter is called on the raster
+   * thread for each presented frame with the frame as VIC color indices.
+   * The array is reused for the next frame, so the presenter has to copy it
+   * and must not block.
+   *
+   * @param presenter The presenter, <code>null</code> to remove it.
+   * @see #getComponent()
+   */
+  public void setPresenter( Consumer<byte[]> presenter )
+  {
+    _raster.setPresenter( presenter );
+  }
+
+
+
+  /**
+   * Switch dimmed scanlines on or off.  The component shows the frames
+   * enlarged by the largest integer factor fitting into it, scanlines dim
+   * the last pixel row of each enlarged row.  The default is taken from the
+   * system property
+   * <code>de.michab.simulator.mos6502.RasterDisplay.scanlines</code>.
+   *
+   * @param scanlines <code>true</code> to show scanlines.
+   */
+  public void setScanlines( boolean scanlines )
+  {
+    _raster.setScanlines( scanlines );
+  }
+
+
+
+  /**
+   * Check whether dimmed scanlines are shown.
+   *
+   * @return <code>true</code> if scanlines are shown.
+   */
+  public boolean isScanlines()
+  {
+    return _raster.isScanlines();
+  }
+
+
+
+  /**
+   * Switch the correction of the pixel aspect ratio on or off.  If on the
+   * frames are narrowed to the pixel aspect ratio of a PAL C64.  The
+   * default is taken from the system property
+   * <code>de.michab.simulator.mos6502.RasterDisplay.aspect</code>.
+   *
+   * @param aspect <code>true</code> to correct the aspect ratio.
+   */
+  public void setAspectCorrection( boolean aspect )
+  {
+    _raster.setAspectCorrection( aspect );
+  }
+
+
+
+  /**
+   * Check whether the pixel aspect ratio is corrected.
+   *
+   * @return <code>true</code> if the aspect ratio is corrected.
+   */
+  public boolean isAspectCorrection()
+  {
+    return _raster.isAspectCorrection();
+  }
+
+
+
+  /**
+   * Get the timer measuring the time spent drawing frames onto the
+   * component returned by <code>getComponent()</code>, including the
+   * scaling.
+   *
+   * @return The timer.
+   */
+  public FrameTimer getPresentTimer()
+  {
+    return _raster.getPresentTimer();
+  }
+
+
+
+  /**
+   * Request a copy of the next complete frame.  The frame holds
+   * <code>FRAME_WIDTH</code> times <code>FRAME_HEIGHT</code> pixels as VIC
+   * color indices, line by line.
+   *
+   * @return A future receiving the frame.
+   * @see #toRgb(byte[])
+   */
+  public CompletableFuture<byte[]> requestFrame()
+  {
+    return _raster.requestFrame();
+  }
+
+
+
+  /**
+   * Get a copy of the current frame.  The frame holds
+   * <code>FRAME_WIDTH</code> times <code>FRAME_HEIGHT</code> pixels in rgb
+   * color, line by line.  The frame is only guaranteed to be complete while
+   * the emulation is halted in headless mode.
+   *
+   * @return The frame.
+   */
+  public int[] getFrame()
+  {
+    return toRgb( _raster.getIndexedFrame() );
+  }
+
+
+
+  /**
+   * Get a copy of the current frame.  The frame holds
+   * <code>FRAME_WIDTH</code> times <code>FRAME_HEIGHT</code> pixels as VIC
+   * color indices, line by line.  This is the internal representation of
+   * the frame, a quarter of the size of the rgb frame.  The frame is only
+   * guaranteed to be complete while the emulation is halted in headless
+   * mode.
+   *
+   * @return The frame.
+   */
+  public byte[] getIndexedFrame()
+  {
+    return _raster.getIndexedFrame();
+  }
+
+
+
+  /**
+   * Convert a frame of VIC color indices to rgb color.
+   *
+   * @param frame The frame of color indices.
+   * @return The frame holding a pixel per integer in rgb color.
+   */
+  public static int[] toRgb( byte[] frame )
+  {
+    int[] result = new int[ frame.length ];
+
+    for ( int i = 0 ; i < frame.length ; i++ )
+      result[i] = VIC_RGB_COLORS[ frame[i] & 0xf ];
+
+    return result;
+  }
+
+
+
+  /**
+   * Switch to headless mode.  Frames are drawn without a display and the
+   * emulation halts at each frame boundary until further frames are
+   * released using <code>releaseFrames()</code>.  Has to be called before
+   * the clock is started.
+   */
+  public void setHeadless()
+  {
+    _raster.setHeadless();
+  }
+
+
+
+  /**
+   * Set the number of render threads.  With render threads the raster
+   * timing stays on the emulation thread while the pixel work of a frame is
+   * done in parallel bands of lines, overlapping the emulation of the next
+   * frame.  Zero renders synchronously.  The default is taken from the
+   * system property
+   * <code>de.michab.simulator.mos6502.RasterDisplay.renderThreads</code>,
+   * else it is one less than the number of processors, at most four.  Takes
+   * effect with the next frame.
+   *
+   * @param threads The number of render threads.
+   * @throws IllegalArgumentException If threads is negative.
+   */
+  public void setRenderThreads( int threads )
+  {
+    _raster.setRenderThreads( threads );
+  }
+
+
+
+  /**
+   * Get the number of render threads.
+   *
+   * @return The number of render threads.
+   * @see #setRenderThreads(int)
+   */
+  public int getRenderThreads()
+  {
+    return _raster.getRenderThreads();
+  }
+
+
+
+  /**
+   * Set the maximum number of consecutive frames whose pixel work is
+   * skipped while the emulation is behind realtime.  The raster timing
+   * continues for skipped frames.  The default is taken from the system
+   * property
+   * <code>de.michab.simulator.mos6502.RasterDisplay.maxFrameSkip</code>,
+   * else it is four.
+   *
+   * @param frames The number of frames, zero switches adaptive skipping
+   *        off.
+   * @throws IllegalArgumentException If frames is negative.
+   */
+  public void setMaxFrameSkip( int frames )
+  {
+    _raster.setMaxFrameSkip( frames );
+  }
+
+
+
+  /**
+   * Get the maximum number of consecutive frames skipped while the
+   * emulation is behind realtime.
+   *
+   * @return The number of frames.
+   */
+  public int getMaxFrameSkip()
+  {
+    return _raster.getMaxFrameSkip();
+  }
+
+
+
+  /**
+   * Set a fixed number of frames whose pixel work is skipped after each
+   * rendered frame.  Intended for running unthrottled.  A fixed frame skip
+   * replaces the adaptive skipping.  In headless mode the frame the
+   * emulation halts after is always rendered.
+   *
+   * @param frames The number of frames, zero for adaptive skipping.
+   * @throws IllegalArgumentException If frames is negative.
+   */
+  public void setFrameSkip( int frames )
+  {
+    _raster.setFrameSkip( frames );
+  }
+
+
+
+  /**
+   * Get the fixed number of frames skipped after each rendered frame.
+   *
+   * @return The number of frames, zero for adaptive skipping.
+   */
+  public int getFrameSkip()
+  {
+    return _raster.getFrameSkip();
+  }
+
+
+
+  /**
+   * Get the number of frames drawn without pixel work, either since the
+   * display was not visible or since frames were dropped.
+   *
+   * @return The number of skipped frames.
+   */
+  public long getSkippedFrameCount()
+  {
+    return _raster.getSkippedFrameCount();
+  }
+
+
+
+  /**
+   * Get the number of frames dropped since the emulation was behind
+   * realtime or because of the fixed frame skip.
+   *
+   * @return The number of dropped frames.
+   */
+  public long getDroppedFrameCount()
+  {
+    return _raster.getDroppedFrameCount();
+  }
+
+
+
+  /**
+   * Set the recorder receiving each presented frame.  The pixel work is
+   * done for all frames while recording, except for dropped frames.
+   *
+   * @param recorder The recorder, <code>null</code> to stop recording.
+   * @see Sid#setRecorder(Recorder)
+   */
+  public void setRecorder( Recorder recorder )
+  {
+    _raster.setRecorder( recorder );
+  }
+
+
+
+  /**
+   * Release frames in headless mode.  The emulation runs until the passed
+   * number of frames has been drawn.  Passing zero halts the emulation at
+   * the end of the current frame.
+   *
+   * @param count The number of frames to release.
+   * @return The frame count at which the emulation will halt.
+   * @throws IllegalStateException If not in headless mode.
+   * @throws IllegalArgumentException If count is negative.
+   */
+  public long releaseFrames( int count )
+  {
+    if ( count < 0 )
+      throw new IllegalArgumentException( "count: " + count );
+
+    return _raster.releaseFrames( count );
+  }
+
+
+
+  /**
+   * Wait until the passed number of frames has been drawn.
+   *
+   * @param frame The frame count to wait for.
+   * @param timeout The maximum time to wait in milliseconds, zero waits
+   *        forever.
+   * @return <code>true</code> if the frame count was reached.
+   * @throws InterruptedException If the calling thread was interrupted.
+   * @see #getFrameCount()
+   */
+  public boolean awaitFrame( long frame, long timeout )
+    throws InterruptedException
+  {
+    return _raster.awaitFrame( frame, timeout );
+  }
+
+
+
+  /**
+   * Wait until the passed number of frames has been drawn or the passed
+   * condition is met.  A thread making the condition true has to call
+   * <code>wakeWaiters()</code> afterwards.
+   *
+   * @param frame The frame count to wait for.
+   * @param timeout The maximum time to wait in milliseconds, zero waits
+   *        forever.
+   * @param abort Ends the wait if met.
+   * @return <code>true</code> if the frame count was reached or the
+   *         condition was met.
+   * @throws InterruptedException If the calling thread was interrupted.
+   */
+  public boolean awaitFrame( long frame, long timeout, BooleanSupplier abort )
+    throws InterruptedException
+  {
+    return _raster.awaitFrame( frame, timeout, abort );
+  }
+
+
+
+  /**
+   * Wake up the threads waiting in <code>awaitFrame()</code> to test their
+   * conditions.
+   */
+  public void wakeWaiters()
+  {
+    _raster.wakeWaiters();
+  }
+
+
+
+  /**
+   * Get the number of frames drawn since the emulation started.
+   *
+   * @return The number of frames.
+   */
+  public long getFrameCount()
+  {
+    return _raster.getFrameCount();
+  }
+
+
+
+  /**
+   * Get the address of the video RAM as seen by the processor.  This takes
+   * the VIC bank and the <code>VIDEOMEMBASE</code> register into account.
+   *
+   * @return The video RAM address.
+   */
+  public synchronized int getVideoRamAddress()
+  {
+    return _pageAddress | _videoRamOffset;
+  }
+
+
+
+  /**
+   * Get the address of the character set as selected by the VIC bank and
+   * the <code>VIDEOMEMBASE</code> register.
+   *
+   * @return The character set address.
+   */
+  public synchronized int getCharacterSetAddress()
+  {
+    return _pageAddress | _characterRomOffset;
+  }
+
+
+
+  /**
+   * Check whether the emulation is halted at a frame boundary in headless
+   * mode.
+   *
+   * @return <code>true</code> if halted.
+   */
+  public boolean isHalted()
+  {
+    return _raster.isHalted();
+  }
+
+
+
+  /**
+   * Get the chip's state including the color RAM.  Only valid while the
+   * emulation is halted at a frame boundary.
+   *
+   * @return The state.
+   * @see #isHalted()
+   */
+  public synchronized State getState()
+  {
+    return new State(
+      _registers.clone(),
+      _colorRam.clone(),
+      _pageAddress,
+      _raster.getTime() );
+  }
+
+
+
+  /**
+   * Set the chip's state.  Only allowed before the clock is started or
+   * while the halted emulation is restored, the display starts with a new
+   * frame.
+   *
+   * @param state The state to set.
+   * @throws IllegalStateException If the clock is started.
+   */
+  public synchronized void setState( State state )
+  {
+    _raster.restoreTime( state._rasterTime );
+
+    System.arraycopy( state._registers, 0, _registers, 0, NUM_OF_REGS );
+    _latch = new VicRegisters( _registers );
+    System.arraycopy( state._colorRam, 0, _colorRam, 0, _colorRam.length );
+
+    _pageAddress = state._pageAddress;
+    _characterRomOffset = (_registers[ VIDEOMEMBASE ] & 0x0e) << 10;
+    _videoRamOffset = (_registers[ VIDEOMEMBASE ] & 0xf0) << 6;
+    setAddresses(
+      _pageAddress | _characterRomOffset,
+      _pageAddress | _characterRomOffset,
+      _pageAddress | _videoRamOffset );
+
+    _raster.setVideoMode(
+      0 != (_registers[ CTRL1 ] & Processor.BIT_5),
+      0 != (_registers[ CTRL1 ] & Processor.BIT_6),
+      0 != (_registers[ CTRL2 ] & Processor.BIT_4) );
+  }
+
+
+
   /**
    * Reset all registers to a zero value.
    */
-  public void reset()
+  public synchronized void reset()
   {
     Arrays.fill( _registers, 0 );
+    _latch = new VicRegisters( _registers );
   }
 
 
@@ -731,4 +1275,34 @@ public class Vic
   {
     return new Color( VIC_RGB_COLORS[ _registers[ EXTERIORCOL ] & 0xf ] );
   }
+
+
+
+  /**
+   * An immutable state of the VIC.
+   */
+  public static final class State
+  {
+    private final int[] _registers;
+    private final byte[] _colorRam;
+    private final int _pageAddress;
+    private final long _rasterTime;
+
+
+
+    /**
+     * Create an instance.
+     */
+    private State(
+        int[] registers,
+        byte[] colorRam,
+        int pageAddress,
+        long rasterTime )
+    {
+      _registers = registers;
+      _colorRam = colorRam;
+      _pageAddress = pageAddress;
+      _rasterTime = rasterTime;
+    }
+  }
 }
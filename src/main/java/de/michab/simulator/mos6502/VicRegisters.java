@@ -0,0 +1,158 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2004 Michael G. Binz
+ */
+package de.michab.simulator.mos6502;
+
+import de.michab.simulator.Processor;
+
+
+
+/**
+ * An immutable copy of the VIC registers as written by the processor.  The
+ * VIC publishes a new instance whenever a register write changes a value.
+ * The rendering code takes the current instance once per raster line and
+ * reads it without locking.
+ *
+ * <p>Note that registers that are changed by the VIC itself, i.e. the
+ * interrupt request and the collision registers, are not maintained.  The
+ * raster line register holds the raster line that triggers an
+ * interrupt.</p>
+ *
+ * @see Vic#getRegisters()
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+final class VicRegisters
+{
+  /**
+   * The register values.
+   */
+  private final byte[] _values;
+
+
+
+  /**
+   * Create an instance.
+   *
+   * @param registers The register values to copy.
+   */
+  VicRegisters( int[] registers )
+  {
+    _values = new byte[ registers.length ];
+
+    for ( int i = 0 ; i < registers.length ; i++ )
+      _values[i] = (byte)registers[i];
+  }
+
+
+
+  /**
+   * Get a register value.
+   *
+   * @param register The register.
+   * @return The unsigned register value.
+   */
+  int get( int register )
+  {
+    return _values[ register ] & 0xff;
+  }
+
+
+
+  /**
+   * Get the color index of a color register.
+   *
+   * @param register The color register.
+   * @return The color index [0..15].
+   */
+  byte getColor( int register )
+  {
+    return (byte)(_values[ register ] & 0xf);
+  }
+
+
+
+  /**
+   * Check whether a bit is set in a register.
+   *
+   * @param register The register.
+   * @param bit The bit mask.
+   * @return <code>true</code> if the bit is set.
+   */
+  boolean isSet( int register, int bit )
+  {
+    return 0 != (_values[ register ] & bit);
+  }
+
+
+
+  /**
+   * Get the raster line that triggers an interrupt.
+   *
+   * @return The interrupt raster line.
+   */
+  int getInterruptRasterLine()
+  {
+    int result = get( Vic.RASTERIRQ );
+
+    if ( isSet( Vic.CTRL1, Processor.BIT_7 ) )
+      result |= 0x100;
+
+    return result;
+  }
+
+
+
+  /**
+   * Is the display switched on?
+   *
+   * @return True if display is on, else false.
+   */
+  boolean isScreenOn()
+  {
+    return isSet( Vic.CTRL1, Processor.BIT_4 );
+  }
+
+
+
+  /**
+   * Get the vertical offset of the visible display window.  This is a three
+   * bit value in register CTRL1 bits 2-0.
+   *
+   * @return The y offset of the visible display window.
+   */
+  int getScrollY()
+  {
+    return _values[ Vic.CTRL1 ] & 0x7;
+  }
+
+
+
+  /**
+   * Checks whether the right and left borders are drawn in wide mode.  This
+   * is the case if bit 3 of register CTRL2 is not set.
+   *
+   * @return True if the border is drawn extended.
+   */
+  boolean isWideBorderX()
+  {
+    return ! isSet( Vic.CTRL2, Processor.BIT_3 );
+  }
+
+
+
+  /**
+   * Checks whether the top and bottom borders are drawn in wide mode.  This
+   * is the case if bit 3 of register CTRL1 is not set.
+   *
+   * @return True if the border is drawn extended.
+   */
+  boolean isWideBorderY()
+  {
+    return ! isSet( Vic.CTRL1, Processor.BIT_3 );
+  }
+}
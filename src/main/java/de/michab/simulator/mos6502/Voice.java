@@ -35,14 +35,14 @@ class Voice
 
 
   /**
-   * 
+   * The audio line, <code>null</code> until opened.
    */
-  private final SourceDataLine dataLine;
+  private SourceDataLine dataLine = null;
 
   /**
-   * 
+   * The gain control of the audio line, <code>null</code> until opened.
    */
-  private final FloatControl volume;
+  private FloatControl volume = null;
 
   /**
    * 
@@ -122,6 +122,11 @@ class Voice
 
   private final static int WAVE_LEN = 44000;
 
+  /**
+   * The sample rate of the generated sound.
+   */
+  static final int SAMPLE_RATE = WAVE_LEN;
+
   /**
    * The absolute min/max value for the precalculated waves.
    */
@@ -146,10 +151,18 @@ class Voice
 
   private final static float[] triangleWaveRing = new float[WAVE_LEN];
 
-  private final static int GENLEN = 440;
+  /**
+   * The number of samples generated at once.
+   */
+  final static int GENLEN = 440;
 
   private final byte[] buffer = new byte[GENLEN];
 
+  /**
+   * Receives the generated samples, <code>null</code> if not recording.
+   */
+  private volatile Recorder _recorder = null;
+
   private int nextSample = 0;
 
   private boolean _sync = false;
@@ -181,6 +194,8 @@ class Voice
   // ADSR level between 0 - 1;
   private float sidVol;
 
+  private boolean _volumeSet = false;
+
   private float adsrLevel = 0;
 
   private float adsrDelta = 0;
@@ -223,29 +238,18 @@ class Voice
 
 
   /**
-   * Create an instance.
+   * Create an instance.  The audio line is opened separately, so a voice
+   * can generate samples for a recorder without audio resources.
    * 
    * @param mem The array of chip registers.
    * @param sb This voice's register base address.
-   * @throws LineUnavailableException If the audio resources could not be
-   *         allocated.
+   * @see #openLine()
    */
   Voice( int mem[], int sb )
-    throws LineUnavailableException
   {
     memory = mem;
     _sidbase = sb;
 
-    AudioFormat af = new AudioFormat( WAVE_LEN, 8, 1, true, false);
-    DataLine.Info dli = new DataLine.Info(SourceDataLine.class, af, 16384);
-
-    dataLine = (SourceDataLine) AudioSystem.getLine(dli);
-
-    dataLine.open(dataLine.getFormat(), 16384);
-    volume = (FloatControl)
-          dataLine.getControl(FloatControl.Type.MASTER_GAIN);
-    dataLine.start();
-
     // Create SAW
     //for (int i = 0; i < WAVE_LEN; i++) {
       // Fill saw wave from -100 to 100.
@@ -293,6 +297,58 @@ class Voice
 
 
 
+  /**
+   * Open the audio line playing the generated samples.
+   *
+   * @throws LineUnavailableException If the audio resources could not be
+   *         allocated.
+   */
+  void openLine()
+    throws LineUnavailableException
+  {
+    AudioFormat af = new AudioFormat( WAVE_LEN, 8, 1, true, false);
+    DataLine.Info dli = new DataLine.Info(SourceDataLine.class, af, 16384);
+
+    SourceDataLine line = (SourceDataLine) AudioSystem.getLine(dli);
+
+    line.open(line.getFormat(), 16384);
+    volume = (FloatControl)
+          line.getControl(FloatControl.Type.MASTER_GAIN);
+    if ( _volumeSet )
+      volume.setValue(-40 + sidVol + 15);
+    line.start();
+
+    dataLine = line;
+  }
+
+
+
+  /**
+   * Check whether the audio line is open.
+   *
+   * @return <code>true</code> if the audio line is open.
+   */
+  boolean hasLine()
+  {
+    return dataLine != null;
+  }
+
+
+
+  /**
+   * Set the recorder receiving the generated samples.  While a recorder is
+   * set the samples are generated in emulated time by
+   * <code>record()</code> instead of at the pace of the audio line.
+   *
+   * @param recorder The recorder, <code>null</code> to stop recording.
+   */
+  void setRecorder( Recorder recorder )
+  {
+    _recorder = recorder;
+  }
+
+
+
   /**
    * Set the reference to the next voice.
    *
@@ -344,7 +400,23 @@ class Voice
   void setVolume( int vol )
   {
     sidVol = GAIN_MULT_15 * vol;
-    volume.setValue(-40 + sidVol + 15);
+    _volumeSet = true;
+    if ( volume != null )
+      volume.setValue(-40 + sidVol + 15);
+  }
+
+
+
+  /**
+   * Releases the voice's audio line.  The voice keeps generating samples
+   * for a recorder.
+   */
+  void close()
+  {
+    if ( dataLine != null )
+      dataLine.close();
+    dataLine = null;
+    volume = null;
   }
 
 
@@ -419,9 +491,51 @@ class Voice
 
 
   /**
-   * Update the sound machinery.
+   * Update the sound machinery.  Plays the next samples if the audio line
+   * has room.  Does nothing while recording.
    */
   void updateSound()
+  {
+    if ( _recorder != null )
+      return;
+
+    stepEnvelope();
+
+    if (dataLine != null && dataLine.available() > GENLEN)
+    {
+      generate();
+      dataLine.write(buffer, 0, GENLEN);
+    }
+  }
+
+
+
+  /**
+   * Generate the next <code>GENLEN</code> samples in emulated time and pass
+   * them to the recorder.  The samples are played too if the audio line has
+   * room.
+   */
+  void record()
+  {
+    Recorder recorder = _recorder;
+    if ( recorder == null )
+      return;
+
+    stepEnvelope();
+    generate();
+
+    recorder.audio( _sidbase / 7, buffer, GENLEN );
+
+    if (dataLine != null && dataLine.available() > GENLEN)
+      dataLine.write(buffer, 0, GENLEN);
+  }
+
+
+
+  /**
+   * Advance the envelope by a step.
+   */
+  private void stepEnvelope()
   {
     if (adsrPos++ == adsrNextPos)
     {
@@ -456,202 +570,205 @@ class Voice
 
     adsrLevel += adsrDelta;
     // ADSR end
+  }
 
-    if (dataLine.available() > GENLEN)
-    {
-      byte[] wbuf;
 
-      frq = (int)(0.5 + getFrequency() * FRQCONV);
-      int pulseWidth = 
-        (getPulseWidth() * WAVE_LEN) / 4095;
 
-      int next_nextSample = _next.nextSample;
+  /**
+   * Generate the next <code>GENLEN</code> samples into the buffer.
+   */
+  private void generate()
+  {
+    byte[] wbuf;
+
+    frq = (int)(0.5 + getFrequency() * FRQCONV);
+    int pulseWidth = 
+      (getPulseWidth() * WAVE_LEN) / 4095;
+
+    int next_nextSample = _next.nextSample;
 
-      switch (_waveform)
-      {
-        case WAV_NONE:
-          Arrays.fill( buffer, (byte)0 );
-          break;
-        case WAV_TRIANGLE:
-          if (_ring) 
-          {
-            for (int i = 0; i < GENLEN; i++)
-            {
-              buffer[i] = (byte) (triangleWave[nextSample] * triangleWaveRing[next_nextSample]);
-              nextSample = (nextSample + frq) % WAVE_LEN;
-              next_nextSample = (next_nextSample + _next.frq) % WAVE_LEN;
-            }
-          }
-          else if (!_sync) 
+    switch (_waveform)
+    {
+      case WAV_NONE:
+        Arrays.fill( buffer, (byte)0 );
+        break;
+      case WAV_TRIANGLE:
+        if (_ring) 
+        {
+          for (int i = 0; i < GENLEN; i++)
           {
-            for ( int i = 0 ; i < GENLEN ; i++ )
-            {
-                buffer[i] = triangleWave[nextSample];
-                nextSample = (nextSample + frq) % WAVE_LEN;
-            }
+            buffer[i] = (byte) (triangleWave[nextSample] * triangleWaveRing[next_nextSample]);
+            nextSample = (nextSample + frq) % WAVE_LEN;
+            next_nextSample = (next_nextSample + _next.frq) % WAVE_LEN;
           }
-          else 
+        }
+        else if (!_sync) 
+        {
+          for ( int i = 0 ; i < GENLEN ; i++ )
           {
-            // SYNCH
-            for (int i = 0; i < GENLEN; i++) {
               buffer[i] = triangleWave[nextSample];
               nextSample = (nextSample + frq) % WAVE_LEN;
-              next_nextSample += _next.frq;
-              if (next_nextSample > WAVE_LEN) {
-                nextSample = 0;
-                next_nextSample -= WAVE_LEN;
-              }
-            }
           }
-          break;
-        case WAV_SAW:
-        case WAV_SAW | WAV_TRIANGLE:
-          if (_waveform == WAV_SAW)
-            wbuf = sawWave;
-          else
-            wbuf = sawTriangleWave;
-          if (!_sync) {
-            for (int i = 0; i < GENLEN; i++) {
-              buffer[i] = wbuf[nextSample];
-              nextSample = (nextSample + frq) % WAVE_LEN;
-            }
-          }
-          else {
-            // SYNCH
-            for (int i = 0; i < GENLEN; i++) {
-              buffer[i] = wbuf[nextSample];
-              nextSample = (nextSample + frq) % WAVE_LEN;
-              next_nextSample += _next.frq;
-              if (next_nextSample > WAVE_LEN) {
-                nextSample = 0;
-                next_nextSample -= WAVE_LEN;
-              }
+        }
+        else 
+        {
+          // SYNCH
+          for (int i = 0; i < GENLEN; i++) {
+            buffer[i] = triangleWave[nextSample];
+            nextSample = (nextSample + frq) % WAVE_LEN;
+            next_nextSample += _next.frq;
+            if (next_nextSample > WAVE_LEN) {
+              nextSample = 0;
+              next_nextSample -= WAVE_LEN;
             }
           }
-          break;
-        case WAV_PULSE:
-          if (!_sync) {
-            for (int i = 0; i < GENLEN; i++) {
-              buffer[i] = pulseWave[pulseWidth + nextSample];
-              nextSample = (nextSample + frq) % WAVE_LEN;
-            }
+        }
+        break;
+      case WAV_SAW:
+      case WAV_SAW | WAV_TRIANGLE:
+        if (_waveform == WAV_SAW)
+          wbuf = sawWave;
+        else
+          wbuf = sawTriangleWave;
+        if (!_sync) {
+          for (int i = 0; i < GENLEN; i++) {
+            buffer[i] = wbuf[nextSample];
+            nextSample = (nextSample + frq) % WAVE_LEN;
           }
-          else 
-          {
-            for (int i = 0; i < GENLEN; i++) 
-            {
-              buffer[i] = pulseWave[pulseWidth + nextSample];
-              nextSample = (nextSample + frq) % WAVE_LEN;
-              next_nextSample += _next.frq;
-              if (next_nextSample > WAVE_LEN) {
-                nextSample = 0;
-                next_nextSample -= WAVE_LEN;
-              }
+        }
+        else {
+          // SYNCH
+          for (int i = 0; i < GENLEN; i++) {
+            buffer[i] = wbuf[nextSample];
+            nextSample = (nextSample + frq) % WAVE_LEN;
+            next_nextSample += _next.frq;
+            if (next_nextSample > WAVE_LEN) {
+              nextSample = 0;
+              next_nextSample -= WAVE_LEN;
             }
           }
-          break;
-        case WAV_PULSE | WAV_SAW:
-        case WAV_PULSE | WAV_TRIANGLE:
-        case WAV_PULSE | WAV_SAW | WAV_TRIANGLE:
-          if (_waveform == (WAV_PULSE | WAV_SAW))
-            wbuf = sawWave;
-          else if (_waveform == (WAV_PULSE | WAV_TRIANGLE)) {
-            wbuf = triangleWave;
+        }
+        break;
+      case WAV_PULSE:
+        if (!_sync) {
+          for (int i = 0; i < GENLEN; i++) {
+            buffer[i] = pulseWave[pulseWidth + nextSample];
+            nextSample = (nextSample + frq) % WAVE_LEN;
           }
-          else
-            wbuf = sawTriangleWave;
-
-          if (!_sync) 
+        }
+        else 
+        {
+          for (int i = 0; i < GENLEN; i++) 
           {
-            for (int i = 0; i < GENLEN; i++) 
-            {
-              buffer[i] = (byte) (pulseWave[pulseWidth + nextSample] & wbuf[i]);
-              nextSample = (nextSample + frq) % WAVE_LEN;
+            buffer[i] = pulseWave[pulseWidth + nextSample];
+            nextSample = (nextSample + frq) % WAVE_LEN;
+            next_nextSample += _next.frq;
+            if (next_nextSample > WAVE_LEN) {
+              nextSample = 0;
+              next_nextSample -= WAVE_LEN;
             }
           }
-          else {
-            for (int i = 0; i < GENLEN; i++) {
-              buffer[i] = (byte) (pulseWave[pulseWidth + nextSample] & wbuf[i]);
-              nextSample = (nextSample + frq) % WAVE_LEN;
-              next_nextSample += _next.frq;
-              if (next_nextSample > WAVE_LEN) {
-                nextSample = 0;
-                next_nextSample -= WAVE_LEN;
-              }
-            }
-          }
-          break;
+        }
+        break;
+      case WAV_PULSE | WAV_SAW:
+      case WAV_PULSE | WAV_TRIANGLE:
+      case WAV_PULSE | WAV_SAW | WAV_TRIANGLE:
+        if (_waveform == (WAV_PULSE | WAV_SAW))
+          wbuf = sawWave;
+        else if (_waveform == (WAV_PULSE | WAV_TRIANGLE)) {
+          wbuf = triangleWave;
+        }
+        else
+          wbuf = sawTriangleWave;
 
-        case WAV_NOISE:
-        case WAV_NOISE | WAV_PULSE:
-        case WAV_NOISE | WAV_TRIANGLE:
-        case WAV_NOISE | WAV_SAW:
-        case WAV_NOISE | WAV_PULSE | WAV_SAW:
-        case WAV_NOISE | WAV_TRIANGLE | WAV_SAW:
-        case WAV_NOISE | WAV_PULSE | WAV_TRIANGLE:
-        case WAV_NOISE | WAV_PULSE | WAV_TRIANGLE | WAV_SAW:
-          // Noise:
-          // The noise output is taken from intermediate bits of a 23-bit shift
-          // register which is clocked by bit 19 of the accumulator.
-          // NB! The output is actually delayed 2 cycles after bit 19 is set
-          // high.  This is not modeled.
-          //
-          // Operation: Calculate EOR result, shift register, set bit 0 =
-          // result.
-          //
-          // ----------------------->---------------------
-          // | |
-          // ----EOR---- |
-          // | | |
-          // 2 2 2 1 1 1 1 1 1 1 1 1 1 |
-          // Register bits: 2 1 0 9 8 7 6 5 4 3 2 1 0 9 8 7 6 5 4 3 2 1 0 <---
-          // | | | | | | | |
-          // OSC3 bits : 7 6 5 4 3 2 1 0
-          //
-          // Since waveform output is 12 bits the output is left-shifted 4
-          // times.
-          //
-          // Shift noise_register (according to re-sid)
-
-          int delay = WAVE_LEN / 32;
-          byte noiseData = 0;
+        if (!_sync) 
+        {
           for (int i = 0; i < GENLEN; i++) 
           {
-            if (delay < 0) {
-              int bit0 = (int) ((_noiseReg >> 22) ^ (_noiseReg >> 17)) & 0x1;
-              _noiseReg <<= 1;
-              _noiseReg &= 0x7fffff;
-              _noiseReg |= bit0;
-
-              noiseData = (byte)
-                   (((_noiseReg & 0x400000) >> 15)
-                  | ((_noiseReg & 0x100000) >> 14)
-                  | ((_noiseReg & 0x010000) >> 11)
-                  | ((_noiseReg & 0x002000) >> 9)
-                  | ((_noiseReg & 0x000800) >> 8)
-                  | ((_noiseReg & 0x000080) >> 5)
-                  | ((_noiseReg & 0x000010) >> 3) 
-                  | ((_noiseReg & 0x000004) >> 2));
-
-              delay += WAVE_LEN / 32;
+            buffer[i] = (byte) (pulseWave[pulseWidth + nextSample] & wbuf[i]);
+            nextSample = (nextSample + frq) % WAVE_LEN;
+          }
+        }
+        else {
+          for (int i = 0; i < GENLEN; i++) {
+            buffer[i] = (byte) (pulseWave[pulseWidth + nextSample] & wbuf[i]);
+            nextSample = (nextSample + frq) % WAVE_LEN;
+            next_nextSample += _next.frq;
+            if (next_nextSample > WAVE_LEN) {
+              nextSample = 0;
+              next_nextSample -= WAVE_LEN;
             }
-            delay -= frq;
-            buffer[i] = noiseData;
           }
-          break;
-        default:
-          _log.log( Level.SEVERE, "WAVE NOT IMPLEMENTED: " + _waveform );
-      }
-
-      // Test volume? ? vol = 0 - 1 ???
-      float floatVol = adsrLevel;
-      if (sidVol == 0)
-        adsrLevel = 0;
-      for (int i = 0; i < GENLEN; i++)
-        buffer[i] *= floatVol; // (byte) (buffer[i] * floatVol);
+        }
+        break;
 
-      dataLine.write(buffer, 0, GENLEN);
+      case WAV_NOISE:
+      case WAV_NOISE | WAV_PULSE:
+      case WAV_NOISE | WAV_TRIANGLE:
+      case WAV_NOISE | WAV_SAW:
+      case WAV_NOISE | WAV_PULSE | WAV_SAW:
+      case WAV_NOISE | WAV_TRIANGLE | WAV_SAW:
+      case WAV_NOISE | WAV_PULSE | WAV_TRIANGLE:
+      case WAV_NOISE | WAV_PULSE | WAV_TRIANGLE | WAV_SAW:
+        // Noise:
+        // The noise output is taken from intermediate bits of a 23-bit shift
+        // register which is clocked by bit 19 of the accumulator.
+        // NB! The output is actually delayed 2 cycles after bit 19 is set
+        // high.  This is not modeled.
+        //
+        // Operation: Calculate EOR result, shift register, set bit 0 =
+        // result.
+        //
+        // ----------------------->---------------------
+        // | |
+        // ----EOR---- |
+        // | | |
+        // 2 2 2 1 1 1 1 1 1 1 1 1 1 |
+        // Register bits: 2 1 0 9 8 7 6 5 4 3 2 1 0 9 8 7 6 5 4 3 2 1 0 <---
+        // | | | | | | | |
+        // OSC3 bits : 7 6 5 4 3 2 1 0
+        //
+        // Since waveform output is 12 bits the output is left-shifted 4
+        // times.
+        //
+        // Shift noise_register (according to re-sid)
+
+        int delay = WAVE_LEN / 32;
+        byte noiseData = 0;
+        for (int i = 0; i < GENLEN; i++) 
+        {
+          if (delay < 0) {
+            int bit0 = (int) ((_noiseReg >> 22) ^ (_noiseReg >> 17)) & 0x1;
+            _noiseReg <<= 1;
+            _noiseReg &= 0x7fffff;
+            _noiseReg |= bit0;
+
+            noiseData = (byte)
+                 (((_noiseReg & 0x400000) >> 15)
+                | ((_noiseReg & 0x100000) >> 14)
+                | ((_noiseReg & 0x010000) >> 11)
+                | ((_noiseReg & 0x002000) >> 9)
+                | ((_noiseReg & 0x000800) >> 8)
+                | ((_noiseReg & 0x000080) >> 5)
+                | ((_noiseReg & 0x000010) >> 3) 
+                | ((_noiseReg & 0x000004) >> 2));
+
+            delay += WAVE_LEN / 32;
+          }
+          delay -= frq;
+          buffer[i] = noiseData;
+        }
+        break;
+      default:
+        _log.log( Level.SEVERE, "WAVE NOT IMPLEMENTED: " + _waveform );
     }
+
+    // Test volume? ? vol = 0 - 1 ???
+    float floatVol = adsrLevel;
+    if (sidVol == 0)
+      adsrLevel = 0;
+    for (int i = 0; i < GENLEN; i++)
+      buffer[i] *= floatVol; // (byte) (buffer[i] * floatVol);
   }
 
 
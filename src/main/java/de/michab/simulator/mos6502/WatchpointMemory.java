@@ -0,0 +1,254 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2004 Michael G. Binz
+ */
+package de.michab.simulator.mos6502;
+
+import java.util.Arrays;
+
+import de.michab.simulator.*;
+
+
+
+/**
+ * A view on the system memory that detects accesses to watched addresses.
+ * The view is only installed in the processor while read or write
+ * watchpoints are set.  A page table marks the 256 byte pages holding
+ * watched addresses, accesses to other pages are forwarded without further
+ * checks.
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ * @see BreakpointEngine
+ */
+final class WatchpointMemory
+  implements Memory
+{
+  /**
+   * The memory accesses are forwarded to.
+   */
+  private final Memory _target;
+
+
+
+  /**
+   * Receives the watchpoint hits.
+   */
+  private final BreakpointEngine _engine;
+
+
+
+  /**
+   * The watched addresses for read access.  One bit per address.
+   */
+  private final long[] _readMap = new long[ 0x10000 / 64 ];
+
+
+
+  /**
+   * The watched addresses for write access.  One bit per address.
+   */
+  private final long[] _writeMap = new long[ 0x10000 / 64 ];
+
+
+
+  /**
+   * The number of watched read addresses per page.
+   */
+  private final int[] _readPages = new int[ 0x100 ];
+
+
+
+  /**
+   * The number of watched write addresses per page.
+   */
+  private final int[] _writePages = new int[ 0x100 ];
+
+
+
+  /**
+   * Create an instance.
+   *
+   * @param target The memory to forward all accesses to.
+   * @param engine The engine to notify on watchpoint hits.
+   */
+  WatchpointMemory( Memory target, BreakpointEngine engine )
+  {
+    _target = target;
+    _engine = engine;
+  }
+
+
+
+  /**
+   * Watch or unwatch the passed address.
+   *
+   * @param address The address.
+   * @param read <code>true</code> to change the read watch state.
+   * @param write <code>true</code> to change the write watch state.
+   * @param watch <code>true</code> to watch, <code>false</code> to unwatch.
+   */
+  void setWatched( int address, boolean read, boolean write, boolean watch )
+  {
+    if ( read )
+      setBit( _readMap, _readPages, address, watch );
+    if ( write )
+      setBit( _writeMap, _writePages, address, watch );
+  }
+
+
+
+  /**
+   * Checks whether any address is watched.
+   *
+   * @return <code>true</code> if at least one address is watched.
+   */
+  boolean isActive()
+  {
+    for ( int i = 0 ; i < _readPages.length ; i++ )
+    {
+      if ( _readPages[i] != 0 || _writePages[i] != 0 )
+        return true;
+    }
+
+    return false;
+  }
+
+
+
+  /**
+   * Remove all watches.
+   */
+  void clear()
+  {
+    Arrays.fill( _readMap, 0 );
+    Arrays.fill( _writeMap, 0 );
+    Arrays.fill( _readPages, 0 );
+    Arrays.fill( _writePages, 0 );
+  }
+
+
+
+  /**
+   * Sets a bit in the passed map and maintains the page counters.
+   */
+  private static void setBit( long[] map, int[] pages, int address, boolean set )
+  {
+    address &= 0xffff;
+
+    long bit = 1L << address;
+    boolean isSet = 0 != (map[ address >>> 6 ] & bit);
+
+    if ( set == isSet )
+      return;
+
+    if ( set )
+    {
+      map[ address >>> 6 ] |= bit;
+      pages[ address >>> 8 ]++;
+    }
+    else
+    {
+      map[ address >>> 6 ] &= ~bit;
+      pages[ address >>> 8 ]--;
+    }
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public byte read( int address )
+  {
+    byte result = _target.read( address );
+
+    if ( _readPages[ (address & 0xffff) >>> 8 ] != 0 &&
+         0 != (_readMap[ (address & 0xffff) >>> 6 ] & 1L << address) )
+      _engine.watchpointHit( BreakpointEngine.READ, address, result );
+
+    return result;
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public void write( int address, byte value )
+  {
+    _target.write( address, value );
+
+    if ( _writePages[ (address & 0xffff) >>> 8 ] != 0 &&
+         0 != (_writeMap[ (address & 0xffff) >>> 6 ] & 1L << address) )
+      _engine.watchpointHit( BreakpointEngine.WRITE, address, value );
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public int getVectorAt( int address )
+  {
+    int hi = read( (address + 1) & 0xffff );
+    hi &= 0xff;
+    int lo = read( address );
+    lo &= 0xff;
+
+    return (hi << 8) | lo;
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public byte peek( int address )
+  {
+    return _target.peek( address );
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public void collectDirtyPages( long[] pages )
+  {
+    _target.collectDirtyPages( pages );
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public void set( Forwarder forwarder, int address )
+  {
+    _target.set( forwarder, address );
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public int getSize()
+  {
+    return _target.getSize();
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public byte[] getRawMemory()
+  {
+    return _target.getRawMemory();
+  }
+}
@@ -217,7 +217,7 @@ public byte[] loadEntry( byte[] name, byte[] image )
       // Compute the directory entry position for the next loop.
 
       // If we are not on the last dir entry...
-      if ( entryNum < 8 )
+      if ( entryNum < 7 )
         // ...go to the next one.
         entryNum++;
       else
@@ -266,7 +266,7 @@ public byte[] loadEntry( byte[] name, byte[] image )
       // Compute the directory entry position for the next loop.
 
       // If we are not on the last dir entry...
-      if ( entryNum < 8 )
+      if ( entryNum < 7 )
         // ...go to the next one.
         entryNum++;
       else
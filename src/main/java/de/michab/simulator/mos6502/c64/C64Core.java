@@ -16,8 +16,16 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import de.michab.simulator.Chip;
 import de.michab.simulator.Clock;
@@ -26,6 +34,10 @@ import de.michab.simulator.Memory;
 import de.michab.simulator.Processor;
 import de.michab.simulator.mos6502.Cia;
 import de.michab.simulator.mos6502.Cpu6510;
+import de.michab.simulator.mos6502.FrameTimer;
+import de.michab.simulator.mos6502.MemoryHeatmap;
+import de.michab.simulator.mos6502.MonitorController;
+import de.michab.simulator.mos6502.Recorder;
 import de.michab.simulator.mos6502.Sid;
 import de.michab.simulator.mos6502.Vic;
 
@@ -49,7 +61,7 @@ import de.michab.simulator.mos6502.Vic;
  */
 public final class C64Core
   implements
-    KeyListener, MouseListener
+    KeyListener, MouseListener, Closeable
 {
     public final static String IMAGE_NAME = "imageNameProperty";
 
@@ -244,6 +256,26 @@ public final class C64Core
         addExtensions();
     }
 
+    /**
+     * Creates a headless Commodore 64 continuing from a saved state.  The
+     * new emulation is started and halted at the frame boundary of the
+     * state, use <code>runFrames()</code> and the <code>runUntil</code>
+     * operations to continue.  The memory pages of the state are copied,
+     * an attached image file is shared with the state.
+     *
+     * @param state The state to continue from.
+     * @see #snapshot()
+     * @see #fork()
+     */
+    public C64Core( State state )
+    {
+        this();
+
+        setState( state );
+
+        startHeadless();
+    }
+
 
 
     /**
@@ -382,10 +414,87 @@ public final class C64Core
     /**
      * Shutdown the emulator and release all resources held.  It is not possible
      * to restart after <code>shutdown()</code> was called.
+     *
+     * @see #close()
      */
     public void shutdown()
     {
+        close();
+    }
+
+    /**
+     * Pause the emulation.  The emulation stops within an instruction or a
+     * raster line, while paused none of the emulation's threads uses
+     * processor time.  In headless mode a paused emulation does not reach
+     * the end of the frame, so the run operations wait until
+     * <code>resume()</code> is called.
+     */
+    public void pause()
+    {
+        _systemClock.pause();
+    }
+
+    /**
+     * Continue a paused emulation.  Realtime synchronisation continues from
+     * the current time, the time spent paused is not caught up.
+     */
+    public void resume()
+    {
+        _systemClock.resume();
+    }
+
+    /**
+     * Check whether the emulation is paused.
+     *
+     * @return <code>true</code> if paused.
+     */
+    public boolean isPaused()
+    {
+        return _systemClock.isPaused();
+    }
+
+    /**
+     * Stop the emulation and release all resources held.  All threads of
+     * the emulation terminate, the audio lines and started remote monitors
+     * are closed.  It is not possible to restart after the call.  Calling
+     * this on a closed emulation has no effect.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if ( _systemClock.isClosed() )
+            return;
+
+        for ( RemoteMonitor m : _remoteMonitors )
+            m.close();
+        _remoteMonitors.clear();
+
+        if ( _automation != null )
+            _automation.detach();
+
+        try
+        {
+            stopRecording();
+        }
+        catch ( IOException e )
+        {
+            Logger.getLogger( C64Core.class.getName() ).log(
+                Level.WARNING, "Recording failed.", e );
+        }
+
+        _systemClock.close();
         _vic.terminate();
+        _sid.close();
+    }
+
+    /**
+     * Check whether the emulation is closed.
+     *
+     * @return <code>true</code> if closed.
+     */
+    public boolean isClosed()
+    {
+        return _systemClock.isClosed();
     }
 
     /**
@@ -396,6 +505,602 @@ public final class C64Core
         _systemClock.start();
     }
 
+    /**
+     * Starts the emulation without display and without realtime throttling.
+     * This is used instead of <code>start()</code> for automated tests.  The
+     * emulation is initially halted and runs only during calls to
+     * <code>runFrames()</code> and the <code>runUntil</code> operations.
+     * Sound is switched off.
+     *
+     * @see #runFrames(int)
+     * @see #runUntil(Predicate, int)
+     * @see #runUntilPC(int, int)
+     */
+    public void startHeadless()
+    {
+        _sid.setSoundOn( false );
+        _systemClock.setThrottled( false );
+        _vic.setHeadless();
+        _systemClock.start();
+    }
+
+    /**
+     * Run the passed number of frames in headless mode.  When the call
+     * returns the emulation is halted at the end of a frame.
+     *
+     * @param count The number of frames to run.
+     * @throws IllegalStateException If the emulation is not headless, is
+     *         closed or an emulation thread failed.
+     * @throws IllegalArgumentException If count is not positive.
+     * @see #startHeadless()
+     */
+    public void runFrames( int count )
+    {
+        if ( count <= 0 )
+            throw new IllegalArgumentException( "count: " + count );
+
+        continueHeadless();
+
+        long frame = _vic.releaseFrames( count );
+        while ( ! awaitFrame( frame, FAILURE_POLL_MS ) )
+            ;
+    }
+
+    /**
+     * Run in headless mode until the passed condition is met.  The condition
+     * is tested before the first and after each frame while the emulation is
+     * halted, so it can safely access memory and screen contents.
+     *
+     * @param condition The condition to test.
+     * @param maxFrames The maximum number of frames to run.
+     * @return <code>true</code> if the condition was met,
+     *         <code>false</code> if maxFrames were run without meeting it.
+     * @throws IllegalStateException If the emulation is not headless, is
+     *         closed or an emulation thread failed.
+     */
+    public boolean runUntil( Predicate<C64Core> condition, int maxFrames )
+    {
+        for ( int i = 0 ; i < maxFrames ; i++ )
+        {
+            if ( condition.test( this ) )
+                return true;
+
+            runFrames( 1 );
+        }
+
+        return condition.test( this );
+    }
+
+    /**
+     * Run in headless mode until the program counter reaches the passed
+     * address.  If the address is reached the emulation is halted before
+     * the instruction at the address is executed, the processor state can
+     * then be accessed.  The next call to one of the run operations
+     * continues at the end of the current frame.
+     *
+     * @param address The address to stop on.
+     * @param maxFrames The maximum number of frames to run.
+     * @return <code>true</code> if the address was reached,
+     *         <code>false</code> if maxFrames were run without reaching it.
+     * @throws IllegalStateException If the emulation is not headless, is
+     *         closed or an emulation thread failed.
+     */
+    public boolean runUntilPC( int address, int maxFrames )
+    {
+        return runUntilPC( new int[] { address }, maxFrames ) != -1;
+    }
+
+    /**
+     * Run in headless mode until the program counter reaches one of the
+     * passed addresses.  Behaves like <code>runUntilPC(int, int)</code>,
+     * this is used to wait for several possible outcomes of a program at
+     * once.
+     *
+     * @param addresses The addresses to stop on.
+     * @param maxFrames The maximum number of frames to run.
+     * @return The address reached, -1 if maxFrames were run without
+     *         reaching one of the addresses.
+     * @throws IllegalStateException If the emulation is not headless, is
+     *         closed or an emulation thread failed.
+     * @see #runUntilPC(int, int)
+     */
+    public int runUntilPC( int[] addresses, int maxFrames )
+    {
+        continueHeadless();
+
+        MonitorController controller = getAutomationController();
+        for ( int address : addresses )
+            controller.getEngine().setBreakpoint( address );
+        controller.attach();
+
+        long frame = _vic.releaseFrames( maxFrames );
+        try
+        {
+            // The controller wakes us up when the processor stopped.
+            while ( ! awaitFrame(
+                    frame,
+                    FAILURE_POLL_MS,
+                    controller::isStopped ) )
+                ;
+
+            if ( controller.isStopped() )
+            {
+                _vic.releaseFrames( 0 );
+                return controller.pollState().getPC();
+            }
+
+            return -1;
+        }
+        finally
+        {
+            controller.getEngine().clear();
+        }
+    }
+
+    /**
+     * Get the number of emulated processor cycles since the start.
+     *
+     * @return The number of cycles.
+     */
+    public long getEmulatedCycles()
+    {
+        return _systemClock.currentTime();
+    }
+
+    /**
+     * Get the number of emulated processor instructions since the start.
+     * Only consistent while the emulation is halted.
+     *
+     * @return The number of instructions.
+     */
+    public long getEmulatedInstructions()
+    {
+        return _processor.getInstructionCount();
+    }
+
+    /**
+     * Type text into the keyboard buffer.  Lower case letters are entered
+     * as upper case, a newline is entered as return.  The text replaces
+     * input that was not yet consumed by the emulation.
+     *
+     * @param text The text to type.
+     * @throws IllegalArgumentException If the text contains characters
+     *         outside of the latin-1 range.
+     */
+    public void typeText( String text )
+    {
+        byte[] petscii = new byte[ text.length() ];
+
+        for ( int i = 0 ; i < petscii.length ; i++ )
+        {
+            char c = text.charAt( i );
+
+            if ( c == '\n' )
+                c = '\r';
+            else if ( c >= 'a' && c <= 'z' )
+                c = Character.toUpperCase( c );
+            else if ( c > 0xff )
+                throw new IllegalArgumentException( "Unsupported: " + c );
+
+            petscii[i] = (byte)c;
+        }
+
+        _systemInput.writeInput( petscii );
+    }
+
+    /**
+     * Get the text on the screen.  The screen codes are read from the video
+     * RAM selected in the VIC and converted to ASCII, no pixels are
+     * involved.  Reverse characters are returned as their normal
+     * counterpart, graphic characters as a dot.
+     *
+     * @return The 25 screen lines of 40 characters, separated by newlines.
+     */
+    public String screenText()
+    {
+        byte[] ram = _memory.getRawMemory();
+        int videoRam = _vic.getVideoRamAddress();
+        char[] table =
+            (_vic.getCharacterSetAddress() & 0x3800) == 0x1800 ?
+                SCREEN_CODES_LOWER :
+                SCREEN_CODES_UPPER;
+
+        StringBuilder result = new StringBuilder( 25 * 41 );
+
+        for ( int line = 0 ; line < 25 ; line++ )
+        {
+            if ( line > 0 )
+                result.append( '\n' );
+
+            for ( int column = 0 ; column < 40 ; column++ )
+                result.append(
+                    table[ ram[ videoRam + line * 40 + column ] & 0x7f ] );
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Get a copy of the current frame.  The frame holds
+     * <code>Vic.FRAME_WIDTH</code> times <code>Vic.FRAME_HEIGHT</code> pixels
+     * in rgb color, line by line.  In headless mode the frame is complete
+     * while the emulation is halted.
+     *
+     * @return The frame.
+     */
+    public int[] framebuffer()
+    {
+        return _vic.getFrame();
+    }
+
+    /**
+     * Get a copy of the current frame as VIC color indices.  The frame holds
+     * <code>Vic.FRAME_WIDTH</code> times <code>Vic.FRAME_HEIGHT</code>
+     * pixels, a byte per pixel, line by line.  This is cheaper than
+     * <code>framebuffer()</code> for comparing and hashing frames.
+     *
+     * @return The frame.
+     * @see Vic#toRgb(byte[])
+     */
+    public byte[] indexedFramebuffer()
+    {
+        return _vic.getIndexedFrame();
+    }
+
+    /**
+     * The last state taken or restored.  New states share the pages that
+     * did not change with this state.
+     */
+    private State _base = null;
+
+    /**
+     * Save the state of a headless emulation.  The state is immutable and
+     * can be used to create any number of emulations continuing from it,
+     * see <code>fork()</code>.  The memory is held in a table of pages, a
+     * page that did not change since the last state taken by this emulation
+     * or the state it was created from is shared with that state.  Taking
+     * a state mostly costs copying the written pages, so states can be
+     * taken at the end of each frame.
+     *
+     * <p>Input devices and sounding voices are not part of the state,
+     * typed text that was not yet consumed is.</p>
+     *
+     * @return The state.
+     * @throws IllegalStateException If the emulation is not halted at a
+     *         frame boundary in headless mode.
+     * @see #C64Core(State)
+     */
+    public synchronized State snapshot()
+    {
+        if ( ! isHalted() )
+            throw new IllegalStateException(
+                "Not halted at a frame boundary." );
+
+        _base = new State(
+            _memory.getPages( _base == null ? null : _base._pages ),
+            _systemClock.currentTime(),
+            _processor.getState(),
+            _vic.getState(),
+            _cia1.getState(),
+            _cia2.getState(),
+            _sid.getState(),
+            _systemInput.getPendingInput(),
+            _ld.getFile(),
+            _ld.getImage() );
+
+        return _base;
+    }
+
+    /**
+     * Create a new headless emulation continuing from the current state of
+     * this emulation.  Both emulations are independent after the call.
+     *
+     * @return The new emulation, halted at the current frame boundary.
+     * @throws IllegalStateException If the emulation is not halted at a
+     *         frame boundary in headless mode.
+     * @see #snapshot()
+     * @see #fork(ForkPool)
+     */
+    public C64Core fork()
+    {
+        return new C64Core( snapshot() );
+    }
+
+    /**
+     * Continue the current state of this emulation in an emulation taken
+     * from the passed pool.  Both emulations are independent after the
+     * call, return the fork to the pool when done.  Since the emulations
+     * of a pool are reused this is much cheaper than <code>fork()</code>.
+     *
+     * @param pool The pool to take the emulation from.
+     * @return The emulation, halted at the current frame boundary.
+     * @throws IllegalStateException If the emulation is not halted at a
+     *         frame boundary in headless mode.
+     * @see ForkPool#release(C64Core)
+     */
+    public C64Core fork( ForkPool pool )
+    {
+        return pool.acquire( snapshot() );
+    }
+
+    /**
+     * Continue this emulation from a saved state.  The emulation has to be
+     * halted at a frame boundary in headless mode and continues to be
+     * halted at the frame boundary of the state.  No threads are created,
+     * the halted threads of the emulation continue from the state.
+     *
+     * <p>The memory keeps the pages that were not written since the last
+     * state taken or restored if the passed state shares these pages, only
+     * the other pages are copied.  So restoring an emulation to the state
+     * it started from mostly costs copying the pages written since.  Input
+     * devices are reset, the frame buffer holds the last frame until the
+     * next frame is completed.</p>
+     *
+     * @param state The state to continue from.
+     * @throws IllegalStateException If the emulation is not halted at a
+     *         frame boundary in headless mode.
+     * @see #snapshot()
+     * @see ForkPool
+     */
+    public synchronized void restore( State state )
+    {
+        if ( ! isHalted() )
+            throw new IllegalStateException(
+                "Not halted at a frame boundary." );
+
+        _keyboard = null;
+        _joystick0 = null;
+        _joystick1 = null;
+        setInputDevice( InputDevice.KEYBOARD );
+
+        _systemClock.beginRestore();
+        try
+        {
+            setState( state );
+        }
+        finally
+        {
+            _systemClock.endRestore();
+        }
+    }
+
+    /**
+     * Check whether the emulation is halted at a frame boundary in headless
+     * mode, so a state can be taken or restored.
+     */
+    synchronized boolean isHalted()
+    {
+        return
+            ! _systemClock.isClosed() &&
+            _systemClock.getFailure() == null &&
+            _vic.isHalted() &&
+            (_automation == null || ! _automation.isStopped());
+    }
+
+    /**
+     * Set the state of all components.
+     */
+    private void setState( State state )
+    {
+        _memory.setPages( state._pages );
+        _systemClock.restoreTime( state._time );
+        _processor.setState( state._cpu );
+        _vic.setState( state._vic );
+        _cia1.setState( state._cia1 );
+        _cia2.setState( state._cia2 );
+        _sid.setState( state._sid );
+
+        _systemInput.writeInput( state._input );
+        _ld.setImage( state._file, state._image );
+
+        _base = state;
+    }
+
+    /**
+     * An immutable state of a Commodore 64.
+     *
+     * @see C64Core#snapshot()
+     */
+    public static final class State
+    {
+        private final byte[][] _pages;
+        private final long _time;
+        private final Cpu6510.State _cpu;
+        private final Vic.State _vic;
+        private final Cia.State _cia1;
+        private final Cia.State _cia2;
+        private final Sid.State _sid;
+        private final byte[] _input;
+        private final File _file;
+        private final ImageFile _image;
+
+        /**
+         * Create an instance.
+         */
+        private State(
+                byte[][] pages,
+                long time,
+                Cpu6510.State cpu,
+                Vic.State vic,
+                Cia.State cia1,
+                Cia.State cia2,
+                Sid.State sid,
+                byte[] input,
+                File file,
+                ImageFile image )
+        {
+            _pages = pages;
+            _time = time;
+            _cpu = cpu;
+            _vic = vic;
+            _cia1 = cia1;
+            _cia2 = cia2;
+            _sid = sid;
+            _input = input;
+            _file = file;
+            _image = image;
+        }
+
+        /**
+         * @return The number of emulated processor cycles at the time of
+         *         the state.
+         */
+        public long getTime()
+        {
+            return _time;
+        }
+
+        /**
+         * @return The program counter.
+         */
+        public int getPC()
+        {
+            return _cpu.getPC();
+        }
+
+        /**
+         * Read the RAM of the state.  ROM and IO are not visible.
+         *
+         * @param address The address to read.
+         * @return The RAM content.
+         */
+        public byte read( int address )
+        {
+            return _pages[ (address & 0xffff) / C64Memory.PAGE_SIZE ]
+                         [ address & (C64Memory.PAGE_SIZE - 1) ];
+        }
+
+        /**
+         * Count the memory pages shared with another state.
+         *
+         * @param other The other state.
+         * @return The number of shared pages.
+         */
+        public int countSharedPages( State other )
+        {
+            int result = 0;
+
+            for ( int i = 0 ; i < _pages.length ; i++ )
+            {
+                if ( _pages[i] == other._pages[i] )
+                    result++;
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * The screen code to ASCII conversion of the upper case character set.
+     */
+    private static final char[] SCREEN_CODES_UPPER = screenCodes( false );
+
+    /**
+     * The screen code to ASCII conversion of the lower case character set.
+     */
+    private static final char[] SCREEN_CODES_LOWER = screenCodes( true );
+
+    /**
+     * Creates a screen code conversion table.
+     */
+    private static char[] screenCodes( boolean lowerCase )
+    {
+        char[] result = new char[ 128 ];
+
+        String text = "@ABCDEFGHIJKLMNOPQRSTUVWXYZ[\\]^_ !\"#$%&'()*+,-./0123456789:;<=>?";
+        for ( int i = 0 ; i < 64 ; i++ )
+            result[i] = text.charAt( i );
+        for ( int i = 64 ; i < 128 ; i++ )
+            result[i] = '.';
+        result[ 96 ] = ' ';
+
+        if ( lowerCase )
+        {
+            for ( int i = 1 ; i <= 26 ; i++ )
+            {
+                result[ i + 64 ] = result[ i ];
+                result[ i ] = Character.toLowerCase( result[ i ] );
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Stops the emulation for <code>runUntilPC()</code>.  Created on first
+     * use.
+     */
+    private MonitorController _automation = null;
+
+    /**
+     * Get the controller used by <code>runUntilPC()</code>.
+     */
+    private synchronized MonitorController getAutomationController()
+    {
+        if ( _automation == null )
+        {
+            _automation = new MonitorController( _processor );
+            _automation.setStopListener( _vic::wakeWaiters );
+        }
+
+        return _automation;
+    }
+
+    /**
+     * Continues a processor stopped by <code>runUntilPC()</code>.
+     */
+    private void continueHeadless()
+    {
+        if ( _automation != null && _automation.isStopped() )
+            _automation.detach();
+    }
+
+    /**
+     * The interval in which a waiting run operation checks for a failed
+     * emulation thread.
+     */
+    private static final int FAILURE_POLL_MS = 100;
+
+    /**
+     * Wait for a frame without throwing <code>InterruptedException</code>.
+     * The interrupted state of the thread is kept.  Throws an
+     * <code>IllegalStateException</code> if an emulation thread failed or
+     * the emulation is closed, since the frame will not be reached then.
+     */
+    private boolean awaitFrame( long frame, long timeout )
+    {
+        return awaitFrame( frame, timeout, () -> false );
+    }
+
+    /**
+     * Wait for a frame or until the passed condition is met, see
+     * <code>awaitFrame(long, long)</code>.
+     */
+    private boolean awaitFrame(
+            long frame,
+            long timeout,
+            BooleanSupplier abort )
+    {
+        try
+        {
+            if ( _vic.awaitFrame( frame, timeout, abort ) )
+                return true;
+
+            Throwable failure = _systemClock.getFailure();
+            if ( failure != null )
+                throw new IllegalStateException( "Emulation failed.", failure );
+            if ( _systemClock.isClosed() )
+                throw new IllegalStateException( "Emulation closed." );
+
+            return false;
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException( "Interrupted.", e );
+        }
+    }
+
     /**
      * Returns a reference to the emulation's video interface chip (aka VIC).
      */
@@ -436,6 +1141,111 @@ public final class C64Core
         return _memory;
     }
 
+    private MemoryHeatmap _heatmap = null;
+
+    /**
+     * Get the memory access heatmap of the emulation's CPU.  The heatmap is
+     * created on first use and counts only after it has been started.
+     */
+    public synchronized MemoryHeatmap getHeatmap()
+    {
+        if ( _heatmap == null )
+            _heatmap = new MemoryHeatmap( _processor, PAL_TICKS_PER_SEC / 50 );
+
+        return _heatmap;
+    }
+
+    /**
+     * Start a remote monitor serving the binary monitor protocol on a
+     * localhost port.
+     *
+     * @param port The port to listen on, zero selects a free port.
+     * @return The started monitor.  Call <code>close()</code> to stop it.
+     * @throws IOException If the port cannot be opened.
+     * @see RemoteMonitor
+     */
+    public RemoteMonitor startRemoteMonitor( int port )
+        throws IOException
+    {
+        RemoteMonitor result =
+            new RemoteMonitor( this, _processor, _memory, _vic, port );
+        result.start();
+        synchronized ( this )
+        {
+            _remoteMonitors.add( result );
+        }
+        return result;
+    }
+
+    /**
+     * The started remote monitors, closed with the emulation.
+     */
+    private final List<RemoteMonitor> _remoteMonitors =
+        new ArrayList<RemoteMonitor>();
+
+    /**
+     * The number of frames the recorder can queue, about two seconds.
+     */
+    private static final int RECORDER_QUEUE_SIZE = 100;
+
+    /**
+     * The active recorder, <code>null</code> if not recording.
+     */
+    private Recorder _recorder = null;
+
+    /**
+     * Start recording the video and sound output.  Frames and samples are
+     * written by a background thread, the emulation does not wait for the
+     * disk.  Works for realtime, unthrottled and headless emulations, the
+     * video follows emulated time.  A running recording is stopped.
+     *
+     * @param video The video file.
+     * @param format The video file format.
+     * @param audio The WAV file, <code>null</code> to record no sound.
+     * @return The recorder.  Gives access to the dropped frame count.
+     * @throws IOException If a file cannot be created.
+     * @see #stopRecording()
+     */
+    public synchronized Recorder startRecording(
+            File video,
+            Recorder.Format format,
+            File audio )
+        throws IOException
+    {
+        stopRecording();
+
+        _recorder = new Recorder(
+            video,
+            format,
+            audio,
+            _systemClock.getResolution(),
+            Vic.CYCLES_PER_FRAME,
+            RECORDER_QUEUE_SIZE );
+        _vic.setRecorder( _recorder );
+        _sid.setRecorder( _recorder );
+
+        return _recorder;
+    }
+
+    /**
+     * Stop a running recording.  Waits until the queued frames are written
+     * and closes the files.  Has no effect if not recording.
+     *
+     * @throws IOException If writing failed.
+     */
+    public synchronized void stopRecording()
+        throws IOException
+    {
+        if ( _recorder == null )
+            return;
+
+        Recorder recorder = _recorder;
+        _recorder = null;
+        _vic.setRecorder( null );
+        _sid.setRecorder( null );
+        recorder.close();
+    }
+
     private Component _display = null;
 
     /**
@@ -455,6 +1265,31 @@ public final class C64Core
         return _display;
     }
 
+    /**
+     * Show the emulation's raster screen in an alternative display instead
+     * of the component returned by <code>getDisplay()</code>.  The presenter
+     * receives each frame as VIC color indices on the emulation's raster
+     * thread, it has to copy the frame and must not block.
+     *
+     * @param presenter The presenter, <code>null</code> to remove it.
+     * @see Vic#setPresenter(Consumer)
+     */
+    public void setPresenter( Consumer<byte[]> presenter )
+    {
+        _vic.setPresenter( presenter );
+    }
+
+    /**
+     * Get the timer measuring the time spent drawing frames onto the
+     * component returned by <code>getDisplay()</code>.
+     *
+     * @return The timer.
+     */
+    public FrameTimer getPresentTimer()
+    {
+        return _vic.getPresentTimer();
+    }
+
     /**
      * Returns the frame color as set in the C64's VIC chip.  The returned
      * color can be used for advanced embedding of the display component in a
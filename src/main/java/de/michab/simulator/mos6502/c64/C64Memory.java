@@ -10,7 +10,8 @@ package de.michab.simulator.mos6502.c64;
 import de.michab.simulator.*;
 import java.io.*;
 import java.util.Arrays;
-import java.util.logging.Level;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.logging.Logger;
 
 
@@ -85,6 +86,52 @@ final class C64Memory
 
 
 
+  /**
+   * The pages written since the last call to
+   * <code>collectDirtyPages()</code>.  Holds a bit per page of 256 bytes.
+   */
+  private final long[] _dirtyPages = new long[ 4 ];
+
+
+
+  /**
+   * The pages not yet collected by the clients of
+   * <code>collectDirtyPages()</code>, keyed by the array a client passes.
+   */
+  private final Map<long[], long[]> _clientPages = new WeakHashMap<>();
+
+
+
+  /**
+   * The pages written since the page table <code>_pages</code> was created
+   * or set.  Holds a bit per page of 256 bytes.
+   */
+  private final long[] _changedPages = new long[ 4 ];
+
+
+
+  /**
+   * The page table created by <code>getPages()</code> or set by
+   * <code>setPages()</code> last.  Null if there is none.
+   */
+  private byte[][] _pages = null;
+
+
+
+  /**
+   * The pages watched for writes.  Holds a bit per page of 256 bytes.
+   */
+  private final long[] _watchedPages = new long[ 4 ];
+
+
+
+  /**
+   * The number of writes to the watched pages.
+   */
+  private volatile long _watchedWrites = 0;
+
+
+
   /**
    * The famous address 1.
    */
@@ -125,6 +172,14 @@ final class C64Memory
 
 
 
+  /**
+   * The values last read from or written to the ports.  Used for reading
+   * port locations without side effects.
+   */
+  private final byte[] _portValues;
+
+
+
   /**
    * Create one.  Nuff said.
    */
@@ -133,6 +188,7 @@ final class C64Memory
     // Allocate and initialise the port array.
     _ports  = new Forwarder[ _memory.length ];
     Arrays.fill( _ports, null );
+    _portValues = new byte[ _memory.length ];
 
     reset();
   }
@@ -211,6 +267,8 @@ final class C64Memory
     int map = _address1 & MAP_11;
     boolean charen = (_address1 & Processor.BIT_2) == 0;
 
+    markWritten( location, map, charen );
+
     // If the access is in the IO page.
     if ( location < ADR_BASIC )
       writeRam( location, value );
@@ -231,7 +289,7 @@ final class C64Memory
    */
   public synchronized int getVectorAt( int address )
   {
-    int hi = read( address+1 );
+    int hi = read( (address + 1) & 0xffff );
     hi &= 0xff;
     int lo = read( address );
     lo &= 0xff;
@@ -240,6 +298,158 @@ final class C64Memory
 
 
 
+  /**
+   * Write a value to a memory address without side effects.  The value is
+   * written to the RAM, even if a ROM or a port is mapped for this address.
+   * As for <code>write()</code> the page is reported as written.
+   *
+   * @param location The address to write.
+   * @param value The value to write.
+   */
+  public synchronized void poke( int location, byte value )
+  {
+    location &= 0xffff;
+
+    markWritten(
+      location,
+      _address1 & MAP_11,
+      (_address1 & Processor.BIT_2) == 0 );
+
+    _memory[ location ] = value;
+  }
+
+
+
+  /**
+   * Read the given memory location without side effects.  If a port is
+   * mapped for this location the value last read from or written to the
+   * port is returned.
+   *
+   * @param location The address of the memory location to read.
+   * @return The byte set at this memory address.
+   */
+  public synchronized byte peek( int location )
+  {
+    location &= 0xffff;
+    int map = _address1 & MAP_11;
+    boolean charen = (_address1 & Processor.BIT_2) == 0;
+
+    if ( location >= ADR_IO && location < ADR_IO + 0x1000 )
+    {
+      if ( map == MAP_00 )
+        return _memory[ location ];
+      if ( charen )
+        return _charRom[ location - ADR_CHAR ];
+    }
+    else if ( location >= ADR_BASIC && location < ADR_BASIC + 0x2000 )
+    {
+      if ( map != MAP_11 )
+        return _memory[ location ];
+      if ( _ports[ location ] == null )
+        return _loRom[ location - ADR_BASIC ];
+    }
+    else if ( location >= ADR_KERNAL )
+    {
+      if ( map != MAP_11 && map != MAP_10 )
+        return _memory[ location ];
+      if ( _ports[ location ] == null )
+        return _hiRom[ location - ADR_KERNAL ];
+    }
+
+    return _ports[ location ] != null ?
+      _portValues[ location ] :
+      _memory[ location ];
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public synchronized void collectDirtyPages( long[] pages )
+  {
+    long[] pending = _clientPages.get( pages );
+
+    for ( long[] clientPages : _clientPages.values() )
+    {
+      if ( clientPages == pending )
+        continue;
+      for ( int i = 0 ; i < _dirtyPages.length ; i++ )
+        clientPages[i] |= _dirtyPages[i];
+    }
+
+    if ( pending == null )
+    {
+      // A new client gets the pages written since the last collection.
+      System.arraycopy( _dirtyPages, 0, pages, 0, _dirtyPages.length );
+      _clientPages.put( pages, new long[ _dirtyPages.length ] );
+    }
+    else
+    {
+      for ( int i = 0 ; i < _dirtyPages.length ; i++ )
+        pages[i] = pending[i] | _dirtyPages[i];
+      Arrays.fill( pending, 0 );
+    }
+
+    Arrays.fill( _dirtyPages, 0 );
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public synchronized boolean watchPages( long[] pages )
+  {
+    System.arraycopy( pages, 0, _watchedPages, 0, _watchedPages.length );
+    return true;
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public long getWatchedWrites()
+  {
+    return _watchedWrites;
+  }
+
+
+
+  /**
+   * Record a write to the passed location in the dirty and the watched
+   * pages.
+   */
+  private void markWritten( int location, int map, boolean charen )
+  {
+    _dirtyPages[ location >>> 14 ] |= 1L << (location >>> 8);
+    _changedPages[ location >>> 14 ] |= 1L << (location >>> 8);
+
+    if ( 0 != (_watchedPages[ location >>> 14 ] & (1L << (location >>> 8))) &&
+        isVisibleWrite( location, map, charen ) )
+      _watchedWrites++;
+  }
+
+
+
+  /**
+   * Check whether a write changes memory the video chip can see.  Writes to
+   * the chip registers in the IO page do not, writes to color RAM do.
+   */
+  private boolean isVisibleWrite( int location, int map, boolean charen )
+  {
+    if ( location < ADR_IO || location >= ADR_IO + 0x1000 )
+      return true;
+    if ( map == MAP_00 || charen || _ports[ location ] == null )
+      return true;
+
+    return location >= C64Core.ADR_COLOR_RAM_NEW &&
+      location < C64Core.ADR_COLOR_RAM_NEW + 0x400;
+  }
+
+
+
   /**
    * Writes into the RAM area.
    *
@@ -251,7 +461,10 @@ final class C64Memory
     Forwarder p = _ports[ adr ];
 
     if ( p != null )
+    {
+      _portValues[ adr ] = value;
       p.write( value );
+    }
     else
       _memory[ adr ] = value;
   }
@@ -268,8 +481,8 @@ final class C64Memory
     Forwarder p = _ports[ adr ];
 
     if ( p != null )
-      return p.read();
-    
+      return _portValues[ adr ] = p.read();
+
     return _memory[ adr ];
   }
 
@@ -288,7 +501,10 @@ final class C64Memory
     Forwarder port = _ports[ adr ];
 
     if ( map == MAP_11 && port != null )
+    {
+      _portValues[ adr ] = value;
       port.write( value );
+    }
     else
       _memory[adr] = value;
   }
@@ -307,7 +523,7 @@ final class C64Memory
       case MAP_11:
       {
         if ( null != port )
-          return port.read();
+          return _portValues[ adr ] = port.read();
         return _loRom[ adr - ADR_BASIC ];
       }
 
@@ -330,7 +546,10 @@ final class C64Memory
       case MAP_11:
       case MAP_10:
         if ( null != port )
+        {
+          _portValues[ adr ] = value;
           port.write( value );
+        }
         else
           _memory[ adr ] = value;
         break;
@@ -357,7 +576,7 @@ final class C64Memory
       case MAP_11:
       case MAP_10:
         if ( null != port )
-          result = port.read();
+          result = _portValues[ adr ] = port.read();
         else
           result = _hiRom[ adr - ADR_KERNAL ];
         break;
@@ -387,7 +606,10 @@ final class C64Memory
         if ( charen )
           _memory[ adr ] = value;
         else if ( _ports[ adr ] != null )
+        {
+          _portValues[ adr ] = value;
           _ports[ adr ].write( value );
+        }
         // TODO:  this is needed because we don't have a dedicated color
         // ram so far.
         else
@@ -416,7 +638,7 @@ final class C64Memory
         if ( charen )
           return _charRom[ adr - ADR_CHAR ];
         else if ( _ports[ adr ] != null )
-          return _ports[ adr ].read();
+          return _portValues[ adr ] = _ports[ adr ].read();
         else
           return _memory[ adr ];
     }
@@ -478,6 +700,79 @@ final class C64Memory
 
 
 
+  /**
+   * The size of a page in the page tables used by <code>getPages()</code>.
+   */
+  static final int PAGE_SIZE = 0x100;
+
+
+
+  /**
+   * Get a copy of the RAM as a table of pages.  Pages that did not change
+   * compared to the passed base table are shared with that table.  Since
+   * the pages are never modified a page table can be used as an immutable
+   * copy of the RAM and tables created from each other share all pages that
+   * were not written in between.  If the base is the table created or set
+   * last only the pages written since then are compared and copied.
+   *
+   * @param base The table to share pages with or <code>null</code>.
+   * @return The page table.
+   */
+  synchronized byte[][] getPages( byte[][] base )
+  {
+    byte[][] result = new byte[ _memory.length / PAGE_SIZE ][];
+    boolean tracked = base != null && base == _pages;
+
+    for ( int i = 0 ; i < result.length ; i++ )
+    {
+      int offset = i * PAGE_SIZE;
+
+      if ( tracked && 0 == (_changedPages[ i >>> 6 ] & (1L << i)) )
+        result[i] = base[i];
+      else if ( base != null && Arrays.equals(
+          _memory, offset, offset + PAGE_SIZE, base[i], 0, PAGE_SIZE ) )
+        result[i] = base[i];
+      else
+        result[i] = Arrays.copyOfRange( _memory, offset, offset + PAGE_SIZE );
+    }
+
+    Arrays.fill( _changedPages, 0 );
+    _pages = result;
+
+    return result;
+  }
+
+
+
+  /**
+   * Set the RAM from a page table.  If the table shares pages with the
+   * table created or set last only the pages that differ from that table
+   * or were written since then are copied.  So an emulation reused for
+   * forks from the same state only copies the pages it wrote since the last
+   * restore.  The copied pages are reported as dirty.
+   *
+   * @param pages The page table.
+   * @see #getPages(byte[][])
+   */
+  synchronized void setPages( byte[][] pages )
+  {
+    for ( int i = 0 ; i < pages.length ; i++ )
+    {
+      if ( _pages != null &&
+           pages[i] == _pages[i] &&
+           0 == (_changedPages[ i >>> 6 ] & (1L << i)) )
+        continue;
+
+      System.arraycopy( pages[i], 0, _memory, i * PAGE_SIZE, PAGE_SIZE );
+      _dirtyPages[ i >>> 6 ] |= 1L << i;
+    }
+
+    Arrays.fill( _changedPages, 0 );
+    _pages = pages;
+  }
+
+
+
   /**
    * Maps the passed resource file into memory.  This is used to initialise
    * RAM areas from existing memory dumps.  Note that it has to be possible to
@@ -491,6 +786,12 @@ final class C64Memory
   private void mapIntoRam( byte[] memoryToMap, int address )
   {
     System.arraycopy( memoryToMap, 0, _memory, address, memoryToMap.length );
+
+    for ( int i = address ; i < address + memoryToMap.length ; i += 0x100 )
+    {
+      _dirtyPages[ i >>> 14 ] |= 1L << (i >>> 8);
+      _changedPages[ i >>> 14 ] |= 1L << (i >>> 8);
+    }
   }
 
 
@@ -503,6 +804,7 @@ final class C64Memory
    * @param resourceName The name of the resource to be read.
    * @param expectedSize The size in bytes that should be available in the
    *                     resource file.
+   * @throws IllegalStateException If the resource cannot be read.
    */
   private static byte[] readResource( String resourceName, int expectedSize )
   {
@@ -527,14 +829,12 @@ final class C64Memory
     }
     catch ( EOFException e )
     {
-      _log.severe( "Fatal error on reading " + resourceName );
-      _log.severe( "Expected " + expectedSize + ", received less." );
-      System.exit( 1 );
+      throw new IllegalStateException(
+        "Expected " + expectedSize + " bytes in " + resourceName, e );
     }
-    catch ( Exception e )
+    catch ( IOException e )
     {
-      _log.log( Level.SEVERE, e.getMessage(), e );
-      System.exit( 1 );
+      throw new IllegalStateException( "Cannot read " + resourceName, e );
     }
 
     return result;
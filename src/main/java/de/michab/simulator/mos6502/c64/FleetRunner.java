@@ -0,0 +1,485 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2004 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+
+/**
+ * Runs many independent headless emulations in parallel.  Each job receives
+ * its own started <code>C64Core</code> in headless mode and drives it using
+ * the automation operations like <code>runFrames()</code> and
+ * <code>screenText()</code>.
+ *
+ * <p>An emulation consists of several threads, but the clock runs only one
+ * of them at a time.  So a single emulation keeps a single host core busy
+ * and the number of emulations running at the same time is limited by a
+ * fixed worker pool sized to the number of cores.  The ROM images and the
+ * SID wave tables are immutable and shared by all emulations, headless
+ * emulations do not allocate audio lines.</p>
+ *
+ * <p>Jobs can also start from a common state taken by
+ * <code>C64Core.snapshot()</code>, e.g. to explore different inputs from
+ * the same point of a program.  States taken by these emulations share the
+ * memory pages they did not write with the common state.  These emulations
+ * are reused from a <code>ForkPool</code> holding an emulation per worker,
+ * so a job mostly costs restoring the pages the previous job wrote.</p>
+ *
+ * <p>Errors are isolated per job.  An exception thrown by a job or by one of
+ * the threads of its emulation is reported in the job's result, the other
+ * jobs are not affected.</p>
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+public final class FleetRunner
+  implements Closeable
+{
+  /**
+   * A job driving a single emulation.
+   *
+   * @param <T> The type of the job's result.
+   */
+  @FunctionalInterface
+  public interface Job<T>
+  {
+    /**
+     * Run the job.
+     *
+     * @param c64 A started headless emulation owned by this job.
+     * @return The job's result.
+     * @throws Exception In case of an error.  The error is reported in the
+     *         job's result.
+     */
+    T run( C64Core c64 )
+      throws Exception;
+  }
+
+
+
+  /**
+   * The workers.
+   */
+  private final ExecutorService _workers;
+
+
+
+  /**
+   * The number of workers.
+   */
+  private final int _workerCount;
+
+
+
+  /**
+   * Holds the emulations of jobs starting from a state for reuse.
+   */
+  private final ForkPool _pool;
+
+
+
+  /**
+   * Create an instance with a worker per available processor.
+   */
+  public FleetRunner()
+  {
+    this( Runtime.getRuntime().availableProcessors() );
+  }
+
+
+
+  /**
+   * Create an instance.
+   *
+   * @param workers The number of emulations running at the same time.
+   * @throws IllegalArgumentException If workers is not positive.
+   */
+  public FleetRunner( int workers )
+  {
+    if ( workers <= 0 )
+      throw new IllegalArgumentException( "workers: " + workers );
+
+    _workerCount = workers;
+    _pool = new ForkPool( workers );
+
+    AtomicInteger count = new AtomicInteger();
+    _workers = Executors.newFixedThreadPool( workers, r ->
+    {
+      Thread result = new Thread(
+        r,
+        FleetRunner.class.getSimpleName() + "-" + count.incrementAndGet() );
+      result.setDaemon( true );
+      return result;
+    } );
+  }
+
+
+
+  /**
+   * Get the number of emulations running at the same time.
+   *
+   * @return The number of workers.
+   */
+  public int getWorkerCount()
+  {
+    return _workerCount;
+  }
+
+
+
+  /**
+   * Run the passed jobs and wait until all are completed.
+   *
+   * @param jobs The jobs to run.
+   * @return The report holding the results in the order of the jobs.
+   * @throws InterruptedException If the calling thread is interrupted.
+   */
+  public <T> Report<T> run( List<? extends Job<T>> jobs )
+    throws InterruptedException
+  {
+    return submit( null, jobs );
+  }
+
+
+
+  /**
+   * Runs the jobs on the workers.
+   */
+  private <T> Report<T> submit( C64Core.State state, List<? extends Job<T>> jobs )
+    throws InterruptedException
+  {
+    long start = System.nanoTime();
+
+    List<Future<Result<T>>> futures =
+      new ArrayList<Future<Result<T>>>( jobs.size() );
+
+    for ( int i = 0 ; i < jobs.size() ; i++ )
+    {
+      int index = i;
+      Job<T> job = jobs.get( i );
+      futures.add( _workers.submit( () -> execute( index, state, job ) ) );
+    }
+
+    List<Result<T>> results = new ArrayList<Result<T>>( jobs.size() );
+
+    for ( Future<Result<T>> f : futures )
+    {
+      try
+      {
+        results.add( f.get() );
+      }
+      catch ( ExecutionException e )
+      {
+        // execute() catches all errors.
+        throw new InternalError( e );
+      }
+    }
+
+    return new Report<T>( results, System.nanoTime() - start );
+  }
+
+
+
+  /**
+   * Run the passed jobs on emulations continuing from a common state and
+   * wait until all are completed.  Each job receives its own emulation.
+   *
+   * @param state The state the emulations continue from.
+   * @param jobs The jobs to run.
+   * @return The report holding the results in the order of the jobs.  The
+   *         cycles of the results do not include the cycles of the state.
+   * @throws InterruptedException If the calling thread is interrupted.
+   * @see C64Core#snapshot()
+   */
+  public <T> Report<T> run( C64Core.State state, List<? extends Job<T>> jobs )
+    throws InterruptedException
+  {
+    if ( state == null )
+      throw new NullPointerException( "state" );
+
+    return submit( state, jobs );
+  }
+
+
+
+  /**
+   * Shut down the workers.  Jobs that are running are completed.
+   */
+  public void close()
+  {
+    _workers.shutdown();
+    _pool.close();
+  }
+
+
+
+  /**
+   * Runs a single job on a new emulation or one from the pool.  Called on a
+   * worker.
+   *
+   * @param state The state to continue from, <code>null</code> for a
+   *        powered on emulation.
+   */
+  private <T> Result<T> execute(
+      int index,
+      C64Core.State state,
+      Job<T> job )
+  {
+    long start = System.nanoTime();
+    long startCycles = state == null ? 0 : state.getTime();
+    C64Core c64 = null;
+
+    try
+    {
+      if ( state == null )
+      {
+        c64 = new C64Core();
+        c64.startHeadless();
+      }
+      else
+        c64 = _pool.acquire( state );
+
+      T value = job.run( c64 );
+
+      return new Result<T>(
+        index,
+        value,
+        null,
+        c64.getEmulatedCycles() - startCycles,
+        System.nanoTime() - start );
+    }
+    catch ( Exception | Error e )
+    {
+      return new Result<T>(
+        index,
+        null,
+        e,
+        c64 == null ? 0 : c64.getEmulatedCycles() - startCycles,
+        System.nanoTime() - start );
+    }
+    finally
+    {
+      if ( c64 != null && state != null )
+        _pool.release( c64 );
+      else if ( c64 != null )
+        c64.shutdown();
+    }
+  }
+
+
+
+  /**
+   * The result of a single job.
+   *
+   * @param <T> The type of the job's result.
+   */
+  public static final class Result<T>
+  {
+    private final int _index;
+    private final T _value;
+    private final Throwable _failure;
+    private final long _cycles;
+    private final long _nanos;
+
+
+
+    /**
+     * Create an instance.
+     */
+    private Result( int index, T value, Throwable failure, long cycles, long nanos )
+    {
+      _index = index;
+      _value = value;
+      _failure = failure;
+      _cycles = cycles;
+      _nanos = nanos;
+    }
+
+
+
+    /**
+     * @return The index of the job in the list of jobs.
+     */
+    public int getIndex()
+    {
+      return _index;
+    }
+
+
+
+    /**
+     * @return The value returned by the job, <code>null</code> if the job
+     *         failed.
+     */
+    public T getValue()
+    {
+      return _value;
+    }
+
+
+
+    /**
+     * @return The error that terminated the job, <code>null</code> if the
+     *         job succeeded.
+     */
+    public Throwable getFailure()
+    {
+      return _failure;
+    }
+
+
+
+    /**
+     * @return <code>true</code> if the job succeeded.
+     */
+    public boolean isSuccess()
+    {
+      return _failure == null;
+    }
+
+
+
+    /**
+     * @return The number of emulated processor cycles.
+     */
+    public long getCycles()
+    {
+      return _cycles;
+    }
+
+
+
+    /**
+     * @return The wall clock time of the job in nanoseconds, including the
+     *         creation of the emulation.
+     */
+    public long getNanos()
+    {
+      return _nanos;
+    }
+
+
+
+    /**
+     * @return The emulated processor clock of the job in MHz.
+     */
+    public double getEmulatedMHz()
+    {
+      return mhz( _cycles, _nanos );
+    }
+  }
+
+
+
+  /**
+   * The results of a run.
+   *
+   * @param <T> The type of the job results.
+   */
+  public static final class Report<T>
+  {
+    private final List<Result<T>> _results;
+    private final long _nanos;
+
+
+
+    /**
+     * Create an instance.
+     */
+    private Report( List<Result<T>> results, long nanos )
+    {
+      _results = Collections.unmodifiableList( results );
+      _nanos = nanos;
+    }
+
+
+
+    /**
+     * @return The job results in the order of the jobs.
+     */
+    public List<Result<T>> getResults()
+    {
+      return _results;
+    }
+
+
+
+    /**
+     * @return The number of failed jobs.
+     */
+    public int getFailureCount()
+    {
+      int result = 0;
+
+      for ( Result<T> r : _results )
+      {
+        if ( ! r.isSuccess() )
+          result++;
+      }
+
+      return result;
+    }
+
+
+
+    /**
+     * @return The wall clock time of the whole run in nanoseconds.
+     */
+    public long getNanos()
+    {
+      return _nanos;
+    }
+
+
+
+    /**
+     * @return The number of emulated processor cycles of all jobs.
+     */
+    public long getCycles()
+    {
+      long result = 0;
+
+      for ( Result<T> r : _results )
+        result += r.getCycles();
+
+      return result;
+    }
+
+
+
+    /**
+     * @return The aggregate throughput of all emulations in emulated MHz.
+     */
+    public double getEmulatedMHz()
+    {
+      return mhz( getCycles(), _nanos );
+    }
+  }
+
+
+
+  /**
+   * Computes a clock rate in MHz.
+   */
+  private static double mhz( long cycles, long nanos )
+  {
+    if ( nanos <= 0 )
+      return 0;
+
+    return cycles * 1000.0 / nanos;
+  }
+}
@@ -0,0 +1,163 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2004 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+
+
+
+/**
+ * Holds halted headless emulations for reuse.  Creating an emulation
+ * creates the threads of its chips and allocates its memory, this dominates
+ * the cost of a fork.  An emulation taken from the pool instead continues
+ * from the requested state using <code>C64Core.restore()</code>, its
+ * threads are reused and only the memory pages that differ from the state
+ * are copied.
+ *
+ * <p>If the forks continue from the same state, e.g. to explore different
+ * inputs from the same point of a program, a reused emulation only copies
+ * the pages it wrote since it was restored the last time.</p>
+ *
+ * <p>The pool is thread safe, so it can be shared by the workers of a
+ * <code>FleetRunner</code>.</p>
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ * @see C64Core#fork(ForkPool)
+ */
+public final class ForkPool
+  implements Closeable
+{
+  /**
+   * The halted emulations.
+   */
+  private final ArrayDeque<C64Core> _idle = new ArrayDeque<C64Core>();
+
+
+
+  /**
+   * The maximum number of halted emulations held.
+   */
+  private final int _capacity;
+
+
+
+  /**
+   * Set when the pool is closed.
+   */
+  private boolean _closed = false;
+
+
+
+  /**
+   * Create an instance.
+   *
+   * @param capacity The maximum number of halted emulations held.
+   *        Emulations released into a full pool are closed.
+   * @throws IllegalArgumentException If capacity is not positive.
+   */
+  public ForkPool( int capacity )
+  {
+    if ( capacity <= 0 )
+      throw new IllegalArgumentException( "capacity: " + capacity );
+
+    _capacity = capacity;
+  }
+
+
+
+  /**
+   * Get a headless emulation continuing from the passed state.  A halted
+   * emulation of the pool is reused if available, otherwise a new emulation
+   * is created.
+   *
+   * @param state The state to continue from.
+   * @return The emulation, halted at the frame boundary of the state.
+   * @see #release(C64Core)
+   */
+  public C64Core acquire( C64Core.State state )
+  {
+    if ( state == null )
+      throw new NullPointerException( "state" );
+
+    C64Core result;
+
+    synchronized ( _idle )
+    {
+      result = _idle.pollLast();
+    }
+
+    if ( result == null )
+      return new C64Core( state );
+
+    result.restore( state );
+
+    return result;
+  }
+
+
+
+  /**
+   * Return an emulation to the pool.  The emulation must not be used after
+   * the call.  Emulations that are not halted at a frame boundary in
+   * headless mode are closed, as are emulations released into a full or
+   * closed pool.
+   *
+   * @param c64 The emulation to return.
+   * @see #acquire(C64Core.State)
+   */
+  public void release( C64Core c64 )
+  {
+    if ( c64.isHalted() )
+    {
+      synchronized ( _idle )
+      {
+        if ( ! _closed && _idle.size() < _capacity )
+        {
+          _idle.addLast( c64 );
+          return;
+        }
+      }
+    }
+
+    c64.close();
+  }
+
+
+
+  /**
+   * Get the number of halted emulations held.
+   *
+   * @return The number of emulations.
+   */
+  public int size()
+  {
+    synchronized ( _idle )
+    {
+      return _idle.size();
+    }
+  }
+
+
+
+  /**
+   * Close the pool and the emulations held.
+   */
+  public void close()
+  {
+    synchronized ( _idle )
+    {
+      _closed = true;
+
+      for ( C64Core c64 : _idle )
+        c64.close();
+      _idle.clear();
+    }
+  }
+}
@@ -0,0 +1,796 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2004 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+import java.awt.event.KeyEvent;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.imageio.ImageIO;
+
+import de.michab.simulator.mos6502.Vic;
+
+
+
+/**
+ * Catches rendering regressions by comparing frames of program runs to
+ * stored golden hashes.  Each image file is run headless for a fixed number
+ * of frames, every n-th frame is hashed with a fast 64 bit hash over the
+ * VIC color indices.  The images run in parallel on a
+ * <code>FleetRunner</code>.
+ *
+ * <p>An image is run by typing a load command for the first program in its
+ * directory after the emulation booted.  Frame zero is the frame the
+ * command was typed in.  Further input is read from an optional input
+ * script named like the image file with the extension <code>.input</code>.
+ * Each line holds a frame number and a command:</p>
+ *
+ * <pre>
+ * # Comment.
+ * 300 type run\n
+ * 310 device JOYSTICK_1
+ * 320 press SPACE
+ * 325 release SPACE
+ * </pre>
+ *
+ * <p><code>type</code> enters text into the keyboard buffer,
+ * <code>\n</code> stands for return.  <code>press</code> and
+ * <code>release</code> send key events for the named
+ * <code>java.awt.event.KeyEvent</code> key code without the
+ * <code>VK_</code> prefix.  <code>device</code> selects the input device
+ * that receives the key events.</p>
+ *
+ * <p>Recording writes a file <code>&lt;image&gt;.golden</code> holding the
+ * hashes and a PNG file per hashed frame into the golden directory.  On a
+ * mismatch during verification the actual frame and a per-pixel diff
+ * against the golden PNG are written into the output directory.  Differing
+ * pixels are red in the diff, the others are dimmed.</p>
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ * @see FleetRunner
+ */
+public final class GoldenFrames
+{
+  /**
+   * The maximum number of frames to wait for the READY prompt.
+   */
+  private static final int BOOT_FRAMES = 300;
+
+
+
+  /**
+   * Skips the pixel work of all frames except the frames the emulation
+   * halts after.
+   */
+  private static final int SKIP_ALL = Integer.MAX_VALUE;
+
+
+
+  /**
+   * Reads little endian longs from a byte array.
+   */
+  private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(
+    long[].class, ByteOrder.LITTLE_ENDIAN );
+
+
+
+  /**
+   * The directory holding the golden hashes and frames.
+   */
+  private final File _goldenDir;
+
+
+
+  /**
+   * The number of frames each image runs.
+   */
+  private final int _frames;
+
+
+
+  /**
+   * Every <code>_interval</code>-th frame is hashed.
+   */
+  private final int _interval;
+
+
+
+  /**
+   * The directory holding the input scripts, <code>null</code> for the
+   * directory of the image.
+   */
+  private File _inputDir = null;
+
+
+
+  /**
+   * The directory mismatching frames are written to.
+   */
+  private File _outputDir;
+
+
+
+  /**
+   * Create an instance.
+   *
+   * @param goldenDir The directory holding the golden hashes and frames.
+   * @param frames The number of frames each image runs.
+   * @param interval Every interval-th frame is hashed.
+   * @throws IllegalArgumentException If frames or interval are not
+   *         positive.
+   */
+  public GoldenFrames( File goldenDir, int frames, int interval )
+  {
+    if ( frames <= 0 )
+      throw new IllegalArgumentException( "frames: " + frames );
+    if ( interval <= 0 )
+      throw new IllegalArgumentException( "interval: " + interval );
+
+    _goldenDir = goldenDir;
+    _frames = frames;
+    _interval = interval;
+    _outputDir = goldenDir;
+  }
+
+
+
+  /**
+   * Set the directory holding the input scripts.  By default the input
+   * scripts are searched next to the image files.
+   *
+   * @param dir The directory.
+   */
+  public void setInputDirectory( File dir )
+  {
+    _inputDir = dir;
+  }
+
+
+
+  /**
+   * Set the directory mismatching frames are written to.  The default is
+   * the golden directory.
+   *
+   * @param dir The directory.
+   */
+  public void setOutputDirectory( File dir )
+  {
+    _outputDir = dir;
+  }
+
+
+
+  /**
+   * Run the images and record their golden hashes and frames.
+   *
+   * @param runner The runner to use.
+   * @param images The image files.
+   * @return The report.  The values are the outcomes of the images.
+   * @throws InterruptedException If the calling thread is interrupted.
+   */
+  public FleetRunner.Report<Outcome> record(
+      FleetRunner runner,
+      List<File> images )
+    throws InterruptedException
+  {
+    return run( runner, images, true );
+  }
+
+
+
+  /**
+   * Run the images and compare their frames to the golden hashes.
+   *
+   * @param runner The runner to use.
+   * @param images The image files.
+   * @return The report.  The values are the outcomes of the images.
+   * @throws InterruptedException If the calling thread is interrupted.
+   */
+  public FleetRunner.Report<Outcome> verify(
+      FleetRunner runner,
+      List<File> images )
+    throws InterruptedException
+  {
+    return run( runner, images, false );
+  }
+
+
+
+  /**
+   * Compute a 64 bit hash of a frame.  Not cryptographic, a single pass
+   * over the frame reading eight bytes per step.
+   *
+   * @param frame The frame.
+   * @return The hash.
+   */
+  public static long hash( byte[] frame )
+  {
+    final long c1 = 0x87c37b91114253d5L;
+    final long c2 = 0x4cf5ad432745937fL;
+
+    long h = frame.length;
+    int i = 0;
+
+    for ( ; i + 8 <= frame.length ; i += 8 )
+    {
+      long k = (long)LONGS.get( frame, i );
+      k *= c1;
+      k = Long.rotateLeft( k, 31 );
+      k *= c2;
+      h ^= k;
+      h = Long.rotateLeft( h, 27 ) * 5 + 0x52dce729;
+    }
+
+    for ( ; i < frame.length ; i++ )
+    {
+      h ^= (frame[i] & 0xff) * c1;
+      h = Long.rotateLeft( h, 31 ) * c2;
+    }
+
+    // Final avalanche.
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+
+    return h;
+  }
+
+
+
+  /**
+   * Runs the images on the runner.
+   */
+  private FleetRunner.Report<Outcome> run(
+      FleetRunner runner,
+      List<File> images,
+      boolean record )
+    throws InterruptedException
+  {
+    List<FleetRunner.Job<Outcome>> jobs =
+      new ArrayList<FleetRunner.Job<Outcome>>( images.size() );
+
+    for ( File image : images )
+      jobs.add( c64 -> run( c64, image, record ) );
+
+    return runner.run( jobs );
+  }
+
+
+
+  /**
+   * Runs a single image.  Called on a worker of the runner.
+   */
+  private Outcome run( C64Core c64, File image, boolean record )
+    throws Exception
+  {
+    Map<Integer,Long> golden = record ?
+      null :
+      readGolden( image );
+
+    TreeMap<Integer,List<String>> input = readInput( image );
+
+    Vic vic = (Vic)c64.getVic();
+    // The runner keeps the cores busy.
+    vic.setRenderThreads( 0 );
+    vic.setFrameSkip( SKIP_ALL );
+
+    if ( ! c64.runUntil( c -> c.screenText().contains( "READY." ), BOOT_FRAMES ) )
+      throw new IOException( "No READY prompt." );
+
+    c64.setImageFile( image );
+    byte[][] directory = c64.getImageFileDirectory();
+    if ( directory == null || directory.length == 0 )
+      throw new IOException( "No program in image." );
+    c64.load( directory[0] );
+
+    Outcome result = new Outcome( image );
+
+    int frame = 0;
+
+    while ( true )
+    {
+      List<String> commands = input.get( frame );
+      if ( commands != null )
+      {
+        for ( String command : commands )
+          execute( c64, command );
+      }
+
+      if ( frame > 0 && frame % _interval == 0 )
+      {
+        byte[] pixels = c64.indexedFramebuffer();
+        long hash = hash( pixels );
+        result._hashes.put( frame, hash );
+
+        if ( record )
+          writeFrame( pixels, new File( _goldenDir, frameName( image, frame ) ) );
+        else
+          compare( result, golden, frame, hash, pixels );
+      }
+
+      if ( frame == _frames )
+        break;
+
+      // Run to the next frame that is hashed or receives input.
+      int next = Math.min( _frames, (frame / _interval + 1) * _interval );
+      Integer event = input.higherKey( frame );
+      if ( event != null && event < next )
+        next = event;
+
+      c64.runFrames( next - frame );
+      frame = next;
+    }
+
+    if ( record )
+      writeGolden( image, result._hashes );
+    else if ( ! golden.keySet().equals( result._hashes.keySet() ) )
+      result._messages.add(
+        "Golden frames " + golden.keySet() +
+        " differ from run frames " + result._hashes.keySet() );
+
+    return result;
+  }
+
+
+
+  /**
+   * Compare a frame to its golden hash, write the actual frame and the
+   * diff on a mismatch.
+   */
+  private void compare(
+      Outcome result,
+      Map<Integer,Long> golden,
+      int frame,
+      long hash,
+      byte[] pixels )
+    throws IOException
+  {
+    Long expected = golden.get( frame );
+
+    if ( expected != null && expected == hash )
+      return;
+
+    String name = frameName( result._image, frame );
+    String message = String.format(
+      "Frame %d: expected %s, got %016x",
+      frame,
+      expected == null ? "none" : String.format( "%016x", expected ),
+      hash );
+
+    _outputDir.mkdirs();
+    writeFrame( pixels, new File( _outputDir, "actual-" + name ) );
+
+    File goldenFrame = new File( _goldenDir, name );
+    if ( goldenFrame.exists() )
+    {
+      int[] actual = Vic.toRgb( pixels );
+      BufferedImage expectedImage = ImageIO.read( goldenFrame );
+      BufferedImage diff = new BufferedImage(
+        Vic.FRAME_WIDTH,
+        Vic.FRAME_HEIGHT,
+        BufferedImage.TYPE_INT_RGB );
+      int count = 0;
+
+      for ( int y = 0 ; y < Vic.FRAME_HEIGHT ; y++ )
+      {
+        for ( int x = 0 ; x < Vic.FRAME_WIDTH ; x++ )
+        {
+          int rgb = actual[ y * Vic.FRAME_WIDTH + x ] & 0xffffff;
+
+          if ( rgb != (expectedImage.getRGB( x, y ) & 0xffffff) )
+          {
+            diff.setRGB( x, y, 0xff0000 );
+            count++;
+          }
+          else
+            diff.setRGB( x, y, (rgb >> 2) & 0x3f3f3f );
+        }
+      }
+
+      ImageIO.write( diff, "png", new File( _outputDir, "diff-" + name ) );
+      message += ", " + count + " pixels differ";
+    }
+
+    result._messages.add( message );
+  }
+
+
+
+  /**
+   * Execute an input script command.
+   */
+  private static void execute( C64Core c64, String command )
+    throws IOException
+  {
+    String[] parts = command.split( "\\s+", 2 );
+    String argument = parts.length > 1 ? parts[1] : "";
+
+    switch ( parts[0] )
+    {
+      case "type":
+        c64.typeText( argument.replace( "\\n", "\n" ) );
+        break;
+
+      case "press":
+      case "release":
+      {
+        int code;
+        try
+        {
+          code = KeyEvent.class.getField( "VK_" + argument ).getInt( null );
+        }
+        catch ( ReflectiveOperationException e )
+        {
+          throw new IOException( "Unknown key: " + argument );
+        }
+
+        boolean press = parts[0].equals( "press" );
+        KeyEvent event = new KeyEvent(
+          c64.getDisplay(),
+          press ? KeyEvent.KEY_PRESSED : KeyEvent.KEY_RELEASED,
+          0,
+          0,
+          code,
+          KeyEvent.CHAR_UNDEFINED );
+
+        if ( press )
+          c64.keyPressed( event );
+        else
+          c64.keyReleased( event );
+        break;
+      }
+
+      case "device":
+        try
+        {
+          c64.setInputDevice( C64Core.InputDevice.valueOf( argument ) );
+        }
+        catch ( IllegalArgumentException e )
+        {
+          throw new IOException( "Unknown device: " + argument );
+        }
+        break;
+
+      default:
+        throw new IOException( "Unknown command: " + command );
+    }
+  }
+
+
+
+  /**
+   * Read the input script of an image.  Returns the commands by frame,
+   * empty if the image has no script.
+   */
+  private TreeMap<Integer,List<String>> readInput( File image )
+    throws IOException
+  {
+    TreeMap<Integer,List<String>> result = new TreeMap<Integer,List<String>>();
+
+    File dir = _inputDir != null ? _inputDir : image.getParentFile();
+    File script = new File( dir, image.getName() + ".input" );
+    if ( ! script.exists() )
+      return result;
+
+    for ( String line : readLines( script ) )
+    {
+      String[] parts = line.split( "\\s+", 2 );
+      if ( parts.length < 2 )
+        throw new IOException( script + ": Missing command: " + line );
+
+      result.computeIfAbsent(
+        Integer.valueOf( parts[0] ),
+        k -> new ArrayList<String>() ).add( parts[1] );
+    }
+
+    return result;
+  }
+
+
+
+  /**
+   * Read the golden hashes of an image.
+   */
+  private Map<Integer,Long> readGolden( File image )
+    throws IOException
+  {
+    File file = new File( _goldenDir, image.getName() + ".golden" );
+    if ( ! file.exists() )
+      throw new IOException( "No golden file: " + file );
+
+    Map<Integer,Long> result = new TreeMap<Integer,Long>();
+
+    for ( String line : readLines( file ) )
+    {
+      String[] parts = line.split( "\\s+" );
+      result.put(
+        Integer.valueOf( parts[0] ),
+        Long.parseUnsignedLong( parts[1], 16 ) );
+    }
+
+    return result;
+  }
+
+
+
+  /**
+   * Write the golden hashes of an image.
+   */
+  private void writeGolden( File image, Map<Integer,Long> hashes )
+    throws IOException
+  {
+    File file = new File( _goldenDir, image.getName() + ".golden" );
+
+    try ( PrintWriter out = new PrintWriter(
+        Files.newBufferedWriter( file.toPath(), StandardCharsets.US_ASCII ) ) )
+    {
+      out.println( "# " + image.getName() + ": frame hash" );
+      for ( Map.Entry<Integer,Long> e : hashes.entrySet() )
+        out.printf( "%d %016x%n", e.getKey(), e.getValue() );
+    }
+  }
+
+
+
+  /**
+   * Read the lines of a file skipping empty lines and comments.
+   */
+  private static List<String> readLines( File file )
+    throws IOException
+  {
+    List<String> result = new ArrayList<String>();
+
+    try ( BufferedReader in =
+        Files.newBufferedReader( file.toPath(), StandardCharsets.UTF_8 ) )
+    {
+      String line;
+      while ( (line = in.readLine()) != null )
+      {
+        line = line.trim();
+        if ( ! line.isEmpty() && ! line.startsWith( "#" ) )
+          result.add( line );
+      }
+    }
+
+    return result;
+  }
+
+
+
+  /**
+   * Write a frame as PNG.
+   */
+  private static void writeFrame( byte[] pixels, File file )
+    throws IOException
+  {
+    BufferedImage image = new BufferedImage(
+      Vic.FRAME_WIDTH,
+      Vic.FRAME_HEIGHT,
+      BufferedImage.TYPE_BYTE_INDEXED,
+      Vic.VIC_COLOR_MODEL );
+    image.getRaster().setDataElements(
+      0, 0, Vic.FRAME_WIDTH, Vic.FRAME_HEIGHT, pixels );
+
+    ImageIO.write( image, "png", file );
+  }
+
+
+
+  /**
+   * Get the file name of a frame.
+   */
+  private static String frameName( File image, int frame )
+  {
+    return String.format( "%s-%06d.png", image.getName(), frame );
+  }
+
+
+
+  /**
+   * The outcome of running an image.
+   */
+  public static final class Outcome
+  {
+    private final File _image;
+    private final Map<Integer,Long> _hashes = new TreeMap<Integer,Long>();
+    private final List<String> _messages = new ArrayList<String>();
+
+
+
+    /**
+     * Create an instance.
+     */
+    private Outcome( File image )
+    {
+      _image = image;
+    }
+
+
+
+    /**
+     * @return The image file.
+     */
+    public File getImage()
+    {
+      return _image;
+    }
+
+
+
+    /**
+     * @return The hashes by frame number.
+     */
+    public Map<Integer,Long> getHashes()
+    {
+      return _hashes;
+    }
+
+
+
+    /**
+     * @return The mismatches, empty if all frames matched.
+     */
+    public List<String> getMismatches()
+    {
+      return _messages;
+    }
+
+
+
+    /**
+     * @return <code>true</code> if all frames matched.
+     */
+    public boolean isMatch()
+    {
+      return _messages.isEmpty();
+    }
+  }
+
+
+
+  /**
+   * Run the golden frame check from the command line.
+   *
+   * <pre>
+   * GoldenFrames [-record] [-frames n] [-every n] [-input dir] [-out dir]
+   *     goldenDir image|imageDir...
+   * </pre>
+   *
+   * Exits with status 1 if an image mismatched or failed.
+   *
+   * @param argv The command line arguments.
+   * @throws Exception In case of an error.
+   */
+  public static void main( String[] argv )
+    throws Exception
+  {
+    boolean record = false;
+    int frames = 1500;
+    int interval = 50;
+    File inputDir = null;
+    File outputDir = null;
+
+    int i = 0;
+    for ( ; i < argv.length && argv[i].startsWith( "-" ) ; i++ )
+    {
+      switch ( argv[i] )
+      {
+        case "-record":
+          record = true;
+          break;
+        case "-frames":
+          frames = Integer.parseInt( argv[++i] );
+          break;
+        case "-every":
+          interval = Integer.parseInt( argv[++i] );
+          break;
+        case "-input":
+          inputDir = new File( argv[++i] );
+          break;
+        case "-out":
+          outputDir = new File( argv[++i] );
+          break;
+        default:
+          throw new IllegalArgumentException( "Unknown option: " + argv[i] );
+      }
+    }
+
+    if ( argv.length - i < 2 )
+    {
+      System.err.println(
+        "Usage: GoldenFrames [-record] [-frames n] [-every n] " +
+        "[-input dir] [-out dir] goldenDir image|imageDir..." );
+      System.exit( 2 );
+    }
+
+    File goldenDir = new File( argv[i++] );
+    goldenDir.mkdirs();
+
+    List<File> images = new ArrayList<File>();
+    for ( ; i < argv.length ; i++ )
+    {
+      File f = new File( argv[i] );
+      File[] content = f.listFiles( File::isFile );
+
+      if ( content == null )
+        images.add( f );
+      else
+      {
+        Arrays.sort( content );
+        for ( File c : content )
+        {
+          if ( ! c.getName().endsWith( ".input" ) )
+            images.add( c );
+        }
+      }
+    }
+
+    GoldenFrames golden = new GoldenFrames( goldenDir, frames, interval );
+    golden.setInputDirectory( inputDir );
+    if ( outputDir != null )
+      golden.setOutputDirectory( outputDir );
+
+    FleetRunner.Report<Outcome> report;
+    try ( FleetRunner runner = new FleetRunner() )
+    {
+      report = record ?
+        golden.record( runner, images ) :
+        golden.verify( runner, images );
+    }
+
+    int failed = 0;
+
+    for ( FleetRunner.Result<Outcome> r : report.getResults() )
+    {
+      String name = images.get( r.getIndex() ).getName();
+
+      if ( ! r.isSuccess() )
+      {
+        failed++;
+        System.out.println( "ERROR " + name + ": " + r.getFailure() );
+      }
+      else if ( ! r.getValue().isMatch() )
+      {
+        failed++;
+        System.out.println( "FAIL  " + name );
+        for ( String m : r.getValue().getMismatches() )
+          System.out.println( "      " + m );
+      }
+      else
+        System.out.printf(
+          "%s %s (%.1f MHz)%n",
+          record ? "REC  " : "PASS ",
+          name,
+          r.getEmulatedMHz() );
+    }
+
+    System.out.printf(
+      "%d images, %d failed, %.1f s%n",
+      images.size(),
+      failed,
+      report.getNanos() / 1e9 );
+
+    System.exit( failed == 0 ? 0 : 1 );
+  }
+}
@@ -194,6 +194,29 @@ class LoadDevice
         _file = f;
     }
 
+    /**
+     * Get the attached image.
+     *
+     * @return The image or <code>null</code> if no image file is attached.
+     */
+    ImageFile getImage()
+    {
+        return _imageFile;
+    }
+
+    /**
+     * Attach an image that was read by another device.  Images are only
+     * read, so they can be shared between emulations.
+     *
+     * @param f The image file.
+     * @param image The image read from the file.
+     */
+    void setImage( File f, ImageFile image )
+    {
+        _imageFile = image;
+        _file = f;
+    }
+
     /**
      * Returns the directory of the currently set image file.  If none is set a
      * null is returned.  Note that this returns the directory of the files
@@ -0,0 +1,683 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2004 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import de.michab.simulator.Memory;
+import de.michab.simulator.mos6502.Vic;
+
+
+
+/**
+ * Runs the CPU and CIA test suite by Wolfgang Lorenz headless and reports
+ * the outcome and the emulation throughput of each test.  The suite is
+ * read from its distribution archive, the test disks are extracted in
+ * memory.  The tests run in parallel on a <code>FleetRunner</code>, each on
+ * its own emulation continuing from a common state taken at the READY
+ * prompt.
+ *
+ * <p>A test is written into memory at its load address and started by
+ * typing <code>RUN</code>.  Started from BASIC a test clears location
+ * <code>$02</code> and chains to the next test on success by jumping into
+ * the BASIC LOAD command.  On a failure it prints the expected and the
+ * actual values and waits for a key.  So the outcome is decided by
+ * stopping at the first of these addresses that is reached.  A processor
+ * reset, e.g. on an opcode the emulation does not know, is detected as a
+ * crash.  A test not reaching any of these addresses within the frame
+ * limit timed out.</p>
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ * @see FleetRunner
+ */
+public final class LorenzSuite
+{
+  /**
+   * The address of the BASIC LOAD command the tests jump to on success.
+   */
+  private static final int ADR_LOAD = 0xe16f;
+
+
+
+  /**
+   * The address of the KERNAL GETIN routine the tests call after a
+   * failure.
+   */
+  private static final int ADR_GETIN = 0xffe4;
+
+
+
+  /**
+   * The address of the KERNAL reset routine.
+   */
+  private static final int ADR_RESET = 0xfce2;
+
+
+
+  /**
+   * The BASIC pointers to the end of the program.
+   */
+  private static final int ADR_VARTAB = 0x2d;
+  private static final int ADR_LOAD_END = 0xae;
+
+
+
+  /**
+   * The maximum number of frames to wait for the READY prompt.
+   */
+  private static final int BOOT_FRAMES = 300;
+
+
+
+  /**
+   * Skips the pixel work of all frames, the outcome is read from memory.
+   */
+  private static final int SKIP_ALL = Integer.MAX_VALUE;
+
+
+
+  /**
+   * The archive entries holding the test programs start with this prefix,
+   * the other disks hold the sources.
+   */
+  private static final String DISK_PREFIX = "disk";
+
+
+
+  /**
+   * The programs of the suite that are not tests.
+   */
+  private static final List<String> NO_TESTS =
+    Arrays.asList( "START", "FINISH" );
+
+
+
+  /**
+   * The outcome of a test.
+   */
+  public enum Status
+  {
+    /**
+     * The test chained to the next test.
+     */
+    PASSED,
+
+    /**
+     * The test reported a failure.
+     */
+    FAILED,
+
+    /**
+     * The processor was reset.
+     */
+    CRASHED,
+
+    /**
+     * The test did not complete within the frame limit.
+     */
+    TIMEOUT
+  }
+
+
+
+  /**
+   * The test programs by name in the order of the suite.
+   */
+  private final Map<String,byte[]> _programs;
+
+
+
+  /**
+   * The maximum number of frames a test runs.
+   */
+  private final int _maxFrames;
+
+
+
+  /**
+   * Create an instance.
+   *
+   * @param archive The distribution archive of the suite.
+   * @param maxFrames The maximum number of frames a test runs.
+   * @throws IOException If the archive could not be read or holds no
+   *         tests.
+   * @throws IllegalArgumentException If maxFrames is not positive.
+   */
+  public LorenzSuite( File archive, int maxFrames )
+    throws IOException
+  {
+    if ( maxFrames <= 0 )
+      throw new IllegalArgumentException( "maxFrames: " + maxFrames );
+
+    _programs = readPrograms( archive );
+    _maxFrames = maxFrames;
+
+    if ( _programs.isEmpty() )
+      throw new IOException( "No tests in " + archive );
+  }
+
+
+
+  /**
+   * Get the names of the tests.
+   *
+   * @return The names in the order of the suite.
+   */
+  public List<String> getTestNames()
+  {
+    return Collections.unmodifiableList(
+      new ArrayList<String>( _programs.keySet() ) );
+  }
+
+
+
+  /**
+   * Run the passed tests.
+   *
+   * @param runner The runner to use.
+   * @param names The names of the tests to run.
+   * @return The report.  The values are the outcomes of the tests.
+   * @throws IllegalArgumentException If a test is unknown.
+   * @throws IllegalStateException If the emulation did not boot.
+   * @throws InterruptedException If the calling thread is interrupted.
+   */
+  public FleetRunner.Report<Outcome> run(
+      FleetRunner runner,
+      List<String> names )
+    throws InterruptedException
+  {
+    List<FleetRunner.Job<Outcome>> jobs =
+      new ArrayList<FleetRunner.Job<Outcome>>( names.size() );
+
+    for ( String name : names )
+    {
+      byte[] program = _programs.get( name );
+      if ( program == null )
+        throw new IllegalArgumentException( "Unknown test: " + name );
+
+      jobs.add( c64 -> run( c64, name, program ) );
+    }
+
+    return runner.run( boot(), jobs );
+  }
+
+
+
+  /**
+   * Boot an emulation and take its state at the READY prompt.
+   */
+  private static C64Core.State boot()
+  {
+    C64Core c64 = new C64Core();
+
+    try
+    {
+      c64.startHeadless();
+      configure( c64 );
+
+      if ( ! c64.runUntil(
+          c -> c.screenText().contains( "READY." ),
+          BOOT_FRAMES ) )
+        throw new IllegalStateException( "No READY prompt." );
+
+      return c64.snapshot();
+    }
+    finally
+    {
+      c64.shutdown();
+    }
+  }
+
+
+
+  /**
+   * Runs a single test.  Called on a worker of the runner.
+   */
+  private Outcome run( C64Core c64, String name, byte[] program )
+  {
+    configure( c64 );
+
+    // Write the program to its load address and set the end of the
+    // program like the LOAD command does.
+    Memory memory = c64.getMemory();
+    int address = (program[0] & 0xff) | (program[1] & 0xff) << 8;
+    for ( int i = 2 ; i < program.length ; i++ )
+      memory.write( address++, program[i] );
+
+    memory.write( ADR_VARTAB, (byte)address );
+    memory.write( ADR_VARTAB + 1, (byte)(address >> 8) );
+    memory.write( ADR_LOAD_END, (byte)address );
+    memory.write( ADR_LOAD_END + 1, (byte)(address >> 8) );
+
+    c64.typeText( "RUN\n" );
+
+    int hit = c64.runUntilPC(
+      new int[] { ADR_LOAD, ADR_GETIN, ADR_RESET },
+      _maxFrames );
+
+    Status status;
+    switch ( hit )
+    {
+      case ADR_LOAD:
+        status = Status.PASSED;
+        break;
+      case ADR_GETIN:
+        status = Status.FAILED;
+        break;
+      case ADR_RESET:
+        status = Status.CRASHED;
+        break;
+      default:
+        status = Status.TIMEOUT;
+        break;
+    }
+
+    return new Outcome(
+      name,
+      status,
+      status == Status.PASSED ? "" : c64.screenText(),
+      c64.getEmulatedInstructions() );
+  }
+
+
+
+  /**
+   * Configure an emulation for running tests.
+   */
+  private static void configure( C64Core c64 )
+  {
+    Vic vic = (Vic)c64.getVic();
+    // The runner keeps the cores busy.
+    vic.setRenderThreads( 0 );
+    vic.setFrameSkip( SKIP_ALL );
+  }
+
+
+
+  /**
+   * Read the test programs from the disks in the archive.  A program
+   * continued on the next disk is represented by a small loader on the
+   * disk before, the program on the later disk replaces it.
+   */
+  private static Map<String,byte[]> readPrograms( File archive )
+    throws IOException
+  {
+    TreeMap<String,byte[]> disks =
+      new TreeMap<String,byte[]>( String.CASE_INSENSITIVE_ORDER );
+
+    try ( ZipInputStream in =
+        new ZipInputStream( Files.newInputStream( archive.toPath() ) ) )
+    {
+      ZipEntry entry;
+      while ( (entry = in.getNextEntry()) != null )
+      {
+        String name = new File( entry.getName() ).getName();
+        String lower = name.toLowerCase();
+
+        if ( lower.startsWith( DISK_PREFIX ) && lower.endsWith( ".d64" ) )
+          disks.put( name, in.readAllBytes() );
+      }
+    }
+
+    Map<String,byte[]> result = new LinkedHashMap<String,byte[]>();
+    AdaptD64 adapter = new AdaptD64();
+
+    for ( byte[] disk : disks.values() )
+    {
+      for ( byte[] entry : adapter.getDirectory( disk ) )
+      {
+        String name =
+          new String( entry, StandardCharsets.ISO_8859_1 ).trim();
+        if ( NO_TESTS.contains( name ) )
+          continue;
+
+        byte[] program = adapter.loadEntry( entry, disk );
+        if ( program != null && program.length > 2 )
+          result.put( name, program );
+      }
+    }
+
+    return result;
+  }
+
+
+
+  /**
+   * The outcome of a test.
+   */
+  public static final class Outcome
+  {
+    private final String _name;
+    private final Status _status;
+    private final String _screen;
+    private final long _instructions;
+
+
+
+    /**
+     * Create an instance.
+     */
+    private Outcome(
+        String name,
+        Status status,
+        String screen,
+        long instructions )
+    {
+      _name = name;
+      _status = status;
+      _screen = screen;
+      _instructions = instructions;
+    }
+
+
+
+    /**
+     * @return The name of the test.
+     */
+    public String getName()
+    {
+      return _name;
+    }
+
+
+
+    /**
+     * @return The outcome of the test.
+     */
+    public Status getStatus()
+    {
+      return _status;
+    }
+
+
+
+    /**
+     * @return The screen contents when the test stopped, empty if the test
+     *         passed.
+     */
+    public String getScreen()
+    {
+      return _screen;
+    }
+
+
+
+    /**
+     * @return The number of instructions the test executed.
+     */
+    public long getInstructions()
+    {
+      return _instructions;
+    }
+  }
+
+
+
+  /**
+   * The baseline status of a test that passes.
+   */
+  private static final String PASSED = Status.PASSED.name();
+
+
+
+  /**
+   * The baseline status of a test whose emulation failed.
+   */
+  private static final String ERROR = "ERROR";
+
+
+
+  /**
+   * Read a baseline of known failures.  Returns the expected status by
+   * test name.
+   */
+  private static Map<String,String> readBaseline( File file )
+    throws IOException
+  {
+    Map<String,String> result = new LinkedHashMap<String,String>();
+
+    for ( String line :
+        Files.readAllLines( file.toPath(), StandardCharsets.UTF_8 ) )
+    {
+      line = line.trim();
+      if ( line.isEmpty() || line.startsWith( "#" ) )
+        continue;
+
+      String[] parts = line.split( "\\s+" );
+      if ( parts.length != 2 )
+        throw new IOException( file + ": Invalid line: " + line );
+
+      String status = parts[1];
+      if ( ! status.equals( ERROR ) )
+      {
+        try
+        {
+          Status.valueOf( status );
+        }
+        catch ( IllegalArgumentException e )
+        {
+          throw new IOException( file + ": Unknown status: " + line );
+        }
+      }
+
+      result.put( parts[0], status );
+    }
+
+    return result;
+  }
+
+
+
+  /**
+   * Write a baseline of known failures.
+   */
+  private static void writeBaseline( File file, Map<String,String> failures )
+    throws IOException
+  {
+    List<String> lines = new ArrayList<String>();
+    lines.add( "# Known failures of the Lorenz suite: test status" );
+    for ( Map.Entry<String,String> e : failures.entrySet() )
+      lines.add( e.getKey() + " " + e.getValue() );
+
+    Files.write( file.toPath(), lines, StandardCharsets.UTF_8 );
+  }
+
+
+
+  /**
+   * Compute millions of instructions per second.
+   */
+  private static double mips( long instructions, long nanos )
+  {
+    return nanos == 0 ? 0 : instructions * 1e3 / nanos;
+  }
+
+
+
+  /**
+   * Run the suite from the command line.
+   *
+   * <pre>
+   * LorenzSuite [-frames n] [-workers n] [-screen] [-baseline file]
+   *     [-record file] archive [test...]
+   * </pre>
+   *
+   * Runs all tests if no test is named.  <code>-screen</code> prints the
+   * screen of tests that did not pass.  Exits with status 1 if a test did
+   * not pass.
+   *
+   * <p>A baseline lists the known failures, a line per test holding its
+   * name and the expected status.  Tests not listed are expected to pass,
+   * <code>ERROR</code> stands for a failed emulation.  With a baseline the
+   * exit status is 1 only if a test ended with a status other than
+   * expected and did not pass.  Tests passing against the baseline are
+   * reported as fixed.  <code>-record</code> writes the failures of the run
+   * as a new baseline.</p>
+   *
+   * @param argv The command line arguments.
+   * @throws Exception In case of an error.
+   */
+  public static void main( String[] argv )
+    throws Exception
+  {
+    int frames = 50 * 60 * 5;
+    int workers = Runtime.getRuntime().availableProcessors();
+    boolean screen = false;
+    File baselineFile = null;
+    File recordFile = null;
+
+    int i = 0;
+    for ( ; i < argv.length && argv[i].startsWith( "-" ) ; i++ )
+    {
+      switch ( argv[i] )
+      {
+        case "-frames":
+          frames = Integer.parseInt( argv[++i] );
+          break;
+        case "-workers":
+          workers = Integer.parseInt( argv[++i] );
+          break;
+        case "-screen":
+          screen = true;
+          break;
+        case "-baseline":
+          baselineFile = new File( argv[++i] );
+          break;
+        case "-record":
+          recordFile = new File( argv[++i] );
+          break;
+        default:
+          throw new IllegalArgumentException( "Unknown option: " + argv[i] );
+      }
+    }
+
+    if ( argv.length - i < 1 )
+    {
+      System.err.println(
+        "Usage: LorenzSuite [-frames n] [-workers n] [-screen] " +
+        "[-baseline file] [-record file] archive [test...]" );
+      System.exit( 2 );
+    }
+
+    Map<String,String> baseline = baselineFile == null ?
+      Collections.<String,String>emptyMap() :
+      readBaseline( baselineFile );
+
+    LorenzSuite suite = new LorenzSuite( new File( argv[i++] ), frames );
+
+    List<String> names = i < argv.length ?
+      Arrays.asList( argv ).subList( i, argv.length ) :
+      suite.getTestNames();
+
+    FleetRunner.Report<Outcome> report;
+    try ( FleetRunner runner = new FleetRunner( workers ) )
+    {
+      report = suite.run( runner, names );
+    }
+
+    int failed = 0;
+    int regressions = 0;
+    int fixed = 0;
+    long instructions = 0;
+    Map<String,String> failures = new LinkedHashMap<String,String>();
+
+    for ( FleetRunner.Result<Outcome> r : report.getResults() )
+    {
+      String name = names.get( r.getIndex() );
+      Outcome outcome = r.getValue();
+      String status = r.isSuccess() ? outcome.getStatus().name() : ERROR;
+      String expected = baseline.getOrDefault( name, PASSED );
+
+      String note = "";
+      if ( ! status.equals( PASSED ) )
+      {
+        failed++;
+        failures.put( name, status );
+      }
+      if ( ! status.equals( expected ) )
+      {
+        if ( status.equals( PASSED ) )
+        {
+          fixed++;
+          note = " (fixed, expected " + expected + ")";
+        }
+        else
+        {
+          regressions++;
+          note = " (REGRESSION, expected " + expected + ")";
+        }
+      }
+
+      if ( ! r.isSuccess() )
+      {
+        Throwable failure = r.getFailure();
+        System.out.println( "ERROR   " + name + ": " + failure + note );
+        if ( failure.getCause() != null )
+          System.out.println( "        | " + failure.getCause() );
+        continue;
+      }
+
+      instructions += outcome.getInstructions();
+
+      System.out.printf(
+        "%-7s %-10s %11d instructions, %6.2f MIPS, %6.2f MHz%s%n",
+        status,
+        name,
+        outcome.getInstructions(),
+        mips( outcome.getInstructions(), r.getNanos() ),
+        r.getEmulatedMHz(),
+        note );
+
+      if ( screen && outcome.getStatus() != Status.PASSED )
+      {
+        for ( String line : outcome.getScreen().split( "\n" ) )
+        {
+          if ( ! line.trim().isEmpty() )
+            System.out.println( "        | " + line );
+        }
+      }
+    }
+
+    System.out.printf(
+      "%d tests, %d passed, %d failed, %.1f s, %.2f MIPS, %.2f MHz%n",
+      names.size(),
+      names.size() - failed,
+      failed,
+      report.getNanos() / 1e9,
+      mips( instructions, report.getNanos() ),
+      report.getEmulatedMHz() );
+
+    if ( recordFile != null )
+      writeBaseline( recordFile, failures );
+
+    if ( baselineFile != null )
+    {
+      System.out.printf(
+        "Baseline %s: %d regressions, %d fixed%n",
+        baselineFile,
+        regressions,
+        fixed );
+      System.exit( regressions == 0 ? 0 : 1 );
+    }
+
+    System.exit( failed == 0 ? 0 : 1 );
+  }
+}
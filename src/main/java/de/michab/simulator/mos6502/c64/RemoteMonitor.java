@@ -0,0 +1,1066 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2004 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.michab.simulator.mos6502.BreakpointEngine;
+import de.michab.simulator.mos6502.Cpu6510;
+import de.michab.simulator.mos6502.MonitorController;
+import de.michab.simulator.mos6502.Vic;
+
+
+
+/**
+ * A remote monitor serving a binary protocol on a localhost TCP port.  The
+ * protocol follows the binary monitor protocol of the VICE emulator (API
+ * version 2), so existing tooling can be used.  Supported are bulk memory
+ * reads and writes, register access, checkpoints, stepping, reset and
+ * frame grabs.
+ *
+ * <p>A request is a STX byte (0x02), the API version, the body length as
+ * 32 bit value, a 32 bit request id, the command byte and the body.  A
+ * response is a STX byte, the API version, the body length, the response
+ * type, an error code, the request id and the body.  All values are little
+ * endian.  Events like a stop on a checkpoint are sent as responses with
+ * the request id 0xffffffff.</p>
+ *
+ * <p>In difference to VICE commands do not stop the emulation.  Memory and
+ * register commands are executed on the processor thread between two
+ * instructions.  The additional command 0x72 stops the processor, 0xaa
+ * continues it.  Checkpoints always stop, temporary checkpoints are not
+ * supported.  Unix domain sockets are not supported.</p>
+ *
+ * <p>The connections are served by a single thread using a selector.  The
+ * thread communicates with the processor thread only through the command
+ * queue of a <code>MonitorController</code>, so a client can never stall
+ * the emulation.  Note that the remote monitor replaces other debuggers
+ * attached to the processor.</p>
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+public final class RemoteMonitor
+  implements Closeable
+{
+  private static final Logger _log =
+    Logger.getLogger( RemoteMonitor.class.getName() );
+
+
+
+  /**
+   * The start byte of a message.
+   */
+  private static final int STX = 0x02;
+
+
+
+  /**
+   * The supported API version.
+   */
+  private static final int API_VERSION = 0x02;
+
+
+
+  /**
+   * The size of a request header.
+   */
+  private static final int REQUEST_HEADER = 11;
+
+
+
+  /**
+   * The request id of events.
+   */
+  private static final int EVENT_ID = 0xffffffff;
+
+
+
+  /*
+   * The commands.
+   */
+  private static final int CMD_MEMORY_GET = 0x01;
+  private static final int CMD_MEMORY_SET = 0x02;
+  private static final int CMD_CHECKPOINT_GET = 0x11;
+  private static final int CMD_CHECKPOINT_SET = 0x12;
+  private static final int CMD_CHECKPOINT_DELETE = 0x13;
+  private static final int CMD_CHECKPOINT_LIST = 0x14;
+  private static final int CMD_REGISTERS_GET = 0x31;
+  private static final int CMD_REGISTERS_SET = 0x32;
+  private static final int CMD_ADVANCE_INSTRUCTIONS = 0x71;
+  private static final int CMD_STOP = 0x72;
+  private static final int CMD_EXECUTE_UNTIL_RETURN = 0x73;
+  private static final int CMD_PING = 0x81;
+  private static final int CMD_DISPLAY_GET = 0x84;
+  private static final int CMD_EXIT = 0xaa;
+  private static final int CMD_RESET = 0xcc;
+
+
+
+  /*
+   * The response types not equal to a command.
+   */
+  private static final int RESPONSE_CHECKPOINT_INFO = 0x11;
+  private static final int RESPONSE_STOPPED = 0x62;
+  private static final int RESPONSE_RESUMED = 0x63;
+
+
+
+  /*
+   * The error codes.
+   */
+  private static final int OK = 0x00;
+  private static final int ERROR_NOT_FOUND = 0x01;
+  private static final int ERROR_MEMSPACE = 0x02;
+  private static final int ERROR_LENGTH = 0x80;
+  private static final int ERROR_PARAMETER = 0x81;
+  private static final int ERROR_VERSION = 0x82;
+  private static final int ERROR_COMMAND = 0x83;
+
+
+
+  /*
+   * The register ids.
+   */
+  private static final int REG_A = 0;
+  private static final int REG_X = 1;
+  private static final int REG_Y = 2;
+  private static final int REG_PC = 3;
+  private static final int REG_SP = 4;
+  private static final int REG_FLAGS = 5;
+
+
+
+  /**
+   * The select timeout.  This is the maximum delay of stop events.
+   */
+  private static final int POLL_MILLIS = 20;
+
+
+
+  /**
+   * The maximum accepted request body.
+   */
+  private static final int MAX_BODY = 0x20000;
+
+
+
+  /**
+   * The processor.
+   */
+  private final Cpu6510 _cpu;
+
+
+
+  /**
+   * The system memory.
+   */
+  private final C64Memory _memory;
+
+
+
+  /**
+   * The VIC used for frame grabs.
+   */
+  private final Vic _vic;
+
+
+
+  /**
+   * The emulation, used for reset.
+   */
+  private final C64Core _core;
+
+
+
+  /**
+   * Executes the commands on the processor thread.
+   */
+  private final MonitorController _controller;
+
+
+
+  /**
+   * The checkpoints by id.  Each entry holds the start and end address, the
+   * operation and the enabled flag.
+   */
+  private final Map<Integer, int[]> _checkpoints =
+    new TreeMap<Integer, int[]>();
+
+
+
+  /**
+   * The id of the next checkpoint.
+   */
+  private int _nextCheckpointId = 1;
+
+
+
+  /**
+   * The server channel.
+   */
+  private final ServerSocketChannel _server;
+
+
+
+  /**
+   * The selector serving all channels.
+   */
+  private final Selector _selector;
+
+
+
+  /**
+   * The open connections.
+   */
+  private final List<Connection> _connections = new ArrayList<Connection>();
+
+
+
+  /**
+   * The thread serving the selector.
+   */
+  private final Thread _thread;
+
+
+
+  /**
+   * Create an instance and bind to the passed port on the loopback
+   * interface.  Call <code>start()</code> to accept connections.
+   *
+   * @param core The emulation.
+   * @param cpu The emulation's processor.
+   * @param memory The emulation's memory.
+   * @param vic The emulation's VIC.
+   * @param port The port, zero selects a free port.
+   * @throws IOException If the port cannot be opened.
+   */
+  RemoteMonitor(
+      C64Core core, Cpu6510 cpu, C64Memory memory, Vic vic, int port )
+    throws IOException
+  {
+    _core = core;
+    _cpu = cpu;
+    _memory = memory;
+    _vic = vic;
+    _controller = new MonitorController( cpu );
+
+    _selector = Selector.open();
+    _server = ServerSocketChannel.open();
+    _server.bind(
+      new InetSocketAddress( InetAddress.getLoopbackAddress(), port ) );
+    _server.configureBlocking( false );
+    _server.register( _selector, SelectionKey.OP_ACCEPT );
+
+    _thread = new Thread( this::serve, RemoteMonitor.class.getSimpleName() );
+    _thread.setDaemon( true );
+  }
+
+
+
+  /**
+   * Start accepting connections.
+   */
+  public void start()
+  {
+    _thread.start();
+  }
+
+
+
+  /**
+   * Get the port the monitor listens on.
+   *
+   * @return The port.
+   */
+  public int getPort()
+  {
+    return _server.socket().getLocalPort();
+  }
+
+
+
+  /**
+   * Close all connections and the server port.  A stopped processor
+   * continues.
+   */
+  public void close()
+  {
+    _thread.interrupt();
+    _selector.wakeup();
+  }
+
+
+
+  /**
+   * The selector loop.
+   */
+  private void serve()
+  {
+    try
+    {
+      while ( ! _thread.isInterrupted() )
+      {
+        _selector.select( POLL_MILLIS );
+
+        Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+        while ( keys.hasNext() )
+        {
+          SelectionKey key = keys.next();
+          keys.remove();
+
+          if ( ! key.isValid() )
+            continue;
+          if ( key.isAcceptable() )
+            accept();
+          else
+          {
+            Connection c = (Connection)key.attachment();
+            if ( key.isReadable() )
+              c.read();
+            if ( key.isValid() && key.isWritable() )
+              c.write();
+          }
+        }
+
+        MonitorController.State state = _controller.pollState();
+        if ( state != null )
+          broadcast( RESPONSE_STOPPED, state.getPC() );
+
+        for ( Connection c : new ArrayList<Connection>( _connections ) )
+          c.updateInterest();
+      }
+    }
+    catch ( IOException e )
+    {
+      _log.log( Level.WARNING, "Remote monitor failed.", e );
+    }
+    finally
+    {
+      for ( Connection c : new ArrayList<Connection>( _connections ) )
+        c.close();
+      try
+      {
+        _server.close();
+        _selector.close();
+      }
+      catch ( IOException e )
+      {
+        _log.log( Level.FINE, e.getMessage(), e );
+      }
+    }
+  }
+
+
+
+  /**
+   * Accepts a connection.
+   */
+  private void accept()
+    throws IOException
+  {
+    SocketChannel channel = _server.accept();
+    if ( channel == null )
+      return;
+
+    channel.configureBlocking( false );
+    Connection c = new Connection( channel );
+    c._key = channel.register( _selector, SelectionKey.OP_READ, c );
+    _connections.add( c );
+
+    _controller.attach();
+  }
+
+
+
+  /**
+   * Handles a request.  Called on the selector thread.
+   */
+  private void handle( Connection c, int id, int command, ByteBuffer body )
+  {
+    switch ( command )
+    {
+      case CMD_PING:
+        c.respond( CMD_PING, OK, id, null );
+        break;
+
+      case CMD_MEMORY_GET:
+        memoryGet( c, id, body );
+        break;
+
+      case CMD_MEMORY_SET:
+        memorySet( c, id, body );
+        break;
+
+      case CMD_REGISTERS_GET:
+        if ( body.remaining() < 1 )
+          c.respond( command, ERROR_LENGTH, id, null );
+        else if ( body.get() != 0 )
+          c.respond( command, ERROR_MEMSPACE, id, null );
+        else
+          _controller.execute(
+            () -> c.respond( command, OK, id, registers() ) );
+        break;
+
+      case CMD_REGISTERS_SET:
+        registersSet( c, id, body );
+        break;
+
+      case CMD_CHECKPOINT_SET:
+        checkpointSet( c, id, body );
+        break;
+
+      case CMD_CHECKPOINT_GET:
+      case CMD_CHECKPOINT_DELETE:
+      {
+        if ( body.remaining() < 4 )
+        {
+          c.respond( command, ERROR_LENGTH, id, null );
+          break;
+        }
+        int checkpoint = body.getInt();
+        int[] cp = _checkpoints.get( checkpoint );
+        if ( cp == null )
+          c.respond( command, ERROR_NOT_FOUND, id, null );
+        else if ( command == CMD_CHECKPOINT_GET )
+          c.respond( RESPONSE_CHECKPOINT_INFO, OK, id,
+            checkpointInfo( checkpoint, cp ) );
+        else
+        {
+          _checkpoints.remove( checkpoint );
+          installCheckpoints();
+          c.respond( command, OK, id, null );
+        }
+        break;
+      }
+
+      case CMD_CHECKPOINT_LIST:
+      {
+        for ( Map.Entry<Integer, int[]> cp : _checkpoints.entrySet() )
+          c.respond( RESPONSE_CHECKPOINT_INFO, OK, id,
+            checkpointInfo( cp.getKey(), cp.getValue() ) );
+        c.respond( command, OK, id,
+          buffer( 4 ).putInt( _checkpoints.size() ) );
+        break;
+      }
+
+      case CMD_ADVANCE_INSTRUCTIONS:
+      {
+        if ( body.remaining() < 3 )
+        {
+          c.respond( command, ERROR_LENGTH, id, null );
+          break;
+        }
+        boolean stepOver = body.get() != 0;
+        int count = body.getShort() & 0xffff;
+        if ( count == 0 || (stepOver && count != 1) )
+        {
+          c.respond( command, ERROR_PARAMETER, id, null );
+          break;
+        }
+        c.respond( command, OK, id, null );
+        if ( stepOver )
+          _controller.stepOver();
+        else
+          _controller.stepInstructions( count );
+        broadcast( RESPONSE_RESUMED, _cpu.getPC() );
+        break;
+      }
+
+      case CMD_EXECUTE_UNTIL_RETURN:
+        c.respond( command, OK, id, null );
+        _controller.runToReturn();
+        broadcast( RESPONSE_RESUMED, _cpu.getPC() );
+        break;
+
+      case CMD_STOP:
+        c.respond( command, OK, id, null );
+        _controller.breakExecution();
+        break;
+
+      case CMD_EXIT:
+        c.respond( command, OK, id, null );
+        _controller.resume();
+        broadcast( RESPONSE_RESUMED, _cpu.getPC() );
+        break;
+
+      case CMD_RESET:
+        c.respond( command, OK, id, null );
+        _core.reset( body.hasRemaining() && body.get() != 0 );
+        break;
+
+      case CMD_DISPLAY_GET:
+        displayGet( c, id, body );
+        break;
+
+      default:
+        c.respond( command, ERROR_COMMAND, id, null );
+        break;
+    }
+  }
+
+
+
+  /**
+   * Implements the memory get command.
+   */
+  private void memoryGet( Connection c, int id, ByteBuffer body )
+  {
+    if ( body.remaining() < 8 )
+    {
+      c.respond( CMD_MEMORY_GET, ERROR_LENGTH, id, null );
+      return;
+    }
+
+    boolean sideEffects = body.get() != 0;
+    int start = body.getShort() & 0xffff;
+    int end = body.getShort() & 0xffff;
+    int memspace = body.get();
+
+    if ( memspace != 0 )
+    {
+      c.respond( CMD_MEMORY_GET, ERROR_MEMSPACE, id, null );
+      return;
+    }
+    if ( end < start )
+    {
+      c.respond( CMD_MEMORY_GET, ERROR_PARAMETER, id, null );
+      return;
+    }
+
+    _controller.execute( () ->
+    {
+      int length = end - start + 1;
+      ByteBuffer result = buffer( 2 + length );
+      result.putShort( (short)length );
+
+      if ( sideEffects )
+      {
+        for ( int i = start ; i <= end ; i++ )
+          result.put( _memory.read( i ) );
+      }
+      else
+      {
+        for ( int i = start ; i <= end ; i++ )
+          result.put( _memory.peek( i ) );
+      }
+
+      c.respond( CMD_MEMORY_GET, OK, id, result );
+    } );
+  }
+
+
+
+  /**
+   * Implements the memory set command.
+   */
+  private void memorySet( Connection c, int id, ByteBuffer body )
+  {
+    if ( body.remaining() < 8 )
+    {
+      c.respond( CMD_MEMORY_SET, ERROR_LENGTH, id, null );
+      return;
+    }
+
+    boolean sideEffects = body.get() != 0;
+    int start = body.getShort() & 0xffff;
+    int end = body.getShort() & 0xffff;
+    int memspace = body.get();
+    body.getShort();
+
+    if ( memspace != 0 )
+    {
+      c.respond( CMD_MEMORY_SET, ERROR_MEMSPACE, id, null );
+      return;
+    }
+    if ( end < start || body.remaining() < end - start + 1 )
+    {
+      c.respond( CMD_MEMORY_SET, ERROR_LENGTH, id, null );
+      return;
+    }
+
+    byte[] data = new byte[ end - start + 1 ];
+    body.get( data );
+
+    _controller.execute( () ->
+    {
+      if ( sideEffects )
+      {
+        for ( int i = 0 ; i < data.length ; i++ )
+          _memory.write( start + i, data[i] );
+      }
+      else
+      {
+        for ( int i = 0 ; i < data.length ; i++ )
+          _memory.poke( start + i, data[i] );
+      }
+
+      c.respond( CMD_MEMORY_SET, OK, id, null );
+    } );
+  }
+
+
+
+  /**
+   * Implements the registers set command.
+   */
+  private void registersSet( Connection c, int id, ByteBuffer body )
+  {
+    if ( body.remaining() < 3 )
+    {
+      c.respond( CMD_REGISTERS_SET, ERROR_LENGTH, id, null );
+      return;
+    }
+    if ( body.get() != 0 )
+    {
+      c.respond( CMD_REGISTERS_SET, ERROR_MEMSPACE, id, null );
+      return;
+    }
+
+    int count = body.getShort() & 0xffff;
+    int[] ids = new int[ count ];
+    int[] values = new int[ count ];
+
+    for ( int i = 0 ; i < count ; i++ )
+    {
+      if ( body.remaining() < 4 )
+      {
+        c.respond( CMD_REGISTERS_SET, ERROR_LENGTH, id, null );
+        return;
+      }
+      int size = body.get() & 0xff;
+      int start = body.position();
+      ids[i] = body.get() & 0xff;
+      values[i] = body.getShort() & 0xffff;
+      if ( ids[i] > REG_FLAGS )
+      {
+        c.respond( CMD_REGISTERS_SET, ERROR_PARAMETER, id, null );
+        return;
+      }
+      body.position( Math.min( body.limit(), start + size ) );
+    }
+
+    _controller.execute( () ->
+    {
+      for ( int i = 0 ; i < count ; i++ )
+      {
+        switch ( ids[i] )
+        {
+          case REG_A:
+            _cpu.setAccu( values[i] );
+            break;
+          case REG_X:
+            _cpu.setX( values[i] );
+            break;
+          case REG_Y:
+            _cpu.setY( values[i] );
+            break;
+          case REG_PC:
+            _cpu.setPC( values[i] );
+            break;
+          case REG_SP:
+            _cpu.setSP( values[i] );
+            break;
+          default:
+            _cpu.setStatusRegister( (byte)values[i] );
+            break;
+        }
+      }
+
+      c.respond( CMD_REGISTERS_SET, OK, id, registers() );
+    } );
+  }
+
+
+
+  /**
+   * Implements the checkpoint set command.
+   */
+  private void checkpointSet( Connection c, int id, ByteBuffer body )
+  {
+    if ( body.remaining() < 8 )
+    {
+      c.respond( CMD_CHECKPOINT_SET, ERROR_LENGTH, id, null );
+      return;
+    }
+
+    int start = body.getShort() & 0xffff;
+    int end = body.getShort() & 0xffff;
+    boolean stop = body.get() != 0;
+    boolean enabled = body.get() != 0;
+    int operation = body.get() &
+      (BreakpointEngine.READ | BreakpointEngine.WRITE | BreakpointEngine.EXECUTE);
+    boolean temporary = body.get() != 0;
+
+    if ( end < start || ! stop || temporary || operation == 0 )
+    {
+      c.respond( CMD_CHECKPOINT_SET, ERROR_PARAMETER, id, null );
+      return;
+    }
+
+    int checkpoint = _nextCheckpointId++;
+    int[] cp = new int[]{ start, end, operation, enabled ? 1 : 0 };
+    _checkpoints.put( checkpoint, cp );
+    installCheckpoints();
+
+    c.respond(
+      RESPONSE_CHECKPOINT_INFO, OK, id, checkpointInfo( checkpoint, cp ) );
+  }
+
+
+
+  /**
+   * Implements the display get command.
+   */
+  private void displayGet( Connection c, int id, ByteBuffer body )
+  {
+    if ( body.remaining() < 2 )
+    {
+      c.respond( CMD_DISPLAY_GET, ERROR_LENGTH, id, null );
+      return;
+    }
+
+    body.get();
+    // Only 8 bit indexed is supported.
+    if ( body.get() != 0 )
+    {
+      c.respond( CMD_DISPLAY_GET, ERROR_PARAMETER, id, null );
+      return;
+    }
+
+    _vic.requestFrame().thenAccept( frame ->
+    {
+      int length = Vic.FRAME_WIDTH * Vic.FRAME_HEIGHT;
+      ByteBuffer result = buffer( 21 + length );
+
+      result.putInt( 17 );
+      result.putShort( (short)Vic.FRAME_WIDTH );
+      result.putShort( (short)Vic.FRAME_HEIGHT );
+      result.putShort( (short)((Vic.FRAME_WIDTH - 320) / 2) );
+      result.putShort( (short)((Vic.FRAME_HEIGHT - 200) / 2) );
+      result.putShort( (short)320 );
+      result.putShort( (short)200 );
+      result.put( (byte)8 );
+      result.putInt( length );
+      // The frame already holds the VIC color indices.
+      result.put( frame );
+
+      c.respond( CMD_DISPLAY_GET, OK, id, result );
+    } );
+  }
+
+
+
+  /**
+   * Sets the enabled checkpoints on the breakpoint engine.
+   */
+  private void installCheckpoints()
+  {
+    BreakpointEngine engine = _controller.getEngine();
+
+    engine.clear();
+    for ( int[] cp : _checkpoints.values() )
+    {
+      if ( cp[3] != 0 )
+        engine.setWatchpoint( cp[0], cp[1], cp[2] );
+    }
+  }
+
+
+
+  /**
+   * Creates a register info body.  Called on the processor thread.
+   */
+  private ByteBuffer registers()
+  {
+    int[] values =
+    {
+      _cpu.getAccu(),
+      _cpu.getX(),
+      _cpu.getY(),
+      _cpu.getPC() & 0xffff,
+      _cpu.getSP(),
+      _cpu.getStatusRegister() & 0xff
+    };
+
+    ByteBuffer result = buffer( 2 + 4 * values.length );
+    result.putShort( (short)values.length );
+    for ( int i = 0 ; i < values.length ; i++ )
+    {
+      result.put( (byte)3 );
+      result.put( (byte)i );
+      result.putShort( (short)values[i] );
+    }
+
+    return result;
+  }
+
+
+
+  /**
+   * Creates a checkpoint info body.
+   */
+  private static ByteBuffer checkpointInfo( int id, int[] cp )
+  {
+    ByteBuffer result = buffer( 23 );
+
+    result.putInt( id );
+    result.put( (byte)0 );
+    result.putShort( (short)cp[0] );
+    result.putShort( (short)cp[1] );
+    result.put( (byte)1 );
+    result.put( (byte)cp[3] );
+    result.put( (byte)cp[2] );
+    result.put( (byte)0 );
+    result.putInt( 0 );
+    result.putInt( 0 );
+    result.put( (byte)0 );
+    result.put( (byte)0 );
+
+    return result;
+  }
+
+
+
+  /**
+   * Sends an event holding the program counter to all connections.
+   */
+  private void broadcast( int type, int pc )
+  {
+    for ( Connection c : _connections )
+      c.respond( type, OK, EVENT_ID, buffer( 2 ).putShort( (short)pc ) );
+  }
+
+
+
+  /**
+   * Allocates a little endian buffer.
+   */
+  private static ByteBuffer buffer( int size )
+  {
+    return ByteBuffer.allocate( size ).order( ByteOrder.LITTLE_ENDIAN );
+  }
+
+
+
+  /**
+   * A client connection.
+   */
+  private final class Connection
+  {
+    /**
+     * The channel.
+     */
+    private final SocketChannel _channel;
+
+
+
+    /**
+     * The selection key.
+     */
+    private SelectionKey _key;
+
+
+
+    /**
+     * Receives the requests.
+     */
+    private ByteBuffer _in = buffer( 0x1000 );
+
+
+
+    /**
+     * The responses to write.  Filled from the selector and the processor
+     * thread.
+     */
+    private final Queue<ByteBuffer> _out =
+      new ConcurrentLinkedQueue<ByteBuffer>();
+
+
+
+    /**
+     * Create an instance.
+     */
+    Connection( SocketChannel channel )
+    {
+      _channel = channel;
+    }
+
+
+
+    /**
+     * Reads from the channel and handles the complete requests.
+     */
+    void read()
+    {
+      try
+      {
+        if ( _channel.read( _in ) < 0 )
+        {
+          close();
+          return;
+        }
+      }
+      catch ( IOException e )
+      {
+        close();
+        return;
+      }
+
+      _in.flip();
+
+      while ( _in.remaining() >= REQUEST_HEADER )
+      {
+        int start = _in.position();
+        int stx = _in.get( start ) & 0xff;
+        int version = _in.get( start + 1 ) & 0xff;
+        int length = _in.getInt( start + 2 );
+        int id = _in.getInt( start + 6 );
+        int command = _in.get( start + 10 ) & 0xff;
+
+        if ( stx != STX || length < 0 || length > MAX_BODY )
+        {
+          // Not in sync with the client.
+          close();
+          return;
+        }
+
+        if ( _in.remaining() < REQUEST_HEADER + length )
+        {
+          // Grow for large requests.
+          if ( _in.capacity() < REQUEST_HEADER + length )
+          {
+            ByteBuffer bigger = buffer( REQUEST_HEADER + length );
+            bigger.put( _in );
+            bigger.flip();
+            _in = bigger;
+          }
+          break;
+        }
+
+        ByteBuffer body = _in.duplicate().order( ByteOrder.LITTLE_ENDIAN );
+        body.position( start + REQUEST_HEADER );
+        body.limit( start + REQUEST_HEADER + length );
+        _in.position( start + REQUEST_HEADER + length );
+
+        if ( version != API_VERSION )
+          respond( command, ERROR_VERSION, id, null );
+        else
+          handle( this, id, command, body.slice().order( ByteOrder.LITTLE_ENDIAN ) );
+      }
+
+      _in.compact();
+    }
+
+
+
+    /**
+     * Writes the pending responses.
+     */
+    void write()
+    {
+      try
+      {
+        ByteBuffer b;
+        while ( null != (b = _out.peek()) )
+        {
+          _channel.write( b );
+          if ( b.hasRemaining() )
+            return;
+          _out.poll();
+        }
+      }
+      catch ( IOException e )
+      {
+        close();
+      }
+    }
+
+
+
+    /**
+     * Queues a response.  Can be called from any thread.
+     */
+    void respond( int type, int error, int id, ByteBuffer body )
+    {
+      int length = body == null ? 0 : body.position();
+      ByteBuffer b = buffer( 12 + length );
+
+      b.put( (byte)STX );
+      b.put( (byte)API_VERSION );
+      b.putInt( length );
+      b.put( (byte)type );
+      b.put( (byte)error );
+      b.putInt( id );
+      if ( body != null )
+      {
+        body.flip();
+        b.put( body );
+      }
+      b.flip();
+
+      _out.add( b );
+
+      if ( Thread.currentThread() != _thread )
+        _selector.wakeup();
+    }
+
+
+
+    /**
+     * Registers for writing if responses are pending.
+     */
+    void updateInterest()
+    {
+      if ( _key.isValid() )
+        _key.interestOps( _out.isEmpty() ?
+          SelectionKey.OP_READ :
+          SelectionKey.OP_READ | SelectionKey.OP_WRITE );
+    }
+
+
+
+    /**
+     * Closes the connection.  If this was the last connection the processor
+     * continues without debugger.
+     */
+    void close()
+    {
+      _connections.remove( this );
+      try
+      {
+        _channel.close();
+      }
+      catch ( IOException e )
+      {
+        _log.log( Level.FINE, e.getMessage(), e );
+      }
+
+      if ( _connections.isEmpty() )
+        _controller.detach();
+    }
+  }
+}
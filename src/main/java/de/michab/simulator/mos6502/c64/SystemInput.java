@@ -7,6 +7,8 @@
  */
 package de.michab.simulator.mos6502.c64;
 
+import java.util.Arrays;
+
 import de.michab.simulator.*;
 import de.michab.simulator.mos6502.*;
 
@@ -111,22 +113,22 @@ class SystemInput
     if ( null == _buffer )
       return;
 
-    byte[] rawMemory = getMemory().getRawMemory();
+    Memory memory = getMemory();
 
     // Check if there are characters in the 64's input key buffer.  If there
     // are characters we simply return, since we want to the emulation to
     // process the waiting keys before we add new keys.
-    if ( rawMemory[ ZP_NUMKEYS ] != 0 )
+    if ( memory.read( ZP_NUMKEYS ) != 0 )
       return;
 
     int numToWrite = _buffer.length - _currentBufferIndex;
     if ( numToWrite > KEY_BUFFER_SIZE )
       numToWrite = KEY_BUFFER_SIZE;
 
-    System.arraycopy( _buffer,
-                      _currentBufferIndex,
-                      rawMemory, KEY_BUFFER, numToWrite );
-    rawMemory[ZP_NUMKEYS]=(byte)numToWrite;
+    // Written through the memory, so the pages are tracked for snapshots.
+    for ( int i = 0 ; i < numToWrite ; i++ )
+      memory.write( KEY_BUFFER + i, _buffer[ _currentBufferIndex + i ] );
+    memory.write( ZP_NUMKEYS, (byte)numToWrite );
 
     _currentBufferIndex += numToWrite;
     if ( _currentBufferIndex > _buffer.length )
@@ -144,4 +146,21 @@ class SystemInput
     _currentBufferIndex = 0;
     _buffer = toWrite;
   }
+
+
+
+  /**
+   * Get the input that was not yet written into the 64's key buffer.
+   *
+   * @return The pending input or <code>null</code> if there is none.
+   */
+  public byte[] getPendingInput()
+  {
+    byte[] buffer = _buffer;
+
+    if ( buffer == null || _currentBufferIndex >= buffer.length )
+      return null;
+
+    return Arrays.copyOfRange( buffer, _currentBufferIndex, buffer.length );
+  }
 }
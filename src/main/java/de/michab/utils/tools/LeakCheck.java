@@ -0,0 +1,179 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2004 Michael G. Binz
+ */
+package de.michab.utils.tools;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import de.michab.simulator.mos6502.c64.C64Core;
+
+
+
+/**
+ * Checks the lifecycle of <code>C64Core</code>.  Creates and closes a number
+ * of headless emulations and reports the threads left behind.  Every other
+ * emulation is paused before it is closed.  In addition the processor time
+ * used by a paused emulation is measured.
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+public class LeakCheck
+{
+  /**
+   * The time to wait for closed emulations to terminate their threads.
+   */
+  private static final long TERMINATION_MS = 5000;
+
+
+
+  /**
+   * The time the processor use of a paused emulation is measured.
+   */
+  private static final long PAUSE_MS = 1000;
+
+
+
+  /**
+   * Hidden constructor.
+   */
+  private LeakCheck()
+  {
+  }
+
+
+
+  /**
+   * Create and close emulations.
+   *
+   * @param count The number of emulations.
+   * @param out The stream to report to.
+   * @return The number of threads left behind.
+   * @throws InterruptedException If the calling thread is interrupted.
+   */
+  public static int checkThreads( int count, PrintStream out )
+    throws InterruptedException
+  {
+    int before = Thread.activeCount();
+    long start = System.nanoTime();
+
+    for ( int i = 0 ; i < count ; i++ )
+    {
+      C64Core c64 = new C64Core();
+      c64.startHeadless();
+      c64.runFrames( 1 );
+
+      if ( i % 2 == 1 )
+        c64.pause();
+
+      c64.close();
+    }
+
+    long end = System.currentTimeMillis() + TERMINATION_MS;
+    int result;
+    while ( (result = Thread.activeCount() - before) > 0 &&
+            System.currentTimeMillis() < end )
+      Thread.sleep( 10 );
+
+    out.printf(
+      "%d emulations in %d ms, %d threads left.%n",
+      count,
+      (System.nanoTime() - start) / 1000000,
+      Math.max( 0, result ) );
+
+    return Math.max( 0, result );
+  }
+
+
+
+  /**
+   * Measure the processor time used by the threads of the process while an
+   * emulation is paused in the middle of a frame.
+   *
+   * @param out The stream to report to.
+   * @return The processor time used in nanoseconds.
+   * @throws InterruptedException If the calling thread is interrupted.
+   */
+  public static long checkPause( PrintStream out )
+    throws InterruptedException
+  {
+    C64Core c64 = new C64Core();
+    c64.startHeadless();
+
+    Thread runner = new Thread( () ->
+    {
+      try
+      {
+        c64.runFrames( Integer.MAX_VALUE );
+      }
+      catch ( IllegalStateException e )
+      {
+        // Closed.
+      }
+    }, LeakCheck.class.getSimpleName() );
+    runner.start();
+
+    Thread.sleep( 100 );
+    c64.pause();
+    // Let the running thread reach the clock.
+    Thread.sleep( 100 );
+
+    long before = cpuTime();
+    Thread.sleep( PAUSE_MS );
+    long result = cpuTime() - before;
+
+    c64.close();
+    runner.join();
+
+    out.printf(
+      "Paused for %d ms, %d us processor time used.%n",
+      PAUSE_MS,
+      result / 1000 );
+
+    return result;
+  }
+
+
+
+  /**
+   * Get the processor time used by all threads.
+   */
+  private static long cpuTime()
+  {
+    ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+    long result = 0;
+
+    for ( long id : mx.getAllThreadIds() )
+    {
+      long time = mx.getThreadCpuTime( id );
+      if ( time > 0 )
+        result += time;
+    }
+
+    return result;
+  }
+
+
+
+  /**
+   * Run the checks.  Exits with status 1 if threads are left behind.
+   *
+   * @param argv The number of emulations to create, default is 1000.
+   */
+  public static void main( String[] argv )
+    throws Exception
+  {
+    int count = argv.length > 0 ? Integer.parseInt( argv[0] ) : 1000;
+
+    checkPause( System.out );
+
+    if ( checkThreads( count, System.out ) > 0 )
+      System.exit( 1 );
+  }
+}
@@ -0,0 +1,156 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2004 Michael G. Binz
+ */
+package de.michab.utils.tools;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import de.michab.simulator.mos6502.Opcodes;
+import de.michab.simulator.mos6502.TraceBuffer;
+
+
+
+/**
+ * Decodes instruction trace files written by
+ * <code>de.michab.simulator.mos6502.TraceBuffer</code>.  Prints one line per
+ * instruction holding the cycle, the address, the instruction bytes, the
+ * disassembled instruction and the register contents before execution.
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+public class TraceDecoder
+{
+  /**
+   * The names of the status register flags from bit 7 to bit 0.
+   */
+  private static final String FLAGS = "NV-BDIZC";
+
+
+
+  /**
+   * Hidden constructor.
+   */
+  private TraceDecoder()
+  {
+  }
+
+
+
+  /**
+   * Decode a trace file.
+   *
+   * @param file The name of the file to decode.
+   * @param out The stream to print to.
+   * @throws IOException In case of an error or if the file is not a trace.
+   */
+  public static void decode( String file, PrintStream out )
+    throws IOException
+  {
+    try ( DataInputStream in = new DataInputStream(
+      new BufferedInputStream( new FileInputStream( file ) ) ) )
+    {
+      if ( in.readInt() != TraceBuffer.MAGIC )
+        throw new IOException( file + ": Not a trace file." );
+      if ( in.readShort() != TraceBuffer.VERSION )
+        throw new IOException( file + ": Unsupported version." );
+      int recordSize = in.readShort();
+      long count = in.readLong();
+
+      for ( long i = 0 ; count < 0 || i < count ; i++ )
+      {
+        long cycle;
+        try
+        {
+          cycle = in.readLong();
+        }
+        catch ( EOFException e )
+        {
+          // End of a streamed file.
+          break;
+        }
+
+        int pc = in.readShort() & 0xffff;
+        int opcode = in.readUnsignedByte();
+        int lo = in.readUnsignedByte();
+        int hi = in.readUnsignedByte();
+        int a = in.readUnsignedByte();
+        int x = in.readUnsignedByte();
+        int y = in.readUnsignedByte();
+        int sp = in.readUnsignedByte();
+        int p = in.readUnsignedByte();
+        in.skipBytes( recordSize - TraceBuffer.RECORD_SIZE );
+
+        int length = Opcodes.getEncodingLength( opcode );
+        String bytes = String.format( "%02x", opcode );
+        if ( length > 1 )
+          bytes += String.format( " %02x", lo );
+        if ( length > 2 )
+          bytes += String.format( " %02x", hi );
+
+        out.printf(
+          "%12d %04x  %-9s %-14s A=%02x X=%02x Y=%02x SP=%02x %s%n",
+          cycle,
+          pc,
+          bytes,
+          Opcodes.disassemble( opcode, hi << 8 | lo ),
+          a,
+          x,
+          y,
+          sp,
+          flags( p ) );
+      }
+    }
+  }
+
+
+
+  /**
+   * Formats the status register.  Set flags are printed as upper case
+   * letters, cleared flags as dots.
+   */
+  private static String flags( int p )
+  {
+    StringBuilder result = new StringBuilder( 8 );
+
+    for ( int i = 0 ; i < 8 ; i++ )
+      result.append( 0 != (p & 0x80 >> i) ? FLAGS.charAt( i ) : '.' );
+
+    return result.toString();
+  }
+
+
+
+  /**
+   * Decodes the trace file passed on the command line to standard out.
+   *
+   * @param argv The command line arguments.
+   */
+  public static void main( String[] argv )
+  {
+    if ( argv.length != 1 )
+    {
+      System.err.println( "Usage: TraceDecoder <FILE>" );
+      System.exit( 1 );
+    }
+
+    try
+    {
+      decode( argv[0], System.out );
+    }
+    catch ( IOException e )
+    {
+      System.err.println( e.getMessage() );
+      System.exit( 1 );
+    }
+  }
+}